@@ -2,12 +2,17 @@ package fi.csc.chipster.archive;
 
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -22,6 +27,7 @@ import org.apache.commons.io.FileUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import fi.csc.chipster.archive.GpgBackupUtils.BackupTask;
 import fi.csc.chipster.auth.model.Role;
 import fi.csc.chipster.rest.ChipsterS3Client;
 import fi.csc.chipster.rest.Config;
@@ -37,6 +43,10 @@ public class BackupArchive {
 
 	private static final String CONF_BACKUP_MONTHLY_COUNT = "backup-monthly-count";
 	private static final String CONF_BACKUP_DAILY_COUNT = "backup-daily-count";
+	public static final String CONF_BACKUP_ARCHIVE_THREADS = "backup-archive-threads";
+
+	// archives are collected here and moved to the archive root when complete
+	private static final String PARTIAL_DIR = ".partial";
 
 	private enum BackupType {
 		INCREMENTAL,
@@ -46,14 +56,20 @@ public class BackupArchive {
 	private static Logger logger = LogManager.getLogger();
 
 	private Config config;
+	private int threads;
 
 	public BackupArchive() {
 
-		this.config = new Config();
+		this(new Config());
 
 		archiveAndCleanUp();
 	}
 
+	BackupArchive(Config config) {
+		this.config = config;
+		this.threads = Math.max(1, config.getInt(CONF_BACKUP_ARCHIVE_THREADS));
+	}
+
 	private void archiveAndCleanUp() {
 
 		for (String role : config.getDbBackupRoles()) {
@@ -183,68 +199,118 @@ public class BackupArchive {
 		logger.info("clean up done");
 	}
 
-	private void archive(ChipsterS3Client s3Client, String backupNamePrefix,
+	/**
+	 * Download the backup and collect its files to a new archive
+	 * 
+	 * The archive is collected in a separate directory and moved to its final
+	 * place only when it's complete. If the process is interrupted, the next run
+	 * continues from the same directory, because some files may have been moved
+	 * there already from the older archives.
+	 */
+	void archive(ChipsterS3Client s3Client, String backupNamePrefix,
 			Path archiveRootPath, String role,
 			String backupName, String bucket, List<S3Object> objects)
 			throws IOException, InterruptedException, ArchiveException {
 
 		Path currentBackupPath = archiveRootPath.resolve(backupName);
-		Path downloadPath = currentBackupPath.resolve("download");
+		Path partialPath = archiveRootPath.resolve(PARTIAL_DIR);
+		Path partialBackupPath = partialPath.resolve(backupName);
+		Path downloadPath = partialBackupPath.resolve("download");
+
+		if (Files.exists(currentBackupPath.resolve(ARCHIVE_INFO))) {
+			// archive is moved here only when it's complete
+			logger.warn("archive " + backupName + " is complete, but the archive info wasn't uploaded");
+			uploadArchiveInfo(s3Client, bucket, backupName, currentBackupPath);
+			return;
+		}
 
 		if (Files.exists(currentBackupPath)) {
 			throw new ArchiveException(
 					"archive path " + currentBackupPath + " exists already. Is other process running?");
 		}
 
-		String key = backupName + "/" + BACKUP_INFO;
-		Map<Path, InfoLine> backupInfoMap = GpgBackupUtils.infoFileToMap(s3Client, bucket, key,
-				currentBackupPath);
+		Files.createDirectories(partialPath);
+		Path lockPath = partialPath.resolve(backupName + ".lock");
 
-		List<String> backupObjects = objects.stream()
-				.map(o -> o.key())
-				.filter(name -> name.startsWith(backupName + "/"))
-				.collect(Collectors.toList());
+		// the lock is released by the OS even if this process is killed
+		try (FileChannel lockChannel = FileChannel.open(lockPath, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE);
+				FileLock lock = lockChannel.tryLock()) {
 
-		List<InfoLine> newFileInfos = backupInfoMap.values().stream()
-				.filter(info -> backupName.equals(info.getBackupName()))
-				.collect(Collectors.toList());
+			if (lock == null) {
+				throw new ArchiveException("archive " + backupName + " is locked. Is other process running?");
+			}
 
-		List<String> archiveNames = backupInfoMap.values().stream()
-				.filter(info -> !backupName.equals(info.getBackupName()))
-				.map(info -> info.getBackupName())
-				.distinct()
-				.collect(Collectors.toList());
+			if (Files.exists(partialBackupPath)) {
+				logger.warn("continue interrupted archiving of " + backupName);
+			}
 
-		logger.info(
-				"the backup has " + newFileInfos.size() + " new files in " + (backupObjects.size() - 1) + " packages");
-		if (archiveNames.size() == 0) {
-			logger.info("no files will moved from the old archives");
-		} else if (archiveNames.size() == 1) {
-			logger.info((backupInfoMap.size() - newFileInfos.size()) + " files will be moved from the archive "
-					+ archiveNames.get(0));
-		} else {
-			// this isn't used at the moment
-			logger.warn("the backup is using files from several archive versions (current is " + backupName + "): "
-					+ archiveNames);
-		}
+			String key = backupName + "/" + BACKUP_INFO;
+			Map<Path, InfoLine> backupInfoMap = GpgBackupUtils.infoFileToMap(s3Client, bucket, key,
+					partialPath);
 
-		downloadPath.toFile().mkdirs();
+			List<String> backupObjects = objects.stream()
+					.map(o -> o.key())
+					.filter(name -> name.startsWith(backupName + "/"))
+					.collect(Collectors.toList());
 
-		downloadFiles(backupObjects, bucket, s3Client, downloadPath);
+			List<InfoLine> newFileInfos = backupInfoMap.values().stream()
+					.filter(info -> backupName.equals(info.getBackupName()))
+					.collect(Collectors.toList());
 
-		collectFiles(archiveRootPath, currentBackupPath, downloadPath, backupInfoMap, backupName, backupNamePrefix);
+			List<String> archiveNames = backupInfoMap.values().stream()
+					.filter(info -> !backupName.equals(info.getBackupName()))
+					.map(info -> info.getBackupName())
+					.distinct()
+					.collect(Collectors.toList());
 
-		FileUtils.deleteDirectory(downloadPath.toFile());
+			logger.info(
+					"the backup has " + newFileInfos.size() + " new files in " + (backupObjects.size() - 1)
+							+ " packages");
+			if (archiveNames.size() == 0) {
+				logger.info("no files will moved from the old archives");
+			} else if (archiveNames.size() == 1) {
+				logger.info((backupInfoMap.size() - newFileInfos.size()) + " files will be moved from the archive "
+						+ archiveNames.get(0));
+			} else {
+				// this isn't used at the moment
+				logger.warn("the backup is using files from several archive versions (current is " + backupName
+						+ "): " + archiveNames);
+			}
 
-		logger.info("upload archive info to " + bucket + "/" + backupName + "/" + ARCHIVE_INFO
-				+ " for next incremental backup");
-		Path archiveInfoPath = writeArchiveInfo(currentBackupPath, backupInfoMap);
+			// partial downloads of the interrupted run
+			FileUtils.deleteDirectory(downloadPath.toFile());
+			downloadPath.toFile().mkdirs();
+
+			downloadFiles(backupObjects, bucket, s3Client, downloadPath, newFileInfos);
 
-		s3Client.uploadFile(bucket, backupName + "/" + ARCHIVE_INFO, archiveInfoPath);
+			collectFiles(archiveRootPath, partialBackupPath, downloadPath, backupInfoMap, backupName,
+					backupNamePrefix);
+
+			FileUtils.deleteDirectory(downloadPath.toFile());
+
+			writeArchiveInfo(partialBackupPath, backupName, backupInfoMap);
+
+			// the archive appears complete or not at all
+			Files.move(partialBackupPath, currentBackupPath, StandardCopyOption.ATOMIC_MOVE);
+
+			Files.delete(lockPath);
+		}
+
+		uploadArchiveInfo(s3Client, bucket, backupName, currentBackupPath);
 
 		logger.info("backup archiving done");
 	}
 
+	private void uploadArchiveInfo(ChipsterS3Client s3Client, String bucket, String backupName,
+			Path currentBackupPath) throws IOException {
+
+		logger.info("upload archive info to " + bucket + "/" + backupName + "/" + ARCHIVE_INFO
+				+ " for next incremental backup");
+
+		s3Client.uploadFile(bucket, backupName + "/" + ARCHIVE_INFO, currentBackupPath.resolve(ARCHIVE_INFO));
+	}
+
 	private List<String> findBackups(List<S3Object> objects, String backupNamePrefix, String fileName) {
 
 		return objects.stream()
@@ -260,7 +326,8 @@ public class BackupArchive {
 				.collect(Collectors.toList());
 	}
 
-	private Path writeArchiveInfo(Path currentBackupPath, Map<Path, InfoLine> backupInfoMap) throws IOException {
+	private Path writeArchiveInfo(Path currentBackupPath, String backupName, Map<Path, InfoLine> backupInfoMap)
+			throws IOException {
 
 		Path archiveInfoPath = currentBackupPath.resolve(ARCHIVE_INFO);
 
@@ -290,11 +357,10 @@ public class BackupArchive {
 					return;
 				}
 
-				// we could also the checksum of the encrypted file, but it would take a lot of
-				// time
+				// the checksums of the new files were checked after the download
 
 				// other fields we have to take from the original backupInfo
-				backupInfo.setBackupName(currentBackupPath.getFileName().toString());
+				backupInfo.setBackupName(backupName);
 
 				Files.write(archiveInfoPath, Collections.singleton(backupInfo.toLine()), Charset.defaultCharset(),
 						StandardOpenOption.CREATE, StandardOpenOption.APPEND);
@@ -312,6 +378,11 @@ public class BackupArchive {
 		backupInfoMap.values()
 				.forEach(info -> {
 					try {
+						if (isValid(currentBackupPath.resolve(info.getGpgPath()), info.getGpgSize())) {
+							// collected already before the previous run was interrupted
+							return;
+						}
+
 						Path candidate;
 						if (backupName.equals(info.getBackupName())) {
 							// file should be in the latest backup
@@ -386,41 +457,84 @@ public class BackupArchive {
 		Files.move(source, target);
 	}
 
+	/**
+	 * Download the backup objects in parallel
+	 * 
+	 * Each thread extracts and verifies its tar file after the download, while the
+	 * other threads continue downloading.
+	 */
 	private void downloadFiles(List<String> backupObjects, String bucket, ChipsterS3Client s3Client,
-			Path downloadDirPath)
+			Path downloadDirPath, List<InfoLine> newFileInfos)
 			throws InterruptedException, IOException {
 
+		Map<Path, InfoLine> packages = newFileInfos.stream()
+				.collect(Collectors.toMap(info -> info.getGpgPath(), info -> info));
+
+		List<BackupTask> tasks = new ArrayList<>();
 		for (String key : backupObjects) {
+			tasks.add(() -> downloadFile(key, bucket, s3Client, downloadDirPath, packages));
+		}
 
-			String filename = Paths.get(key).getFileName().toString();
-			Path downloadFilePath = downloadDirPath.resolve(filename);
+		GpgBackupUtils.runInParallel(tasks, threads);
+	}
+
+	private void downloadFile(String key, String bucket, ChipsterS3Client s3Client, Path downloadDirPath,
+			Map<Path, InfoLine> packages) throws IOException, InterruptedException {
 
-			// int maxRetries = 10;
-			// for (int i = 0; i < maxRetries; i++) {
-			logger.info("download " + bucket + "/" + key);
-			// try {
+		String filename = Paths.get(key).getFileName().toString();
+		Path downloadFilePath = downloadDirPath.resolve(filename);
 
-			s3Client.downloadFile(bucket, key, downloadFilePath.toFile());
+		logger.info("download " + bucket + "/" + key);
 
-			// break;
-			// } catch (AmazonClientException e) {
-			// logger.warn("download try " + i + " failed with exception", e);
-			// if (i == maxRetries - 1) {
-			// throw e;
-			// }
-			// }
-			// }
+		s3Client.downloadFile(bucket, key, downloadFilePath.toFile());
 
-			if (key.endsWith(".tar")) {
-				extract(downloadFilePath, downloadDirPath);
+		if (key.endsWith(".tar")) {
+			for (Path packagePath : extract(downloadFilePath, downloadDirPath)) {
+				verify(downloadDirPath, packagePath, packages.get(packagePath));
 			}
 		}
 	}
 
-	private void extract(Path tarPath, Path downloadDirPath) throws IOException, InterruptedException {
+	/**
+	 * @return paths of the extracted files
+	 */
+	private List<Path> extract(Path tarPath, Path downloadDirPath) throws IOException, InterruptedException {
 		logger.info("extract " + tarPath.getFileName());
-		ProcessUtils.run(null, null, "tar", "-xf", tarPath.toString(), "--directory", downloadDirPath.toString());
+		// verbose to get the list of files
+		String output = ProcessUtils.runStdoutToString(null, "tar", "-xvf", tarPath.toString(), "--directory",
+				downloadDirPath.toString());
 		Files.delete(tarPath);
+
+		return Arrays.stream(output.split("\n"))
+				.filter(line -> !line.isEmpty() && !line.endsWith("/"))
+				.map(line -> Paths.get(line))
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * Check the size and checksum of the extracted package
+	 * 
+	 * Corrupted packages are deleted. Those are then searched from the older
+	 * archives like any other missing files.
+	 */
+	private void verify(Path downloadDirPath, Path packagePath, InfoLine info) throws IOException {
+
+		if (info == null) {
+			logger.warn("file " + packagePath + " is not in the backup info");
+			return;
+		}
+
+		Path file = downloadDirPath.resolve(packagePath);
+
+		if (Files.size(file) != info.getGpgSize()) {
+			logger.error("file " + packagePath + " has size " + Files.size(file) + ", expected "
+					+ info.getGpgSize());
+			Files.delete(file);
+
+		} else if (!ChecksumPipe.sha512(file).equals(info.getGpgSha512())) {
+			logger.error("file " + packagePath + " checksum does not match");
+			Files.delete(file);
+		}
 	}
 
 	/**
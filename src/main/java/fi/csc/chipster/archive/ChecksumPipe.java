@@ -0,0 +1,153 @@
+package fi.csc.chipster.archive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import fi.csc.chipster.rest.ProcessUtils;
+
+/**
+ * Stream a file through an external command to another file and calculate the
+ * SHA-512 checksums of both on the way
+ *
+ * This replaces separate "shasum -a 512" runs, which had to read both files
+ * again after the command. The checksums are the same hex strings that shasum
+ * prints.
+ */
+public class ChecksumPipe {
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private long inputSize;
+	private String inputSha512;
+	private long outputSize;
+	private String outputSha512;
+
+	private ChecksumPipe() {
+	}
+
+	/**
+	 * @param input  file to write to the stdin of the command
+	 * @param output file for the stdout of the command
+	 * @param env    additional environment variables for the command or null
+	 * @param cmdArray
+	 * @return sizes and checksums of the input and output
+	 * @throws java.nio.file.NoSuchFileException if the input file doesn't exist
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static ChecksumPipe run(Path input, Path output, Map<String, String> env, String... cmdArray)
+			throws IOException, InterruptedException {
+
+		List<String> cmd = new ArrayList<>(Arrays.asList(cmdArray));
+		String command = cmd.get(0);
+		cmd.set(0, ProcessUtils.getPath(command));
+
+		ChecksumPipe result = new ChecksumPipe();
+		MessageDigest inputDigest = getSha512Digest();
+		MessageDigest outputDigest = getSha512Digest();
+
+		// open before starting the process to notice if the file has disappeared
+		try (InputStream in = new DigestInputStream(Files.newInputStream(input), inputDigest)) {
+
+			ProcessBuilder pb = new ProcessBuilder(cmd);
+			if (env != null) {
+				pb.environment().putAll(env);
+			}
+			Process process = pb.start();
+
+			Thread stderrThread = ProcessUtils.readLines(process.getErrorStream(),
+					line -> logger.error(command + " stderr: " + line));
+
+			IOException[] outputException = new IOException[1];
+			Thread stdoutThread = new Thread(() -> {
+				try (InputStream stdout = process.getInputStream();
+						OutputStream out = new DigestOutputStream(Files.newOutputStream(output), outputDigest)) {
+					result.outputSize = stdout.transferTo(out);
+				} catch (IOException e) {
+					outputException[0] = e;
+				}
+			});
+			stdoutThread.start();
+
+			try (OutputStream stdin = process.getOutputStream()) {
+				result.inputSize = in.transferTo(stdin);
+			} catch (IOException e) {
+				// the command closed its stdin, probably failed. Report its exit code
+				// instead of a broken pipe
+				if (process.waitFor() == 0) {
+					throw e;
+				}
+			}
+
+			stdoutThread.join();
+			stderrThread.join();
+
+			int exitCode = process.waitFor();
+			if (exitCode != 0) {
+				throw new RuntimeException(command + " failed with exit code " + exitCode);
+			}
+
+			if (outputException[0] != null) {
+				throw outputException[0];
+			}
+		}
+
+		result.inputSha512 = Hex.encodeHexString(inputDigest.digest());
+		result.outputSha512 = Hex.encodeHexString(outputDigest.digest());
+
+		return result;
+	}
+
+	/**
+	 * @param file
+	 * @return SHA-512 checksum of the file as a hex string
+	 * @throws IOException
+	 */
+	public static String sha512(Path file) throws IOException {
+		MessageDigest digest = getSha512Digest();
+		try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+			in.transferTo(OutputStream.nullOutputStream());
+		}
+		return Hex.encodeHexString(digest.digest());
+	}
+
+	public static MessageDigest getSha512Digest() {
+		try {
+			return MessageDigest.getInstance("SHA-512");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java implementation is required to support SHA-512
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public long getInputSize() {
+		return inputSize;
+	}
+
+	public String getInputSha512() {
+		return inputSha512;
+	}
+
+	public long getOutputSize() {
+		return outputSize;
+	}
+
+	public String getOutputSha512() {
+		return outputSha512;
+	}
+}
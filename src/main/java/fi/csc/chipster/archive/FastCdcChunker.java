@@ -0,0 +1,152 @@
+package fi.csc.chipster.archive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Content-defined chunking with the FastCDC algorithm
+ *
+ * The chunk boundaries are decided by a rolling gear hash of the last 64 bytes,
+ * so an insertion or deletion in a file changes only the chunks around it. The
+ * rest of the chunks are the same as before and don't have to be stored again.
+ *
+ * Normalized chunking: a stricter mask is used before the average size and a
+ * looser mask after it, which keeps most chunks close to the average size.
+ *
+ * See Xia et al. FastCDC: a Fast and Efficient Content-Defined Chunking Approach
+ * for Data Deduplication, USENIX ATC 2016.
+ */
+public class FastCdcChunker {
+
+	public static final int DEFAULT_MIN_SIZE = 256 * 1024;
+	public static final int DEFAULT_AVG_SIZE = 1024 * 1024;
+	public static final int DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+
+	// the chunk boundaries must never change, because otherwise the old chunks
+	// wouldn't be found anymore. java.util.Random is specified to produce the same
+	// sequence on all platforms
+	private static final long[] GEAR = new long[256];
+
+	static {
+		Random random = new Random(0x5bd1e995L);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	public interface ChunkConsumer {
+		void accept(byte[] bytes, int offset, int length) throws IOException;
+	}
+
+	private int minSize;
+	private int avgSize;
+	private int maxSize;
+	private long maskS;
+	private long maskL;
+
+	public FastCdcChunker() {
+		this(DEFAULT_MIN_SIZE, DEFAULT_AVG_SIZE, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param minSize
+	 * @param avgSize must be a power of two
+	 * @param maxSize
+	 */
+	public FastCdcChunker(int minSize, int avgSize, int maxSize) {
+
+		if (Integer.bitCount(avgSize) != 1 || minSize <= 0 || minSize > avgSize || avgSize > maxSize) {
+			throw new IllegalArgumentException("invalid chunk sizes " + minSize + ", " + avgSize + ", " + maxSize);
+		}
+
+		this.minSize = minSize;
+		this.avgSize = avgSize;
+		this.maxSize = maxSize;
+
+		int bits = Integer.numberOfTrailingZeros(avgSize);
+
+		// use the highest bits, because those depend on the most bytes
+		this.maskS = getMask(bits + 2);
+		this.maskL = getMask(Math.max(1, bits - 2));
+	}
+
+	private static long getMask(int bits) {
+		return -1L << (64 - bits);
+	}
+
+	/**
+	 * Split the stream to chunks
+	 *
+	 * @param in
+	 * @param consumer called for each chunk in order. The byte array is reused
+	 *                 after the call returns.
+	 * @throws IOException
+	 */
+	public void chunk(InputStream in, ChunkConsumer consumer) throws IOException {
+
+		byte[] buffer = new byte[maxSize * 2];
+		int start = 0;
+		int end = 0;
+		boolean eof = false;
+
+		while (true) {
+
+			// keep at least one full chunk in the buffer
+			if (!eof && end - start < maxSize) {
+				if (start > 0) {
+					System.arraycopy(buffer, start, buffer, 0, end - start);
+					end -= start;
+					start = 0;
+				}
+				while (end < buffer.length) {
+					int n = in.read(buffer, end, buffer.length - end);
+					if (n == -1) {
+						eof = true;
+						break;
+					}
+					end += n;
+				}
+			}
+
+			if (start == end) {
+				return;
+			}
+
+			int length = cut(buffer, start, end - start);
+			consumer.accept(buffer, start, length);
+			start += length;
+		}
+	}
+
+	/**
+	 * @return length of the next chunk
+	 */
+	int cut(byte[] bytes, int offset, int length) {
+
+		if (length <= minSize) {
+			return length;
+		}
+
+		int normal = Math.min(avgSize, length);
+		int end = Math.min(maxSize, length);
+		long hash = 0;
+		int i = minSize;
+
+		for (; i < normal; i++) {
+			hash = (hash << 1) + GEAR[bytes[offset + i] & 0xff];
+			if ((hash & maskS) == 0) {
+				return i + 1;
+			}
+		}
+
+		for (; i < end; i++) {
+			hash = (hash << 1) + GEAR[bytes[offset + i] & 0xff];
+			if ((hash & maskL) == 0) {
+				return i + 1;
+			}
+		}
+
+		return end;
+	}
+}
@@ -4,10 +4,13 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
@@ -18,6 +21,10 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import org.apache.commons.io.FileUtils;
@@ -48,6 +55,51 @@ public class GpgBackupUtils {
 	public static final String CONF_BACKUP_GPG_PASSPHRASE = "backup-gpg-passphrase";
 	public static final String CONF_BACKUP_GPG_PUBLIC_KEY = "backup-gpg-public-key";
 	public static final String CONF_BACKUP_GPG_PROGRAM = "backup-gpg-program";
+	public static final String CONF_BACKUP_THREADS = "backup-threads";
+
+	public interface BackupTask {
+		void run() throws IOException, InterruptedException;
+	}
+
+	/**
+	 * Run the tasks in a thread pool and wait until all of them are done
+	 * 
+	 * The first exception of the tasks is thrown.
+	 */
+	public static void runInParallel(List<BackupTask> tasks, int threads) throws IOException, InterruptedException {
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+
+		try {
+			List<Future<Void>> futures = new ArrayList<>();
+
+			for (BackupTask task : tasks) {
+				futures.add(executor.submit(() -> {
+					task.run();
+					return null;
+				}));
+			}
+
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException) {
+						throw (IOException) e.getCause();
+					}
+					if (e.getCause() instanceof InterruptedException) {
+						throw (InterruptedException) e.getCause();
+					}
+					if (e.getCause() instanceof RuntimeException) {
+						throw (RuntimeException) e.getCause();
+					}
+					throw new RuntimeException("task failed", e.getCause());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
 
 	public static Map<Path, InfoLine> infoFileToMap(ChipsterS3Client s3Client, String bucket, String key,
 			Path tempDir)
@@ -93,103 +145,197 @@ public class GpgBackupUtils {
 			Files.delete(tarPath);
 		}
 
-		for (Path packageFilePath : files) {
+		int threads = Math.max(1, config.getInt(CONF_BACKUP_THREADS));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
 
-			Path packagePath = null;
+		/*
+		 * Compress, encrypt and calculate the checksums of several files in parallel,
+		 * but append the packages to the tar and write the info lines in the original
+		 * order. Only a few packages are waiting at a time to limit the space needed in
+		 * the backupDir.
+		 */
+		ArrayDeque<Future<InfoLine>> packages = new ArrayDeque<>();
 
-			if (recipient != null || gpgPassphrase != null) {
-				packagePath = getPackageGpgPath(packageFilePath);
-			} else {
-				packagePath = getPackageLz4Path(packageFilePath);
-			}
+		try {
+			for (Path packageFilePath : files) {
 
-			Path localFilePath = storage.resolve(packageFilePath);
-			Path localPackagePath = backupDir.resolve(packagePath);
-
-			long fileSize;
-			String sha512;
-
-			try {
-				// checksum of the original file to be checked after restore
-				// file read once, cpu bound
-				sha512 = parseChecksumLine(
-						ProcessUtils.runStdoutToString(null, "shasum", "-a", "512", localFilePath.toString()));
-				fileSize = Files.size(localFilePath);
-			} catch (RuntimeException e) {
-				if (!Files.exists(localFilePath)) {
-					logger.error("file disappeared during the backup process: " + e.getMessage()
-							+ " (probably deleted by some user)");
-					continue;
-				} else {
-					throw e;
+				packages.add(executor.submit(() -> createPackage(storage, packageFilePath, backupDir, backupName,
+						recipient, gpgPassphrase, config)));
+
+				if (packages.size() >= threads * 2) {
+					appendToTar(packages.remove(), tarPath, backupDir, backupInfoPath);
 				}
 			}
 
-			// compress and encrypt
-			// file read and written once, cpu bound (shell pipe saves one write and read)
-			String cmd = "";
-			Map<String, String> env = new HashMap<String, String>();
+			while (!packages.isEmpty()) {
+				appendToTar(packages.remove(), tarPath, backupDir, backupInfoPath);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
 
-			cmd += ProcessUtils.getPath("lz4") + " -q -c " + localFilePath.toString();
+		upload(s3Client, bucket, backupName, tarPath, true);
 
-			if (recipient != null || gpgPassphrase != null) {
-				cmd += " | " + getGpgProgram(config) + " --output - --compress-algo none --no-tty ";
+		Files.delete(tarPath);
+	}
 
-				// don't set null value, because the map returned by
-				// ProcessBuilder.getEnvironment() won't tolerate it
-				if (gpgPassphrase != null) {
-					env.put(ENV_GPG_PASSPHRASE, gpgPassphrase);
-				}
+	/**
+	 * Compress and encrypt the file to the backupDir
+	 * 
+	 * The file is read only once. Checksums of the original file (to be checked
+	 * after restore) and the package (to monitor bit rot on the backup server) are
+	 * calculated on the way.
+	 * 
+	 * @return the info line of the package or null if the file has disappeared
+	 */
+	private static InfoLine createPackage(Path storage, Path packageFilePath, Path backupDir, String backupName,
+			String recipient, String gpgPassphrase, Config config) throws IOException, InterruptedException {
+
+		Path packagePath = null;
+
+		if (recipient != null || gpgPassphrase != null) {
+			packagePath = getPackageGpgPath(packageFilePath);
+		} else {
+			packagePath = getPackageLz4Path(packageFilePath);
+		}
 
-				if (recipient != null) {
-
-					// asymmetric encryption
-					cmd += "--recipient " + recipient + " --always-trust --encrypt -";
-				} else if (gpgPassphrase != null) {
-					/*
-					 * Symmetric encryption
-					 * 
-					 * Try to hide the passphrase from the process list in case this runs in
-					 * multiuser
-					 * system (container is safe anyway).
-					 * - echo is not visible in the process list because it's a builtin
-					 * - process substitution <() creates a anonymous pipe, where the content is not
-					 * visible in the process list
-					 */
-					cmd += "--passphrase-file <(echo $" + ENV_GPG_PASSPHRASE + ") ";
-					cmd += "--pinentry-mode loopback ";
-					cmd += "--symmetric -";
-				}
+		Path localFilePath = storage.resolve(packageFilePath);
+		Path localPackagePath = backupDir.resolve(packagePath);
+
+		// compress and encrypt
+		// cpu bound (shell pipe saves one write and read)
+		Map<String, String> env = new HashMap<String, String>();
+		String cmd = getCompressAndEncryptCommand(recipient, gpgPassphrase, config, env);
+
+		Files.createDirectories(localPackagePath.getParent());
+
+		ChecksumPipe checksums;
+		try {
+			checksums = ChecksumPipe.run(localFilePath, localPackagePath, env, "bash", "-c", cmd);
+		} catch (NoSuchFileException e) {
+			logger.error("file disappeared during the backup process: " + e.getMessage()
+					+ " (probably deleted by some user)");
+			return null;
+		}
+
+		return new InfoLine(packageFilePath, checksums.getInputSize(), checksums.getInputSha512(), packagePath,
+				checksums.getOutputSize(), checksums.getOutputSha512(), backupName);
+	}
+
+	/**
+	 * Shell command that compresses and encrypts stdin to stdout
+	 * 
+	 * @param recipient     public key for asymmetric encryption or null
+	 * @param gpgPassphrase passphrase for symmetric encryption or null. Only
+	 *                      compressed if both are null.
+	 * @param config
+	 * @param env           environment variables needed by the command are added
+	 *                      here
+	 * @return command for bash -c
+	 */
+	public static String getCompressAndEncryptCommand(String recipient, String gpgPassphrase, Config config,
+			Map<String, String> env) {
+
+		String cmd = "";
+
+		cmd += ProcessUtils.getPath("lz4") + " -q -c";
+
+		if (recipient != null || gpgPassphrase != null) {
+			cmd += " | " + getGpgProgram(config) + " --output - --compress-algo none --no-tty ";
+
+			// don't set null value, because the map returned by
+			// ProcessBuilder.getEnvironment() won't tolerate it
+			if (gpgPassphrase != null) {
+				env.put(ENV_GPG_PASSPHRASE, gpgPassphrase);
 			}
 
-			Files.createDirectories(localPackagePath.getParent());
-			ProcessUtils.run(null, localPackagePath.toFile(), env, false, "bash", "-c", cmd);
+			if (recipient != null) {
+
+				// asymmetric encryption
+				cmd += "--recipient " + recipient + " --always-trust --encrypt -";
+			} else if (gpgPassphrase != null) {
+				/*
+				 * Symmetric encryption
+				 * 
+				 * Try to hide the passphrase from the process list in case this runs in
+				 * multiuser
+				 * system (container is safe anyway).
+				 * - echo is not visible in the process list because it's a builtin
+				 * - process substitution <() creates a anonymous pipe, where the content is not
+				 * visible in the process list
+				 */
+				cmd += "--passphrase-file <(echo $" + ENV_GPG_PASSPHRASE + ") ";
+				cmd += "--pinentry-mode loopback ";
+				cmd += "--symmetric -";
+			}
+		}
+		return cmd;
+	}
 
-			long gpgFileSize = Files.size(localPackagePath);
+	/**
+	 * Shell command that decrypts and decompresses stdin to stdout
+	 * 
+	 * The private key of asymmetric encryption must be imported in gpg.
+	 * 
+	 * @param encrypted     false if the data is only compressed
+	 * @param gpgPassphrase passphrase of symmetric encryption or null
+	 * @param config
+	 * @param env           environment variables needed by the command are added
+	 *                      here
+	 * @return command for bash -c
+	 */
+	public static String getDecryptAndDecompressCommand(boolean encrypted, String gpgPassphrase, Config config,
+			Map<String, String> env) {
 
-			// checksum of the compressed and encrypted file to monitor bit rot on the
-			// backup server
-			// file read and written once, cpu bound
-			String gpgSha512 = parseChecksumLine(
-					ProcessUtils.runStdoutToString(null, "shasum", "-a", "512", localPackagePath.toString()));
+		String cmd = "";
 
-			// use --directory to convert paths to relative
-			// file read and written once, io bound. Unfortunately tar can't read the file
-			// data from stdin
-			ProcessUtils.run(null, null, "tar", "-f", tarPath.toString(), "--directory", backupDir.toString(),
-					"--append", packagePath.toString());
+		if (encrypted) {
+			cmd += getGpgProgram(config) + " --output - --no-tty --quiet ";
+
+			if (gpgPassphrase != null) {
+				env.put(ENV_GPG_PASSPHRASE, gpgPassphrase);
+				cmd += "--passphrase-file <(echo $" + ENV_GPG_PASSPHRASE + ") ";
+				cmd += "--pinentry-mode loopback ";
+			}
+			cmd += "--decrypt - | ";
+		}
 
-			Files.delete(localPackagePath);
+		cmd += ProcessUtils.getPath("lz4") + " -q -d -c";
 
-			String line = new InfoLine(packageFilePath, fileSize, sha512, packagePath, gpgFileSize, gpgSha512,
-					backupName).toLine();
-			Files.write(backupInfoPath, Collections.singleton(line), Charset.defaultCharset(),
-					StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		return cmd;
+	}
+
+	private static void appendToTar(Future<InfoLine> future, Path tarPath, Path backupDir, Path backupInfoPath)
+			throws IOException, InterruptedException {
+
+		InfoLine info;
+		try {
+			info = future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException("failed to create the backup package", e.getCause());
 		}
 
-		upload(s3Client, bucket, backupName, tarPath, true);
+		if (info == null) {
+			// file disappeared
+			return;
+		}
 
-		Files.delete(tarPath);
+		// use --directory to convert paths to relative
+		// file read and written once, io bound. Unfortunately tar can't read the file
+		// data from stdin
+		ProcessUtils.run(null, null, "tar", "-f", tarPath.toString(), "--directory", backupDir.toString(),
+				"--append", info.getGpgPath().toString());
+
+		Files.delete(backupDir.resolve(info.getGpgPath()));
+
+		Files.write(backupInfoPath, Collections.singleton(info.toLine()), Charset.defaultCharset(),
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND);
 	}
 
 	private static void upload(ChipsterS3Client s3Client, String bucket, String bucketDir, Path filePath,
@@ -210,14 +356,6 @@ public class GpgBackupUtils {
 		return Paths.get(packageFilePath.toString() + ".lz4");
 	}
 
-	private static String parseChecksumLine(String line) throws IOException {
-		String[] parts = line.split(" ");
-		if (parts.length == 0) {
-			throw new IllegalArgumentException("cannot parse checksum " + line + ", delimiter ' ' not found");
-		}
-		return parts[0];
-	}
-
 	public static void uploadBackupInfo(ChipsterS3Client s3Client, String bucket, String backupName,
 			Path backupInfoPath) throws InterruptedException, FileNotFoundException, IOException {
 
@@ -104,6 +104,10 @@ public class Backup implements ServerComponent {
 			}
 		}, config);
 
+		dbBackups.stream().forEach(b -> {
+			b.startWalArchival();
+		});
+
 		dbBackups.stream().forEach(b -> {
 			logger.info(
 					"save " + b.getRole() + " backups to bucket:  "
@@ -120,6 +124,9 @@ public class Backup implements ServerComponent {
 	}
 
 	public void close() {
+		dbBackups.stream().forEach(b -> {
+			b.close();
+		});
 		RestUtils.shutdown("backup-admin", adminServer);
 		authService.close();
 	}
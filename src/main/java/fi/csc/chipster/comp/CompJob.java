@@ -8,6 +8,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import fi.csc.chipster.comp.resourcemonitor.JobCgroup;
 import fi.csc.chipster.rest.Config;
 import fi.csc.chipster.sessiondb.model.Parameter;
 
@@ -76,6 +77,7 @@ public abstract class CompJob implements Runnable {
 	private JobState state;
 	private String stateDetail;
 	private boolean toBeCanceled = false;
+	private volatile boolean executionFinished = false;
 	private final GenericResultMessage outputMessage;
 	public Config config;
 
@@ -121,6 +123,11 @@ public abstract class CompJob implements Runnable {
 
 			// after execute
 			if (this.getState() == JobState.RUNNING) {
+				// the tool has finished, the slots can be used for other jobs while the
+				// outputs are transferred
+				this.executionFinished = true;
+				resultHandler.executionFinished(this);
+
 				postExecute();
 			}
 
@@ -253,6 +260,13 @@ public abstract class CompJob implements Runnable {
 	protected void cleanUp() {
 	}
 
+	/**
+	 * @return true when the tool has finished and only the output transfer is left
+	 */
+	public boolean isExecutionFinished() {
+		return executionFinished;
+	}
+
 	public GenericJobMessage getInputMessage() {
 		return inputMessage;
 	}
@@ -330,6 +344,13 @@ public abstract class CompJob implements Runnable {
 		return null;
 	}
 
+	/**
+	 * @return cgroup of the job processes or null, if this Job doesn't have any
+	 */
+	public JobCgroup getCgroup() {
+		return null;
+	}
+
 	protected int getTimeout() {
 		return this.jobTimeout;
 	}
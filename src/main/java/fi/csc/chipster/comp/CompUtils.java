@@ -6,6 +6,7 @@ import java.util.stream.Collectors;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import fi.csc.chipster.comp.resourcemonitor.JobCgroup;
 import fi.csc.chipster.sessiondb.model.Job;
 import fi.csc.chipster.sessiondb.model.MetadataFile;
 
@@ -30,6 +31,38 @@ public class CompUtils {
 		}
 	}
 
+	/**
+	 * Replace the polled resource usage with the exact values from the job's cgroup
+	 * 
+	 * @param compJob
+	 * @param dbJob
+	 */
+	public static void addCgroupUsageToDbJob(CompJob compJob, Job dbJob) {
+		JobCgroup cgroup = compJob.getCgroup();
+
+		if (cgroup == null) {
+			return;
+		}
+
+		Long memoryPeak = cgroup.getMemoryPeak();
+		Long cpuTime = cgroup.getCpuTime();
+		Long readBytes = cgroup.getReadBytes();
+		Long writeBytes = cgroup.getWriteBytes();
+
+		if (memoryPeak != null) {
+			dbJob.setMemoryUsage(memoryPeak);
+		}
+		if (cpuTime != null) {
+			dbJob.setCpuTime(cpuTime);
+		}
+		if (readBytes != null) {
+			dbJob.setIoReadBytes(readBytes);
+		}
+		if (writeBytes != null) {
+			dbJob.setIoWriteBytes(writeBytes);
+		}
+	}
+
 	public static String getMetadataFilesAsString(List<MetadataFile> metadataFiles) {
 		final StringBuffer sb = new StringBuffer();
 		metadataFiles.forEach((f -> sb.append(f.getName() + "\n")));
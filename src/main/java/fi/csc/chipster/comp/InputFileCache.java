@@ -0,0 +1,310 @@
+package fi.csc.chipster.comp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * LRU cache for job input files on the local disk of the comp
+ *
+ * Files in file-broker don't change after the upload, so the fileId and
+ * checksum are enough to identify the content. When several jobs need the same
+ * file, it is downloaded only once and hardlinked to the job data directories.
+ *
+ * Evicting a file from the cache removes only the cache's own link, so jobs
+ * that are still using the file are not affected. Files that are being
+ * downloaded or linked are never evicted. If parallel jobs request the same file
+ * at the same time, the others wait until the first one has downloaded it.
+ *
+ * The cached files are made read-only to prevent jobs from modifying the cached
+ * content through the hardlinks. A tool that opens its input for writing or
+ * appending fails on a hardlinked input, so the linking can be disabled. Then
+ * the files are copied to the job directories and the copies are writable.
+ *
+ * The index is kept only in memory, so the old cache files are deleted when
+ * the cache is created. Only the files with the cache's own suffix are
+ * deleted, in case the directory is configured to point to some other
+ * directory by mistake.
+ */
+public class InputFileCache {
+
+	private static final Logger logger = LogManager.getLogger();
+
+	static final String CACHE_FILE_SUFFIX = ".input-cache";
+	private static final String TMP_FILE_SUFFIX = CACHE_FILE_SUFFIX + ".tmp";
+
+	public interface Loader {
+		/**
+		 * Download the file content to the given file
+		 *
+		 * @param file
+		 * @throws Exception
+		 */
+		public void load(File file) throws Exception;
+	}
+
+	private static class CacheEntry {
+		private final File file;
+		private long size = 0;
+		private int users = 0;
+		private boolean ready = false;
+		private boolean failed = false;
+
+		public CacheEntry(File file) {
+			this.file = file;
+		}
+	}
+
+	private final File cacheDir;
+	private final long maxSize;
+	private final boolean link;
+
+	// synchronize with this object when accessing these
+	// access order for the LRU eviction
+	private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long size = 0;
+	private long hitCount = 0;
+	private long missCount = 0;
+	private long evictionCount = 0;
+
+	/**
+	 * @param cacheDir directory for the cached files
+	 * @param maxSize  max size of the cached files in bytes
+	 * @throws IOException
+	 */
+	public InputFileCache(File cacheDir, long maxSize) throws IOException {
+		this(cacheDir, maxSize, true);
+	}
+
+	/**
+	 * @param cacheDir directory for the cached files
+	 * @param maxSize  max size of the cached files in bytes
+	 * @param link     hardlink the files to the job directories, otherwise copy
+	 * @throws IOException
+	 */
+	public InputFileCache(File cacheDir, long maxSize, boolean link) throws IOException {
+		this.cacheDir = cacheDir;
+		this.maxSize = maxSize;
+		this.link = link;
+
+		if (cacheDir.exists()) {
+			deleteOldFiles();
+		} else if (!cacheDir.mkdirs()) {
+			throw new IOException("creating input file cache directory " + cacheDir.getAbsolutePath() + " failed");
+		}
+
+		logger.info("input file cache " + cacheDir.getPath() + ", max size "
+				+ FileUtils.byteCountToDisplaySize(maxSize) + (link ? "" : ", copy files to jobs"));
+	}
+
+	/**
+	 * Delete the files left by the previous process
+	 *
+	 * We don't know anything about the old files. Other files are not touched.
+	 */
+	private void deleteOldFiles() throws IOException {
+		File[] files = cacheDir.listFiles();
+		if (files == null) {
+			throw new IOException("input file cache directory " + cacheDir.getAbsolutePath() + " is not a directory");
+		}
+
+		int otherFiles = 0;
+		for (File file : files) {
+			String name = file.getName();
+			if (file.isFile() && (name.endsWith(CACHE_FILE_SUFFIX) || name.endsWith(TMP_FILE_SUFFIX))) {
+				Files.delete(file.toPath());
+			} else {
+				otherFiles++;
+			}
+		}
+
+		if (otherFiles > 0) {
+			logger.warn("input file cache directory " + cacheDir.getAbsolutePath() + " contains " + otherFiles
+					+ " other files, those are not deleted");
+		}
+	}
+
+	/**
+	 * Make the file available in the destination file
+	 *
+	 * Link the file from the cache or use the loader to download it to the cache
+	 * first.
+	 *
+	 * @param fileId
+	 * @param checksum checksum of the file or null if not known
+	 * @param destFile
+	 * @param loader
+	 * @throws Exception the exception from the loader, if the download fails
+	 */
+	public void get(UUID fileId, String checksum, File destFile, Loader loader) throws Exception {
+
+		String key = getKey(fileId, checksum);
+
+		CacheEntry entry;
+		boolean isLoader = false;
+
+		synchronized (this) {
+			entry = entries.get(key);
+			if (entry == null) {
+				entry = new CacheEntry(new File(cacheDir, key + CACHE_FILE_SUFFIX));
+				entries.put(key, entry);
+				isLoader = true;
+				missCount++;
+			} else {
+				hitCount++;
+			}
+			// protect from eviction
+			entry.users++;
+		}
+
+		try {
+			if (isLoader) {
+				load(key, entry, loader);
+			} else {
+				synchronized (this) {
+					while (!entry.ready && !entry.failed) {
+						this.wait();
+					}
+				}
+
+				if (entry.failed) {
+					// the other job will report its error, try again without the cache
+					logger.info("input file cache: download of " + key + " failed in another job, download directly");
+					loader.load(destFile);
+					return;
+				}
+			}
+
+			if (link) {
+				link(entry.file, destFile);
+			} else {
+				copy(entry.file, destFile);
+			}
+
+		} finally {
+			synchronized (this) {
+				entry.users--;
+				// count the use from the end of the download, get() updates the access order
+				entries.get(key);
+				evict();
+			}
+		}
+	}
+
+	private void load(String key, CacheEntry entry, Loader loader) throws Exception {
+
+		File tmpFile = new File(cacheDir, key + TMP_FILE_SUFFIX);
+
+		try {
+			Files.deleteIfExists(tmpFile.toPath());
+			loader.load(tmpFile);
+
+			Files.move(tmpFile.toPath(), entry.file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			entry.file.setWritable(false, false);
+
+			synchronized (this) {
+				entry.size = entry.file.length();
+				entry.ready = true;
+				size += entry.size;
+				this.notifyAll();
+			}
+
+		} catch (Exception e) {
+			Files.deleteIfExists(tmpFile.toPath());
+
+			synchronized (this) {
+				entries.remove(key);
+				entry.failed = true;
+				this.notifyAll();
+			}
+			throw e;
+		}
+	}
+
+	private void link(File cacheFile, File destFile) throws IOException {
+		try {
+			Files.createLink(destFile.toPath(), cacheFile.toPath());
+		} catch (UnsupportedOperationException | IOException e) {
+			// the job dir is probably in different file system
+			logger.warn("input file cache: hardlink failed, copy instead: " + e.getMessage());
+			copy(cacheFile, destFile);
+		}
+	}
+
+	private void copy(File cacheFile, File destFile) throws IOException {
+		Files.copy(cacheFile.toPath(), destFile.toPath());
+		// the copy gets the read-only permissions of the cache file
+		destFile.setWritable(true, true);
+	}
+
+	/**
+	 * Remove least recently used files until the cache fits in its max size
+	 *
+	 * Caller must synchronize with this object.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, CacheEntry>> iter = entries.entrySet().iterator();
+
+		while (size > maxSize && iter.hasNext()) {
+			Map.Entry<String, CacheEntry> mapEntry = iter.next();
+			CacheEntry entry = mapEntry.getValue();
+
+			if (!entry.ready || entry.users > 0) {
+				// in use
+				continue;
+			}
+
+			iter.remove();
+			size -= entry.size;
+			evictionCount++;
+
+			try {
+				Files.deleteIfExists(entry.file.toPath());
+			} catch (IOException e) {
+				logger.warn("input file cache: failed to delete " + entry.file, e);
+			}
+			logger.debug("input file cache: evicted " + mapEntry.getKey());
+		}
+	}
+
+	private static String getKey(UUID fileId, String checksum) {
+		String key = fileId.toString();
+		if (checksum != null && !checksum.isEmpty()) {
+			// checksum is used only in the file name
+			key += "_" + checksum.replaceAll("[^A-Za-z0-9]", "");
+		}
+		return key;
+	}
+
+	public synchronized boolean contains(UUID fileId, String checksum) {
+		// get() would change the access order
+		String key = getKey(fileId, checksum);
+		return entries.containsKey(key) && entries.values().stream()
+				.anyMatch(e -> e.ready && e.file.getName().equals(key + CACHE_FILE_SUFFIX));
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized HashMap<String, Object> getStatus() {
+		HashMap<String, Object> status = new HashMap<>();
+		status.put("inputCacheHitCount", hitCount);
+		status.put("inputCacheMissCount", missCount);
+		status.put("inputCacheEvictionCount", evictionCount);
+		status.put("inputCacheFileCount", entries.size());
+		status.put("inputCacheSize", size);
+		status.put("inputCacheMaxSize", maxSize);
+		return status;
+	}
+}
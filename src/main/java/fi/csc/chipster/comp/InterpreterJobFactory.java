@@ -37,6 +37,7 @@ public abstract class InterpreterJobFactory implements JobFactory {
 	public Config config;
 
 	public static final String CONF_CHIPSTER_ROOT_DIR = "comp-chipster-root-dir";
+	public static final String CONF_PROCESS_POOL_SIZE = "comp-process-pool-size";
 
 	public InterpreterJobFactory(HashMap<String, String> parameters, Config config) throws IOException {
 
@@ -56,7 +57,8 @@ public abstract class InterpreterJobFactory implements JobFactory {
 		this.toolDir = parameters.get("toolDir");
 
 		try {
-			processPool = new ProcessPool(new File(parameters.get("workDir")), interpreterCommand);
+			processPool = ProcessPool.getPool(new File(parameters.get("workDir")), interpreterCommand,
+					getProcessPoolSize(config));
 		} catch (Exception e) {
 			logger.warn("disabling handler " + this.getClass().getSimpleName() + ": " + e.getMessage());
 			this.isDisabled = true;
@@ -124,6 +126,21 @@ public abstract class InterpreterJobFactory implements JobFactory {
 		return ad;
 	}
 
+	/**
+	 * Number of idle processes to keep for each runtime
+	 * 
+	 * There is no point to keep more idle processes than there are slots for jobs.
+	 * 
+	 * @param config
+	 * @return
+	 */
+	public static int getProcessPoolSize(Config config) {
+		int poolSize = config.getInt(CONF_PROCESS_POOL_SIZE);
+		int maxJobs = config.getInt(RestCompServer.KEY_COMP_MAX_JOBS);
+
+		return Math.max(0, Math.min(poolSize, maxJobs));
+	}
+
 	public static File getChipsterRootDir(Config config) {
 		File chipsterRootDir;
 		try {
@@ -17,6 +17,10 @@ import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -29,6 +33,7 @@ import com.nimbusds.jose.shaded.gson.GsonBuilder;
 
 import fi.csc.chipster.comp.ToolDescription.InputDescription;
 import fi.csc.chipster.comp.ToolDescription.OutputDescription;
+import fi.csc.chipster.comp.resourcemonitor.JobCgroup;
 import fi.csc.chipster.rest.BuildVersionStatusSource;
 import fi.csc.chipster.rest.Config;
 import fi.csc.chipster.rest.RestUtils;
@@ -61,6 +66,27 @@ public abstract class OnDiskCompJobBase extends CompJob {
 
     private static final Logger logger = LogManager.getLogger();
 
+    public static final String KEY_COMP_OUTPUT_UPLOAD_THREADS = "comp-output-upload-threads";
+
+    private static class OutputUpload {
+        private final OutputDescription description;
+        private final File file;
+        private final String nameInClient;
+        private final File phenodataFile;
+        private Future<String> future;
+
+        public OutputUpload(OutputDescription description, File file, String nameInClient, File phenodataFile) {
+            this.description = description;
+            this.file = file;
+            this.nameInClient = nameInClient;
+            this.phenodataFile = phenodataFile;
+        }
+
+        public String nameInSessionDb() {
+            return nameInClient != null ? nameInClient : file.getName();
+        }
+    }
+
     private static final String JOB_DATA_DIR_NAME = "data";
     private static final String JOB_TOOLBOX_DIR_NAME = "toolbox";
     private static final String JOB_INFO_DIR_NAME = "info";
@@ -72,6 +98,8 @@ public abstract class OnDiskCompJobBase extends CompJob {
     protected File jobInfoDir;
     protected File jobVersionsDir;
 
+    private JobCgroup cgroup;
+
     @Override
     public void construct(GenericJobMessage inputMessage, ToolDescription toolDescription, ResultCallback resultHandler,
             int jobTimeout, Config config) {
@@ -152,7 +180,21 @@ public abstract class OnDiskCompJobBase extends CompJob {
             }
         }
 
-        // pass output files to result message
+        // parse a file containing file names for the client
+        String outputsFilename = "chipster-outputs.tsv";
+        LinkedHashMap<String, String> nameMap;
+        try {
+            nameMap = ToolUtils.parseOutputDescription(new File(jobDataDir, outputsFilename));
+        } catch (IOException | CompException e) {
+            logger.warn("couldn't parse " + outputsFilename);
+            this.setErrorMessage("could not parse " + outputsFilename);
+            this.setOutputText(Exceptions.getStackTrace(e));
+            updateState(JobState.ERROR);
+            return;
+        }
+
+        // find all output files before uploading anything
+        List<OutputUpload> uploads = new ArrayList<>();
         List<OutputDescription> outputFiles = toolDescription.getOutputFiles();
         for (OutputDescription fileDescription : outputFiles) {
             cancelCheck();
@@ -181,34 +223,44 @@ public abstract class OnDiskCompJobBase extends CompJob {
                 describedFiles = new File[] { new File(jobDataDir, outputName) };
             }
 
-            // parse a file containing file names for the client
-            String outputsFilename = "chipster-outputs.tsv";
-            LinkedHashMap<String, String> nameMap;
-            try {
-                nameMap = ToolUtils.parseOutputDescription(new File(jobDataDir, outputsFilename));
-            } catch (IOException | CompException e) {
-                logger.warn("couldn't parse " + outputsFilename);
-                this.setErrorMessage("could not parse " + outputsFilename);
-                this.setOutputText(Exceptions.getStackTrace(e));
-                updateState(JobState.ERROR);
-                return;
+            for (File outputFile : describedFiles) {
+                File phenodataFileForThisOutput = outputFile.getName().endsWith(".tsv") ||
+                        outputFile.getName().endsWith(".shared") ||
+                        outputFile.getName().endsWith(".Rda") ? phenodataFile : null;
+
+                uploads.add(new OutputUpload(fileDescription, outputFile, nameMap.get(outputFile.getName()),
+                        phenodataFileForThisOutput));
+            }
+        }
+
+        /*
+         * Upload output files in parallel
+         * 
+         * Each upload has its own retries. The results are collected in the original
+         * order to preserve the order of outputs in the tool.
+         */
+        int uploadThreads = Math.max(1, this.config.getInt(KEY_COMP_OUTPUT_UPLOAD_THREADS));
+        ExecutorService uploadExecutor = Executors.newFixedThreadPool(Math.min(uploadThreads,
+                Math.max(1, uploads.size())));
+
+        try {
+            for (OutputUpload upload : uploads) {
+                upload.future = uploadExecutor.submit(() -> addFile(
+                        UUID.fromString(inputMessage.getJobId()), inputMessage.getSessionId(), upload.file,
+                        upload.nameInSessionDb(), upload.description.isMeta(), upload.phenodataFile));
             }
 
             // add all described files to the result message
-            for (File outputFile : describedFiles) {
-                // copy file to file broker
+            for (OutputUpload upload : uploads) {
+                cancelCheck();
+
+                OutputDescription fileDescription = upload.description;
+
                 try {
-                    File phenodataFileForThisOutput = outputFile.getName().endsWith(".tsv") ||
-                            outputFile.getName().endsWith(".shared") ||
-                            outputFile.getName().endsWith(".Rda") ? phenodataFile : null;
-
-                    String nameInClient = nameMap.get(outputFile.getName());
-                    String nameInSessionDb = nameInClient != null ? nameInClient : outputFile.getName();
-                    String dataId = addFile(
-                            UUID.fromString(inputMessage.getJobId()), inputMessage.getSessionId(), outputFile,
-                            nameInSessionDb, fileDescription.isMeta(), phenodataFileForThisOutput);
+                    String dataId = waitForUpload(upload.future);
+
                     // put dataId to result message. Preserve the order of outputs in tool
-                    this.addOutputDataset(outputFile.getName(), dataId, nameInClient,
+                    this.addOutputDataset(upload.file.getName(), dataId, upload.nameInClient,
                             fileDescription.getFileName().getDisplayName());
                     logger.debug("transferred output file: " + fileDescription.getFileName());
 
@@ -239,7 +291,9 @@ public abstract class OnDiskCompJobBase extends CompJob {
                     return;
                 }
             }
-
+        } finally {
+            // stop remaining uploads if the job failed or was cancelled
+            uploadExecutor.shutdownNow();
         }
 
         // add versions data to result message
@@ -262,6 +316,24 @@ public abstract class OnDiskCompJobBase extends CompJob {
         super.postExecute();
     }
 
+    /**
+     * Wait for the upload and unwrap the original exception
+     * 
+     * @param future
+     * @return datasetId
+     * @throws Exception
+     */
+    private String waitForUpload(Future<String> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
     public String addFile(UUID jobId, UUID sessionId, File file, String datasetName, boolean isMetaOutput,
             File phenodataFile)
             throws IOException, FileBrokerException {
@@ -395,10 +467,40 @@ public abstract class OnDiskCompJobBase extends CompJob {
         } catch (Exception e) {
             logger.error("Error when cleaning up job work dir.", e);
         } finally {
+            if (cgroup != null) {
+                cgroup.remove();
+            }
             super.cleanUp();
         }
     }
 
+    /**
+     * Move the job process to its own cgroup, if configured
+     * 
+     * Call this before the process starts the tool, so that all child processes
+     * end up in the same cgroup.
+     * 
+     * @param process
+     */
+    protected void moveToCgroup(Process process) {
+        this.cgroup = JobCgroup.create(config, getId());
+
+        if (cgroup != null) {
+            try {
+                cgroup.addProcess(process.pid());
+            } catch (IOException e) {
+                logger.warn("failed to move the job process to its cgroup", e);
+                cgroup.remove();
+                this.cgroup = null;
+            }
+        }
+    }
+
+    @Override
+    public JobCgroup getCgroup() {
+        return cgroup;
+    }
+
     private void getInputFiles()
             throws Exception, JobCancelledException, IOException, FileBrokerException {
         LinkedHashMap<String, String> nameMap = new LinkedHashMap<>();
@@ -499,8 +601,13 @@ public abstract class OnDiskCompJobBase extends CompJob {
             UUID dataId = UUID.fromString(inputMessage.getId(fileName));
             File localFile = new File(jobDataDir, fileName);
 
-            // make local file available, by downloading, copying or symlinking
-            downloadWithRetries(inputMessage.getSessionId(), dataId, new File(jobDataDir, fileName));
+            // make local file available, by downloading or linking from the cache
+            InputFileCache cache = resultHandler.getInputFileCache();
+            if (cache != null) {
+                downloadWithCache(cache, inputMessage.getSessionId(), dataId, localFile);
+            } else {
+                downloadWithRetries(inputMessage.getSessionId(), dataId, localFile);
+            }
 
             logger.debug("made available local file: " + localFile.getName() + " " + localFile.length());
 
@@ -512,6 +619,25 @@ public abstract class OnDiskCompJobBase extends CompJob {
         inputMessage.preExecute(jobDataDir);
     }
 
+    private void downloadWithCache(InputFileCache cache, UUID sessionId, UUID dataId, File file)
+            throws Exception {
+
+        fi.csc.chipster.sessiondb.model.File dbFile = null;
+        try {
+            dbFile = resultHandler.getSessionDbClient().getDataset(sessionId, dataId).getFile();
+        } catch (RestException e) {
+            logger.warn("failed to get the dataset for the input file cache, download directly", e);
+        }
+
+        if (dbFile == null || dbFile.getFileId() == null) {
+            downloadWithRetries(sessionId, dataId, file);
+            return;
+        }
+
+        cache.get(dbFile.getFileId(), dbFile.getChecksum(), file,
+                cacheFile -> downloadWithRetries(sessionId, dataId, cacheFile));
+    }
+
     private void downloadWithRetries(UUID sessionId, UUID dataId, File file) throws FileBrokerException {
 
         int retries = 3;
@@ -2,6 +2,10 @@ package fi.csc.chipster.comp;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
@@ -9,12 +13,22 @@ import org.apache.logging.log4j.Logger;
 
 /**
  * A process pool for pooling for example R processes.
- * 
- * 
+ *
+ * The pool keeps a configured number of interpreter processes started and
+ * waiting for jobs, so that the interpreter startup isn't on the critical path
+ * of the job. When a process is taken from the pool, a new one is started in
+ * the background.
+ *
+ * Jobs write their script to the stdin of the process and close it, so the
+ * process exits when the job finishes. A process that has been given to a job
+ * is never given to another job. It may have the state of the previous job in
+ * its memory and working directory, so released processes are always
+ * destroyed.
+ *
  * The maximum number of processes controlled by this pool may temporarily be
  * exceeded,
  * due to the synchronization mechanisms used.
- * 
+ *
  *
  */
 public class ProcessPool {
@@ -24,21 +38,126 @@ public class ProcessPool {
 
 	private static Logger logger = LogManager.getLogger();
 
+	// job factories are created for each job, but the pools are shared
+	private static final ConcurrentHashMap<String, ProcessPool> pools = new ConcurrentHashMap<>();
+
 	private final String command;
 
 	private File workDir;
 
+	private final int size;
+
+	private final LinkedBlockingDeque<Process> idleProcesses = new LinkedBlockingDeque<>();
+
+	private final ExecutorService starter;
+
+	// synchronize with this object when accessing these
+	private int startingCount = 0;
+	private boolean closed = false;
+
 	public ProcessPool(File workDir, String command) throws IOException {
+		this(workDir, command, 0);
+	}
+
+	/**
+	 * @param workDir
+	 * @param command
+	 * @param size    number of idle processes to keep waiting for jobs, 0 to
+	 *                start processes only when requested
+	 * @throws IOException
+	 */
+	public ProcessPool(File workDir, String command, int size) throws IOException {
 		this.workDir = workDir;
 		this.command = command;
+		this.size = size;
+
+		this.starter = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "process-pool-starter");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		fill();
+	}
+
+	/**
+	 * Get a shared pool for the command
+	 *
+	 * @param workDir
+	 * @param command
+	 * @param size
+	 * @return
+	 * @throws IOException
+	 */
+	public static ProcessPool getPool(File workDir, String command, int size) throws IOException {
+
+		String key = workDir.getAbsolutePath() + " " + command;
+
+		ProcessPool pool = pools.get(key);
+
+		if (pool == null) {
+			synchronized (pools) {
+				pool = pools.get(key);
+				if (pool == null) {
+					logger.info("create a process pool of " + size + " processes for '" + command + "'");
+					pool = new ProcessPool(workDir, command, size);
+					pools.put(key, pool);
+				}
+			}
+		}
+
+		return pool;
+	}
+
+	/**
+	 * Destroy the idle processes of all shared pools
+	 */
+	public static void closeAll() {
+		synchronized (pools) {
+			for (ProcessPool pool : pools.values()) {
+				pool.close();
+			}
+			pools.clear();
+		}
+	}
+
+	/**
+	 * @return number of idle processes in all shared pools
+	 */
+	public static int getIdleCountTotal() {
+		return pools.values().stream().mapToInt(ProcessPool::getIdleCount).sum();
 	}
 
 	public Process getProcess() throws IOException, InterruptedException {
-		return createProcess();
+
+		Process process;
+
+		// skip processes that have died while waiting
+		while ((process = idleProcesses.poll()) != null) {
+			if (process.isAlive()) {
+				break;
+			}
+			logger.warn("pooled process has exited with value " + process.exitValue());
+		}
+
+		// start a replacement in the background
+		fill();
+
+		if (process == null) {
+			if (size > 0) {
+				logger.info("no idle processes in the pool, start a new one");
+			}
+			process = createProcess();
+		}
+
+		return process;
 	}
 
 	/**
-	 * For now, just destroy the process.
+	 * Destroy the process
+	 *
+	 * Processes are not returned to the pool, because we can't know what the
+	 * previous job has left in them.
 	 */
 	public void releaseProcess(Process process) {
 
@@ -70,6 +189,61 @@ public class ProcessPool {
 		}
 	}
 
+	public int getIdleCount() {
+		return idleProcesses.size();
+	}
+
+	/**
+	 * For tests
+	 *
+	 * @return the idle process that would be returned next or null
+	 */
+	Process peekIdleProcess() {
+		return idleProcesses.peekFirst();
+	}
+
+	public void close() {
+		synchronized (this) {
+			closed = true;
+		}
+		starter.shutdownNow();
+
+		Process process;
+		while ((process = idleProcesses.poll()) != null) {
+			releaseProcess(process);
+		}
+	}
+
+	/**
+	 * Start new processes in the background until the pool is full
+	 */
+	private synchronized void fill() {
+
+		while (!closed && idleProcesses.size() + startingCount < size) {
+			startingCount++;
+
+			starter.execute(() -> {
+				try {
+					Process process = createProcess();
+
+					synchronized (this) {
+						if (closed) {
+							releaseProcess(process);
+						} else {
+							idleProcesses.add(process);
+						}
+					}
+				} catch (IOException e) {
+					logger.warn("failed to start a process for the pool", e);
+				} finally {
+					synchronized (this) {
+						startingCount--;
+					}
+				}
+			});
+		}
+	}
+
 	private Process createProcess() throws IOException {
 
 		ProcessBuilder builder = new ProcessBuilder(command.split(" "));
@@ -16,6 +16,7 @@ import java.util.TimerTask;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -68,6 +69,9 @@ public class RestCompServer
 	public static final String KEY_COMP_MODULE_FILTER_MODE = "comp-module-filter-mode";
 	public static final String KEY_COMP_RESOURCE_MONITORING_INTERVAL = "comp-resource-monitoring-interval";
 	public static final String KEY_COMP_JOB_TIMEOUT = "comp-job-timeout";
+	public static final String KEY_COMP_INPUT_CACHE_DIR = "comp-input-cache-dir";
+	public static final String KEY_COMP_INPUT_CACHE_SIZE = "comp-input-cache-size";
+	public static final String KEY_COMP_INPUT_CACHE_LINK = "comp-input-cache-link";
 
 	public static final String DESCRIPTION_OUTPUT_NAME = "description";
 	public static final String SOURCECODE_OUTPUT_NAME = "sourcecode";
@@ -138,6 +142,8 @@ public class RestCompServer
 	private Timer heartbeatTimer;
 	private int compHeartbeatInterval;
 
+	private InputFileCache inputFileCache;
+
 	/**
 	 * @param configURL
 	 * @param config
@@ -177,6 +183,17 @@ public class RestCompServer
 			throw new IllegalStateException("creating working directory " + this.workDir.getAbsolutePath() + " failed");
 		}
 
+		// initialize input file cache
+		if (config.getString(KEY_COMP_INPUT_CACHE_SIZE).isEmpty()) {
+			logger.info("input file cache is disabled");
+		} else {
+			// convert gigabytes to bytes
+			long cacheSize = config.getLong(KEY_COMP_INPUT_CACHE_SIZE) * 1024 * 1024 * 1024;
+			File cacheDir = new File(config.getString(KEY_COMP_INPUT_CACHE_DIR));
+			this.inputFileCache = new InputFileCache(cacheDir, cacheSize,
+					config.getBoolean(KEY_COMP_INPUT_CACHE_LINK));
+		}
+
 		// initialize executor service
 		this.executorService = Executors.newCachedThreadPool();
 
@@ -363,6 +380,12 @@ public class RestCompServer
 		checkStopGracefully();
 	}
 
+	@Override
+	public void executionFinished(CompJob job) {
+		logger.debug("job " + job.getId() + " is transferring outputs, release its slots");
+		activeJobRemoved();
+	}
+
 	private void checkStopGracefully() {
 		if (stopGracefully) {
 			synchronized (jobsLock) {
@@ -423,6 +446,10 @@ public class RestCompServer
 			compJob = this.runningJobs.get(jobMessage.getJobId());
 			if (compJob != null) {
 				dbJob.setMemoryUsage(this.resourceMonitor.getMaxMem(compJob.getProcess()));
+				dbJob.setCpuTime(this.resourceMonitor.getCpuTime(compJob.getProcess()));
+				dbJob.setIoReadBytes(this.resourceMonitor.getReadBytes(compJob.getProcess()));
+				dbJob.setIoWriteBytes(this.resourceMonitor.getWriteBytes(compJob.getProcess()));
+				CompUtils.addCgroupUsageToDbJob(compJob, dbJob);
 			}
 
 			sessionDbClient.updateJob(jobCommand.getSessionId(), dbJob);
@@ -459,6 +486,11 @@ public class RestCompServer
 		return this.toolboxClient;
 	}
 
+	@Override
+	public InputFileCache getInputFileCache() {
+		return this.inputFileCache;
+	}
+
 	private void activeJobRemoved() {
 		this.updateStatus();
 		sendCompAvailable();
@@ -542,7 +574,7 @@ public class RestCompServer
 		synchronized (jobsLock) {
 			job.setReceiveTime(new Date());
 
-			int runningSlots = getSlotSum(runningJobs.values());
+			int runningSlots = getSlotSum(getExecutingJobs());
 			int schedSlots = getSlotSum(scheduledJobs.values());
 			int requestedSlots = job.getToolDescription().getSlotCount();
 
@@ -561,6 +593,20 @@ public class RestCompServer
 		updateStatus();
 	}
 
+	/**
+	 * Running jobs that still need their slots
+	 * 
+	 * Jobs that are only transferring their outputs are not included. Caller must
+	 * synchronize with jobsLock.
+	 * 
+	 * @return
+	 */
+	private List<CompJob> getExecutingJobs() {
+		return runningJobs.values().stream()
+				.filter(job -> !job.isExecutionFinished())
+				.collect(Collectors.toList());
+	}
+
 	private int getSlotSum(Collection<CompJob> jobs) {
 		int slots = 0;
 		for (CompJob job : jobs) {
@@ -745,7 +791,7 @@ public class RestCompServer
 			try {
 				synchronized (jobsLock) {
 
-					if (runningJobs.size() + scheduledJobs.size() < maxJobs) {
+					if (getExecutingJobs().size() + scheduledJobs.size() < maxJobs) {
 						sendCompAvailable();
 					}
 				}
@@ -764,6 +810,8 @@ public class RestCompServer
 		heartbeatTimer.cancel();
 		timeoutTimer.cancel();
 
+		ProcessPool.closeAll();
+
 		try {
 			schedulerClient.shutdown();
 		} catch (Exception e) {
@@ -811,11 +859,17 @@ public class RestCompServer
 			status.put("runningJobCount", runningJobs.size());
 			status.put("scheduledJobCount", scheduledJobs.size());
 
-			status.put("runningSlotCount", getSlotSum(runningJobs.values()));
+			status.put("runningSlotCount", getSlotSum(getExecutingJobs()));
+			status.put("outputTransferJobCount", runningJobs.size() - getExecutingJobs().size());
 			status.put("scheduledSlotCount", getSlotSum(scheduledJobs.values()));
 		}
 
 		status.put("memoryJobTotal", this.resourceMonitor.getCurrentMem());
+		status.put("processPoolIdleCount", ProcessPool.getIdleCountTotal());
+
+		if (this.inputFileCache != null) {
+			status.putAll(this.inputFileCache.getStatus());
+		}
 		return status;
 	}
 
@@ -36,9 +36,22 @@ public interface ResultCallback {
 
 	public void removeRunningJob(CompJob job);
 
+	/**
+	 * Called when the tool has finished, but the job is still transferring its
+	 * outputs. The job doesn't need its slots anymore.
+	 * 
+	 * @param job
+	 */
+	public void executionFinished(CompJob job);
+
 	public RestFileBrokerClient getFileBrokerClient() throws Exception;
 
 	public ToolboxClientComp getToolboxClient();
 
 	public SessionDbClient getSessionDbClient();
+
+	/**
+	 * @return cache for the input files or null if the cache is disabled
+	 */
+	public InputFileCache getInputFileCache();
 }
\ No newline at end of file
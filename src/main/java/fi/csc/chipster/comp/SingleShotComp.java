@@ -261,6 +261,11 @@ public class SingleShotComp
 		System.exit(0);
 	}
 
+	@Override
+	public void executionFinished(CompJob job) {
+		// the pod runs only this job
+	}
+
 	/**
 	 * This is the callback method for a job to send the result message. When a job
 	 * is finished the thread running a job will clean up all the data files after
@@ -319,6 +324,16 @@ public class SingleShotComp
 
 			dbJob.setMemoryUsage(this.resourceMonitor.getMaxMem());
 			dbJob.setStorageUsage(this.resourceMonitor.getMaxStorage());
+			dbJob.setCpuTime(this.resourceMonitor.getCpuTime());
+			dbJob.setIoReadBytes(this.resourceMonitor.getReadBytes());
+			dbJob.setIoWriteBytes(this.resourceMonitor.getWriteBytes());
+			CompJob compJob;
+			synchronized (jobsLock) {
+				compJob = this.job;
+			}
+			if (compJob != null) {
+				CompUtils.addCgroupUsageToDbJob(compJob, dbJob);
+			}
 
 			sessionDbClient.updateJob(jobCommand.getSessionId(), dbJob);
 
@@ -346,6 +361,12 @@ public class SingleShotComp
 		return this.toolboxClient;
 	}
 
+	@Override
+	public InputFileCache getInputFileCache() {
+		// each job gets its own container, so there is nothing to share
+		return null;
+	}
+
 	private CompJob getCompJob(UUID sessionId, UUID jobId) {
 
 		Job dbJob;
@@ -3,7 +3,9 @@ package fi.csc.chipster.comp.java;
 import fi.csc.chipster.comp.JobCancelledException;
 import fi.csc.chipster.comp.OnDiskCompJobBase;
 import fi.csc.chipster.comp.ParameterSecurityPolicy;
+import fi.csc.chipster.comp.SingleShotComp;
 import fi.csc.chipster.comp.ToolDescription;
+import fi.csc.chipster.sessiondb.model.Job;
 import fi.csc.chipster.toolbox.sadl.SADLDescription.Parameter;
 
 public abstract class JavaCompJobBase extends OnDiskCompJobBase {
@@ -49,5 +51,54 @@ public abstract class JavaCompJobBase extends OnDiskCompJobBase {
 		// ignore by default
 	}
 
+	/**
+	 * Memory that the job can use for its buffers
+	 * 
+	 * The memory limit of the job's slots, but at most half of the heap, because
+	 * Java jobs run in the comp JVM.
+	 * 
+	 * @return bytes
+	 */
+	protected long getMemoryLimit() {
+		long heapLimit = Runtime.getRuntime().maxMemory() / 2;
+		Job dbJob = inputMessage.getJob();
+		if (dbJob != null && dbJob.getMemoryLimit() != null) {
+			return Math.min(dbJob.getMemoryLimit(), heapLimit);
+		}
+		return heapLimit;
+	}
+
+	/**
+	 * Number of threads that the job can use
+	 * 
+	 * The cpu limit of the job or the slot count of the tool, if the scheduler
+	 * didn't set a limit.
+	 * 
+	 * @return
+	 */
+	protected int getThreadLimit() {
+		Job dbJob = inputMessage.getJob();
+		if (dbJob != null && dbJob.getCpuLimit() != null) {
+			return Math.max(1, dbJob.getCpuLimit());
+		}
+		Integer slots = toolDescription.getSlotCount();
+		return slots != null ? Math.max(1, slots) : 1;
+	}
+
+	/**
+	 * Space that the job can use for its temporary files in the job data dir
+	 * 
+	 * @return bytes
+	 */
+	protected long getStorageLimit() {
+		long storageLimit = jobDataDir.getUsableSpace();
+		if (!config.getString(SingleShotComp.KEY_COMP_MAX_STORAGE).isEmpty()) {
+			// convert gigabytes to bytes
+			storageLimit = Math.min(storageLimit,
+					config.getLong(SingleShotComp.KEY_COMP_MAX_STORAGE) * 1024 * 1024 * 1024);
+		}
+		return storageLimit;
+	}
+
 	public abstract String getSADL();
 }
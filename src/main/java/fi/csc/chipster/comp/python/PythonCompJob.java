@@ -278,6 +278,10 @@ public class PythonCompJob extends OnDiskCompJobBase {
 
 		this.setSourceCode(inputStringBuilder.toString());
 
+		// the interpreter hasn't started any child processes yet, because the script
+		// hasn't been written
+		moveToCgroup(process);
+
 		updateState(JobState.RUNNING, "running Python");
 
 		// launch the process monitor
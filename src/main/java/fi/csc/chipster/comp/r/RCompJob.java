@@ -250,6 +250,10 @@ public class RCompJob extends OnDiskCompJobBase {
 
 		this.setSourceCode(inputStringBuilder.toString());
 
+		// the interpreter hasn't started any child processes yet, because the script
+		// hasn't been written
+		moveToCgroup(process);
+
 		updateState(JobState.RUNNING, "running R");
 
 		// launch the process monitor
@@ -0,0 +1,229 @@
+package fi.csc.chipster.comp.resourcemonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import fi.csc.chipster.rest.Config;
+
+/**
+ * Cgroup v2 of one job
+ *
+ * The job process is moved to its own cgroup right after it has been taken from
+ * the process pool, so all processes that the tool starts are accounted there
+ * too. The kernel keeps the counters, so the peak memory is exact and the CPU
+ * time and I/O include also the processes that have already exited, unlike when
+ * polling the processes.
+ *
+ * The parent directory must be a cgroup v2 directory delegated to the user
+ * running comp (e.g. with systemd "Delegate=yes"), where comp can create
+ * subdirectories. Individual counters are null, if the corresponding controller
+ * isn't enabled.
+ */
+public class JobCgroup {
+
+	private static Logger logger = LogManager.getLogger();
+
+	public static final String CONF_COMP_CGROUP_DIR = "comp-cgroup-dir";
+
+	private static final String CONTROLLERS = "+memory +cpu +io";
+
+	private final File dir;
+
+	/**
+	 * Create a cgroup for the job
+	 *
+	 * @param parentDir
+	 * @param jobId
+	 * @throws IOException
+	 */
+	public JobCgroup(File parentDir, String jobId) throws IOException {
+
+		enableControllers(parentDir);
+
+		this.dir = new File(parentDir, "job-" + jobId);
+
+		if (!dir.mkdir()) {
+			throw new IOException("creating cgroup " + dir.getAbsolutePath() + " failed");
+		}
+	}
+
+	/**
+	 * Create a cgroup for the job, if configured
+	 *
+	 * @param config
+	 * @param jobId
+	 * @return the cgroup or null if cgroups are not configured or the cgroup
+	 *         couldn't be created
+	 */
+	public static JobCgroup create(Config config, String jobId) {
+		String parentPath = config.getString(CONF_COMP_CGROUP_DIR);
+
+		if (parentPath == null || parentPath.isEmpty()) {
+			return null;
+		}
+
+		try {
+			return new JobCgroup(new File(parentPath), jobId);
+		} catch (IOException e) {
+			logger.warn("cgroup not available, resource usage is monitored by polling: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Move the process to this cgroup
+	 *
+	 * Child processes started after this are in this cgroup too.
+	 *
+	 * @param pid
+	 * @throws IOException
+	 */
+	public void addProcess(long pid) throws IOException {
+		Files.writeString(new File(dir, "cgroup.procs").toPath(), "" + pid);
+	}
+
+	/**
+	 * @return peak memory usage in bytes or null if not available
+	 */
+	public Long getMemoryPeak() {
+		// memory.peak exists only in Linux 5.19 and later
+		String peak = read("memory.peak");
+		return peak != null ? Long.parseLong(peak.trim()) : null;
+	}
+
+	/**
+	 * @return user and system cpu time in milliseconds or null if not available
+	 */
+	public Long getCpuTime() {
+		String cpuStat = read("cpu.stat");
+		if (cpuStat == null) {
+			return null;
+		}
+		Long usec = parseKeyValue(cpuStat, "usage_usec");
+		return usec != null ? usec / 1000 : null;
+	}
+
+	/**
+	 * @return bytes read from all block devices or null if not available
+	 */
+	public Long getReadBytes() {
+		return sumIoStat("rbytes");
+	}
+
+	/**
+	 * @return bytes written to all block devices or null if not available
+	 */
+	public Long getWriteBytes() {
+		return sumIoStat("wbytes");
+	}
+
+	/**
+	 * Kill the remaining processes and remove the cgroup
+	 *
+	 * Tools may leave processes running in the background, but those must not
+	 * outlive the job.
+	 */
+	public void remove() {
+		File killFile = new File(dir, "cgroup.kill");
+
+		try {
+			if (killFile.exists()) {
+				// Linux 5.14 and later
+				Files.writeString(killFile.toPath(), "1");
+			}
+		} catch (IOException e) {
+			logger.warn("failed to kill the processes of cgroup " + dir.getName(), e);
+		}
+
+		// the kill is asynchronous and the directory can be removed only when it's
+		// empty
+		for (int i = 0; i < 50; i++) {
+			if (dir.delete()) {
+				return;
+			}
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		logger.warn("failed to remove cgroup " + dir.getAbsolutePath());
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	private Long sumIoStat(String key) {
+		String ioStat = read("io.stat");
+		if (ioStat == null) {
+			return null;
+		}
+
+		// e.g. "8:0 rbytes=1459200 wbytes=314773504 rios=192 wios=353 dbytes=0 dios=0"
+		long sum = 0;
+		for (String line : ioStat.split("\n")) {
+			for (String field : line.trim().split(" ")) {
+				if (field.startsWith(key + "=")) {
+					sum += Long.parseLong(field.substring(key.length() + 1));
+				}
+			}
+		}
+		return sum;
+	}
+
+	private static Long parseKeyValue(String text, String key) {
+		for (String line : text.split("\n")) {
+			String[] fields = line.trim().split(" ");
+			if (fields.length == 2 && fields[0].equals(key)) {
+				return Long.parseLong(fields[1]);
+			}
+		}
+		return null;
+	}
+
+	private String read(String fileName) {
+		File file = new File(dir, fileName);
+		if (!file.exists()) {
+			// controller not enabled
+			return null;
+		}
+		try {
+			return Files.readString(file.toPath());
+		} catch (IOException e) {
+			logger.warn("failed to read " + file.getAbsolutePath(), e);
+			return null;
+		}
+	}
+
+	/**
+	 * Enable the controllers for the job cgroups, if not enabled already
+	 *
+	 * @param parentDir
+	 * @throws IOException
+	 */
+	private static void enableControllers(File parentDir) throws IOException {
+		File subtreeControl = new File(parentDir, "cgroup.subtree_control");
+
+		if (!subtreeControl.exists()) {
+			throw new IOException(parentDir.getAbsolutePath() + " is not a cgroup v2 directory");
+		}
+
+		String enabled = Files.readString(subtreeControl.toPath());
+		if (enabled.contains("memory") && enabled.contains("cpu") && enabled.contains("io")) {
+			return;
+		}
+
+		try {
+			Files.writeString(subtreeControl.toPath(), CONTROLLERS);
+		} catch (IOException e) {
+			// not fatal, the cpu.stat is available without controllers
+			logger.warn("failed to enable cgroup controllers in " + parentDir.getAbsolutePath() + ": "
+					+ e.getMessage());
+		}
+	}
+}
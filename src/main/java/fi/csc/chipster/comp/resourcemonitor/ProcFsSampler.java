@@ -0,0 +1,269 @@
+package fi.csc.chipster.comp.resourcemonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Collect process information directly from the /proc file system
+ *
+ * This avoids forking ps and pgrep processes for every process on every
+ * sampling round. Available only on Linux.
+ */
+public class ProcFsSampler {
+
+	private static Logger logger = LogManager.getLogger();
+
+	// USER_HZ of the kernel ABI, if getconf isn't available
+	private static final long DEFAULT_CLOCK_TICKS_PER_SECOND = 100;
+
+	/**
+	 * Unit of the cpu times in /proc/PID/stat
+	 */
+	private static final long CLOCK_TICKS_PER_SECOND = getClockTicksPerSecond();
+
+	public static class ProcessSample {
+		private final long pid;
+		private final long ppid;
+		private final long startTime;
+		private final long rss;
+		private final long cpuTime;
+		private final long childrenCpuTime;
+		private final Long readBytes;
+		private final Long writeBytes;
+
+		public ProcessSample(long pid, long ppid, long startTime, long rss, long cpuTime, long childrenCpuTime,
+				Long readBytes, Long writeBytes) {
+			this.pid = pid;
+			this.ppid = ppid;
+			this.startTime = startTime;
+			this.rss = rss;
+			this.cpuTime = cpuTime;
+			this.childrenCpuTime = childrenCpuTime;
+			this.readBytes = readBytes;
+			this.writeBytes = writeBytes;
+		}
+
+		public long getPid() {
+			return pid;
+		}
+
+		/**
+		 * @return pid of the parent process
+		 */
+		public long getPpid() {
+			return ppid;
+		}
+
+		/**
+		 * @return start time of the process in clock ticks after the system boot, to
+		 *         recognize reused pids
+		 */
+		public long getStartTime() {
+			return startTime;
+		}
+
+		/**
+		 * @return resident set size in bytes
+		 */
+		public long getRss() {
+			return rss;
+		}
+
+		/**
+		 * @return user and system cpu time in milliseconds
+		 */
+		public long getCpuTime() {
+			return cpuTime;
+		}
+
+		/**
+		 * @return user and system cpu time of the children that have ended and the
+		 *         process has waited for, in milliseconds
+		 */
+		public long getChildrenCpuTime() {
+			return childrenCpuTime;
+		}
+
+		/**
+		 * @return bytes read from the storage or null if not available
+		 */
+		public Long getReadBytes() {
+			return readBytes;
+		}
+
+		/**
+		 * @return bytes written to the storage or null if not available
+		 */
+		public Long getWriteBytes() {
+			return writeBytes;
+		}
+	}
+
+	private final File procDir;
+
+	public ProcFsSampler() {
+		this(new File("/proc"));
+	}
+
+	public ProcFsSampler(File procDir) {
+		this.procDir = procDir;
+	}
+
+	public boolean isAvailable() {
+		return new File(procDir, "self/stat").exists();
+	}
+
+	/**
+	 * @param pid
+	 * @return true if the process exists, also when it has ended but its parent
+	 *         hasn't waited for it yet
+	 */
+	public boolean exists(long pid) {
+		return new File(procDir, "" + pid).exists();
+	}
+
+	private static long getClockTicksPerSecond() {
+		try {
+			return Long.parseLong(ProcessMonitoring.execCmd("getconf", "CLK_TCK").trim());
+		} catch (IOException | RuntimeException e) {
+			logger.warn("failed to get CLK_TCK, assuming " + DEFAULT_CLOCK_TICKS_PER_SECOND + ": " + e.getMessage());
+			return DEFAULT_CLOCK_TICKS_PER_SECOND;
+		}
+	}
+
+	/**
+	 * Get the process information
+	 *
+	 * @param pid
+	 * @return the sample or null if the process doesn't exist anymore
+	 */
+	public ProcessSample sample(long pid) {
+		File pidDir = new File(procDir, "" + pid);
+
+		try {
+			String stat = Files.readString(new File(pidDir, "stat").toPath());
+			String status = Files.readString(new File(pidDir, "status").toPath());
+
+			// the command name in parenthesis may contain spaces
+			String[] fields = stat.substring(stat.lastIndexOf(')') + 2).trim().split(" ");
+
+			// field numbers in "man proc" start from 1 and we removed the first two
+			long ppid = Long.parseLong(fields[4 - 3]);
+			long utime = Long.parseLong(fields[14 - 3]);
+			long stime = Long.parseLong(fields[15 - 3]);
+			long cutime = Long.parseLong(fields[16 - 3]);
+			long cstime = Long.parseLong(fields[17 - 3]);
+			long startTime = Long.parseLong(fields[22 - 3]);
+
+			long cpuTime = (utime + stime) * 1000 / CLOCK_TICKS_PER_SECOND;
+			long childrenCpuTime = (cutime + cstime) * 1000 / CLOCK_TICKS_PER_SECOND;
+
+			long rss = parseKilobytes(status, "VmRSS:") * 1024;
+
+			Long readBytes = null;
+			Long writeBytes = null;
+
+			try {
+				String io = Files.readString(new File(pidDir, "io").toPath());
+				readBytes = parseValue(io, "read_bytes:");
+				writeBytes = parseValue(io, "write_bytes:");
+			} catch (IOException e) {
+				// not allowed to read processes of other users
+			}
+
+			return new ProcessSample(pid, ppid, startTime, rss, cpuTime, childrenCpuTime, readBytes, writeBytes);
+
+		} catch (IOException e) {
+			// process has ended
+			return null;
+		} catch (NumberFormatException | IndexOutOfBoundsException e) {
+			logger.warn("failed to parse the process information of pid " + pid, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Get all descendants of the process
+	 *
+	 * Reads the children of each thread from /proc/PID/task/TID/children. Falls
+	 * back to the ProcessHandle API, if the kernel doesn't provide those files.
+	 *
+	 * @param pid
+	 * @return
+	 */
+	public List<Long> getDescendants(long pid) {
+		List<Long> descendants = new ArrayList<>();
+
+		File taskDir = new File(procDir, pid + "/task");
+		File[] tasks = taskDir.listFiles();
+
+		if (tasks == null) {
+			// process has ended
+			return descendants;
+		}
+
+		for (File task : tasks) {
+			File childrenFile = new File(task, "children");
+
+			if (!childrenFile.exists()) {
+				// kernel without CONFIG_PROC_CHILDREN
+				return getDescendantsWithProcessHandle(pid);
+			}
+
+			String children;
+			try {
+				children = Files.readString(childrenFile.toPath()).trim();
+			} catch (IOException e) {
+				// thread has ended
+				continue;
+			}
+
+			if (children.isEmpty()) {
+				continue;
+			}
+
+			for (String childPid : children.split(" ")) {
+				long child = Long.parseLong(childPid);
+				descendants.add(child);
+				descendants.addAll(getDescendants(child));
+			}
+		}
+
+		return descendants;
+	}
+
+	private static List<Long> getDescendantsWithProcessHandle(long pid) {
+		Optional<ProcessHandle> handle = ProcessHandle.of(pid);
+
+		if (handle.isEmpty()) {
+			return new ArrayList<>();
+		}
+
+		return handle.get().descendants().map(ProcessHandle::pid).collect(Collectors.toList());
+	}
+
+	private static long parseKilobytes(String text, String key) {
+		// kernel threads don't have memory fields
+		Long kilobytes = parseValue(text, key);
+		return kilobytes != null ? kilobytes : 0;
+	}
+
+	private static Long parseValue(String text, String key) {
+		for (String line : text.split("\n")) {
+			if (line.startsWith(key)) {
+				// e.g. "VmRSS:	    1234 kB"
+				String value = line.substring(key.length()).trim().split("\\s+")[0];
+				return Long.parseLong(value);
+			}
+		}
+		return null;
+	}
+}
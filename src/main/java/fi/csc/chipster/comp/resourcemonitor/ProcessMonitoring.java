@@ -14,6 +14,8 @@ import org.apache.logging.log4j.Logger;
 /**
  * Utility methods for collecting process information from the ps command.
  * 
+ * On Linux, ProcessResourceMonitor uses ProcFsSampler instead.
+ * 
  * @author klemela
  *
  */
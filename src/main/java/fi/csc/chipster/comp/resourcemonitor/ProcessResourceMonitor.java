@@ -1,21 +1,35 @@
 package fi.csc.chipster.comp.resourcemonitor;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Objects;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import fi.csc.chipster.comp.resourcemonitor.ProcFsSampler.ProcessSample;
+
 public class ProcessResourceMonitor {
 
 	private static Logger logger = LogManager.getLogger();
 
+	private static final ProcFsSampler procFsSampler = new ProcFsSampler();
+	private static final boolean isProcFsAvailable = procFsSampler.isAvailable();
+
 	private Long pid;
 	private HashSet<Long> allPids = new HashSet<>();
 	private Long maxMem;
 	private Long currentMem;
 	private Process javaProcess;
 
+	// the latest sample of each process, including the processes that have ended
+	private HashMap<Long, ProcessSample> lastSamples = new HashMap<>();
+
+	// ended processes whose cpu time is in the children cpu time of a tracked
+	// process
+	private HashSet<Long> waitedPids = new HashSet<>();
+
 	public ProcessResourceMonitor(Process javaProcess) {
 		this.javaProcess = javaProcess;
 	}
@@ -28,6 +42,33 @@ public class ProcessResourceMonitor {
 		return currentMem;
 	}
 
+	/**
+	 * @return cpu time of the process tree in milliseconds or null if not
+	 *         available
+	 * 
+	 *         Includes the children cpu time of the processes, so that also the
+	 *         processes that ended between the samples are counted.
+	 */
+	public Long getCpuTime() {
+		if (lastSamples.isEmpty()) {
+			return null;
+		}
+		return lastSamples.values().stream()
+				.filter(sample -> !waitedPids.contains(sample.getPid()))
+				.mapToLong(sample -> sample.getCpuTime() + sample.getChildrenCpuTime())
+				.sum();
+	}
+
+	public Long getReadBytes() {
+		return lastSamples.values().stream().map(ProcessSample::getReadBytes).filter(Objects::nonNull)
+				.reduce(Long::sum).orElse(null);
+	}
+
+	public Long getWriteBytes() {
+		return lastSamples.values().stream().map(ProcessSample::getWriteBytes).filter(Objects::nonNull)
+				.reduce(Long::sum).orElse(null);
+	}
+
 	public void update() throws IOException {
 		if (pid == null) {
 			this.pid = ProcessMonitoring.getPid(javaProcess);
@@ -37,12 +78,102 @@ public class ProcessResourceMonitor {
 		if (pid != null) {
 			// remember all pids, even if child process ends and grandchild's ppid will be
 			// set to 1
-			allPids.addAll(ProcessMonitoring.getChildren(pid, true));
-			currentMem = ProcessMonitoring.getTotalMemory(allPids);
+			if (isProcFsAvailable) {
+				allPids.addAll(procFsSampler.getDescendants(pid));
+				currentMem = updateSamples();
+			} else {
+				allPids.addAll(ProcessMonitoring.getChildren(pid, true));
+				currentMem = ProcessMonitoring.getTotalMemory(allPids);
+			}
 			if (this.maxMem == null || currentMem > this.maxMem) {
 				this.maxMem = currentMem;
 			}
 			logger.debug("pid " + pid + " mem " + maxMem + " pid count " + allPids.size());
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Sample all known processes from /proc
+	 * 
+	 * @return total memory of the running processes
+	 */
+	private long updateSamples() {
+		long totalMem = 0;
+
+		/*
+		 * A process disappears from /proc when its parent has waited for it. Check
+		 * this before sampling, so that the samples of the parents taken below include
+		 * the children cpu time of the ended processes.
+		 */
+		HashSet<Long> endedPids = new HashSet<>();
+		for (long processPid : allPids) {
+			if (!procFsSampler.exists(processPid)) {
+				endedPids.add(processPid);
+			}
+		}
+
+		HashSet<Long> sampledPids = new HashSet<>();
+
+		for (long processPid : allPids) {
+			if (endedPids.contains(processPid)) {
+				continue;
+			}
+
+			ProcessSample sample = procFsSampler.sample(processPid);
+
+			if (sample == null) {
+				// process has ended, keep its last cpu and io values
+				continue;
+			}
+
+			ProcessSample previous = lastSamples.get(processPid);
+			if (previous != null && previous.getStartTime() != sample.getStartTime()) {
+				// pid was reused by some other process
+				continue;
+			}
+
+			lastSamples.put(processPid, sample);
+			sampledPids.add(processPid);
+			totalMem += sample.getRss();
+		}
+
+		for (long processPid : endedPids) {
+			if (isWaitedByTrackedProcess(processPid, endedPids, sampledPids)) {
+				waitedPids.add(processPid);
+			}
+		}
+
+		return totalMem;
+	}
+
+	/**
+	 * Check if the cpu time of the ended process is in the children cpu time of
+	 * a process that was sampled after it ended
+	 * 
+	 * The parent may have ended too, but then its cpu time is in the children cpu
+	 * time of its own parent.
+	 */
+	private boolean isWaitedByTrackedProcess(long pid, HashSet<Long> endedPids, HashSet<Long> sampledPids) {
+
+		HashSet<Long> visited = new HashSet<>();
+
+		while (visited.add(pid)) {
+			ProcessSample sample = lastSamples.get(pid);
+			if (sample == null) {
+				// never sampled
+				return false;
+			}
+			long ppid = sample.getPpid();
+
+			if (sampledPids.contains(ppid)) {
+				return true;
+			}
+			if (!endedPids.contains(ppid)) {
+				// not tracked, e.g. the comp process or init
+				return false;
+			}
+			pid = ppid;
+		}
+		return false;
+	}
+}
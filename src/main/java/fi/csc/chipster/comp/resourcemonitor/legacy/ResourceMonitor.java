@@ -29,8 +29,10 @@ import fi.csc.chipster.comp.resourcemonitor.ProcessResourceMonitor;
  * </p>
  * <ul>
  * <li>pid of the process is figured out with the Java Reflection API</li>
- * <li>child processes are parsed from the output of the pgrep command</li>
- * <li>memory usage is parsed from the output of the ps command</li>
+ * <li>child processes, memory usage, cpu time and io bytes are read from /proc
+ * on Linux</li>
+ * <li>on other systems child processes are parsed from the output of the pgrep
+ * command and memory usage from the output of the ps command</li>
  * <li>tracking processes and memory usage by sampling is inaccurate</li>
  * </ul>
  * 
@@ -117,6 +119,30 @@ public class ResourceMonitor {
 		return monitor.getCurrentMem();
 	}
 
+	public Long getCpuTime(Process process) {
+		ProcessResourceMonitor monitor = monitors.get(process);
+		if (monitor == null) {
+			return null;
+		}
+		return monitor.getCpuTime();
+	}
+
+	public Long getReadBytes(Process process) {
+		ProcessResourceMonitor monitor = monitors.get(process);
+		if (monitor == null) {
+			return null;
+		}
+		return monitor.getReadBytes();
+	}
+
+	public Long getWriteBytes(Process process) {
+		ProcessResourceMonitor monitor = monitors.get(process);
+		if (monitor == null) {
+			return null;
+		}
+		return monitor.getWriteBytes();
+	}
+
 	public Long getCurrentMem() {
 		// getting nulls sometimes, avoid them
 		return monitors.values().stream().map(m -> m.getCurrentMem()).filter(Objects::nonNull)
@@ -26,8 +26,10 @@ import fi.csc.chipster.comp.resourcemonitor.StorageResourceMonitor;
  * </p>
  * <ul>
  * <li>pid of the process is figured out with the Java Reflection API</li>
- * <li>child processes are parsed from the output of the pgrep command</li>
- * <li>memory usage is parsed from the output of the ps command</li>
+ * <li>child processes, memory usage, cpu time and io bytes are read from /proc
+ * on Linux</li>
+ * <li>on other systems child processes are parsed from the output of the pgrep
+ * command and memory usage from the output of the ps command</li>
  * <li>tracking processes and memory usage by sampling is inaccurate</li>
  * </ul>
  * 
@@ -148,6 +150,27 @@ public class SingleShotResourceMonitor {
 		return processMonitor.getCurrentMem();
 	}
 
+	public Long getCpuTime() {
+		if (processMonitor == null) {
+			return null;
+		}
+		return processMonitor.getCpuTime();
+	}
+
+	public Long getReadBytes() {
+		if (processMonitor == null) {
+			return null;
+		}
+		return processMonitor.getReadBytes();
+	}
+
+	public Long getWriteBytes() {
+		if (processMonitor == null) {
+			return null;
+		}
+		return processMonitor.getWriteBytes();
+	}
+
 	public Long getMaxStorage() {
 		if (storageMonitor == null) {
 			return null;
@@ -3,12 +3,14 @@ package fi.csc.chipster.filebroker;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.List;
 import java.util.UUID;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.http.ByteRange;
 
 import fi.csc.chipster.rest.RestUtils;
 import fi.csc.chipster.rest.ServletUtils;
@@ -50,6 +52,7 @@ public class FileBrokerResourceServlet extends HttpServlet {
     public static final String QP_TYPE = "type";
 
     public static final String HEADER_RANGE = "Range";
+    public static final String HEADER_CONTENT_RANGE = "Content-Range";
 
     private static Logger logger = LogManager.getLogger();
 
@@ -71,8 +74,10 @@ public class FileBrokerResourceServlet extends HttpServlet {
      * showing it
      * type: set content-type header to inform browser about the type of this file
      * 
-     * Supports HTTP range requests (s3-storage only from start) to get only a
-     * specific part of the file.
+     * Supports HTTP range requests to get only a specific part of the file. In
+     * s3-storage the range must either start from the beginning or continue to the
+     * end of the file (e.g. bytes=1000-). Multiple ranges and ranges outside the
+     * file are ignored and the whole file is sent with status 200.
      * 
      * In case of errors, e.g. file cheksum doesn't match, small files respond with
      * HTTP error code. With large files, the client notices a problem only if we
@@ -126,14 +131,27 @@ public class FileBrokerResourceServlet extends HttpServlet {
              */
         }
 
-        InputStream fileStream = this.fileBrokerApi.getDataset(dataset, range, userToken);
+        long fileSize = dataset.getFile().getSize();
+        ByteRange byteRange = parseRange(range, fileSize);
 
-        response.setStatus(HttpServletResponse.SC_OK);
+        InputStream fileStream = this.fileBrokerApi.getDataset(dataset, getStorageRange(byteRange, fileSize),
+                userToken);
 
-        if (!useChunkedEncoding && range == null) {
+        long contentLength = fileSize;
+
+        if (byteRange == null) {
+            response.setStatus(HttpServletResponse.SC_OK);
+        } else {
+            // tell the client that the range was respected
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader(HEADER_CONTENT_RANGE, byteRange.toHeaderValue(fileSize));
+            contentLength = byteRange.getLength();
+        }
+
+        if (!useChunkedEncoding) {
             // if content-lenth is set, browsers notice interrupted downloads
-            logger.info("set content-length: " + dataset.getFile().getSize());
-            response.setContentLengthLong(dataset.getFile().getSize());
+            logger.info("set content-length: " + contentLength);
+            response.setContentLengthLong(contentLength);
         } else {
             // Jetty sets this automatically
             // response.setHeader("Transfer-Encoding", "chunked");
@@ -203,6 +221,53 @@ public class FileBrokerResourceServlet extends HttpServlet {
         response.setStatus(HttpServletResponse.SC_NO_CONTENT);
     }
 
+    /**
+     * Parse the Range header
+     * 
+     * @param range    value of the Range header or null
+     * @param fileSize
+     * @return the range to send or null if the whole file should be sent
+     */
+    static ByteRange parseRange(String range, long fileSize) {
+
+        if (range == null || range.isEmpty()) {
+            return null;
+        }
+
+        List<ByteRange> byteRanges = ByteRange.parse(List.of(range), fileSize);
+
+        if (byteRanges.size() != 1) {
+            // a server is allowed to ignore the Range header
+            logger.info("ignore range " + range + ", file size: " + fileSize);
+            return null;
+        }
+
+        return byteRanges.get(0);
+    }
+
+    /**
+     * Range header for the storage
+     * 
+     * The end is left out when the range continues to the end of the file,
+     * because that is what the s3-storage supports.
+     * 
+     * @param byteRange
+     * @param fileSize
+     * @return
+     */
+    static String getStorageRange(ByteRange byteRange, long fileSize) {
+
+        if (byteRange == null) {
+            return null;
+        }
+
+        if (byteRange.first() > 0 && byteRange.last() == fileSize - 1) {
+            return "bytes=" + byteRange.first() + "-";
+        }
+
+        return "bytes=" + byteRange.first() + "-" + byteRange.last();
+    }
+
     /**
      * Parse request paths in this servlet
      * 
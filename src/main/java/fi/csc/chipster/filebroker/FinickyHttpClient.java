@@ -104,6 +104,22 @@ public class FinickyHttpClient {
     }
 
     public InputStream dowloadInputStream(URI uri) throws RestException {
+        return dowloadInputStream(uri, 0);
+    }
+
+    /**
+     * Download the file starting from the given position
+     * 
+     * Sends a HTTP Range request when the position is greater than zero. If the
+     * server ignores it and sends the whole file, the bytes before the position
+     * are skipped here.
+     * 
+     * @param uri
+     * @param position
+     * @return
+     * @throws RestException
+     */
+    public InputStream dowloadInputStream(URI uri, long position) throws RestException {
 
         // Perform a simple GET and wait for the response.
 
@@ -111,6 +127,10 @@ public class FinickyHttpClient {
 
         Request request = jettyHttpClient.newRequest(uri.toString()).method("GET");
 
+        if (position > 0) {
+            request.headers(headers -> headers.put(FileBrokerResourceServlet.HEADER_RANGE, "bytes=" + position + "-"));
+        }
+
         if (this.username != null && this.password != null) {
 
             // send Authorization header directly without waiting servers 401 response
@@ -129,7 +149,7 @@ public class FinickyHttpClient {
             }
 
             // Look at the response before streaming the content.
-            if (response.getStatus() == HttpStatus.OK_200) {
+            if (response.getStatus() == HttpStatus.OK_200 || response.getStatus() == HttpStatus.PARTIAL_CONTENT_206) {
 
                 InputStream remoteStream = listener.getInputStream();
 
@@ -145,6 +165,11 @@ public class FinickyHttpClient {
                     }
                     remoteStream = new CheckedStream(remoteStream, null, null, contentLength);
                 }
+
+                if (position > 0 && response.getStatus() == HttpStatus.OK_200) {
+                    logger.warn("range request ignored, skip " + position + " bytes");
+                    remoteStream.skipNBytes(position);
+                }
                 return remoteStream;
 
             } else {
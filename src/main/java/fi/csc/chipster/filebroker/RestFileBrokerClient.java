@@ -120,10 +120,23 @@ public class RestFileBrokerClient {
 	}
 
 	public InputStream download(UUID sessionId, UUID datasetId) throws RestException {
+		return download(sessionId, datasetId, 0);
+	}
+
+	/**
+	 * Download the dataset starting from the given position
+	 * 
+	 * @param sessionId
+	 * @param datasetId
+	 * @param position  number of bytes to leave out from the beginning
+	 * @return
+	 * @throws RestException
+	 */
+	public InputStream download(UUID sessionId, UUID datasetId, long position) throws RestException {
 		WebTarget target = getDatasetTarget(sessionId, datasetId);
 
 		// FinickyHttpClient configured to use specific protocol versions
-		return this.finickyHttpClient.dowloadInputStream(target.getUri());
+		return this.finickyHttpClient.dowloadInputStream(target.getUri(), position);
 
 		// simple download with the default client:
 
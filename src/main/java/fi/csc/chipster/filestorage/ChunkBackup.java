@@ -0,0 +1,305 @@
+package fi.csc.chipster.filestorage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import fi.csc.chipster.archive.ChecksumPipe;
+import fi.csc.chipster.archive.FastCdcChunker;
+import fi.csc.chipster.archive.GpgBackupUtils;
+import fi.csc.chipster.rest.ChipsterS3Client;
+import fi.csc.chipster.rest.Config;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/**
+ * Chunk-level deduplicating backup of file-storage
+ *
+ * Files are split to chunks with a content-defined chunker, so a changed file
+ * or a renamed directory needs only a few new chunks or none at all. Only the
+ * chunks that aren't in the index of the previous backup are uploaded.
+ *
+ * New chunks are collected to pack files of about packSize, which are
+ * compressed and encrypted like the other backup packages. Uploading every
+ * chunk separately would be too slow with the latency of the object storage.
+ *
+ * Objects in the bucket:
+ * - {prefix}chunks/{uuid}.pack.lz4[.gpg]: pack files, shared by all backups
+ * - {backupName}/chunk-index: location of every chunk
+ * - {backupName}/chunk-manifest: the chunks of each file, uploaded last to
+ * signal that the backup is complete
+ *
+ * Old packs are not removed, because the packs of this mode are not handled by
+ * the BackupArchive.
+ */
+public class ChunkBackup {
+
+	private final static Logger logger = LogManager.getLogger();
+
+	public static final String CHUNK_INDEX = "chunk-index";
+	public static final String CHUNK_MANIFEST = "chunk-manifest";
+	public static final String PACK_DIR = "chunks/";
+
+	private static final long DEFAULT_PACK_SIZE = 64 * 1024 * 1024;
+
+	private ChipsterS3Client s3Client;
+	private String bucket;
+	private String backupNamePrefix;
+	private String gpgRecipient;
+	private String gpgPassphrase;
+	private Config config;
+
+	private FastCdcChunker chunker = new FastCdcChunker();
+	private long packSize = DEFAULT_PACK_SIZE;
+
+	// the pack that is being written
+	private String packKey;
+	private Path packFile;
+	private OutputStream packStream;
+	private long packOffset;
+
+	private long fileCount;
+	private long fileSizeTotal;
+	private long chunkedSizeTotal;
+	private long newChunkCount;
+	private long newChunkSizeTotal;
+	private long uploadSizeTotal;
+
+	public ChunkBackup(ChipsterS3Client s3Client, String bucket, String backupNamePrefix, String gpgRecipient,
+			String gpgPassphrase, Config config) {
+		this.s3Client = s3Client;
+		this.bucket = bucket;
+		this.backupNamePrefix = backupNamePrefix;
+		this.gpgRecipient = gpgRecipient;
+		this.gpgPassphrase = gpgPassphrase;
+		this.config = config;
+	}
+
+	public void setChunker(FastCdcChunker chunker) {
+		this.chunker = chunker;
+	}
+
+	public void setPackSize(long packSize) {
+		this.packSize = packSize;
+	}
+
+	/**
+	 * @param storage    storage root
+	 * @param files      files to backup, relative to the storage
+	 * @param backupDir  empty directory for temporary files
+	 * @param backupName
+	 * @param objects    objects in the bucket, to find the previous backup
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void backup(Path storage, Collection<Path> files, Path backupDir, String backupName,
+			List<S3Object> objects) throws IOException, InterruptedException {
+
+		ChunkIndex index = new ChunkIndex();
+		ChunkManifest previousManifest = new ChunkManifest();
+
+		String previousManifestKey = GpgBackupUtils.findLatest(objects, backupNamePrefix, CHUNK_MANIFEST);
+
+		if (previousManifestKey != null) {
+			String previousBackupName = previousManifestKey.substring(0, previousManifestKey.indexOf("/"));
+			logger.info("found a previous chunk backup " + previousBackupName);
+
+			Path indexPath = backupDir.resolve("previous-" + CHUNK_INDEX);
+			Path manifestPath = backupDir.resolve("previous-" + CHUNK_MANIFEST);
+			s3Client.downloadFile(bucket, previousBackupName + "/" + CHUNK_INDEX, indexPath.toFile());
+			s3Client.downloadFile(bucket, previousManifestKey, manifestPath.toFile());
+
+			index = ChunkIndex.read(indexPath);
+			previousManifest = ChunkManifest.read(manifestPath);
+			Files.delete(indexPath);
+			Files.delete(manifestPath);
+
+			logger.info("the previous backup has " + index.size() + " chunks");
+		} else {
+			logger.info("no previous chunk backup found, all chunks are new");
+		}
+
+		ChunkManifest manifest = new ChunkManifest();
+
+		try {
+			for (Path file : files) {
+
+				Path localPath = storage.resolve(file);
+
+				try {
+					long size = Files.size(localPath);
+					ChunkManifest.Entry previous = previousManifest.get(file);
+
+					// like in the file-level backups, trust that the file hasn't changed if the
+					// size is the same
+					if (previous != null && previous.getSize() == size
+							&& previous.getChunks().stream().allMatch(index::contains)) {
+						manifest.add(previous);
+					} else {
+						manifest.add(chunkFile(file, localPath, index, backupDir));
+						chunkedSizeTotal += size;
+					}
+
+					fileCount++;
+					fileSizeTotal += size;
+
+				} catch (NoSuchFileException e) {
+					logger.error("file disappeared during the backup process: " + e.getMessage()
+							+ " (probably deleted by some user)");
+				}
+			}
+
+			finishPack();
+
+		} finally {
+			if (packStream != null) {
+				packStream.close();
+			}
+		}
+
+		logger.info(fileCount + " files (" + FileUtils.byteCountToDisplaySize(fileSizeTotal) + "), "
+				+ FileUtils.byteCountToDisplaySize(chunkedSizeTotal) + " read, " + newChunkCount + " new chunks ("
+				+ FileUtils.byteCountToDisplaySize(newChunkSizeTotal) + "), "
+				+ FileUtils.byteCountToDisplaySize(uploadSizeTotal) + " uploaded");
+
+		Path indexPath = backupDir.resolve(CHUNK_INDEX);
+		Path manifestPath = backupDir.resolve(CHUNK_MANIFEST);
+		index.write(indexPath);
+		manifest.write(manifestPath);
+
+		s3Client.uploadFile(bucket, backupName + "/" + CHUNK_INDEX, indexPath);
+		// the manifest is uploaded last to signal that the backup is complete
+		s3Client.uploadFile(bucket, backupName + "/" + CHUNK_MANIFEST, manifestPath);
+
+		Files.delete(indexPath);
+		Files.delete(manifestPath);
+	}
+
+	private ChunkManifest.Entry chunkFile(Path file, Path localPath, ChunkIndex index, Path backupDir)
+			throws IOException, InterruptedException {
+
+		MessageDigest fileDigest = ChecksumPipe.getSha512Digest();
+		MessageDigest chunkDigest = getSha256Digest();
+		List<String> chunks = new ArrayList<>();
+		long[] size = new long[1];
+
+		try (InputStream in = new DigestInputStream(Files.newInputStream(localPath), fileDigest)) {
+			chunker.chunk(in, (bytes, offset, length) -> {
+
+				chunkDigest.update(bytes, offset, length);
+				String hash = Hex.encodeHexString(chunkDigest.digest());
+
+				if (!index.contains(hash)) {
+					index.put(hash, addToPack(bytes, offset, length, backupDir));
+					newChunkCount++;
+					newChunkSizeTotal += length;
+				}
+
+				chunks.add(hash);
+				size[0] += length;
+			});
+		}
+
+		return new ChunkManifest.Entry(file, size[0], Hex.encodeHexString(fileDigest.digest()), chunks);
+	}
+
+	private ChunkIndex.Location addToPack(byte[] bytes, int offset, int length, Path backupDir) throws IOException {
+
+		if (packStream == null) {
+			String suffix = gpgRecipient != null || gpgPassphrase != null ? ".pack.lz4.gpg" : ".pack.lz4";
+			packKey = backupNamePrefix + PACK_DIR + UUID.randomUUID() + suffix;
+			packFile = backupDir.resolve("pack");
+			packStream = Files.newOutputStream(packFile);
+			packOffset = 0;
+		}
+
+		ChunkIndex.Location location = new ChunkIndex.Location(packKey, packOffset, length);
+		packStream.write(bytes, offset, length);
+		packOffset += length;
+
+		if (packOffset >= packSize) {
+			try {
+				finishPack();
+			} catch (InterruptedException e) {
+				throw new IOException("interrupted", e);
+			}
+		}
+		return location;
+	}
+
+	private void finishPack() throws IOException, InterruptedException {
+
+		if (packStream == null) {
+			return;
+		}
+
+		packStream.close();
+		packStream = null;
+
+		Path packagePath = packFile.resolveSibling("pack.package");
+
+		Map<String, String> env = new HashMap<String, String>();
+		String cmd = GpgBackupUtils.getCompressAndEncryptCommand(gpgRecipient, gpgPassphrase, config, env);
+		ChecksumPipe checksums = ChecksumPipe.run(packFile, packagePath, env, "bash", "-c", cmd);
+
+		logger.info("upload " + packKey + " (" + FileUtils.byteCountToDisplaySize(checksums.getOutputSize()) + ")");
+		s3Client.uploadFile(bucket, packKey, packagePath);
+		uploadSizeTotal += checksums.getOutputSize();
+
+		Files.delete(packFile);
+		Files.delete(packagePath);
+	}
+
+	static MessageDigest getSha256Digest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java implementation is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public long getFileCount() {
+		return fileCount;
+	}
+
+	public long getFileSizeTotal() {
+		return fileSizeTotal;
+	}
+
+	/**
+	 * @return size of the files that had to be read, others were found from the
+	 *         previous manifest
+	 */
+	public long getChunkedSizeTotal() {
+		return chunkedSizeTotal;
+	}
+
+	public long getNewChunkCount() {
+		return newChunkCount;
+	}
+
+	public long getNewChunkSizeTotal() {
+		return newChunkSizeTotal;
+	}
+
+	public long getUploadSizeTotal() {
+		return uploadSizeTotal;
+	}
+}
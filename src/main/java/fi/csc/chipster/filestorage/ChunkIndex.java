@@ -0,0 +1,84 @@
+package fi.csc.chipster.filestorage;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+
+/**
+ * Where to find the chunks of the chunk-level backups
+ * 
+ * Chunks are identified by the SHA-256 of their content. The chunks are stored
+ * in pack files and the index tells the pack and the byte range in the
+ * decrypted and uncompressed pack.
+ * 
+ * The index is cumulative: each backup uploads an index of all chunks, so only
+ * the latest one is needed.
+ */
+public class ChunkIndex {
+
+	public static class Location {
+		private String pack;
+		private long offset;
+		private int length;
+
+		public Location(String pack, long offset, int length) {
+			this.pack = pack;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public String getPack() {
+			return pack;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public int getLength() {
+			return length;
+		}
+	}
+
+	private HashMap<String, Location> chunks = new HashMap<>();
+
+	public boolean contains(String hash) {
+		return chunks.containsKey(hash);
+	}
+
+	public Location get(String hash) {
+		return chunks.get(hash);
+	}
+
+	public void put(String hash, Location location) {
+		chunks.put(hash, location);
+	}
+
+	public int size() {
+		return chunks.size();
+	}
+
+	public static ChunkIndex read(Path file) throws IOException {
+		ChunkIndex index = new ChunkIndex();
+		try (BufferedReader reader = Files.newBufferedReader(file)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] split = line.split("\t");
+				index.put(split[0], new Location(split[1], Long.parseLong(split[2]), Integer.parseInt(split[3])));
+			}
+		}
+		return index;
+	}
+
+	public void write(Path file) throws IOException {
+		try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+			for (String hash : chunks.keySet()) {
+				Location location = chunks.get(hash);
+				writer.write(hash + "\t" + location.pack + "\t" + location.offset + "\t" + location.length + "\n");
+			}
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package fi.csc.chipster.filestorage;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Files of one chunk-level backup
+ * 
+ * For each file the manifest has its path relative to the storage, size,
+ * SHA-512 checksum and the hashes of its chunks in order.
+ */
+public class ChunkManifest {
+
+	public static class Entry {
+		private Path path;
+		private long size;
+		private String sha512;
+		private List<String> chunks;
+
+		public Entry(Path path, long size, String sha512, List<String> chunks) {
+			this.path = path;
+			this.size = size;
+			this.sha512 = sha512;
+			this.chunks = chunks;
+		}
+
+		public Path getPath() {
+			return path;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public String getSha512() {
+			return sha512;
+		}
+
+		public List<String> getChunks() {
+			return chunks;
+		}
+
+		public String toLine() {
+			return path + "\t" + size + "\t" + sha512 + "\t" + String.join(",", chunks);
+		}
+
+		public static Entry parseLine(String line) {
+			// keep the trailing empty string of empty files
+			String[] split = line.split("\t", -1);
+			List<String> chunks = split[3].isEmpty() ? List.of() : Arrays.asList(split[3].split(","));
+			return new Entry(Paths.get(split[0]), Long.parseLong(split[1]), split[2], chunks);
+		}
+	}
+
+	private LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>();
+
+	public Entry get(Path path) {
+		return entries.get(path);
+	}
+
+	public void add(Entry entry) {
+		entries.put(entry.getPath(), entry);
+	}
+
+	public Collection<Entry> getEntries() {
+		return entries.values();
+	}
+
+	public static ChunkManifest read(Path file) throws IOException {
+		ChunkManifest manifest = new ChunkManifest();
+		try (BufferedReader reader = Files.newBufferedReader(file)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				manifest.add(Entry.parseLine(line));
+			}
+		}
+		return manifest;
+	}
+
+	public void write(Path file) throws IOException {
+		try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+			for (Entry entry : entries.values()) {
+				writer.write(entry.toLine() + "\n");
+			}
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package fi.csc.chipster.filestorage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import fi.csc.chipster.archive.ChecksumPipe;
+import fi.csc.chipster.archive.GpgBackupUtils;
+import fi.csc.chipster.auth.model.Role;
+import fi.csc.chipster.rest.ChipsterS3Client;
+import fi.csc.chipster.rest.Config;
+
+/**
+ * Restore files from a chunk-level backup
+ *
+ * All packs needed by the backup are downloaded and decrypted to the work
+ * directory first and then the files are assembled from the chunks. The
+ * checksums of the chunks and the files are checked.
+ */
+public class ChunkRestore {
+
+	private final static Logger logger = LogManager.getLogger();
+
+	private ChipsterS3Client s3Client;
+	private String bucket;
+	private String gpgPassphrase;
+	private Config config;
+
+	/**
+	 * @param s3Client
+	 * @param bucket
+	 * @param gpgPassphrase passphrase of symmetric encryption or null. The private
+	 *                      key of asymmetric encryption must be imported in gpg.
+	 * @param config
+	 */
+	public ChunkRestore(ChipsterS3Client s3Client, String bucket, String gpgPassphrase, Config config) {
+		this.s3Client = s3Client;
+		this.bucket = bucket;
+		this.gpgPassphrase = gpgPassphrase;
+		this.config = config;
+	}
+
+	/**
+	 * @param backupName
+	 * @param target     directory where the files are restored
+	 * @param workDir    directory for the packs, needs about as much space as the
+	 *                   restored files
+	 * @throws IOException          if any of the files failed
+	 * @throws InterruptedException
+	 */
+	public void restore(String backupName, Path target, Path workDir) throws IOException, InterruptedException {
+
+		Path indexPath = workDir.resolve(ChunkBackup.CHUNK_INDEX);
+		Path manifestPath = workDir.resolve(ChunkBackup.CHUNK_MANIFEST);
+		Path packDir = workDir.resolve("packs");
+		Files.createDirectories(packDir);
+
+		s3Client.downloadFile(bucket, backupName + "/" + ChunkBackup.CHUNK_INDEX, indexPath.toFile());
+		s3Client.downloadFile(bucket, backupName + "/" + ChunkBackup.CHUNK_MANIFEST, manifestPath.toFile());
+
+		ChunkIndex index = ChunkIndex.read(indexPath);
+		ChunkManifest manifest = ChunkManifest.read(manifestPath);
+
+		Set<String> packs = new LinkedHashSet<>();
+		for (ChunkManifest.Entry entry : manifest.getEntries()) {
+			for (String hash : entry.getChunks()) {
+				ChunkIndex.Location location = index.get(hash);
+				if (location == null) {
+					throw new IOException("chunk " + hash + " of file " + entry.getPath() + " is not in the index");
+				}
+				packs.add(location.getPack());
+			}
+		}
+
+		logger.info("restore " + manifest.getEntries().size() + " files from " + packs.size() + " packs");
+
+		Map<String, FileChannel> packChannels = new HashMap<>();
+		int failed = 0;
+
+		try {
+			for (String pack : packs) {
+				packChannels.put(pack, FileChannel.open(downloadPack(pack, packDir), StandardOpenOption.READ));
+			}
+
+			for (ChunkManifest.Entry entry : manifest.getEntries()) {
+				if (!restoreFile(entry, index, packChannels, target)) {
+					failed++;
+				}
+			}
+		} finally {
+			for (FileChannel channel : packChannels.values()) {
+				channel.close();
+			}
+			FileUtils.deleteDirectory(packDir.toFile());
+		}
+
+		if (failed > 0) {
+			throw new IOException(failed + " files failed to restore");
+		}
+		logger.info("restore completed");
+	}
+
+	private Path downloadPack(String pack, Path packDir) throws IOException, InterruptedException {
+
+		String name = Paths.get(pack).getFileName().toString();
+		Path packagePath = packDir.resolve(name);
+		Path packPath = packDir.resolve(name.substring(0, name.indexOf(".pack")) + ".pack");
+
+		logger.info("download " + bucket + "/" + pack);
+		s3Client.downloadFile(bucket, pack, packagePath.toFile());
+
+		Map<String, String> env = new HashMap<String, String>();
+		String cmd = GpgBackupUtils.getDecryptAndDecompressCommand(pack.endsWith(".gpg"), gpgPassphrase, config,
+				env);
+		ChecksumPipe.run(packagePath, packPath, env, "bash", "-c", cmd);
+
+		Files.delete(packagePath);
+		return packPath;
+	}
+
+	/**
+	 * @return false if the checksums didn't match
+	 */
+	private boolean restoreFile(ChunkManifest.Entry entry, ChunkIndex index, Map<String, FileChannel> packChannels,
+			Path target) throws IOException {
+
+		Path file = target.resolve(entry.getPath());
+		Files.createDirectories(file.getParent());
+
+		MessageDigest fileDigest = ChecksumPipe.getSha512Digest();
+		MessageDigest chunkDigest = ChunkBackup.getSha256Digest();
+
+		try (OutputStream out = Files.newOutputStream(file)) {
+			for (String hash : entry.getChunks()) {
+				ChunkIndex.Location location = index.get(hash);
+
+				ByteBuffer buffer = ByteBuffer.allocate(location.getLength());
+				FileChannel channel = packChannels.get(location.getPack());
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, location.getOffset() + buffer.position()) == -1) {
+						throw new IOException("pack " + location.getPack() + " is too short");
+					}
+				}
+				byte[] bytes = buffer.array();
+
+				chunkDigest.update(bytes);
+				if (!hash.equals(Hex.encodeHexString(chunkDigest.digest()))) {
+					logger.error("chunk " + hash + " of file " + entry.getPath() + " is corrupted");
+					return false;
+				}
+
+				fileDigest.update(bytes);
+				out.write(bytes);
+			}
+		}
+
+		if (!entry.getSha512().equals(Hex.encodeHexString(fileDigest.digest()))) {
+			logger.error("file " + entry.getPath() + " checksum does not match");
+			return false;
+		}
+		return true;
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+
+		if (args.length < 2) {
+			System.out.println("usage: ChunkRestore <storage-id> <target-dir> [backup-name]\n"
+					+ "  Restores the latest chunk-level backup of the file-storage, if the backup name is not given");
+			System.exit(1);
+		}
+
+		Config config = new Config();
+		String role = Role.FILE_STORAGE;
+
+		ChipsterS3Client s3Client = GpgBackupUtils.getS3Client(config, role);
+		String bucket = GpgBackupUtils.getBackupBucket(config, role);
+		String gpgPassphrase = config.getString(GpgBackupUtils.CONF_BACKUP_GPG_PASSPHRASE, role);
+		if (gpgPassphrase.isBlank()) {
+			gpgPassphrase = null;
+		}
+
+		String backupName;
+		if (args.length > 2) {
+			backupName = args[2];
+		} else {
+			String manifestKey = GpgBackupUtils.findLatest(s3Client.getObjects(bucket), args[0] + "_",
+					ChunkBackup.CHUNK_MANIFEST);
+			if (manifestKey == null) {
+				throw new IllegalArgumentException("no chunk backups found for " + args[0]);
+			}
+			backupName = manifestKey.substring(0, manifestKey.indexOf("/"));
+		}
+
+		Path target = Paths.get(args[1]);
+		Path workDir = target.resolveSibling(target.getFileName() + "-restore-tmp");
+
+		logger.info("restore " + backupName + " to " + target);
+		new ChunkRestore(s3Client, bucket, gpgPassphrase, config).restore(backupName, target, workDir);
+
+		FileUtils.deleteDirectory(workDir.toFile());
+		s3Client.close();
+	}
+}
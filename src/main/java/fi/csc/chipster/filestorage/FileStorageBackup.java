@@ -39,6 +39,8 @@ import software.amazon.awssdk.services.s3.model.S3Object;
 
 public class FileStorageBackup implements StatusSource {
 
+	private static final String CONF_BACKUP_CHUNKS = "file-storage-backup-chunks";
+
 	private Logger logger = LogManager.getLogger();
 
 	private Path storage;
@@ -257,6 +259,12 @@ public class FileStorageBackup implements StatusSource {
 		logger.info("there are " + fileCount + " files (" + FileUtils.byteCountToDisplaySize(fileSizeTotal)
 				+ ") in storage");
 
+		if (config.getBoolean(CONF_BACKUP_CHUNKS, role)) {
+			backupChunks(storageFiles, backupDir, backupName, objects);
+			stats.put("lastBackupDuration", System.currentTimeMillis() - startTime);
+			return;
+		}
+
 		Map<Path, InfoLine> filesToBackup = new HashMap<>();
 
 		// no need to backup files that are already on the backup server a.k.a. archive
@@ -354,6 +362,30 @@ public class FileStorageBackup implements StatusSource {
 		stats.put("lastBackupDuration", System.currentTimeMillis() - startTime);
 	}
 
+	/**
+	 * Chunk-level backup
+	 * 
+	 * Only the chunks that are not in the previous chunk backup are uploaded. See
+	 * ChunkBackup.
+	 */
+	private void backupChunks(Map<Path, InfoLine> storageFiles, Path backupDir, String backupName,
+			List<S3Object> objects) throws IOException, InterruptedException {
+
+		ChunkBackup chunkBackup = new ChunkBackup(s3Client, bucket, fileStorageBackupNamePrefix, gpgRecipient,
+				gpgPassphrase, config);
+
+		chunkBackup.backup(storage, storageFiles.keySet(), backupDir, backupName, objects);
+
+		FileUtils.deleteDirectory(backupDir.toFile());
+
+		stats.put("lastBackupFileCountTotal", chunkBackup.getFileCount());
+		stats.put("lastBackupFileSizeTotal", chunkBackup.getFileSizeTotal());
+		stats.put("lastBackupChunkedSizeTotal", chunkBackup.getChunkedSizeTotal());
+		stats.put("lastBackupNewChunkCount", chunkBackup.getNewChunkCount());
+		stats.put("lastBackupNewChunkSizeTotal", chunkBackup.getNewChunkSizeTotal());
+		stats.put("lastBackupUploadSizeTotal", chunkBackup.getUploadSizeTotal());
+	}
+
 	/**
 	 * Get all unique prefixes of the filenames in file paths
 	 * 
@@ -38,6 +38,10 @@ public class JobHistory {
 	private String stateDetail;
 	private Long memoryUsage;
 	private Long storageUsage;
+	// milliseconds
+	private Long cpuTime;
+	private Long ioReadBytes;
+	private Long ioWriteBytes;
 	private String module;
 
 	public JobHistory() {
@@ -159,4 +163,28 @@ public class JobHistory {
 	public void setStorageUsage(Long storageUsage) {
 		this.storageUsage = storageUsage;
 	}
+
+	public Long getCpuTime() {
+		return cpuTime;
+	}
+
+	public void setCpuTime(Long cpuTime) {
+		this.cpuTime = cpuTime;
+	}
+
+	public Long getIoReadBytes() {
+		return ioReadBytes;
+	}
+
+	public void setIoReadBytes(Long ioReadBytes) {
+		this.ioReadBytes = ioReadBytes;
+	}
+
+	public Long getIoWriteBytes() {
+		return ioWriteBytes;
+	}
+
+	public void setIoWriteBytes(Long ioWriteBytes) {
+		this.ioWriteBytes = ioWriteBytes;
+	}
 }
@@ -225,6 +225,9 @@ public class JobHistoryService implements SessionEventListener, MessageHandler,
 						js.setStateDetail(job.getStateDetail());
 						js.setMemoryUsage(job.getMemoryUsage());
 						js.setStorageUsage(job.getStorageUsage());
+						js.setCpuTime(job.getCpuTime());
+						js.setIoReadBytes(job.getIoReadBytes());
+						js.setIoWriteBytes(job.getIoWriteBytes());
 						js.setComp(job.getComp());
 
 						if (js.getStateDetail() != null && js.getStateDetail().length() > 255) {
@@ -51,6 +51,10 @@ public class Config {
 	public static final String KEY_SESSION_DB_HIBERNATE_SCHEMA = "session-db-hibernate-schema";
 	public static final String KEY_SESSION_DB_RESTRICT_SHARING_TO_EVERYONE = "session-db-restrict-sharing-to-everyone";
 	public static final String KEY_SESSION_DB_MAX_SHARE_COUNT = "session-db-max-share-count";
+	public static final String KEY_SESSION_DB_ACCESSED_GRANULARITY = "session-db-accessed-granularity";
+	public static final String KEY_SESSION_DB_ACCESSED_FLUSH_INTERVAL = "session-db-accessed-flush-interval";
+	public static final String KEY_SESSION_DB_RULE_CACHE_SIZE = "session-db-rule-cache-size";
+	public static final String KEY_SESSION_DB_STORAGE_RECONCILE_INTERVAL = "session-db-storage-reconcile-interval";
 
 	public static final String KEY_WEB_SERVER_WEB_ROOT_PATH = "web-server-web-root-path";
 
@@ -82,6 +86,9 @@ public class Config {
 	public static final String KEY_SESSION_WORKER_SUPPORT_THROTTLE_REQEUST_COUNT = "session-worker-support-throttle-request-count";
 	public static final String KEY_SESSION_WORKER_SUPPORT_SESSION_OWNER = "session-worker-support-session-owner";
 	public static final String KEY_SESSION_WORKER_SUPPORT_SESSION_DELETE_AFTER = "session-worker-support-session-delete-after";
+	public static final String KEY_SESSION_WORKER_ZIP_THREADS = "session-worker-zip-threads";
+	public static final String KEY_SESSION_WORKER_ZIP_PREFETCH = "session-worker-zip-prefetch";
+	public static final String KEY_SESSION_WORKER_ZIP_EXTRACT_THREADS = "session-worker-zip-extract-threads";
 
 	private static HashMap<String, HashMap<String, String>> confFileCache = new HashMap<>();
 
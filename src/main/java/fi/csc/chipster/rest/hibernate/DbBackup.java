@@ -44,6 +44,9 @@ public class DbBackup implements StatusSource {
 
 	public static final String DB_BACKUPS = "db-backups";
 
+	public static final String CONF_DB_BACKUP_PITR = "db-backup-pitr";
+	public static final String CONF_DB_BACKUP_WAL_UPLOAD_INTERVAL = "db-backup-wal-upload-interval";
+
 	private Config config;
 	private String role;
 
@@ -67,6 +70,8 @@ public class DbBackup implements StatusSource {
 
 	private ChipsterS3Client s3Client;
 
+	private DbPitrBackup pitrBackup;
+
 	public DbBackup(Config config, String role, String url, String user, String password, Path backupRoot)
 			throws IOException, InterruptedException {
 		this.config = config;
@@ -99,6 +104,75 @@ public class DbBackup implements StatusSource {
 		} catch (DatabaseConnectionRefused e) {
 			logger.error(role + " db backups disabled: " + e.getMessage());
 		}
+
+		if (sessionFactory != null && config.getBoolean(CONF_DB_BACKUP_PITR, role)) {
+			logger.info(role + " db backups are base backups with continuous wal archival");
+			this.pitrBackup = new DbPitrBackup(config, role, url, user, password,
+					backupRoot.resolve(role + "-wal"), s3Client, bucket, gpgRecipient, gpgPassphrase);
+		} else if (sessionFactory != null) {
+			dropReplicationSlot();
+		}
+	}
+
+	/**
+	 * Drop the replication slot if the point-in-time recovery has been disabled
+	 *
+	 * Nobody reads the slot anymore, so the server would keep all the WAL until
+	 * its disk is full.
+	 */
+	private void dropReplicationSlot() {
+		try {
+			if (getReplicationSlotStats() != null) {
+				logger.info("point-in-time recovery is disabled, drop the replication slot of " + role);
+				runPostgres(null, null, true, "pg_receivewal", "--drop-slot",
+						"--slot=" + DbPitrBackup.getSlotName(role));
+			}
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			logger.error("failed to drop the replication slot of " + role, e);
+		}
+	}
+
+	/**
+	 * Query the state of the replication slot
+	 *
+	 * @return an array of the WAL size that the server keeps for the slot (bytes)
+	 *         and whether pg_receivewal is connected, or null if there is no slot
+	 */
+	private Object[] getReplicationSlotStats() {
+
+		return HibernateUtil.runInTransaction(new HibernateRunnable<Object[]>() {
+			@Override
+			public Object[] run(Session hibernateSession) {
+
+				List<Object[]> rows = hibernateSession
+						.createNativeQuery("SELECT CAST(pg_wal_lsn_diff(pg_current_wal_lsn(), restart_lsn) AS bigint), "
+								+ "active FROM pg_replication_slots WHERE slot_name = :slot", Object[].class)
+						.setParameter("slot", DbPitrBackup.getSlotName(role))
+						.getResultList();
+
+				return rows.isEmpty() ? null : rows.get(0);
+			}
+		}, this.sessionFactory);
+	}
+
+	/**
+	 * Start streaming the WAL, if point-in-time recovery is enabled
+	 */
+	public void startWalArchival() {
+		if (pitrBackup != null) {
+			try {
+				long interval = Long.parseLong(config.getString(CONF_DB_BACKUP_WAL_UPLOAD_INTERVAL, role));
+				pitrBackup.start(interval);
+			} catch (IOException | InterruptedException | RuntimeException e) {
+				logger.error(role + " wal archival failed to start", e);
+			}
+		}
+	}
+
+	public void close() {
+		if (pitrBackup != null) {
+			pitrBackup.close();
+		}
 	}
 
 	public void cleanUpAndBackup() {
@@ -147,6 +221,20 @@ public class DbBackup implements StatusSource {
 
 		Files.createDirectory(backupDir);
 
+		if (pitrBackup != null) {
+			stats.put("lastBackupUncompressedSize", pitrBackup.baseBackup(backupDir, backupName));
+
+			FileUtils.deleteDirectory(backupDir.toFile());
+
+			// WAL before the oldest base backup isn't needed anymore
+			pitrBackup.pruneWal(backupPrefix);
+
+			stats.put("lastBackupDuration", Duration.between(now, Instant.now()).toMillis());
+
+			logger.info("db base backup of " + role + " done");
+			return;
+		}
+
 		logger.info("save     " + role + " db backup to " + backupFileUncompressed.toFile().getAbsolutePath());
 
 		// Stream the script to a local file
@@ -242,6 +330,20 @@ public class DbBackup implements StatusSource {
 		Map<String, Object> statsWithRole = stats.keySet().stream()
 				.collect(Collectors.toMap(key -> key + ",backupOfRole=" + role, key -> stats.get(key)));
 
+		if (pitrBackup != null) {
+			try {
+				Object[] slotStats = getReplicationSlotStats();
+				if (slotStats != null) {
+					// how much WAL the server keeps, because it hasn't been received yet
+					statsWithRole.put("walSlotRetainedSize,backupOfRole=" + role, slotStats[0]);
+					statsWithRole.put("walSlotActive,backupOfRole=" + role, slotStats[1]);
+				}
+			} catch (RuntimeException e) {
+				logger.warn("failed to get the replication slot stats of " + role + ": " + e.getMessage());
+			}
+			statsWithRole.put("walPendingUploads,backupOfRole=" + role, pitrBackup.getPendingSegmentCount());
+		}
+
 		return statsWithRole;
 	}
 
@@ -0,0 +1,340 @@
+package fi.csc.chipster.rest.hibernate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import fi.csc.chipster.archive.BackupArchive;
+import fi.csc.chipster.archive.ChecksumPipe;
+import fi.csc.chipster.archive.GpgBackupUtils;
+import fi.csc.chipster.archive.InfoLine;
+import fi.csc.chipster.rest.ChipsterS3Client;
+import fi.csc.chipster.rest.Config;
+import fi.csc.chipster.rest.ProcessUtils;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/**
+ * Base backups and continuous WAL archival for point-in-time restore
+ *
+ * Instead of pg_dump, the scheduled backup takes a base backup with
+ * pg_basebackup. It's packaged and uploaded like the dumps, so the backup
+ * rotation and archive handle it in the same way.
+ *
+ * In between, pg_receivewal streams the WAL from the server through a
+ * replication slot. Completed WAL segments are compressed, encrypted and
+ * uploaded one by one to {role}-db-wal/. The base backup and the WAL after it
+ * can restore the database to any point in time with DbPitrRestore.
+ *
+ * The db user needs the REPLICATION attribute and pg_hba.conf must allow its
+ * replication connections.
+ */
+public class DbPitrBackup {
+
+	private final static Logger logger = LogManager.getLogger();
+
+	public static final String WAL_OBJECT_NAME_PART = "-db-wal/";
+	public static final String WAL_INFO_POSTFIX = ".info";
+	public static final String BASE_BACKUP_POSTFIX = ".base.tar";
+
+	// keep the WAL a bit longer than the oldest base backup, in case the clocks of
+	// the S3 and this server differ
+	private static final long WAL_PRUNE_MARGIN_HOURS = 1;
+
+	private static final long RESTART_DELAY_SECONDS = 10;
+
+	private String role;
+	private String url;
+	private String user;
+	private String password;
+	private Path walDir;
+	private ChipsterS3Client s3Client;
+	private String bucket;
+	private String gpgRecipient;
+	private String gpgPassphrase;
+	private Config config;
+
+	private ScheduledExecutorService executor;
+	private Process receiveProcess;
+	private volatile boolean closed = false;
+
+	public DbPitrBackup(Config config, String role, String url, String user, String password, Path walDir,
+			ChipsterS3Client s3Client, String bucket, String gpgRecipient, String gpgPassphrase) {
+		this.config = config;
+		this.role = role;
+		this.url = url;
+		this.user = user;
+		this.password = password;
+		this.walDir = walDir;
+		this.s3Client = s3Client;
+		this.bucket = bucket;
+		this.gpgRecipient = gpgRecipient;
+		this.gpgPassphrase = gpgPassphrase;
+	}
+
+	public static String getWalPrefix(String role) {
+		return role + WAL_OBJECT_NAME_PART;
+	}
+
+	public static String getSlotName(String role) {
+		return "chipster_" + role.replace("-", "_");
+	}
+
+	/**
+	 * Start streaming WAL and upload completed segments every uploadInterval
+	 *
+	 * @param uploadIntervalSeconds
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void start(long uploadIntervalSeconds) throws IOException, InterruptedException {
+
+		Files.createDirectories(walDir);
+
+		// the slot makes the server keep the WAL until it has been received, also
+		// when this process is not running
+		DbBackup.runPostgres(null, null, url, user, password, true, "pg_receivewal", "--create-slot",
+				"--if-not-exists", "--slot=" + getSlotName(role));
+
+		executor = Executors.newScheduledThreadPool(2);
+
+		executor.submit(() -> {
+			while (!closed) {
+				try {
+					receiveWal();
+				} catch (IOException | RuntimeException e) {
+					logger.error(role + " pg_receivewal failed", e);
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (!closed) {
+					logger.warn(role + " pg_receivewal stopped, restart in " + RESTART_DELAY_SECONDS + " seconds");
+					try {
+						Thread.sleep(RESTART_DELAY_SECONDS * 1000);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		});
+
+		executor.scheduleWithFixedDelay(() -> {
+			try {
+				uploadCompletedSegments();
+			} catch (IOException | InterruptedException | RuntimeException e) {
+				logger.error(role + " wal upload failed", e);
+			}
+		}, uploadIntervalSeconds, uploadIntervalSeconds, TimeUnit.SECONDS);
+
+		logger.info(role + " wal archival started");
+	}
+
+	private void receiveWal() throws IOException, InterruptedException {
+
+		List<String> cmd = new ArrayList<>(Arrays.asList(ProcessUtils.getPath("pg_receivewal"),
+				"--directory=" + walDir, "--slot=" + getSlotName(role), "--no-password",
+				"--dbname=" + url.replace("jdbc:", ""), "--username=" + user));
+
+		ProcessBuilder pb = new ProcessBuilder(cmd);
+		pb.environment().put("PGPASSWORD", password);
+		pb.redirectErrorStream(true);
+
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			receiveProcess = pb.start();
+		}
+
+		ProcessUtils.readLines(receiveProcess.getInputStream(), line -> logger.info("pg_receivewal: " + line))
+				.join();
+
+		int exitCode = receiveProcess.waitFor();
+		if (!closed) {
+			throw new RuntimeException("pg_receivewal exited with code " + exitCode);
+		}
+	}
+
+	/**
+	 * Upload the WAL segments that pg_receivewal has completed
+	 *
+	 * Segments are uploaded in order and deleted after the upload. The sizes and
+	 * checksums of the segment and its package are uploaded after each package in
+	 * a separate info object, so the info exists only for complete uploads.
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public synchronized void uploadCompletedSegments() throws IOException, InterruptedException {
+
+		for (Path segment : getCompletedSegments()) {
+
+			String segmentName = segment.getFileName().toString();
+			String packageName = getPackageName(segmentName);
+			Path packagePath = segment.resolveSibling(segmentName + ".package");
+			Path infoPath = segment.resolveSibling(segmentName + ".package" + WAL_INFO_POSTFIX);
+
+			Map<String, String> env = new HashMap<String, String>();
+			String cmd = GpgBackupUtils.getCompressAndEncryptCommand(gpgRecipient, gpgPassphrase, config, env);
+			ChecksumPipe checksums = ChecksumPipe.run(segment, packagePath, env, "bash", "-c", cmd);
+
+			InfoLine info = new InfoLine(Path.of(segmentName), checksums.getInputSize(), checksums.getInputSha512(),
+					Path.of(packageName), checksums.getOutputSize(), checksums.getOutputSha512(), getWalPrefix(role));
+			Files.write(infoPath, List.of(info.toLine()));
+
+			s3Client.uploadFile(bucket, getWalPrefix(role) + packageName, packagePath);
+			s3Client.uploadFile(bucket, getWalPrefix(role) + segmentName + WAL_INFO_POSTFIX, infoPath);
+
+			Files.delete(infoPath);
+			Files.delete(packagePath);
+			Files.delete(segment);
+
+			logger.info(role + " wal segment " + segment.getFileName() + " uploaded");
+		}
+	}
+
+	private List<Path> getCompletedSegments() throws IOException {
+		if (!Files.exists(walDir)) {
+			return new ArrayList<>();
+		}
+		try (Stream<Path> files = Files.list(walDir)) {
+			return files
+					// the current segment is still being written
+					.filter(file -> !file.getFileName().toString().endsWith(".partial"))
+					.filter(file -> !file.getFileName().toString().endsWith(".package"))
+					.filter(file -> !file.getFileName().toString().endsWith(".package" + WAL_INFO_POSTFIX))
+					.sorted()
+					.collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * @return number of the completed WAL segments that haven't been uploaded yet
+	 */
+	public int getPendingSegmentCount() {
+		try {
+			return getCompletedSegments().size();
+		} catch (IOException e) {
+			logger.warn("failed to list " + walDir + ": " + e.getMessage());
+			return -1;
+		}
+	}
+
+	private String getPackageName(String fileName) {
+		if (gpgRecipient != null || gpgPassphrase != null) {
+			return GpgBackupUtils.getPackageGpgPath(Path.of(fileName)).toString();
+		}
+		return GpgBackupUtils.getPackageLz4Path(Path.of(fileName)).toString();
+	}
+
+	/**
+	 * Take a base backup and upload it like the db dumps
+	 *
+	 * @param backupDir  empty directory for the temporary files
+	 * @param backupName
+	 * @return size of the base backup before compression
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public long baseBackup(Path backupDir, String backupName) throws IOException, InterruptedException {
+
+		Path baseDir = backupDir.resolve("base");
+		Path backupFile = backupDir.resolve(backupName + BASE_BACKUP_POSTFIX);
+
+		logger.info("save     " + role + " db base backup to " + backupFile.toFile().getAbsolutePath());
+
+		// tar format makes it a single file. The WAL needed to make it consistent is
+		// included
+		DbBackup.runPostgres(null, null, url, user, password, true, "pg_basebackup", "--pgdata=" + baseDir,
+				"--format=tar", "--wal-method=fetch", "--checkpoint=fast", "--no-password");
+
+		Files.move(baseDir.resolve("base.tar"), backupFile);
+		FileUtils.deleteDirectory(baseDir.toFile());
+
+		return uploadBaseBackup(backupDir, backupName);
+	}
+
+	/**
+	 * Package and upload the base backup tar file from the backupDir
+	 *
+	 * @return size of the base backup before compression
+	 */
+	long uploadBaseBackup(Path backupDir, String backupName) throws IOException, InterruptedException {
+
+		Path backupFile = backupDir.resolve(backupName + BASE_BACKUP_POSTFIX);
+		Path backupInfoPath = backupDir.resolve(BackupArchive.BACKUP_INFO);
+
+		long size = Files.size(backupFile);
+
+		GpgBackupUtils.backupFileAsTar(backupName, backupDir, backupFile.getFileName(), backupDir, s3Client, bucket,
+				backupName, backupInfoPath, gpgRecipient, gpgPassphrase, config);
+		GpgBackupUtils.uploadBackupInfo(s3Client, bucket, backupName, backupInfoPath);
+
+		return size;
+	}
+
+	/**
+	 * Delete the WAL segments that are older than the oldest base backup in S3
+	 *
+	 * Older segments are not needed, because the restore starts from a base
+	 * backup.
+	 *
+	 * @param backupPrefix
+	 */
+	public void pruneWal(String backupPrefix) {
+
+		List<S3Object> objects = s3Client.getObjects(bucket);
+
+		List<Instant> baseBackups = BackupRotation2.parse(objects.stream()
+				.map(o -> o.key())
+				.filter(key -> key.startsWith(backupPrefix) && key.endsWith("/" + BackupArchive.BACKUP_INFO))
+				.map(key -> key.substring(0, key.indexOf("/")))
+				.collect(Collectors.toList()), backupPrefix, name -> name)
+				.keySet().stream().collect(Collectors.toList());
+
+		if (baseBackups.isEmpty()) {
+			return;
+		}
+
+		Instant limit = baseBackups.get(0).minus(WAL_PRUNE_MARGIN_HOURS, ChronoUnit.HOURS);
+
+		List<String> oldSegments = objects.stream()
+				.filter(o -> o.key().startsWith(getWalPrefix(role)))
+				.filter(o -> o.lastModified() != null && o.lastModified().isBefore(limit))
+				.map(o -> o.key())
+				.collect(Collectors.toList());
+
+		logger.info("delete " + oldSegments.size() + " " + role + " wal segments older than " + limit);
+
+		for (String key : oldSegments) {
+			s3Client.deleteObject(bucket, key);
+		}
+	}
+
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			if (receiveProcess != null) {
+				receiveProcess.destroy();
+			}
+		}
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,425 @@
+package fi.csc.chipster.rest.hibernate;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import fi.csc.chipster.archive.ArchiveException;
+import fi.csc.chipster.archive.BackupArchive;
+import fi.csc.chipster.archive.ChecksumPipe;
+import fi.csc.chipster.archive.GpgBackupUtils;
+import fi.csc.chipster.archive.GpgBackupUtils.BackupTask;
+import fi.csc.chipster.archive.InfoLine;
+import fi.csc.chipster.rest.ChipsterS3Client;
+import fi.csc.chipster.rest.Config;
+import fi.csc.chipster.rest.ProcessUtils;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/**
+ * Prepare a PostgreSQL data directory for point-in-time recovery
+ *
+ * The latest base backup before the target time is extracted to the data
+ * directory and the WAL segments after it are downloaded next to it. The
+ * recovery settings are written to postgresql.auto.conf, so that the database
+ * replays the WAL until the target time when it's started the next time.
+ */
+public class DbPitrRestore {
+
+	private final static Logger logger = LogManager.getLogger();
+
+	private static final String START_WAL_LINE = "START WAL LOCATION:";
+
+	private static final long DEFAULT_WAL_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	// the WAL upload may be behind the db, e.g. because of the upload interval
+	private static final long WAL_DOWNLOAD_MARGIN_HOURS = 1;
+
+	private static final DateTimeFormatter POSTGRES_TIMESTAMP = DateTimeFormatter
+			.ofPattern("yyyy-MM-dd HH:mm:ss.SSSSSSxxx").withZone(ZoneOffset.UTC);
+
+	private ChipsterS3Client s3Client;
+	private String bucket;
+	private String gpgPassphrase;
+	private Config config;
+
+	/**
+	 * @param s3Client
+	 * @param bucket
+	 * @param gpgPassphrase passphrase of symmetric encryption or null. The private
+	 *                      key of asymmetric encryption must be imported in gpg.
+	 * @param config
+	 */
+	public DbPitrRestore(ChipsterS3Client s3Client, String bucket, String gpgPassphrase, Config config) {
+		this.s3Client = s3Client;
+		this.bucket = bucket;
+		this.gpgPassphrase = gpgPassphrase;
+		this.config = config;
+	}
+
+	/**
+	 * @param role
+	 * @param targetTime time to recover to or null to replay all available WAL
+	 * @param dataDir    new data directory, must not exist
+	 * @param walDir     directory for the WAL segments, needed until the recovery
+	 *                   has completed
+	 * @param workDir    directory for the temporary files
+	 * @return name of the base backup
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws ArchiveException
+	 */
+	public String restore(String role, Instant targetTime, Path dataDir, Path walDir, Path workDir)
+			throws IOException, InterruptedException, ArchiveException {
+
+		if (Files.exists(dataDir)) {
+			throw new IllegalArgumentException("data directory " + dataDir + " exists already");
+		}
+
+		List<S3Object> objects = s3Client.getObjects(bucket);
+		String backupPrefix = role + DbBackup.BACKUP_OBJECT_NAME_PART;
+
+		NavigableMap<Instant, String> backups = BackupRotation2.parse(objects.stream()
+				.map(o -> o.key())
+				.filter(key -> key.startsWith(backupPrefix) && key.endsWith("/" + BackupArchive.BACKUP_INFO))
+				.map(key -> key.substring(0, key.indexOf("/")))
+				.collect(Collectors.toList()), backupPrefix, name -> name);
+
+		if (targetTime != null) {
+			backups = backups.headMap(targetTime, true);
+		}
+
+		Files.createDirectories(workDir);
+
+		// the same prefix has also the pg_dump backups from the time before the
+		// point-in-time recovery was enabled
+		String backupName = null;
+		InfoLine baseInfo = null;
+		for (String name : backups.descendingMap().values()) {
+			baseInfo = GpgBackupUtils
+					.infoFileToMap(s3Client, bucket, name + "/" + BackupArchive.BACKUP_INFO, workDir).values()
+					.stream()
+					.filter(info -> info.getPath().toString().endsWith(DbPitrBackup.BASE_BACKUP_POSTFIX))
+					.findAny().orElse(null);
+
+			if (baseInfo != null) {
+				backupName = name;
+				break;
+			}
+			logger.info(name + " is not a base backup");
+		}
+
+		if (backupName == null) {
+			throw new IllegalArgumentException("no base backups of " + role + " found before " + targetTime);
+		}
+
+		logger.info("restore base backup " + backupName);
+
+		Path baseTar = downloadBaseBackup(objects, backupName, baseInfo, workDir);
+
+		Files.createDirectories(dataDir);
+		// postgres refuses to start if others have access
+		Files.setPosixFilePermissions(dataDir, PosixFilePermissions.fromString("rwx------"));
+		ProcessUtils.run(null, null, "tar", "-xf", baseTar.toString(), "--directory", dataDir.toString());
+		Files.delete(baseTar);
+
+		String startWal = getStartWal(dataDir);
+		logger.info("base backup starts from wal segment " + startWal);
+
+		downloadWal(objects, role, startWal, targetTime, dataDir, walDir, workDir);
+
+		writeRecoveryConf(dataDir, walDir, targetTime);
+
+		return backupName;
+	}
+
+	private Path downloadBaseBackup(List<S3Object> objects, String backupName, InfoLine info, Path workDir)
+			throws IOException, InterruptedException {
+
+		String tarKey = objects.stream()
+				.map(o -> o.key())
+				.filter(key -> key.startsWith(backupName + "/") && key.endsWith(".tar"))
+				.findAny()
+				.orElseThrow(() -> new IllegalArgumentException("tar file of " + backupName + " not found"));
+
+		Path tarPath = workDir.resolve(backupName + ".tar");
+		logger.info("download " + bucket + "/" + tarKey);
+		s3Client.downloadFile(bucket, tarKey, tarPath.toFile());
+
+		ProcessUtils.run(null, null, "tar", "-xf", tarPath.toString(), "--directory", workDir.toString());
+		Files.delete(tarPath);
+
+		Path packagePath = workDir.resolve(info.getGpgPath());
+		Path baseTar = workDir.resolve(info.getPath());
+
+		Map<String, String> env = new HashMap<String, String>();
+		String cmd = GpgBackupUtils.getDecryptAndDecompressCommand(packagePath.toString().endsWith(".gpg"),
+				gpgPassphrase, config, env);
+		ChecksumPipe checksums = ChecksumPipe.run(packagePath, baseTar, env, "bash", "-c", cmd);
+		Files.delete(packagePath);
+
+		if (checksums.getOutputSize() != info.getSize() || !checksums.getOutputSha512().equals(info.getSha512())) {
+			throw new IOException("checksum of the base backup " + info.getPath() + " does not match");
+		}
+
+		return baseTar;
+	}
+
+	/**
+	 * Find the first WAL segment that the base backup needs
+	 *
+	 * For example "START WAL LOCATION: 0/2000028 (file 000000010000000000000002)"
+	 */
+	static String getStartWal(Path dataDir) throws IOException {
+		for (String line : Files.readAllLines(dataDir.resolve("backup_label"))) {
+			if (line.startsWith(START_WAL_LINE)) {
+				return line.substring(line.indexOf("(file ") + "(file ".length(), line.indexOf(")"));
+			}
+		}
+		throw new IOException("start wal location not found from backup_label");
+	}
+
+	/**
+	 * Download the WAL segments from the start of the base backup
+	 *
+	 * The segments are downloaded in parallel and verified against their info
+	 * objects. The download stops at the first segment that was uploaded after the
+	 * target time and a margin, because the later segments cannot contain anything
+	 * before the target, unless the WAL upload was behind the db more than the
+	 * margin.
+	 *
+	 * @throws ArchiveException if a segment between the base backup and the target
+	 *                          is missing
+	 */
+	private void downloadWal(List<S3Object> objects, String role, String startWal, Instant targetTime,
+			Path dataDir, Path walDir, Path workDir) throws IOException, InterruptedException, ArchiveException {
+
+		String walPrefix = DbPitrBackup.getWalPrefix(role);
+		Files.createDirectories(walDir);
+
+		List<S3Object> selected = selectWal(objects, walPrefix, startWal, getSegmentsPerLog(dataDir, startWal),
+				targetTime);
+
+		logger.info("download " + selected.size() + " wal segments");
+
+		List<BackupTask> tasks = new ArrayList<>();
+		for (S3Object object : selected) {
+			tasks.add(() -> downloadSegment(object.key().substring(walPrefix.length()), walPrefix, walDir, workDir));
+		}
+		GpgBackupUtils.runInParallel(tasks, config.getInt(BackupArchive.CONF_BACKUP_ARCHIVE_THREADS));
+	}
+
+	/**
+	 * Choose the WAL objects to download
+	 *
+	 * @param objects        all objects in the bucket
+	 * @param walPrefix
+	 * @param startWal       the first segment that the base backup needs
+	 * @param segmentsPerLog depends on the WAL segment size
+	 * @param targetTime     time to recover to or null for all WAL
+	 * @return the timeline history files and the segments from the startWal on
+	 * @throws ArchiveException if a segment is missing
+	 */
+	static List<S3Object> selectWal(List<S3Object> objects, String walPrefix, String startWal, long segmentsPerLog,
+			Instant targetTime) throws ArchiveException {
+
+		// the info is uploaded after the package, so segments without it are incomplete
+		Set<String> infos = objects.stream()
+				.map(o -> o.key())
+				.filter(key -> key.startsWith(walPrefix) && key.endsWith(DbPitrBackup.WAL_INFO_POSTFIX))
+				.map(key -> key.substring(walPrefix.length(), key.length() - DbPitrBackup.WAL_INFO_POSTFIX.length()))
+				.collect(Collectors.toSet());
+
+		long startNumber = getSegmentNumber(startWal, segmentsPerLog);
+
+		List<S3Object> histories = new ArrayList<>();
+		List<S3Object> segments = new ArrayList<>();
+		for (S3Object object : objects) {
+			if (!object.key().startsWith(walPrefix) || object.key().endsWith(DbPitrBackup.WAL_INFO_POSTFIX)) {
+				continue;
+			}
+			String segment = getSegmentName(object.key().substring(walPrefix.length()));
+
+			if (!infos.contains(segment)) {
+				logger.warn("upload of wal segment " + segment + " is incomplete");
+			} else if (segment.endsWith(".history")) {
+				// timeline history files are needed if the server has been promoted
+				histories.add(object);
+			} else if (segment.substring(0, 8).compareTo(startWal.substring(0, 8)) >= 0
+					&& getSegmentNumber(segment, segmentsPerLog) >= startNumber) {
+				segments.add(object);
+			}
+		}
+
+		// in the order of the WAL, the segments of a new timeline continue from the
+		// segment where the old timeline ended
+		segments.sort(Comparator
+				.comparing((S3Object o) -> getSegmentNumber(getSegmentName(o.key().substring(walPrefix.length())),
+						segmentsPerLog))
+				.thenComparing(o -> o.key()));
+
+		Instant stopTime = targetTime == null ? null : targetTime.plus(WAL_DOWNLOAD_MARGIN_HOURS, ChronoUnit.HOURS);
+
+		List<S3Object> selected = new ArrayList<>(histories);
+		long expectedNumber = startNumber;
+		String previous = startWal;
+		for (S3Object object : segments) {
+			String segment = getSegmentName(object.key().substring(walPrefix.length()));
+			long number = getSegmentNumber(segment, segmentsPerLog);
+
+			if (number > expectedNumber) {
+				throw new ArchiveException("wal segments are missing between " + previous + " and " + segment);
+			}
+			selected.add(object);
+			expectedNumber = number + 1;
+			previous = segment;
+
+			if (stopTime != null && object.lastModified() != null && object.lastModified().isAfter(stopTime)) {
+				break;
+			}
+		}
+
+		if (expectedNumber == startNumber) {
+			throw new ArchiveException("the first wal segment " + startWal + " of the base backup is missing");
+		}
+
+		return selected;
+	}
+
+	/**
+	 * Download, decrypt and verify one WAL segment
+	 */
+	private void downloadSegment(String packageName, String walPrefix, Path walDir, Path workDir)
+			throws IOException, InterruptedException {
+
+		String segment = getSegmentName(packageName);
+		Path infoPath = workDir.resolve(segment + DbPitrBackup.WAL_INFO_POSTFIX);
+		Path packagePath = workDir.resolve(packageName);
+		Path segmentPath = workDir.resolve(segment);
+
+		s3Client.downloadFile(bucket, walPrefix + segment + DbPitrBackup.WAL_INFO_POSTFIX, infoPath.toFile());
+		InfoLine info = InfoLine.parseLine(Files.readAllLines(infoPath).get(0));
+		Files.delete(infoPath);
+
+		s3Client.downloadFile(bucket, walPrefix + packageName, packagePath.toFile());
+
+		// check the package first, because the decryption or decompression would fail
+		// with a less clear error
+		if (Files.size(packagePath) != info.getGpgSize()
+				|| !ChecksumPipe.sha512(packagePath).equals(info.getGpgSha512())) {
+			Files.delete(packagePath);
+			throw new IOException("checksum of the wal package " + packageName + " does not match");
+		}
+
+		Map<String, String> env = new HashMap<String, String>();
+		String cmd = GpgBackupUtils.getDecryptAndDecompressCommand(packageName.endsWith(".gpg"), gpgPassphrase,
+				config, env);
+		ChecksumPipe checksums = ChecksumPipe.run(packagePath, segmentPath, env, "bash", "-c", cmd);
+		Files.delete(packagePath);
+
+		if (checksums.getOutputSize() != info.getSize() || !checksums.getOutputSha512().equals(info.getSha512())) {
+			Files.delete(segmentPath);
+			throw new IOException("checksum of the wal segment " + segment + " does not match");
+		}
+
+		Files.move(segmentPath, walDir.resolve(segment), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * WAL segment names are TIMELINE + LOG + SEGMENT in hex, e.g.
+	 * 000000010000000A000000FF is followed by 000000010000000B00000000 with the
+	 * default segment size
+	 */
+	static long getSegmentNumber(String segment, long segmentsPerLog) {
+		long log = Long.parseLong(segment.substring(8, 16), 16);
+		long seg = Long.parseLong(segment.substring(16, 24), 16);
+		return log * segmentsPerLog + seg;
+	}
+
+	/**
+	 * The base backup has the first WAL segment, which tells the segment size
+	 */
+	private static long getSegmentsPerLog(Path dataDir, String startWal) throws IOException {
+		Path segment = dataDir.resolve("pg_wal").resolve(startWal);
+		long segmentSize = Files.exists(segment) ? Files.size(segment) : DEFAULT_WAL_SEGMENT_SIZE;
+		return 0x100000000L / segmentSize;
+	}
+
+	private static String getSegmentName(String packageName) {
+		return packageName.replaceAll("\\.lz4(\\.gpg)?$", "");
+	}
+
+	private static void writeRecoveryConf(Path dataDir, Path walDir, Instant targetTime) throws IOException {
+
+		List<String> lines = new ArrayList<>();
+		lines.add("");
+		lines.add("# point-in-time recovery");
+		lines.add("restore_command = 'cp \"" + walDir.toAbsolutePath() + "/%f\" \"%p\"'");
+		if (targetTime != null) {
+			lines.add("recovery_target_time = '" + POSTGRES_TIMESTAMP.format(targetTime) + "'");
+		}
+		lines.add("recovery_target_action = 'promote'");
+
+		Files.write(dataDir.resolve("postgresql.auto.conf"), lines, Charset.defaultCharset(),
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+
+		Files.createFile(dataDir.resolve("recovery.signal"));
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException, ArchiveException {
+
+		if (args.length < 3) {
+			System.out.println("usage: DbPitrRestore <role> <target-time|latest> <data-dir>\n"
+					+ "  Prepares a new PostgreSQL data directory, which recovers the db to the target time\n"
+					+ "  (e.g. 2024-05-01T12:00:00Z) when the postgres is started in it");
+			System.exit(1);
+		}
+
+		Config config = new Config();
+		String role = args[0];
+		Instant targetTime = "latest".equals(args[1]) ? null : Instant.parse(args[1]);
+		Path dataDir = Paths.get(args[2]);
+
+		ChipsterS3Client s3Client = GpgBackupUtils.getS3Client(config, role);
+		String bucket = GpgBackupUtils.getBackupBucket(config, role);
+		String gpgPassphrase = config.getString(GpgBackupUtils.CONF_BACKUP_GPG_PASSPHRASE, role);
+		if (gpgPassphrase.isBlank()) {
+			gpgPassphrase = null;
+		}
+
+		Path walDir = dataDir.resolveSibling(dataDir.getFileName() + "-wal");
+		Path workDir = dataDir.resolveSibling(dataDir.getFileName() + "-restore-tmp");
+
+		String backupName = new DbPitrRestore(s3Client, bucket, gpgPassphrase, config).restore(role, targetTime,
+				dataDir, walDir, workDir);
+
+		FileUtils.deleteDirectory(workDir.toFile());
+		s3Client.close();
+
+		System.out.println("base backup:    " + backupName);
+		System.out.println("data directory: " + dataDir.toAbsolutePath());
+		System.out.println("wal directory:  " + walDir.toAbsolutePath());
+		System.out.println("Start postgres in the data directory to replay the wal. The wal directory can be "
+				+ "removed after the recovery has completed.");
+	}
+}
@@ -42,6 +42,9 @@ public class HibernateUtil {
 	private static final String CONF_DB_SHOW_SQL = "db-show-sql";
 	private static final String CONF_DB_DIALECT = "db-dialect";
 	private static final String CONF_DB_DRIVER = "db-driver";
+	private static final String CONF_DB_JDBC_BATCH_SIZE = "db-jdbc-batch-size";
+	private static final String CONF_DB_ORDER_INSERTS = "db-order-inserts";
+	private static final String CONF_DB_ORDER_UPDATES = "db-order-updates";
 
 	public static final String CONF_DB_PASS = "db-pass";
 	public static final String CONF_DB_USER = "db-user";
@@ -163,6 +166,16 @@ public class HibernateUtil {
 		hibernateConf.setProperty("hibernate.c3p0.acquireRetryAttempts", "1"); // throw on connection errors immediately
 																				// in startup
 		hibernateConf.setProperty("hibernate.hbm2ddl.auto", hbm2ddlAuto);
+		/*
+		 * Send inserts and updates to the db in JDBC batches, e.g. when many datasets
+		 * are created in one request. All entities have application-assigned UUIDs, so
+		 * Hibernate doesn't have to wait for the db to generate the ids, which would
+		 * disable the batching of inserts. Ordering groups the statements by entity,
+		 * because a batch can have only one kind of statement.
+		 */
+		hibernateConf.setProperty(Environment.STATEMENT_BATCH_SIZE, config.getString(CONF_DB_JDBC_BATCH_SIZE, role));
+		hibernateConf.setProperty(Environment.ORDER_INSERTS, config.getString(CONF_DB_ORDER_INSERTS, role));
+		hibernateConf.setProperty(Environment.ORDER_UPDATES, config.getString(CONF_DB_ORDER_UPDATES, role));
 		// following two for debugging connection leaks
 		// hibernateConf.setProperty("hibernate.c3p0.debugUnreturnedConnectionStackTraces",
 		// "true");
@@ -0,0 +1,150 @@
+package fi.csc.chipster.rest.hibernate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.query.SelectionQuery;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import fi.csc.chipster.rest.RestUtils;
+import fi.csc.chipster.rest.hibernate.HibernateUtil.HibernateRunnable;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+
+/**
+ * Stream large query results to the client as a json array
+ *
+ * Usually the resource methods return lists, which are serialized after the
+ * transaction has been committed in HibernateResponseFilter, so the whole
+ * result has to fit in memory. Here the query is run in its own read-only
+ * transaction only when the response is written. The rows are read with a
+ * server-side cursor and removed from the Hibernate session after they have
+ * been written, so the memory usage doesn't depend on the number of rows.
+ *
+ * If there is an error in the middle of the stream, the response is already
+ * committed with status 200 and the client sees only an incomplete json array.
+ */
+public class StreamingJsonResponse {
+
+	private static Logger logger = LogManager.getLogger();
+
+	// rows fetched from the db at a time and kept in the Hibernate session
+	public static final int FETCH_SIZE = 1000;
+
+	/**
+	 * Convert a row to json
+	 *
+	 * @param <T>
+	 */
+	public interface RowWriter<T> {
+		public void write(T row, JsonGenerator jsonGenerator) throws IOException;
+	}
+
+	/**
+	 * Stream the query results as they are
+	 *
+	 * @param <T>
+	 * @param hibernate
+	 * @param query     creates the query in the given Hibernate session
+	 * @return
+	 */
+	public static <T> Response ok(HibernateUtil hibernate, Function<org.hibernate.Session, SelectionQuery<T>> query) {
+		return ok(hibernate, query, (row, jsonGenerator) -> jsonGenerator.writeObject(row));
+	}
+
+	/**
+	 * Stream the query results converting each row with the rowWriter
+	 *
+	 * The Hibernate session is bound during the streaming, so the rowWriter can
+	 * make additional queries with HibernateUtil.session().
+	 *
+	 * @param <T>
+	 * @param hibernate
+	 * @param query     creates the query in the given Hibernate session
+	 * @param rowWriter
+	 * @return
+	 */
+	public static <T> Response ok(HibernateUtil hibernate, Function<org.hibernate.Session, SelectionQuery<T>> query,
+			RowWriter<T> rowWriter) {
+
+		StreamingOutput stream = new StreamingOutput() {
+			@Override
+			public void write(final OutputStream output) throws IOException {
+
+				Long count = hibernate.runInTransaction(new HibernateRunnable<Long>() {
+					@Override
+					public Long run(org.hibernate.Session hibernateSession) {
+
+						SelectionQuery<T> selectionQuery = query.apply(hibernateSession);
+						// use a cursor instead of reading the whole result to memory
+						selectionQuery.setFetchSize(FETCH_SIZE);
+						selectionQuery.setReadOnly(true);
+
+						try (Stream<T> rows = selectionQuery.stream()) {
+							return writeJsonArray(rows.iterator(), output, rowWriter, hibernateSession::clear);
+						} catch (IOException e) {
+							// rollback the transaction
+							throw new UncheckedIOException(e);
+						}
+					}
+				});
+
+				// runInTransaction() has logged the error already
+				if (count == null) {
+					throw new IOException("failed to stream the query results");
+				}
+
+				logger.debug("streamed " + count + " rows");
+			}
+		};
+
+		return Response.ok(stream).type(MediaType.APPLICATION_JSON).build();
+	}
+
+	/**
+	 * Write the rows to the output stream as a json array
+	 *
+	 * @param <T>
+	 * @param rows
+	 * @param output
+	 * @param rowWriter
+	 * @param releaseRows called after each FETCH_SIZE rows to release the rows
+	 *                    that have been written already
+	 * @return number of rows
+	 * @throws IOException
+	 */
+	static <T> long writeJsonArray(Iterator<T> rows, OutputStream output, RowWriter<T> rowWriter,
+			Runnable releaseRows) throws IOException {
+
+		long count = 0;
+
+		try (JsonGenerator jg = RestUtils.getObjectMapper(false).getFactory().createGenerator(output,
+				JsonEncoding.UTF8)) {
+
+			jg.writeStartArray();
+
+			while (rows.hasNext()) {
+				rowWriter.write(rows.next(), jg);
+				count++;
+
+				if (count % FETCH_SIZE == 0) {
+					jg.flush();
+					releaseRows.run();
+				}
+			}
+
+			jg.writeEndArray();
+		}
+
+		return count;
+	}
+}
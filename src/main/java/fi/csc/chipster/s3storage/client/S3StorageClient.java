@@ -506,6 +506,23 @@ public class S3StorageClient implements StorageClient {
 
 	@Override
 	public InputStream download(File file, String range) {
+
+		if (range != null && range.matches("bytes=[0-9]+-")) {
+			/*
+			 * Continue an interrupted download (e.g. bytes=1000-). The file has to be
+			 * decrypted from the beginning anyway, but at least the client doesn't have
+			 * to receive the first part again.
+			 */
+			long start = Long.parseLong(range.substring("bytes=".length(), range.length() - 1));
+			InputStream fileStream = downloadAndDecrypt(file, null);
+			try {
+				fileStream.skipNBytes(start);
+			} catch (IOException e) {
+				throw new InternalServerErrorException("failed to skip to the start of the range", e);
+			}
+			return fileStream;
+		}
+
 		ByteRange byteRange = parseByteRange(range);
 
 		return downloadAndDecrypt(file, byteRange);
@@ -181,6 +181,8 @@ public class SessionDb implements ServerComponent {
 
 		RestUtils.waitForShutdown("session-db", service.getHttpServer());
 
+		service.sessionResource.close();
+		service.ruleTable.close();
 		hibernate.getSessionFactory().close();
 	}
 
@@ -191,6 +193,8 @@ public class SessionDb implements ServerComponent {
 	public void close() {
 		RestUtils.shutdown("session-db-admin", adminServer);
 		getPubSubServer().stop();
+		sessionResource.close();
+		ruleTable.close();
 		hibernate.getSessionFactory().close();
 		RestUtils.shutdown("session-db", httpServer);
 
@@ -1,5 +1,6 @@
 package fi.csc.chipster.sessiondb;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
 import java.util.stream.Collectors;
@@ -93,6 +94,20 @@ public class SessionDbAdminClient {
 		return RestMethods.getJson(getUsersQuotasTarget(userId));
 	}
 
+	// storage usage of users
+
+	/**
+	 * @return number of fixed counters
+	 * @throws RestException
+	 */
+	public int reconcileUserStorage() throws RestException {
+		@SuppressWarnings("unchecked")
+		HashMap<String, Object> result = RestMethods.postWithObjectResponse(
+				getSessionDbAdminTarget().path(SessionDbAdminResource.PATH_USERS_STORAGE_RECONCILE), null,
+				HashMap.class);
+		return (Integer) result.get("fixed");
+	}
+
 	// sessions for user
 	public String getSessionsForUser(String... userId) throws RestException {
 		return RestMethods.getJson(getUsersSessionsTarget(userId));
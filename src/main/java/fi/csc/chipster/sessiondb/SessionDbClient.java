@@ -299,6 +299,35 @@ public class SessionDbClient {
 		return id;
 	}
 
+	/**
+	 * Create datasets in one request
+	 * 
+	 * The datasetIds must be set already.
+	 * 
+	 * @param sessionId
+	 * @param datasets
+	 * @return
+	 * @throws RestException
+	 * @throws IOException
+	 */
+	public List<UUID> createDatasets(UUID sessionId, List<Dataset> datasets)
+			throws RestException, JsonParseException, JsonMappingException, IOException {
+
+		String json = RestMethods.postWithObjectResponse(getDatasetsTarget(sessionId).path(RestUtils.PATH_ARRAY),
+				datasets, String.class);
+		@SuppressWarnings("unchecked")
+		HashMap<String, Object> respObj = RestUtils.getObjectMapper(true).readValue(json, HashMap.class);
+		@SuppressWarnings("unchecked")
+		ArrayList<Map<String, String>> datasetListJson = (ArrayList<Map<String, String>>) respObj.get("datasets");
+
+		List<UUID> ids = datasetListJson.stream()
+				.map(o -> o.get("datasetId"))
+				.map(s -> UUID.fromString(s))
+				.collect(Collectors.toList());
+
+		return ids;
+	}
+
 	public Response updateDataset(UUID sessionId, Dataset dataset) throws RestException {
 		return RestMethods.put(getDatasetTarget(sessionId, dataset.getDatasetId()), dataset);
 	}
@@ -14,7 +14,6 @@ import fi.csc.chipster.auth.resource.AuthPrincipal;
 import fi.csc.chipster.rest.hibernate.HibernateUtil;
 import fi.csc.chipster.rest.hibernate.HibernateUtil.HibernateRunnable;
 import fi.csc.chipster.rest.websocket.ChipsterTopicConfig;
-import fi.csc.chipster.sessiondb.model.Session;
 import fi.csc.chipster.sessiondb.resource.SessionResource;
 
 public class SessionDbTopicConfig extends ChipsterTopicConfig {
@@ -83,9 +82,10 @@ public class SessionDbTopicConfig extends ChipsterTopicConfig {
 			@Override
 			public Boolean run(org.hibernate.Session hibernateSession) {
 				try {
-					Session session = sessionResource.getRuleTable().checkSessionAuthorization(principal.getToken(),
-							sessionId, false, hibernateSession, false);
-					return session != null;
+					// throws if not authorized
+					sessionResource.getRuleTable().checkSessionAccess(principal.getToken(), sessionId, false,
+							hibernateSession, false);
+					return true;
 				} catch (fi.csc.chipster.rest.exception.NotAuthorizedException
 						| jakarta.ws.rs.NotFoundException
 						| jakarta.ws.rs.ForbiddenException e) {
@@ -46,6 +46,10 @@ public class Job {
 	private String stateDetail;
 	private Long memoryUsage;
 	private Long storageUsage;
+	// milliseconds
+	private Long cpuTime;
+	private Long ioReadBytes;
+	private Long ioWriteBytes;
 	private Long memoryLimit;
 	private Integer cpuLimit;
 
@@ -246,6 +250,30 @@ public class Job {
 		this.storageUsage = storageUsage;
 	}
 
+	public Long getCpuTime() {
+		return cpuTime;
+	}
+
+	public void setCpuTime(Long cpuTime) {
+		this.cpuTime = cpuTime;
+	}
+
+	public Long getIoReadBytes() {
+		return ioReadBytes;
+	}
+
+	public void setIoReadBytes(Long ioReadBytes) {
+		this.ioReadBytes = ioReadBytes;
+	}
+
+	public Long getIoWriteBytes() {
+		return ioWriteBytes;
+	}
+
+	public void setIoWriteBytes(Long ioWriteBytes) {
+		this.ioWriteBytes = ioWriteBytes;
+	}
+
 	public Long getMemoryLimit() {
 		return memoryLimit;
 	}
@@ -0,0 +1,75 @@
+package fi.csc.chipster.sessiondb.resource;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import fi.csc.chipster.sessiondb.model.Rule;
+
+/**
+ * Bounded LRU cache of the Rules of each session for the authorization checks
+ *
+ * The cached Rules are detached copies without the session. RuleTable
+ * invalidates the session when its Rules are created or deleted, and again
+ * after the transaction has completed.
+ *
+ * A query that started before the invalidation may still return the old Rules.
+ * The generation counter makes sure those aren't put to the cache: the caller
+ * takes the generation before the query and the result is ignored if there has
+ * been any invalidations since.
+ *
+ * All methods are thread-safe.
+ */
+class RuleCache {
+
+	private final LinkedHashMap<UUID, List<Rule>> cache;
+	private long generation = 0;
+
+	RuleCache(int maxSize) {
+		// access order for LRU eviction
+		this.cache = new LinkedHashMap<UUID, List<Rule>>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<UUID, List<Rule>> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @param sessionId
+	 * @return Rules of the session or null if not cached
+	 */
+	synchronized List<Rule> get(UUID sessionId) {
+		return cache.get(sessionId);
+	}
+
+	/**
+	 * Take the generation before querying the db
+	 *
+	 * @return
+	 */
+	synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * @param sessionId
+	 * @param rules
+	 * @param queryGeneration the generation taken before the query
+	 */
+	synchronized void put(UUID sessionId, List<Rule> rules, long queryGeneration) {
+		if (queryGeneration == generation) {
+			cache.put(sessionId, rules);
+		}
+	}
+
+	synchronized void invalidate(UUID sessionId) {
+		generation++;
+		cache.remove(sessionId);
+	}
+
+	synchronized int size() {
+		return cache.size();
+	}
+}
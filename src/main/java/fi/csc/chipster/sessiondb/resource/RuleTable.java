@@ -1,9 +1,7 @@
 package fi.csc.chipster.sessiondb.resource;
 
-import java.io.IOException;
-import java.io.OutputStream;
-import java.math.BigDecimal;
 import java.security.Principal;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -12,12 +10,8 @@ import java.util.stream.Collectors;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.hibernate.ScrollMode;
-import org.hibernate.ScrollableResults;
-import org.hibernate.query.Query;
-
-import com.fasterxml.jackson.core.JsonEncoding;
-import com.fasterxml.jackson.core.JsonGenerator;
+import org.hibernate.BaseSessionEventListener;
+import org.hibernate.query.SelectionQuery;
 
 import fi.csc.chipster.auth.model.ChipsterToken;
 import fi.csc.chipster.auth.model.DatasetToken;
@@ -27,10 +21,9 @@ import fi.csc.chipster.auth.model.SessionToken.Access;
 import fi.csc.chipster.auth.model.UserToken;
 import fi.csc.chipster.auth.resource.AuthPrincipal;
 import fi.csc.chipster.rest.Config;
-import fi.csc.chipster.rest.RestUtils;
 import fi.csc.chipster.rest.exception.NotAuthorizedException;
 import fi.csc.chipster.rest.hibernate.HibernateUtil;
-import fi.csc.chipster.rest.hibernate.HibernateUtil.HibernateRunnable;
+import fi.csc.chipster.rest.hibernate.StreamingJsonResponse;
 import fi.csc.chipster.sessiondb.model.Dataset;
 import fi.csc.chipster.sessiondb.model.Rule;
 import fi.csc.chipster.sessiondb.model.Session;
@@ -41,10 +34,8 @@ import jakarta.persistence.criteria.JoinType;
 import jakarta.persistence.criteria.Root;
 import jakarta.ws.rs.ForbiddenException;
 import jakarta.ws.rs.NotFoundException;
-import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.SecurityContext;
-import jakarta.ws.rs.core.StreamingOutput;
 
 public class RuleTable {
 
@@ -61,12 +52,18 @@ public class RuleTable {
 	// map appId (chipster/mylly) to example session owner account for that app
 	private Map<String, String> restrictSharingToEveryone;
 
+	private RuleCache ruleCache;
+
+	private UserStorageTable userStorageTable;
+
 	public RuleTable(HibernateUtil hibernate) {
 		this.hibernate = hibernate;
 		this.config = new Config();
 		this.servicesAccounts = config.getServicePasswords().keySet();
 		this.restrictSharingToEveryone = config
 				.getConfigEntries(Config.KEY_SESSION_DB_RESTRICT_SHARING_TO_EVERYONE + "-");
+		this.ruleCache = new RuleCache(config.getInt(Config.KEY_SESSION_DB_RULE_CACHE_SIZE));
+		this.userStorageTable = new UserStorageTable(hibernate, config);
 	}
 
 	public Rule getRule(UUID ruleId, org.hibernate.Session hibernateSession) {
@@ -85,9 +82,29 @@ public class RuleTable {
 	 * @param hibernateSession
 	 */
 	public void delete(UUID sessionId, Rule rule, org.hibernate.Session hibernateSession) {
+		invalidate(sessionId, hibernateSession);
+		userStorageTable.ruleChanged(rule, sessionId, false, hibernateSession);
 		HibernateUtil.delete(rule, rule.getRuleId(), hibernateSession);
 	}
 
+	/**
+	 * Delete all Rules of the session from the database only
+	 * 
+	 * Use this only when the whole session is deleted. The caller is responsible
+	 * for publishing the WebSocket events and for updating the storage usage with
+	 * UserStorageTable.sessionDeleted() before the datasets are deleted.
+	 * 
+	 * @param sessionId
+	 * @param hibernateSession
+	 * @return number of deleted rules
+	 */
+	public int deleteRules(UUID sessionId, org.hibernate.Session hibernateSession) {
+		invalidate(sessionId, hibernateSession);
+		return hibernateSession.createMutationQuery("delete from Rule where session.sessionId=:sessionId")
+				.setParameter("sessionId", sessionId)
+				.executeUpdate();
+	}
+
 	public List<Rule> getRules(String username) {
 
 		List<Rule> rules = getRulesOwn(username);
@@ -127,24 +144,50 @@ public class RuleTable {
 		return getRulesOwn(EVERYONE);
 	}
 
-	List<Rule> getRulesOfEveryone(String exampleSessionOwner) {
-		return getRulesOfEveryone().stream().filter(r -> exampleSessionOwner.equals(r.getSharedBy()))
-				.collect(Collectors.toList());
-	}
-
 	public List<Rule> getRules(UUID sessionId) {
 		return hibernate.session().createQuery("from Rule where session.sessionId=:sessionId", Rule.class)
 				.setParameter("sessionId", sessionId).list();
 	}
 
+	/**
+	 * Query for all usernames, including EVERYONE
+	 * 
+	 * @param hibernateSession
+	 * @return
+	 */
+	SelectionQuery<String> getUsersQuery(org.hibernate.Session hibernateSession) {
+		return hibernateSession.createQuery("select distinct(username) from Rule", String.class);
+	}
+
+	/**
+	 * Query for the rules of the user, sessions fetched in the same query
+	 * 
+	 * @param username
+	 * @param sharedBy   return only rules shared by this user or null to return
+	 *                   all
+	 * @param hibernateSession
+	 * @return
+	 */
+	SelectionQuery<Rule> getRulesOwnQuery(String username, String sharedBy, org.hibernate.Session hibernateSession) {
+		if (sharedBy == null) {
+			return hibernateSession
+					.createQuery("from Rule r left join fetch r.session where r.username=:username", Rule.class)
+					.setParameter("username", username);
+		}
+		return hibernateSession
+				.createQuery("from Rule r left join fetch r.session where r.username=:username and r.sharedBy=:sharedBy",
+						Rule.class)
+				.setParameter("username", username)
+				.setParameter("sharedBy", sharedBy);
+	}
+
 	public List<Rule> getShares(String userIdString) {
 		return hibernate.session().createQuery("from Rule where sharedBy=:sharedBy", Rule.class)
 				.setParameter("sharedBy", userIdString).list();
 	}
 
 	List<String> getUsers() {
-		List<String> users = hibernate.session().createQuery("select distinct(username) from Rule", String.class)
-				.list();
+		List<String> users = getUsersQuery(hibernate.session()).list();
 
 		// everyone isn't a real user
 		users.remove(RuleTable.EVERYONE);
@@ -155,61 +198,17 @@ public class RuleTable {
 	/**
 	 * Stream the whole table as a json array
 	 * 
-	 * This is not used at the moment, but let's keep this as an example for now in
-	 * case we need to
-	 * stream through any of the larger tables in the future.
+	 * This is not used at the moment, but let's keep this as an example of
+	 * StreamingJsonResponse for now.
 	 * 
 	 * @return
 	 */
 	public Response getRules() {
-
-		StreamingOutput stream = new StreamingOutput() {
-			@Override
-			public void write(final OutputStream output) {
-				hibernate.runInTransaction(new HibernateRunnable<Void>() {
-					@Override
-					public Void run(org.hibernate.Session hibernateSession) {
-						try {
-
-							Query<Rule> query = hibernateSession.createQuery("from Rule", Rule.class);
-							query.setReadOnly(true);
-
-							ScrollableResults<Rule> results = query.scroll(ScrollMode.FORWARD_ONLY);
-
-							JsonGenerator jg = RestUtils.getObjectMapper(false).getFactory().createGenerator(output,
-									JsonEncoding.UTF8);
-							jg.writeStartArray();
-
-							// iterate over results
-							while (results.next()) {
-								// process row then release reference
-								Rule row = results.get();
-								jg.writeObject(row);
-								jg.flush();
-								// you may need to flush every now and then
-								// hibernate.session().flush();
-							}
-							results.close();
-
-							jg.writeEndArray();
-							jg.flush();
-							jg.close();
-						} catch (IOException e) {
-							e.printStackTrace();
-							logger.error(e);
-							// rollback the transaction
-							throw new RuntimeException(e);
-						}
-						return null;
-					}
-				});
-			}
-		};
-
-		return Response.ok().entity(stream).type(MediaType.APPLICATION_JSON).build();
+		return StreamingJsonResponse.ok(hibernate,
+				hibernateSession -> hibernateSession.createQuery("from Rule", Rule.class));
 	}
 
-	public Rule getRule(String username, Session session, org.hibernate.Session hibernateSession) {
+	private Rule getRule(String username, Collection<Rule> sessionRules) {
 
 		/*
 		 * Allow access for services
@@ -222,7 +221,7 @@ public class RuleTable {
 			return new Rule(username, true, null);
 		}
 
-		List<Rule> auths = session.getRules().stream()
+		List<Rule> auths = sessionRules.stream()
 				.filter(r -> username.equals(r.getUsername()) || EVERYONE.equals(r.getUsername()))
 				.collect(Collectors.toList());
 
@@ -250,7 +249,59 @@ public class RuleTable {
 	 */
 	public void save(Rule auth, org.hibernate.Session hibernateSession) {
 		logger.debug("save rule " + auth.getUsername());
+		invalidate(auth.getSession().getSessionId(), hibernateSession);
 		HibernateUtil.persist(auth, hibernateSession);
+		userStorageTable.ruleChanged(auth, auth.getSession().getSessionId(), true, hibernateSession);
+	}
+
+	/**
+	 * Remove the session from the rule cache now and after the transaction
+	 * 
+	 * Other threads may cache the old rules until this transaction is committed,
+	 * so the session is removed again when the transaction completes.
+	 * 
+	 * @param sessionId
+	 * @param hibernateSession
+	 */
+	private void invalidate(UUID sessionId, org.hibernate.Session hibernateSession) {
+		ruleCache.invalidate(sessionId);
+
+		hibernateSession.addEventListeners(new BaseSessionEventListener() {
+			@Override
+			public void transactionCompletion(boolean successful) {
+				ruleCache.invalidate(sessionId);
+			}
+		});
+	}
+
+	/**
+	 * Get the rules of the session for authorization checks
+	 * 
+	 * @param sessionId
+	 * @param hibernateSession
+	 * @return detached copies of the rules without the session, don't modify
+	 */
+	private List<Rule> getCachedRules(UUID sessionId, org.hibernate.Session hibernateSession) {
+
+		List<Rule> rules = ruleCache.get(sessionId);
+
+		if (rules == null) {
+			// take the generation before the query, see RuleCache
+			long generation = ruleCache.getGeneration();
+
+			rules = hibernateSession.createQuery("from Rule where session.sessionId=:sessionId", Rule.class)
+					.setParameter("sessionId", sessionId).list().stream()
+					.map(r -> {
+						Rule copy = new Rule(r);
+						copy.setSession(null);
+						return copy;
+					})
+					.collect(Collectors.toUnmodifiableList());
+
+			ruleCache.put(sessionId, rules, generation);
+		}
+
+		return rules;
 	}
 
 	public boolean isAllowedToShareToEveryone(String userId) {
@@ -282,38 +333,15 @@ public class RuleTable {
 
 		if (token instanceof UserToken) {
 
-			UserToken userToken = (UserToken) token;
-
 			// authenticated with an auth token
+			checkUserAccess((UserToken) token, requestSessionId, requireReadWrite, hibernateSession, allowAdmin);
 
-			String username = userToken.getUsername();
-
-			if (username == null) {
-				throw new ForbiddenException("username is null");
-			}
-
-			Session session = getSession(requestSessionId);
+			Session session = hibernateSession.get(Session.class, requestSessionId);
 
 			if (session == null) {
 				throw new NotFoundException("session not found");
 			}
 
-			Rule rule = getRule(username, session, hibernateSession);
-
-			if (allowAdmin && token.getRoles().contains(Role.ADMIN)) {
-				return session;
-			}
-
-			if (rule == null) {
-				throw new ForbiddenException("access denied");
-			}
-
-			if (requireReadWrite) {
-				if (!rule.isReadWrite()) {
-					throw new ForbiddenException("read-write access denied");
-				}
-			}
-
 			return session;
 
 		} else if (token instanceof SessionToken) {
@@ -345,6 +373,62 @@ public class RuleTable {
 		}
 	}
 
+	/**
+	 * Check if a token is authorized to access the session without loading the
+	 * session
+	 * 
+	 * Same as checkSessionAuthorization(), but with UserToken this needs only the
+	 * cached rules, so there is no db query for the sessions that are used often.
+	 * 
+	 * @param token
+	 * @param requestSessionId
+	 * @param requireReadWrite
+	 * @param hibernateSession
+	 * @param allowAdmin
+	 */
+	public void checkSessionAccess(ChipsterToken token, UUID requestSessionId, boolean requireReadWrite,
+			org.hibernate.Session hibernateSession, boolean allowAdmin) {
+
+		if (token instanceof UserToken) {
+			checkUserAccess((UserToken) token, requestSessionId, requireReadWrite, hibernateSession, allowAdmin);
+		} else {
+			checkSessionAuthorization(token, requestSessionId, requireReadWrite, hibernateSession, allowAdmin);
+		}
+	}
+
+	private void checkUserAccess(UserToken userToken, UUID requestSessionId, boolean requireReadWrite,
+			org.hibernate.Session hibernateSession, boolean allowAdmin) {
+
+		String username = userToken.getUsername();
+
+		if (username == null) {
+			throw new ForbiddenException("username is null");
+		}
+
+		List<Rule> sessionRules = getCachedRules(requestSessionId, hibernateSession);
+
+		// all sessions have rules, check if the session exists only when there isn't
+		if (sessionRules.isEmpty() && hibernateSession.get(Session.class, requestSessionId) == null) {
+			throw new NotFoundException("session not found");
+		}
+
+		if (allowAdmin && userToken.getRoles().contains(Role.ADMIN)) {
+			return;
+		}
+
+		Rule rule = getRule(username, sessionRules);
+
+		if (rule == null) {
+			throw new ForbiddenException("access denied");
+		}
+
+		if (requireReadWrite) {
+			if (!rule.isReadWrite()) {
+				throw new ForbiddenException("read-write access denied");
+			}
+		}
+	}
+
 	/**
 	 * Check the token is allowed to access a specific dataset
 	 * 
@@ -367,7 +451,7 @@ public class RuleTable {
 		if (token instanceof UserToken) {
 
 			// check that the user has an Rule which allows access to the session
-			checkSessionAuthorization(token, requestSessionId, requireReadWrite, hibernateSession, false);
+			checkSessionAccess(token, requestSessionId, requireReadWrite, hibernateSession, false);
 			Dataset dataset = SessionDbApi.getDataset(requestSessionId, requestDatasetId, hibernateSession);
 
 			if (dataset == null) {
@@ -499,21 +583,21 @@ public class RuleTable {
 		return checkSessionAuthorization(token, sessionId, requireReadWrite, hibernateSession, allowAdmin);
 	}
 
+	/**
+	 * Get the storage usage of the user
+	 * 
+	 * @param username
+	 * @return
+	 */
 	public long getTotalSize(String username) {
-		// use native query, because Hibernate 5 doesn't support subqueries in from or
-		// join clauses
-		BigDecimal size = (BigDecimal) hibernate.session().createNativeQuery(
-				"select sum(size) from file inner join ("
-						+ "    select distinct dataset.fileid from rule "
-						+ "        inner join dataset on rule.sessionid=dataset.sessionid "
-						+ "    where rule.username=:username and readWrite=true) as dataset_fileid on dataset_fileid.fileid=file.fileid",
-				BigDecimal.class)
-				.setParameter("username", username).getSingleResult();
-
-		if (size == null) {
-			// no sessions or datasets
-			return 0;
-		}
-		return size.longValue();
+		return userStorageTable.getSize(username, hibernate.session());
+	}
+
+	public UserStorageTable getUserStorageTable() {
+		return userStorageTable;
+	}
+
+	public void close() {
+		userStorageTable.close();
 	}
 }
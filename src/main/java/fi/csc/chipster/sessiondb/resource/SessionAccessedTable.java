@@ -0,0 +1,125 @@
+package fi.csc.chipster.sessiondb.resource;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import fi.csc.chipster.rest.Config;
+import fi.csc.chipster.rest.hibernate.HibernateUtil;
+import fi.csc.chipster.sessiondb.model.Session;
+
+/**
+ * Update the accessed timestamps of sessions without a db write on every read
+ *
+ * Reading a session used to update its accessed timestamp in the same
+ * transaction, which turned every session open to a write. Now the access
+ * times are collected to memory and written to the db periodically in one
+ * transaction. Accesses are ignored when the stored timestamp is younger than
+ * the granularity, so each session is written at most once per granularity.
+ *
+ * The timestamps that haven't been written yet are lost if the server
+ * crashes, which is fine for a value that is only shown to the user.
+ */
+public class SessionAccessedTable {
+
+	private static Logger logger = LogManager.getLogger();
+
+	private HibernateUtil hibernate;
+	private Duration granularity;
+
+	private ConcurrentHashMap<UUID, Instant> pending = new ConcurrentHashMap<>();
+
+	private Timer timer;
+
+	public SessionAccessedTable(HibernateUtil hibernate, Config config) {
+		this.hibernate = hibernate;
+		this.granularity = Duration.ofSeconds(config.getLong(Config.KEY_SESSION_DB_ACCESSED_GRANULARITY));
+		long flushInterval = config.getLong(Config.KEY_SESSION_DB_ACCESSED_FLUSH_INTERVAL) * 1000;
+
+		this.timer = new Timer("session-accessed-flush", true);
+		this.timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (Exception e) {
+					logger.error("failed to update session accessed timestamps", e);
+				}
+			}
+		}, flushInterval, flushInterval);
+	}
+
+	/**
+	 * Record that the session was accessed
+	 *
+	 * @param session the session from the db
+	 */
+	public void accessed(Session session) {
+
+		Instant now = Instant.now();
+
+		// skip if the stored value is recent enough
+		if (!isOlderThanGranularity(session.getAccessed(), now)) {
+			return;
+		}
+
+		pending.merge(session.getSessionId(), now, (a, b) -> b.isAfter(a) ? b : a);
+	}
+
+	private boolean isOlderThanGranularity(Instant accessed, Instant now) {
+		return accessed == null || Duration.between(accessed, now).compareTo(granularity) >= 0;
+	}
+
+	/**
+	 * Write the collected timestamps to the db in one transaction
+	 */
+	public void flush() {
+
+		if (pending.isEmpty()) {
+			return;
+		}
+
+		// take a snapshot, new accesses go to the next flush
+		Map<UUID, Instant> batch = new HashMap<>();
+		for (UUID sessionId : pending.keySet()) {
+			Instant accessed = pending.remove(sessionId);
+			if (accessed != null) {
+				batch.put(sessionId, accessed);
+			}
+		}
+
+		Integer updated = HibernateUtil.runInTransaction(hibernateSession -> {
+			int count = 0;
+			for (Map.Entry<UUID, Instant> entry : batch.entrySet()) {
+				/*
+				 * The session may have been deleted or accessed through another path (e.g.
+				 * PUT) in the meantime. Don't move the timestamp backwards and don't bother
+				 * the row if the stored value is already recent.
+				 */
+				count += hibernateSession
+						.createMutationQuery("update Session set accessed=:accessed "
+								+ "where sessionId=:sessionId and (accessed is null or accessed<:threshold)")
+						.setParameter("accessed", entry.getValue())
+						.setParameter("sessionId", entry.getKey())
+						.setParameter("threshold", entry.getValue().minus(granularity))
+						.executeUpdate();
+			}
+			return count;
+		}, hibernate.getSessionFactory(), false);
+
+		logger.debug("session accessed timestamps: " + batch.size() + " pending, " + updated + " updated");
+	}
+
+	public void close() {
+		timer.cancel();
+		flush();
+	}
+}
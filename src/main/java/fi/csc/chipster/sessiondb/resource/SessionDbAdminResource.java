@@ -22,6 +22,7 @@ import fi.csc.chipster.rest.Config;
 import fi.csc.chipster.rest.JerseyStatisticsSource;
 import fi.csc.chipster.rest.RestUtils;
 import fi.csc.chipster.rest.hibernate.HibernateUtil;
+import fi.csc.chipster.rest.hibernate.StreamingJsonResponse;
 import fi.csc.chipster.rest.hibernate.Transaction;
 import fi.csc.chipster.rest.websocket.PubSubServer;
 import fi.csc.chipster.sessiondb.model.Dataset;
@@ -54,6 +55,7 @@ public class SessionDbAdminResource extends AdminResource {
 	private static Logger logger = LogManager.getLogger();
 	public static final String PATH_USERS_SESSIONS = "users/sessions";
 	public static final String PATH_USERS_QUOTA = "users/quota";
+	public static final String PATH_USERS_STORAGE_RECONCILE = "users/storage/reconcile";
 	public static final String PATH_FILES = "files";
 
 	// private final static String SQL_ORPHAN_FILES = "from File f left join Dataset
@@ -218,6 +220,30 @@ public class SessionDbAdminResource extends AdminResource {
 		return orphans;
 	}
 
+	/**
+	 * Compare the storage usage counters of all users with the datasets and fix
+	 * the differences
+	 * 
+	 * This is run also periodically, see UserStorageTable. There is no
+	 * transaction here, because each user is checked in its own transaction.
+	 * 
+	 * @param sc
+	 * @return number of fixed counters
+	 */
+	@POST
+	@Path(PATH_USERS_STORAGE_RECONCILE)
+	@RolesAllowed({ Role.ADMIN })
+	@Produces(MediaType.APPLICATION_JSON)
+	public Object reconcileUserStorage(@Context SecurityContext sc) {
+
+		int fixed = ruleTable.getUserStorageTable().reconcile();
+
+		HashMap<String, Object> result = new HashMap<String, Object>();
+		result.put("fixed", fixed);
+
+		return result;
+	}
+
 	@GET
 	@Path("topics")
 	@RolesAllowed({ Role.MONITORING, Role.ADMIN })
@@ -235,57 +261,68 @@ public class SessionDbAdminResource extends AdminResource {
 	@Transaction
 	public Response getQuota(@QueryParam("userId") List<String> userId, @Context SecurityContext sc) {
 
-		List<String> userIdsToGet;
 		if (userId == null || userId.size() == 0) {
 			logger.info("get quotas for all users");
-			userIdsToGet = ruleTable.getUsers();
-			logger.info("got " + userIdsToGet.size() + " users");
-		} else {
-			logger.info("get quotas for " + userId);
-			userIdsToGet = userId;
+
+			// there can be a lot of users, stream the results
+			return StreamingJsonResponse.ok(hibernate,
+					hibernateSession -> ruleTable.getUsersQuery(hibernateSession),
+					(uId, jsonGenerator) -> {
+						// everyone isn't a real user
+						if (!RuleTable.EVERYONE.equals(uId)) {
+							jsonGenerator.writeObject(getQuota(uId));
+						}
+					});
 		}
 
+		logger.info("get quotas for " + userId);
+
 		List<HashMap<String, Object>> results = new ArrayList<HashMap<String, Object>>();
 
-		for (String uId : userIdsToGet) {
-			HashMap<String, Object> singleUserQuotas = new HashMap<String, Object>();
+		for (String uId : userId) {
+			results.add(getQuota(uId));
+		}
+
+		return Response.ok(results).build();
+	}
 
-			if (uId != null && !uId.equals("null")) {
-				try {
+	private HashMap<String, Object> getQuota(String uId) {
 
-					long size = ruleTable.getTotalSize(uId);
+		HashMap<String, Object> singleUserQuotas = new HashMap<String, Object>();
 
-					Long readWriteSessions = (Long) hibernate.session()
-							.createQuery("select count(*) from Rule where username=:username and readWrite=true",
-									Long.class)
-							.setParameter("username", uId).uniqueResult();
+		if (uId != null && !uId.equals("null")) {
+			try {
 
-					Long readOnlySessions = (Long) hibernate.session()
-							.createQuery("select count(*) from Rule where username=:username and readWrite=false",
-									Long.class)
-							.setParameter("username", uId).uniqueResult();
+				long size = ruleTable.getTotalSize(uId);
 
-					singleUserQuotas.put("userId", uId);
-					singleUserQuotas.put("readWriteSessions", readWriteSessions);
-					singleUserQuotas.put("readOnlySessions", readOnlySessions);
-					singleUserQuotas.put("size", size);
+				Long readWriteSessions = (Long) hibernate.session()
+						.createQuery("select count(*) from Rule where username=:username and readWrite=true",
+								Long.class)
+						.setParameter("username", uId).uniqueResult();
+
+				Long readOnlySessions = (Long) hibernate.session()
+						.createQuery("select count(*) from Rule where username=:username and readWrite=false",
+								Long.class)
+						.setParameter("username", uId).uniqueResult();
 
-				} catch (Exception e) {
-					logger.warn("failed to get quota for user " + uId, e);
-					singleUserQuotas.put("userId", uId);
-				}
-			} else {
-				if (uId == null) {
-					logger.warn("userId is null");
-				} else {
-					logger.warn("userId is 'null'");
-				}
 				singleUserQuotas.put("userId", uId);
+				singleUserQuotas.put("readWriteSessions", readWriteSessions);
+				singleUserQuotas.put("readOnlySessions", readOnlySessions);
+				singleUserQuotas.put("size", size);
+
+			} catch (Exception e) {
+				logger.warn("failed to get quota for user " + uId, e);
+				singleUserQuotas.put("userId", uId);
+			}
+		} else {
+			if (uId == null) {
+				logger.warn("userId is null");
+			} else {
+				logger.warn("userId is 'null'");
 			}
-			results.add(singleUserQuotas);
+			singleUserQuotas.put("userId", uId);
 		}
-
-		return Response.ok(results).build();
+		return singleUserQuotas;
 	}
 
 	@GET
@@ -447,13 +484,12 @@ public class SessionDbAdminResource extends AdminResource {
 	@Path(PATH_FILES)
 	@RolesAllowed({ Role.FILE_BROKER, Role.FILE_STORAGE })
 	@Produces(MediaType.APPLICATION_JSON)
-	@Transaction
+	// streaming runs in its own transaction
 	public Response getFiles(@NotNull @QueryParam("storageId") String storageId, @QueryParam("state") FileState state,
 			@Context SecurityContext sc) {
 
-		List<File> files = sessionDbApi.getFiles(storageId, state, sc);
-
-		return Response.ok(files).build();
+		return StreamingJsonResponse.ok(hibernate,
+				hibernateSession -> SessionDbApi.getFilesQuery(storageId, state, hibernateSession));
 	}
 
 	/**
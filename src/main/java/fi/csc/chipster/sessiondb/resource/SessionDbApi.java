@@ -11,6 +11,7 @@ import java.util.stream.Collectors;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.hibernate.BaseSessionEventListener;
+import org.hibernate.query.SelectionQuery;
 
 import fi.csc.chipster.rest.RestUtils;
 import fi.csc.chipster.rest.hibernate.HibernateUtil;
@@ -42,6 +43,8 @@ import jakarta.ws.rs.core.SecurityContext;
 public class SessionDbApi {
 	private static Logger logger = LogManager.getLogger();
 
+	private static final int DELETE_BATCH_SIZE = 1000;
+
 	private HibernateUtil hibernate;
 	private RuleTable ruleTable;
 	private PubSubServer events;
@@ -185,24 +188,55 @@ public class SessionDbApi {
 		}, hibernate.getSessionFactory(), false);
 
 		/*
+		 * Delete the contents of the session with bulk statements. The datasets, jobs
+		 * and rules are queried first only to publish an event for each of them.
+		 *
 		 * All datasets have to be removed first, because the dataset owns the reference
-		 * between the dataset and the session. This also generates the necessary events
-		 * e.g. to remove files.
+		 * between the dataset and the session. The files that aren't used in any other
+		 * session are found with one anti-join before the datasets are gone.
 		 */
-		for (Dataset dataset : SessionDbApi.getDatasets(hibernate.session(), session)) {
-			deleteDataset(dataset, sessionId);
+		org.hibernate.Session hibernateSession = hibernate.session();
+
+		List<Dataset> datasets = SessionDbApi.getDatasets(hibernateSession, session);
+		List<Job> jobs = getJobs(hibernateSession, session);
+		List<Rule> rules = ruleTable.getRules(sessionId);
+		List<File> files = getFilesOnlyInSession(sessionId, hibernateSession);
+
+		// while the datasets and rules still exist
+		ruleTable.getUserStorageTable().sessionDeleted(sessionId, hibernateSession);
+
+		int datasetCount = hibernateSession
+				.createMutationQuery("delete from Dataset where datasetIdPair.sessionId=:sessionId")
+				.setParameter("sessionId", sessionId)
+				.executeUpdate();
+
+		int jobCount = hibernateSession
+				.createMutationQuery("delete from Job where jobIdPair.sessionId=:sessionId")
+				.setParameter("sessionId", sessionId)
+				.executeUpdate();
+
+		int ruleCount = ruleTable.deleteRules(sessionId, hibernateSession);
+
+		this.deleteFiles(files, hibernateSession);
+
+		logger.debug("delete session " + sessionId + ": " + datasetCount + " datasets, " + jobCount + " jobs, "
+				+ ruleCount + " rules, " + files.size() + " files");
+
+		for (Dataset dataset : datasets) {
+			publish(SessionDbTopicConfig.SESSIONS_TOPIC_PREFIX + sessionId.toString(),
+					new SessionEvent(sessionId, ResourceType.DATASET, dataset.getDatasetId(), EventType.DELETE),
+					hibernateSession);
 		}
 
-		// see the note about datasets above
-		for (Job job : getJobs(hibernate.session(), session)) {
-			deleteJob(job, sessionId, hibernate.session());
+		for (Job job : jobs) {
+			publish(SessionDbTopicConfig.SESSIONS_TOPIC_PREFIX + sessionId.toString(),
+					new SessionEvent(sessionId, ResourceType.JOB, job.getJobId(), EventType.DELETE, job.getState()),
+					hibernateSession);
 		}
 
-		// see the note about datasets above
-		for (Rule rule : ruleTable.getRules(sessionId)) {
-			// argument "deleteSessionIfLastRule" is set to false, because it would call
-			// this method again
-			deleteRule(session, rule, hibernate.session(), false);
+		for (int i = 0; i < rules.size(); i++) {
+			// inform the same users as when the rules were deleted one by one
+			publishRuleEvent(sessionId, rules.subList(i + 1, rules.size()), rules.get(i), EventType.DELETE);
 		}
 
 		HibernateUtil.delete(session, session.getSessionId(), hibernate.session());
@@ -239,6 +273,11 @@ public class SessionDbApi {
 
 	public void deleteDataset(Dataset dataset, UUID sessionId) {
 
+		if (dataset.getFile() != null && dataset.getFile().getFileId() != null) {
+			ruleTable.getUserStorageTable().datasetFileChanged(sessionId, dataset.getFile().getFileId(),
+					dataset.getFile().getSize(), false, hibernate.session());
+		}
+
 		HibernateUtil.delete(dataset, dataset.getDatasetIdPair(), hibernate.session());
 
 		if (dataset.getFile() != null && dataset.getFile().getFileId() != null) {
@@ -309,6 +348,10 @@ public class SessionDbApi {
 
 		FileState fileState = null;
 
+		// the merge below will update the dbDataset too
+		UUID oldFileId = dbDataset.getFile() != null ? dbDataset.getFile().getFileId() : null;
+		long oldSize = dbDataset.getFile() != null ? dbDataset.getFile().getSize() : 0;
+
 		if (newDataset.getFile() != null) {
 			if (dbDataset.getFile() == null) {
 				HibernateUtil.persist(newDataset.getFile(), hibernateSession);
@@ -320,12 +363,46 @@ public class SessionDbApi {
 		}
 
 		HibernateUtil.update(newDataset, newDataset.getDatasetIdPair(), hibernateSession);
+
+		updateStorageUsage(sessionId, newDataset, oldFileId, oldSize, hibernateSession);
+
 		publish(SessionDbTopicConfig.SESSIONS_TOPIC_PREFIX + sessionId.toString(),
 				new SessionEvent(sessionId, ResourceType.DATASET, newDataset.getDatasetId(), EventType.UPDATE,
 						fileState),
 				hibernateSession);
 	}
 
+	/**
+	 * Update the storage usage of the users after the file of the dataset has
+	 * changed
+	 * 
+	 * @param sessionId
+	 * @param newDataset
+	 * @param oldFileId
+	 * @param oldSize
+	 * @param hibernateSession
+	 */
+	private void updateStorageUsage(UUID sessionId, Dataset newDataset, UUID oldFileId, long oldSize,
+			org.hibernate.Session hibernateSession) {
+
+		UserStorageTable userStorageTable = ruleTable.getUserStorageTable();
+		UUID newFileId = newDataset.getFile() != null ? newDataset.getFile().getFileId() : null;
+
+		if (newFileId != null && newFileId.equals(oldFileId)) {
+			userStorageTable.fileSizeChanged(newFileId, newDataset.getFile().getSize() - oldSize, hibernateSession);
+			return;
+		}
+
+		if (oldFileId != null) {
+			userStorageTable.datasetFileChanged(sessionId, oldFileId, oldSize, false, hibernateSession);
+		}
+
+		if (newFileId != null) {
+			userStorageTable.datasetFileChanged(sessionId, newFileId, newDataset.getFile().getSize(), true,
+					hibernateSession);
+		}
+	}
+
 	public void createDataset(Dataset dataset, UUID sessionId, org.hibernate.Session hibernateSession) {
 
 		checkFileModification(dataset, hibernateSession);
@@ -339,6 +416,12 @@ public class SessionDbApi {
 			fileState = dataset.getFile().getState();
 		}
 		HibernateUtil.persist(dataset, hibernateSession);
+
+		if (dataset.getFile() != null && dataset.getFile().getFileId() != null) {
+			ruleTable.getUserStorageTable().datasetFileChanged(sessionId, dataset.getFile().getFileId(),
+					dataset.getFile().getSize(), true, hibernateSession);
+		}
+
 		publish(SessionDbTopicConfig.SESSIONS_TOPIC_PREFIX + sessionId.toString(),
 				new SessionEvent(sessionId, ResourceType.DATASET, dataset.getDatasetId(), EventType.CREATE, fileState),
 				hibernateSession);
@@ -436,30 +519,51 @@ public class SessionDbApi {
 	}
 
 	public List<File> getFiles(@NotNull String storageId, FileState state, SecurityContext sc) {
+		return getFilesQuery(storageId, state, hibernate.session()).list();
+	}
+
+	/**
+	 * Query for the files of a storage
+	 * 
+	 * Use StreamingJsonResponse to stream the results, because there can be
+	 * millions of files.
+	 * 
+	 * @param storageId
+	 * @param state
+	 * @param hibernateSession
+	 * @return
+	 */
+	public static SelectionQuery<File> getFilesQuery(@NotNull String storageId, FileState state,
+			org.hibernate.Session hibernateSession) {
 
 		if (state == null) {
-			return hibernate.session().createQuery("from File where storage=:storage", File.class)
-					.setParameter("storage", storageId).list();
+			return hibernateSession.createQuery("from File where storage=:storage", File.class)
+					.setParameter("storage", storageId);
+
+		} else if (state == FileState.COMPLETE) {
+			// let's assume all old Files in null state are COMPLETE
+			return hibernateSession
+					.createQuery("from File where storage=:storage and (state=:state or state is NULL)", File.class)
+					.setParameter("storage", storageId)
+					.setParameter("state", state);
 		} else {
-			List<File> files = hibernate.session()
+			return hibernateSession
 					.createQuery("from File where storage=:storage and state=:state", File.class)
 					.setParameter("storage", storageId)
-					.setParameter("state", state).list();
-
-			if (state == FileState.COMPLETE) {
-				// let's assume all old Files in null state are COMPLETE
-				List<File> nullStates = hibernate.session()
-						.createQuery("from File where storage=:storage and state is NULL", File.class)
-						.setParameter("storage", storageId).list();
-				files.addAll(nullStates);
-			}
-
-			return files;
+					.setParameter("state", state);
 		}
 	}
 
 	public void update(File file) {
+
+		File dbFile = hibernate.session().get(File.class, file.getFileId());
+		// read before the merge updates the same instance
+		long oldSize = dbFile != null ? dbFile.getSize() : file.getSize();
+
 		HibernateUtil.update(file, file.getFileId(), hibernate.session());
+
+		ruleTable.getUserStorageTable().fileSizeChanged(file.getFileId(), file.getSize() - oldSize,
+				hibernate.session());
 	}
 
 	public File getFile(@NotNull UUID fileId, SecurityContext sc) {
@@ -479,6 +583,12 @@ public class SessionDbApi {
 	 */
 	public void deleteFileAndDatasets(UUID fileId) {
 
+		File file = hibernate.session().get(File.class, fileId);
+
+		if (file != null) {
+			ruleTable.getUserStorageTable().fileSizeChanged(fileId, -file.getSize(), hibernate.session());
+		}
+
 		int datasetsDeleted = hibernate.session()
 				.createQuery("delete from Dataset where file.fileId=:fileId", null)
 				.setParameter("fileId", fileId)
@@ -509,6 +619,53 @@ public class SessionDbApi {
 		this.deleteFile(file);
 	}
 
+	/**
+	 * Find the files which are referenced only by the datasets of this session
+	 * 
+	 * @param sessionId
+	 * @param hibernateSession
+	 * @return
+	 */
+	private static List<File> getFilesOnlyInSession(UUID sessionId, org.hibernate.Session hibernateSession) {
+		return hibernateSession.createQuery(
+				"from File f where f.fileId in ("
+						+ "    select d.file.fileId from Dataset d where d.datasetIdPair.sessionId=:sessionId) "
+						+ "and not exists ("
+						+ "    select 1 from Dataset o where o.file=f and o.datasetIdPair.sessionId<>:sessionId)",
+				File.class)
+				.setParameter("sessionId", sessionId)
+				.list();
+	}
+
+	/**
+	 * Delete Files in bulk
+	 * 
+	 * It's caller's responsibility to delete the Datasets which reference these
+	 * Files first.
+	 * 
+	 * @param files
+	 * @param hibernateSession
+	 */
+	private void deleteFiles(List<File> files, org.hibernate.Session hibernateSession) {
+
+		for (File file : files) {
+			// delete from storage
+			String json = RestUtils.asJson(file);
+			publish(SessionDbTopicConfig.ALL_FILES_TOPIC,
+					new SessionEvent(null, ResourceType.FILE, file.getFileId(), EventType.DELETE, null, json, null),
+					hibernateSession);
+		}
+
+		List<UUID> fileIds = files.stream().map(File::getFileId).collect(Collectors.toList());
+
+		// keep the number of bind parameters reasonable
+		for (int i = 0; i < fileIds.size(); i += DELETE_BATCH_SIZE) {
+			hibernateSession.createMutationQuery("delete from File where fileId in (:fileIds)")
+					.setParameterList("fileIds", fileIds.subList(i, Math.min(fileIds.size(), i + DELETE_BATCH_SIZE)))
+					.executeUpdate();
+		}
+	}
+
 	private void deleteFile(File file) {
 
 		// delete from storage
@@ -23,6 +23,7 @@ import fi.csc.chipster.rest.Config;
 import fi.csc.chipster.rest.RestUtils;
 import fi.csc.chipster.rest.exception.NotAuthorizedException;
 import fi.csc.chipster.rest.hibernate.HibernateUtil;
+import fi.csc.chipster.rest.hibernate.StreamingJsonResponse;
 import fi.csc.chipster.rest.hibernate.Transaction;
 import fi.csc.chipster.sessiondb.model.Rule;
 import fi.csc.chipster.sessiondb.model.Session;
@@ -62,6 +63,7 @@ public class SessionResource {
 
 	private RuleTable ruleTable;
 	private SessionDbApi sessionDbApi;
+	private SessionAccessedTable sessionAccessedTable;
 
 	private Config config;
 
@@ -71,6 +73,7 @@ public class SessionResource {
 		this.ruleTable = authorizationTable;
 		this.sessionDbApi = sessionDbApi;
 		this.config = config;
+		this.sessionAccessedTable = new SessionAccessedTable(hibernate, config);
 	}
 
 	// sub-resource locators
@@ -109,10 +112,8 @@ public class SessionResource {
 		 * Make sure rules are loaded
 		 * 
 		 * All json contents must be loaded from DB, because json serialization happens
-		 * after Hibernate session is closed (@See HibernateResponseFilter). When this
-		 * method call is authenticated with UserToken, checkSessionReadAuthorization()
-		 * above loads these rules. However, when this method is called with
-		 * SessionToken, authorization checks don't need the rules and we have to load
+		 * after Hibernate session is closed (@See HibernateResponseFilter). The
+		 * authorization checks use cached copies of the rules, so we have to load
 		 * them ourselves.
 		 */
 		Hibernate.initialize(dbSession.getRules());
@@ -121,9 +122,9 @@ public class SessionResource {
 		// "preview"
 		// empty string when set, otherwise null (boolean without value would have been
 		// false)
+		// the timestamp is written to the db later to keep this a read-only transaction
 		if (preview == null) {
-			dbSession.setAccessed(Instant.now());
-			getHibernate().update(dbSession, sessionId);
+			sessionAccessedTable.accessed(dbSession);
 		}
 
 		return Response.ok(dbSession).build();
@@ -132,12 +133,13 @@ public class SessionResource {
 	@GET
 	@RolesAllowed({ Role.CLIENT, Role.SERVER }) // don't allow Role.UNAUTHENTICATED
 	@Produces(MediaType.APPLICATION_JSON)
-	@Transaction
+	// streaming runs in its own transaction
 	public Response getAll(@QueryParam(QUERY_PARAM_USER_ID) String userIdString,
 			@QueryParam(QUERY_PARAM_APP_ID) String appId, @Context SecurityContext sc) {
 
 		String authenticatedUserId = sc.getUserPrincipal().getName();
-		List<Session> sessions;
+		String username;
+		String sharedBy = null;
 
 		if (Role.SESSION_WORKER.equals(authenticatedUserId) || Role.FILE_STORAGE.equals(authenticatedUserId)
 				|| Role.FILE_BROKER.equals(authenticatedUserId)) {
@@ -147,7 +149,7 @@ public class SessionResource {
 			// session-worker needs access to support_session_owner's sessions
 			// file-storage needs access to sessions to do the storage check
 			// file-broker needs access to sessions to copy files between file-storages
-			sessions = this.getSessions(ruleTable.getRulesOwn(userIdString));
+			username = userIdString;
 		} else {
 			if (userIdString != null) {
 				throw new ForbiddenException(
@@ -158,34 +160,38 @@ public class SessionResource {
 				// example sessions
 				String exampleSessionOwner = this.ruleTable.getExampleSessionOwner(appId);
 
-				sessions = this.getSessions(ruleTable.getRulesOfEveryone(exampleSessionOwner));
+				username = RuleTable.EVERYONE;
+				sharedBy = exampleSessionOwner;
+
+				if (sharedBy == null) {
+					// no example sessions for this app
+					return Response.ok(toJaxbList(new ArrayList<>())).build();
+				}
 
 			} else {
 				// user's own sessions
-				sessions = this.getSessions(ruleTable.getRulesOwn(authenticatedUserId));
+				username = authenticatedUserId;
 			}
 		}
 
+		String finalSharedBy = sharedBy;
+
 		// if nothing is found, just return 200 (OK) and an empty list
-		return Response.ok(toJaxbList(sessions)).build();
+		return StreamingJsonResponse.ok(getHibernate(),
+				hibernateSession -> ruleTable.getRulesOwnQuery(username, finalSharedBy, hibernateSession),
+				(rule, jsonGenerator) -> jsonGenerator.writeObject(getSession(rule)));
 	}
 
-	private List<Session> getSessions(List<Rule> rules) {
-
-		List<Session> sessions = new ArrayList<>();
-		for (Rule rule : rules) {
-			Session session = rule.getSession();
-			// user's own rule should be enough in the session list
-			// otherwise we would be selecting rules of sessions of rules of username
-			session.setRules(new HashSet<Rule>() {
-				{
-					add(rule);
-				}
-			});
-			sessions.add(session);
-		}
-
-		return sessions;
+	private Session getSession(Rule rule) {
+		Session session = rule.getSession();
+		// user's own rule should be enough in the session list
+		// otherwise we would be selecting rules of sessions of rules of username
+		session.setRules(new HashSet<Rule>() {
+			{
+				add(rule);
+			}
+		});
+		return session;
 	}
 
 	@GET
@@ -347,4 +353,8 @@ public class SessionResource {
 		return ruleTable;
 	}
 
+	public void close() {
+		// write the pending accessed timestamps
+		sessionAccessedTable.close();
+	}
 }
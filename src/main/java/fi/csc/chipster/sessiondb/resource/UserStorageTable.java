@@ -0,0 +1,462 @@
+package fi.csc.chipster.sessiondb.resource;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.query.MutationQuery;
+
+import fi.csc.chipster.rest.Config;
+import fi.csc.chipster.rest.hibernate.HibernateUtil;
+import fi.csc.chipster.sessiondb.model.Rule;
+import jakarta.transaction.Synchronization;
+
+/**
+ * Storage usage of each user
+ *
+ * The storage usage of a user is the sum of the sizes of the distinct files in
+ * the sessions where the user has a read-write rule. Calculating the sum for
+ * each request was slow for users with a lot of datasets, so now the sum is
+ * kept in the UserStorage table. It's updated in the same transaction when the
+ * datasets, files or rules change, so a crash or a rollback can't leave it
+ * inconsistent.
+ *
+ * The dataset changes are the most common, e.g. when a session is imported.
+ * Those are collected per session and file, and applied with one statement
+ * just before the transaction is committed. This allows Hibernate to insert
+ * the datasets in JDBC batches. The file and rule changes apply the collected
+ * changes first and then update the counters immediately.
+ *
+ * Each change checks only the references of the changed file or session with
+ * indexed queries. Concurrent transactions may still count a file twice, if
+ * they add a reference to the same file for the same user at the same time.
+ * The reconciliation compares the counters with the full sum periodically and
+ * fixes the differences.
+ *
+ * The counters are updated with native PostgreSQL upserts, because the row may
+ * not exist yet.
+ */
+public class UserStorageTable {
+
+	private static Logger logger = LogManager.getLogger();
+
+	private static final String UPSERT = "insert into UserStorage (username, size) ";
+	private static final String ON_CONFLICT_ADD = " on conflict (username) do update set size = UserStorage.size + excluded.size";
+
+	/*
+	 * Condition for the files that the user doesn't reference through any other
+	 * read-write rule or dataset. The "username", "fileid" and the exclusions are
+	 * given by the surrounding query.
+	 */
+	private static final String NOT_REFERENCED_ELSEWHERE = " not exists (select 1 from dataset d2 "
+			+ "    inner join rule r2 on r2.sessionid=d2.sessionid "
+			+ "    where d2.fileid=%s and r2.username=%s and r2.readWrite=true and %s)";
+
+	// PostgreSQL allows 32767 parameters in one statement
+	private static final int MAX_CHANGES_PER_STATEMENT = 1000;
+
+	private HibernateUtil hibernate;
+	private Timer timer;
+
+	// dataset changes of each transaction that haven't been applied yet
+	private Map<org.hibernate.Session, Map<DatasetFile, Integer>> pendingChanges = new ConcurrentHashMap<>();
+
+	public UserStorageTable(HibernateUtil hibernate, Config config) {
+		this.hibernate = hibernate;
+
+		long interval = config.getLong(Config.KEY_SESSION_DB_STORAGE_RECONCILE_INTERVAL) * 1000;
+
+		if (interval > 0) {
+			this.timer = new Timer("user-storage-reconcile", true);
+			this.timer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					try {
+						reconcile();
+					} catch (Exception e) {
+						logger.error("user storage reconciliation failed", e);
+					}
+				}
+			}, interval, interval);
+		}
+	}
+
+	/**
+	 * Update the counters when a dataset starts or stops referencing a file
+	 *
+	 * The change is applied before the transaction is committed. Then the file
+	 * size is added or subtracted for each user who has a read-write rule to this
+	 * session, if the user didn't reference the file through some other dataset
+	 * before the transaction or doesn't reference it anymore after it.
+	 *
+	 * @param sessionId
+	 * @param fileId
+	 * @param size             size of the file
+	 * @param added            true if the dataset starts referencing the file,
+	 *                         false if it stops
+	 * @param hibernateSession
+	 */
+	public void datasetFileChanged(UUID sessionId, UUID fileId, long size, boolean added,
+			org.hibernate.Session hibernateSession) {
+
+		Map<DatasetFile, Integer> changes = pendingChanges.computeIfAbsent(hibernateSession, s -> {
+
+			s.getTransaction().registerSynchronization(new Synchronization() {
+				@Override
+				public void beforeCompletion() {
+					applyDatasetChanges(s);
+				}
+
+				@Override
+				public void afterCompletion(int status) {
+					// after a rollback too
+					pendingChanges.remove(s);
+				}
+			});
+
+			return new LinkedHashMap<>();
+		});
+
+		changes.merge(new DatasetFile(sessionId, fileId, size), added ? 1 : -1, Integer::sum);
+	}
+
+	/**
+	 * Apply the collected dataset changes of this transaction
+	 *
+	 * For each user and file, compare the number of datasets referencing the file
+	 * in the user's read-write sessions now and before the changes. The file size
+	 * is added if there were none before, and subtracted if there are none
+	 * anymore. The files are not joined, because a file may have been deleted
+	 * with its last dataset.
+	 *
+	 * @param hibernateSession
+	 */
+	private void applyDatasetChanges(org.hibernate.Session hibernateSession) {
+
+		Map<DatasetFile, Integer> changes = pendingChanges.get(hibernateSession);
+
+		if (changes == null || changes.isEmpty()) {
+			return;
+		}
+
+		/*
+		 * Keep the changes of the same file in the same statement, because the
+		 * datasets in the db include the changes of all statements.
+		 */
+		Map<UUID, List<DatasetFile>> fileChanges = new LinkedHashMap<>();
+		for (DatasetFile datasetFile : changes.keySet()) {
+			datasetFile.delta = changes.get(datasetFile);
+			if (datasetFile.delta != 0) {
+				fileChanges.computeIfAbsent(datasetFile.fileId, k -> new ArrayList<>()).add(datasetFile);
+			}
+		}
+		changes.clear();
+
+		// native queries don't see the entities that haven't been flushed yet
+		hibernateSession.flush();
+
+		List<DatasetFile> statementChanges = new ArrayList<>();
+
+		for (List<DatasetFile> datasetFiles : fileChanges.values()) {
+			if (!statementChanges.isEmpty()
+					&& statementChanges.size() + datasetFiles.size() > MAX_CHANGES_PER_STATEMENT) {
+				applyDatasetChanges(statementChanges, hibernateSession);
+				statementChanges.clear();
+			}
+			statementChanges.addAll(datasetFiles);
+		}
+
+		if (!statementChanges.isEmpty()) {
+			applyDatasetChanges(statementChanges, hibernateSession);
+		}
+	}
+
+	private void applyDatasetChanges(List<DatasetFile> changes, org.hibernate.Session hibernateSession) {
+
+		List<String> values = new ArrayList<>();
+		for (int i = 0; i < changes.size(); i++) {
+			values.add(String.format(
+					"(cast(:s%d as uuid), cast(:f%d as uuid), cast(:d%d as integer), cast(:z%d as bigint))",
+					i, i, i, i));
+		}
+
+		String readWriteSessions = "(select r2.sessionid from rule r2 "
+				+ "where r2.username=u.username and r2.readWrite=true)";
+
+		MutationQuery query = hibernateSession.createNativeMutationQuery(
+				"with changes (sessionid, fileid, delta, size) as (values " + String.join(", ", values) + "), "
+						+ "u as (select r.username, c.fileid, max(c.size) as size from changes c "
+						+ "    inner join rule r on r.sessionid=c.sessionid "
+						+ "    where r.readWrite=true and r.username is not null group by r.username, c.fileid), "
+						+ "refs as (select u.username, u.size, "
+						+ "    (select count(*) from dataset d where d.fileid=u.fileid and d.sessionid in "
+						+ readWriteSessions + ") as count_after, "
+						+ "    (select sum(c2.delta) from changes c2 where c2.fileid=u.fileid and c2.sessionid in "
+						+ readWriteSessions + ") as delta "
+						+ "    from u) "
+						+ UPSERT
+						+ "select username, sum((case when count_after > 0 then size else 0 end) "
+						+ "    - (case when count_after - delta > 0 then size else 0 end)) "
+						+ "from refs group by username"
+						+ ON_CONFLICT_ADD);
+
+		for (int i = 0; i < changes.size(); i++) {
+			query.setParameter("s" + i, changes.get(i).sessionId);
+			query.setParameter("f" + i, changes.get(i).fileId);
+			query.setParameter("d" + i, changes.get(i).delta);
+			query.setParameter("z" + i, changes.get(i).size);
+		}
+
+		query.executeUpdate();
+	}
+
+	/**
+	 * Update the counters when the size of a file changes
+	 *
+	 * Call this also before deleting the file with its datasets with a negative
+	 * delta.
+	 *
+	 * @param fileId
+	 * @param delta
+	 * @param hibernateSession
+	 */
+	public void fileSizeChanged(UUID fileId, long delta, org.hibernate.Session hibernateSession) {
+
+		if (delta == 0) {
+			return;
+		}
+
+		// the collected changes were made with the old size
+		applyDatasetChanges(hibernateSession);
+		hibernateSession.flush();
+
+		hibernateSession.createNativeMutationQuery(UPSERT
+				+ "select distinct r.username, :delta from dataset d inner join rule r on r.sessionid=d.sessionid "
+				+ "where d.fileid=:fileId and r.readWrite=true and r.username is not null"
+				+ ON_CONFLICT_ADD)
+				.setParameter("delta", delta)
+				.setParameter("fileId", fileId)
+				.executeUpdate();
+	}
+
+	/**
+	 * Update the counter of the user when a rule is created or deleted
+	 *
+	 * Adds or subtracts the sizes of the files in this session, which the user
+	 * doesn't reference through other rules.
+	 *
+	 * @param rule
+	 * @param sessionId
+	 * @param added
+	 * @param hibernateSession
+	 */
+	public void ruleChanged(Rule rule, UUID sessionId, boolean added, org.hibernate.Session hibernateSession) {
+
+		if (!rule.isReadWrite() || rule.getUsername() == null) {
+			return;
+		}
+
+		// the query below counts the datasets of this transaction already
+		applyDatasetChanges(hibernateSession);
+		hibernateSession.flush();
+
+		hibernateSession.createNativeMutationQuery(UPSERT
+				+ "select :username, :sign * coalesce(sum(f.size), 0) from file f "
+				+ "where f.fileid in (select d.fileid from dataset d where d.sessionid=:sessionId) and "
+				+ String.format(NOT_REFERENCED_ELSEWHERE, "f.fileid", ":username", "r2.ruleid<>:ruleId")
+				+ ON_CONFLICT_ADD)
+				.setParameter("username", rule.getUsername())
+				.setParameter("sign", added ? 1 : -1)
+				.setParameter("sessionId", sessionId)
+				.setParameter("ruleId", rule.getRuleId())
+				.executeUpdate();
+	}
+
+	/**
+	 * Update the counters before the session is deleted
+	 *
+	 * Like deleting all the rules of the session, but the rules of this session
+	 * are ignored also when the same user has several rules to it.
+	 *
+	 * @param sessionId
+	 * @param hibernateSession
+	 */
+	public void sessionDeleted(UUID sessionId, org.hibernate.Session hibernateSession) {
+
+		applyDatasetChanges(hibernateSession);
+		hibernateSession.flush();
+
+		hibernateSession.createNativeMutationQuery(UPSERT
+				+ "select u.username, -coalesce((select sum(f.size) from file f "
+				+ "    where f.fileid in (select d.fileid from dataset d where d.sessionid=:sessionId) and "
+				+ String.format(NOT_REFERENCED_ELSEWHERE, "f.fileid", "u.username", "r2.sessionid<>:sessionId")
+				+ "), 0) from (select distinct username from rule "
+				+ "    where sessionid=:sessionId and readWrite=true and username is not null) as u"
+				+ ON_CONFLICT_ADD)
+				.setParameter("sessionId", sessionId)
+				.executeUpdate();
+	}
+
+	/**
+	 * Get the storage usage of the user from the counter
+	 *
+	 * @param username
+	 * @param hibernateSession
+	 * @return
+	 */
+	public long getSize(String username, org.hibernate.Session hibernateSession) {
+		List<Long> sizes = hibernateSession
+				.createNativeQuery("select size from UserStorage where username=:username", Long.class)
+				.setParameter("username", username)
+				.list();
+
+		if (sizes.isEmpty()) {
+			// no sessions or datasets
+			return 0;
+		}
+		return sizes.get(0);
+	}
+
+	/**
+	 * Calculate the storage usage of the user from the datasets
+	 *
+	 * @param username
+	 * @param hibernateSession
+	 * @return
+	 */
+	public static long calculateSize(String username, org.hibernate.Session hibernateSession) {
+		// use native query, because Hibernate 5 doesn't support subqueries in from or
+		// join clauses
+		BigDecimal size = (BigDecimal) hibernateSession.createNativeQuery(
+				"select sum(size) from file inner join ("
+						+ "    select distinct dataset.fileid from rule "
+						+ "        inner join dataset on rule.sessionid=dataset.sessionid "
+						+ "    where rule.username=:username and readWrite=true) as dataset_fileid on dataset_fileid.fileid=file.fileid",
+				BigDecimal.class)
+				.setParameter("username", username).getSingleResult();
+
+		if (size == null) {
+			// no sessions or datasets
+			return 0;
+		}
+		return size.longValue();
+	}
+
+	/**
+	 * Compare the counters of all users with the full sum and fix the differences
+	 *
+	 * @return number of fixed counters
+	 */
+	public int reconcile() {
+
+		List<String> usernames = hibernate.runInTransaction(hibernateSession -> hibernateSession
+				.createNativeQuery("select username from UserStorage "
+						+ "union select distinct username from rule where readWrite=true and username is not null",
+						String.class)
+				.list());
+
+		if (usernames == null) {
+			// runInTransaction() logged the error already
+			return 0;
+		}
+
+		int fixed = 0;
+
+		for (String username : usernames) {
+			// short transaction for each user
+			Boolean isFixed = hibernate.runInTransaction(hibernateSession -> reconcile(username, hibernateSession));
+			if (Boolean.TRUE.equals(isFixed)) {
+				fixed++;
+			}
+		}
+
+		logger.info("user storage reconciliation: " + usernames.size() + " users checked, " + fixed + " fixed");
+
+		return fixed;
+	}
+
+	/**
+	 * Compare the counter of one user with the full sum and fix it if necessary
+	 *
+	 * The counter row is locked first, so the transactions that update it
+	 * concurrently either have committed already and are included in the sum or
+	 * will add their change on top of the fixed value.
+	 *
+	 * @param username
+	 * @param hibernateSession
+	 * @return true if the counter was fixed
+	 */
+	boolean reconcile(String username, org.hibernate.Session hibernateSession) {
+
+		hibernateSession.createNativeMutationQuery(UPSERT + "values (:username, 0) on conflict (username) do nothing")
+				.setParameter("username", username)
+				.executeUpdate();
+
+		long counter = hibernateSession
+				.createNativeQuery("select size from UserStorage where username=:username for update", Long.class)
+				.setParameter("username", username)
+				.getSingleResult();
+
+		long sum = calculateSize(username, hibernateSession);
+
+		if (counter == sum) {
+			return false;
+		}
+
+		logger.warn("user storage of " + username + " was " + counter + " but should be " + sum + ", fixed");
+
+		hibernateSession.createNativeMutationQuery("update UserStorage set size=:size where username=:username")
+				.setParameter("size", sum)
+				.setParameter("username", username)
+				.executeUpdate();
+
+		return true;
+	}
+
+	public void close() {
+		if (timer != null) {
+			timer.cancel();
+		}
+	}
+
+	/**
+	 * Dataset changes of a transaction in one session for one file
+	 */
+	private static class DatasetFile {
+
+		private UUID sessionId;
+		private UUID fileId;
+		private long size;
+		// net number of datasets added, set when the changes are applied
+		private int delta;
+
+		public DatasetFile(UUID sessionId, UUID fileId, long size) {
+			this.sessionId = sessionId;
+			this.fileId = fileId;
+			this.size = size;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof DatasetFile)) {
+				return false;
+			}
+			DatasetFile other = (DatasetFile) obj;
+			return sessionId.equals(other.sessionId) && fileId.equals(other.fileId);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(sessionId, fileId);
+		}
+	}
+}
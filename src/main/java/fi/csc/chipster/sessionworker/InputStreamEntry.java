@@ -22,6 +22,7 @@ import fi.csc.chipster.rest.RestUtils;
 public class InputStreamEntry {
 	private String name;
 	private Callable<InputStream> inputStreamCallable;
+	private ResumableInputStream.Source source;
 	private int compressionLevel;
 
 	public InputStreamEntry(String name, String content) {
@@ -45,6 +46,18 @@ public class InputStreamEntry {
 		this.compressionLevel = compressionLevel;
 	}
 
+	/**
+	 * @param name             Name of the zip file
+	 * @param source           Source, which opens the InputStream of the file
+	 *                         content at the given position
+	 * @param compressionLevel Compression level for this entry (e.g.
+	 *                         Deflater.NO_COMPRESSION)
+	 */
+	public InputStreamEntry(String name, ResumableInputStream.Source source, int compressionLevel) {
+		this(name, () -> source.open(0), compressionLevel);
+		this.source = source;
+	}
+
 	public int getCompressionLevel() {
 		return compressionLevel;
 	}
@@ -59,6 +72,18 @@ public class InputStreamEntry {
 
 	public void setInputStreamCallable(Callable<InputStream> inputStreamCallable) {
 		this.inputStreamCallable = inputStreamCallable;
+		this.source = null;
+	}
+
+	/**
+	 * @return source, which opens the stream at the given position, skipping the
+	 *         bytes before it if the entry was created with a Callable
+	 */
+	public ResumableInputStream.Source getSource() {
+		if (source != null) {
+			return source;
+		}
+		return ResumableInputStream.fromStart(inputStreamCallable);
 	}
 
 	public String getName() {
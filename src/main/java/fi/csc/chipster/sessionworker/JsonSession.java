@@ -1,17 +1,26 @@
 package fi.csc.chipster.sessionworker;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 import org.apache.logging.log4j.LogManager;
@@ -43,17 +52,282 @@ public class JsonSession {
 	private static final String DATASETS_JSON = "datasets.json";
 	private static final String JOBS_JSON = "jobs.json";
 
+	// number of datasets to create in one session-db request
+	private static final int DATASET_BATCH_SIZE = 500;
+
+	private static final int UPLOAD_RETRIES = 2;
+
 	protected static final List<String> compressedExtensions = Arrays
 			.asList(new String[] { ".gz", ".zip", ".bam", ".Robj" });
 
+	/**
+	 * Extract a session zip
+	 * 
+	 * If there is enough space in the temp dir, the zip is downloaded there first
+	 * and the files are uploaded in parallel using the central directory of the
+	 * zip file. Otherwise or if the zip can't be opened as a ZipFile, the session
+	 * is extracted from the zip stream.
+	 * 
+	 * If an earlier extraction of the same zip to the same session was
+	 * interrupted, extracting it again continues from where it stopped. The
+	 * datasets in the session-db tell which files were uploaded completely. There
+	 * is no other record of the extraction, so it continues only when the client
+	 * requests the extraction again.
+	 * 
+	 * @param fileBroker
+	 * @param sessionDb
+	 * @param sessionId
+	 * @param zipDatasetId
+	 * @param tempDir
+	 * @param uploadThreads
+	 * @return the session or null if the zip isn't a json session
+	 * @throws IOException
+	 * @throws RestException
+	 */
 	public static ExtractedSession extractSession(RestFileBrokerClient fileBroker, SessionDbClient sessionDb,
-			UUID sessionId, UUID zipDatasetId) throws IOException, RestException {
+			UUID sessionId, UUID zipDatasetId, File tempDir, int uploadThreads) throws IOException, RestException {
+
+		return extractSession(fileBroker, sessionDb, sessionId, zipDatasetId, tempDir, tempDir.getUsableSpace(),
+				uploadThreads);
+	}
+
+	/**
+	 * @param tempSpace usable space in the tempDir in bytes
+	 */
+	static ExtractedSession extractSession(RestFileBrokerClient fileBroker, SessionDbClient sessionDb,
+			UUID sessionId, UUID zipDatasetId, File tempDir, long tempSpace, int uploadThreads)
+			throws IOException, RestException {
+
+		Dataset zipDataset = sessionDb.getDataset(sessionId, zipDatasetId);
+		Long zipSize = zipDataset.getFile() != null ? zipDataset.getFile().getSize() : null;
+
+		if (zipSize == null || tempSpace < zipSize) {
+			logger.info("not enough space in " + tempDir + " for random access, extract the zip stream");
+			return extractSessionStreaming(fileBroker, sessionDb, sessionId, zipDatasetId);
+		}
+
+		File localTempZip = new File(tempDir, zipDatasetId + ".zip");
+
+		try {
+			fileBroker.download(sessionId, zipDatasetId, localTempZip);
+
+			ZipFile zipFile;
+			try {
+				zipFile = new ZipFile(localTempZip);
+			} catch (ZipException e) {
+				logger.warn("zip file can't be read randomly, extract the zip stream: " + e.getMessage());
+				Files.delete(localTempZip.toPath());
+				return extractSessionStreaming(fileBroker, sessionDb, sessionId, zipDatasetId);
+			}
+
+			try (zipFile) {
+				return extractSessionRandomAccess(fileBroker, sessionDb, sessionId, zipFile, uploadThreads);
+			}
+		} finally {
+			Files.deleteIfExists(localTempZip.toPath());
+		}
+	}
+
+	/**
+	 * Extract the session from a local zip file
+	 * 
+	 * The datasets are created in batches and the files are uploaded in parallel.
+	 */
+	private static ExtractedSession extractSessionRandomAccess(RestFileBrokerClient fileBroker,
+			SessionDbClient sessionDb, UUID sessionId, ZipFile zipFile, int uploadThreads)
+			throws IOException, RestException {
+
+		String jsonSession = null;
+		Map<UUID, Dataset> datasetMap = null;
+		String jsonJobs = null;
+		Integer version = null;
+
+		LinkedHashMap<UUID, ZipEntry> datasetEntries = new LinkedHashMap<>();
+
+		for (ZipEntry entry : zipFile.stream().collect(Collectors.toList())) {
+
+			if (entry.isDirectory()) {
+				// skip folders
+				continue;
+			}
+
+			if (RestUtils.basename(entry.getName()).startsWith(".")) {
+				// skip hidden files (created by e.g. OSX Archive Utility)
+				continue;
+			}
+
+			if (!isCompatible(entry.getName())) {
+				// this class doesn't recognize the file format
+				return null;
+			}
+
+			String entryName = getFilename(entry.getName());
+			if (version == null) {
+				version = getVersion(entry.getName());
+			} else if (version != getVersion(entry.getName())) {
+				throw new IllegalArgumentException(
+						"entry " + entry.getName() + " version differs from previous: " + version);
+			}
+
+			if (entryName.equals(SESSION_JSON)) {
+				jsonSession = readEntry(zipFile, entry);
+
+			} else if (entryName.equals(DATASETS_JSON)) {
+				datasetMap = parseDatasets(readEntry(zipFile, entry));
+
+			} else if (entryName.equals(JOBS_JSON)) {
+				jsonJobs = readEntry(zipFile, entry);
+
+			} else {
+				datasetEntries.put(UUID.fromString(entryName), entry);
+			}
+		}
+
+		/*
+		 * Resume an interrupted extraction
+		 * 
+		 * If the same zip was extracted to this session earlier, but the extraction was
+		 * interrupted, the datasets of the finished uploads have a File already. The
+		 * session-db works as the manifest of the completed entries.
+		 */
+		Map<UUID, Dataset> existingDatasets = sessionDb.getDatasets(sessionId);
+		int completedCount = 0;
+
+		Iterator<Map.Entry<UUID, ZipEntry>> iter = datasetEntries.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<UUID, ZipEntry> datasetEntry = iter.next();
+
+			if (isUploaded(existingDatasets.get(datasetEntry.getKey()), datasetEntry.getValue().getSize())) {
+				iter.remove();
+				completedCount++;
+			}
+		}
+
+		if (completedCount > 0) {
+			logger.info("resume extraction, " + completedCount + " files were uploaded already, "
+					+ datasetEntries.size() + " remaining");
+		}
+
+		// create dummy datasets now and update them with real dataset data later
+		List<Dataset> dummyDatasets = new ArrayList<>();
+		for (UUID datasetId : datasetEntries.keySet()) {
+			if (existingDatasets.containsKey(datasetId)) {
+				// created in the interrupted extraction
+				continue;
+			}
+			Dataset dummyDataset = new Dataset();
+			dummyDataset.setDatasetIdPair(sessionId, datasetId);
+			dummyDatasets.add(dummyDataset);
+		}
+
+		for (int i = 0; i < dummyDatasets.size(); i += DATASET_BATCH_SIZE) {
+			sessionDb.createDatasets(sessionId,
+					dummyDatasets.subList(i, Math.min(dummyDatasets.size(), i + DATASET_BATCH_SIZE)));
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, uploadThreads));
+
+		try {
+			List<Future<Void>> uploads = new ArrayList<>();
+
+			for (Map.Entry<UUID, ZipEntry> datasetEntry : datasetEntries.entrySet()) {
+				UUID datasetId = datasetEntry.getKey();
+				ZipEntry entry = datasetEntry.getValue();
+
+				// ZipFile can read the size from the central directory
+				Long size = entry.getSize() >= 0 ? entry.getSize() : null;
+
+				uploads.add(executor.submit(() -> {
+					uploadWithRetries(fileBroker, sessionId, datasetId, zipFile, entry, size);
+					return null;
+				}));
+			}
+
+			for (Future<Void> upload : uploads) {
+				waitForUpload(upload);
+			}
+		} finally {
+			// cancel the remaining uploads if one failed
+			executor.shutdownNow();
+		}
+
+		return migrate(version, jsonSession, datasetMap, jsonJobs);
+	}
+
+	/**
+	 * Upload a zip entry
+	 * 
+	 * The entry can be read again from the ZipFile, so a failed upload can be
+	 * simply retried.
+	 */
+	private static void uploadWithRetries(RestFileBrokerClient fileBroker, UUID sessionId, UUID datasetId,
+			ZipFile zipFile, ZipEntry entry, Long size) throws IOException, RestException, InterruptedException {
+
+		for (int retry = 0;; retry++) {
+			try (InputStream entryStream = zipFile.getInputStream(entry)) {
+				fileBroker.upload(sessionId, datasetId, entryStream, size);
+				return;
+			} catch (RestException e) {
+				if (retry >= UPLOAD_RETRIES) {
+					throw e;
+				}
+				logger.warn("upload of " + datasetId + " failed, retry " + (retry + 1) + "/" + UPLOAD_RETRIES + ": "
+						+ e.getMessage());
+				Thread.sleep(1000 * (retry + 1));
+			}
+		}
+	}
+
+	/**
+	 * Check if the file of the dataset was uploaded completely in an interrupted
+	 * extraction of the same zip
+	 * 
+	 * @param existing the dataset in the session-db or null
+	 * @param size     size of the zip entry or null if not known
+	 */
+	private static boolean isUploaded(Dataset existing, Long size) {
+		return existing != null && existing.getFile() != null && size != null
+				&& existing.getFile().getSize() == size;
+	}
+
+	private static void waitForUpload(Future<Void> upload) throws IOException, RestException {
+		try {
+			upload.get();
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted while uploading the session files", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RestException) {
+				throw (RestException) e.getCause();
+			}
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("upload failed", e.getCause());
+		}
+	}
+
+	private static String readEntry(ZipFile zipFile, ZipEntry entry) throws IOException {
+		try (InputStream entryStream = zipFile.getInputStream(entry)) {
+			return RestUtils.toString(entryStream);
+		}
+	}
+
+	/**
+	 * Extract the session while reading the zip stream from the file-broker
+	 * 
+	 * Needs no local disk space, but the files are uploaded one at a time.
+	 */
+	private static ExtractedSession extractSessionStreaming(RestFileBrokerClient fileBroker,
+			SessionDbClient sessionDb, UUID sessionId, UUID zipDatasetId) throws IOException, RestException {
 
 		String jsonSession = null;
 		Map<UUID, Dataset> datasetMap = null;
 		String jsonJobs = null;
 		Integer version = null;
 
+		// resume an interrupted extraction like in extractSessionRandomAccess()
+		Map<UUID, Dataset> existingDatasets = sessionDb.getDatasets(sessionId);
+
 		// read zip stream from the file-broker, upload extracted files back to
 		// file-broker and store
 		// metadata json files in memory
@@ -104,12 +378,7 @@ public class JsonSession {
 					zipInputStream.closeEntry();
 
 				} else {
-					// Create only dummy datasets now and update them with real dataset data later.
-					// This way we don't make assumptions about the entry order.
 					UUID datasetId = UUID.fromString(entryName);
-					Dataset dummyDataset = new Dataset();
-					dummyDataset.setDatasetIdPair(sessionId, datasetId);
-					sessionDb.createDataset(sessionId, dummyDataset);
 
 					Long size = null;
 					/*
@@ -135,6 +404,22 @@ public class JsonSession {
 						}
 					}
 
+					Dataset existing = existingDatasets.get(datasetId);
+
+					if (isUploaded(existing, size)) {
+						logger.info("resume extraction, file of dataset " + datasetId + " was uploaded already");
+						// getNextEntry() skips the rest of this entry
+						continue;
+					}
+
+					// Create only dummy datasets now and update them with real dataset data later.
+					// This way we don't make assumptions about the entry order.
+					if (existing == null) {
+						Dataset dummyDataset = new Dataset();
+						dummyDataset.setDatasetIdPair(sessionId, datasetId);
+						sessionDb.createDataset(sessionId, dummyDataset);
+					}
+
 					// close only the entry instead of the whole zip when Jersey client finished the
 					// upload
 					// try-with-resources will close the zipInputStream after the whole zip file is
@@ -307,12 +592,9 @@ public class JsonSession {
 		for (Dataset dataset : datasets) {
 			entries.add(new InputStreamEntry(
 					sessionName + "/" + DIR_FILE_FORMAT_LATEST + "/" + dataset.getDatasetId().toString(),
-					new Callable<InputStream>() {
-						@Override
-						public InputStream call() throws Exception {
-							return fileBroker.download(sessionId, dataset.getDatasetId());
-						}
-					}, getCompressionLevel(dataset.getName())));
+					// continue from the same position if the connection fails
+					position -> fileBroker.download(sessionId, dataset.getDatasetId(), position),
+					getCompressionLevel(dataset.getName())));
 		}
 	}
 
@@ -0,0 +1,287 @@
+package fi.csc.chipster.sessionworker;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Create a zip stream using several threads
+ *
+ * The next entries are downloaded in the background while the current entry is
+ * written, so that there is always something to compress even if opening the
+ * download takes time. Each entry is split to chunks, which are deflated
+ * independently in the compression thread pool and written in order, like
+ * pigz does. The last 32 kB of the previous chunk is used as a dictionary for
+ * the next chunk, so the compression ratio is practically the same as when
+ * compressing the whole entry in one go.
+ *
+ * Each chunk except the last is ended with a sync flush, which aligns it to a
+ * byte boundary without ending the deflate stream, so the chunks can be simply
+ * concatenated. The result is a standard zip file.
+ */
+public class ParallelZipPackager {
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private static final int CHUNK_SIZE = 1024 * 1024;
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+	// buffer size for each prefetched entry in chunks
+	private static final int PREFETCH_CHUNKS = 4;
+
+	private static final int DOWNLOAD_RETRIES = 3;
+
+	// marks the end of the entry in the prefetch queue
+	private static final byte[] END = new byte[0];
+
+	private final ExecutorService compressionExecutor;
+	private final ExecutorService prefetchExecutor;
+	private final int compressionThreads;
+	private final int prefetchCount;
+
+	/**
+	 * @param compressionThreads number of threads for compression, shared by all
+	 *                           zip streams
+	 * @param prefetchCount      number of entries to download in advance
+	 */
+	public ParallelZipPackager(int compressionThreads, int prefetchCount) {
+		this.compressionThreads = compressionThreads;
+		this.prefetchCount = prefetchCount;
+
+		this.compressionExecutor = Executors.newFixedThreadPool(compressionThreads, runnable -> {
+			Thread thread = new Thread(runnable, "zip-compression");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.prefetchExecutor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "zip-prefetch");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Download of one entry
+	 *
+	 * Reads the input stream in chunks to a bounded queue.
+	 */
+	private class Prefetch implements Runnable {
+
+		private final InputStreamEntry entry;
+		private final ArrayBlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(PREFETCH_CHUNKS);
+		private volatile Exception exception;
+		private Future<?> future;
+
+		public Prefetch(InputStreamEntry entry) {
+			this.entry = entry;
+		}
+
+		@Override
+		public void run() {
+			// continue from the same position if the download connection fails
+			try (InputStream in = new ResumableInputStream(entry.getSource(), entry.getName(),
+					DOWNLOAD_RETRIES)) {
+				while (true) {
+					byte[] chunk = in.readNBytes(CHUNK_SIZE);
+					if (chunk.length == 0) {
+						break;
+					}
+					chunks.put(chunk);
+				}
+			} catch (InterruptedException e) {
+				// cancelled
+				return;
+			} catch (Exception e) {
+				this.exception = e;
+			}
+
+			try {
+				chunks.put(END);
+			} catch (InterruptedException e) {
+				// cancelled
+			}
+		}
+
+		/**
+		 * @return the next chunk or END
+		 * @throws IOException if the download failed
+		 */
+		public byte[] take() throws IOException, InterruptedException {
+			byte[] chunk = chunks.take();
+			if (chunk == END && exception != null) {
+				throw new IOException("failed to read " + entry.getName(), exception);
+			}
+			return chunk;
+		}
+
+		public void cancel() {
+			future.cancel(true);
+		}
+	}
+
+	/**
+	 * Write the entries to the output stream as a zip file
+	 *
+	 * If there is an error, the output stream is closed without finishing the
+	 * zip file so that the result isn't a valid zip file.
+	 *
+	 * @param entries
+	 * @param output
+	 * @throws IOException
+	 */
+	public void streamZip(List<InputStreamEntry> entries, OutputStream output) throws IOException {
+
+		ArrayList<Prefetch> prefetches = new ArrayList<>();
+
+		try {
+			// a decent output buffer seems to improve performance a bit (90MB/s -> 110MB/s)
+			ZipStreamWriter zip = new ZipStreamWriter(new BufferedOutputStream(output, 2 * 1024 * 1024));
+
+			for (int i = 0; i < entries.size(); i++) {
+
+				// keep the next entries downloading
+				while (prefetches.size() < Math.min(entries.size(), i + 1 + prefetchCount)) {
+					Prefetch prefetch = new Prefetch(entries.get(prefetches.size()));
+					prefetch.future = prefetchExecutor.submit(prefetch);
+					prefetches.add(prefetch);
+				}
+
+				writeEntry(zip, entries.get(i), prefetches.get(i));
+				prefetches.set(i, null);
+			}
+
+			// write central directory only when there was no errors
+			zip.finish();
+			output.close();
+
+		} catch (Exception e) {
+
+			for (Prefetch prefetch : prefetches) {
+				if (prefetch != null) {
+					prefetch.cancel();
+				}
+			}
+
+			// error happened. Close the output stream without writing the central directory
+			// so that the file isn't a valid zip format
+			output.close();
+			throw new IOException("error in copying dataset input stream to zip output stream", e);
+		}
+	}
+
+	private void writeEntry(ZipStreamWriter zip, InputStreamEntry entry, Prefetch prefetch)
+			throws IOException, InterruptedException, ExecutionException {
+
+		int level = entry.getCompressionLevel();
+
+		zip.putNextEntry(entry.getName());
+
+		CRC32 crc = new CRC32();
+		long size = 0;
+
+		// compressed chunks in the order of the entry
+		ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+		byte[] dictionary = null;
+
+		byte[] chunk = prefetch.take();
+
+		while (true) {
+			// read one chunk ahead to know if this is the last one
+			byte[] next = chunk != END ? prefetch.take() : END;
+			boolean last = next == END;
+
+			crc.update(chunk);
+			size += chunk.length;
+
+			byte[] data = chunk;
+			byte[] dict = dictionary;
+			pending.add(compressionExecutor.submit(() -> deflate(data, dict, level, last)));
+
+			// limit the memory usage
+			while (pending.size() >= compressionThreads * 2) {
+				zip.write(pending.poll().get());
+			}
+
+			if (last) {
+				break;
+			}
+
+			if (level != Deflater.NO_COMPRESSION) {
+				dictionary = Arrays.copyOfRange(chunk, Math.max(0, chunk.length - DICTIONARY_SIZE), chunk.length);
+			}
+			chunk = next;
+		}
+
+		while (!pending.isEmpty()) {
+			zip.write(pending.poll().get());
+		}
+
+		zip.closeEntry(crc.getValue(), size);
+
+		logger.debug("zip entry " + entry.getName() + " " + size + " bytes");
+	}
+
+	/**
+	 * Compress one chunk to raw deflate data
+	 *
+	 * @param data
+	 * @param dictionary the end of the previous chunk or null
+	 * @param level
+	 * @param last       finish the deflate stream after this chunk
+	 * @return
+	 */
+	static byte[] deflate(byte[] data, byte[] dictionary, int level, boolean last) {
+
+		Deflater deflater = new Deflater(level, true);
+
+		try {
+			if (dictionary != null) {
+				deflater.setDictionary(dictionary);
+			}
+
+			deflater.setInput(data);
+			if (last) {
+				deflater.finish();
+			}
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+			byte[] buffer = new byte[64 * 1024];
+
+			while (true) {
+				int length = deflater.deflate(buffer, 0, buffer.length,
+						last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+				out.write(buffer, 0, length);
+
+				// sync flush is complete when it doesn't fill the buffer
+				if (last ? deflater.finished() : length < buffer.length) {
+					break;
+				}
+			}
+
+			return out.toByteArray();
+
+		} finally {
+			deflater.end();
+		}
+	}
+
+	public void close() {
+		compressionExecutor.shutdownNow();
+		prefetchExecutor.shutdownNow();
+	}
+}
@@ -1,12 +1,7 @@
 package fi.csc.chipster.sessionworker;
 
 import java.time.Duration;
-import java.time.Instant;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -14,15 +9,23 @@ import org.apache.logging.log4j.Logger;
 /**
  * Measure if a user has made more than allowed number of requests in a given
  * duration
- * 
- * The maximum number of timestamps stored for each user is limited by the
- * countLimit, so
- * the memory usage of each user is limited. Obsolete records are deleted by a
- * timer.
- * 
- * All methods are thread-safe after the constructor, but the crude
- * synchronization may limit performance.
- * 
+ *
+ * Each user has a token bucket, which holds at most countLimit tokens and is
+ * refilled at the rate of countLimit tokens per durationLimit. A user can make
+ * countLimit requests right away and after that one request for each
+ * durationLimit / countLimit. Denied requests don't consume tokens.
+ *
+ * The bucket is stored as a single timestamp, the theoretical arrival time of
+ * the next request (GCRA), so the memory usage is constant for each user. A
+ * full bucket is equal to having no record at all, so those records are
+ * removed, when the map of the shard has grown. There is no background timer.
+ *
+ * The users are divided to shards by the hash of the username and each shard
+ * has its own lock, so that requests of different users don't block each
+ * other.
+ *
+ * All methods are thread-safe.
+ *
  * @author klemela
  */
 public class RequestThrottle {
@@ -32,90 +35,121 @@ public class RequestThrottle {
 
 	public static final String HEADER_RETRY_AFTER = "Retry-After";
 
-	HashMap<String, LinkedList<Instant>> usernameMap = new HashMap<>();
-	private Duration durationLimit;
-	private long requestLimit;
+	// power of two
+	private static final int SHARD_COUNT = 64;
+
+	private static class Shard {
+		// theoretical arrival time of the next request in System.nanoTime()
+		private final HashMap<String, long[]> usernameMap = new HashMap<>();
+		// sweep when the map has grown to this size
+		private int sweepSize = 16;
+	}
+
+	private final Shard[] shards = new Shard[SHARD_COUNT];
+	private final long durationLimit;
+	private final long emissionInterval;
 
 	/**
 	 * @param durationLimit Duration of the sliding window
 	 * @param countLimit    Maximum allowed number of requests during the given
 	 *                      duration
+	 * @throws IllegalArgumentException if the limits don't allow any requests
 	 */
 	public RequestThrottle(Duration durationLimit, long countLimit) {
-		this.durationLimit = durationLimit;
-		this.requestLimit = countLimit;
+		if (countLimit <= 0) {
+			throw new IllegalArgumentException("request count limit must be positive: " + countLimit);
+		}
+		this.durationLimit = durationLimit.toNanos();
+		this.emissionInterval = this.durationLimit / countLimit;
+
+		// the interval truncates to zero when the count is larger than the duration in
+		// nanoseconds
+		if (this.emissionInterval <= 0) {
+			throw new IllegalArgumentException(
+					"request duration limit " + durationLimit + " is too short for " + countLimit + " requests");
+		}
 
-		new Timer(true).scheduleAtFixedRate(
-				new CleanUpTask(),
-				this.durationLimit.toMillis(),
-				this.durationLimit.toMillis());
+		for (int i = 0; i < SHARD_COUNT; i++) {
+			shards[i] = new Shard();
+		}
 	}
 
 	/**
 	 * Check whether the user has exceeded her rate limit
-	 * 
+	 *
 	 * The return value tells how long the client should wait when the limit is
 	 * exceeded.
 	 * In the normal situation this should return Duration.ZERO and the request can
 	 * be handled right away.
-	 * 
+	 *
 	 * @param username
 	 * @return Duration.ZERO when the request is allowed or positive Duration if the
 	 *         limit is exceeded
 	 */
 	public Duration throttle(String username) {
-		synchronized (usernameMap) {
-			if (usernameMap.get(username) == null) {
-				usernameMap.put(username, new LinkedList<Instant>());
-			}
-			LinkedList<Instant> requests = usernameMap.get(username);
 
-			// add the current time to the end of the list
-			requests.add(Instant.now());
+		Shard shard = getShard(username);
 
-			// allow the list to grow until the countLimit is reached
-			if (requests.size() > this.requestLimit) {
+		synchronized (shard) {
+			long now = System.nanoTime();
 
-				// keep the list size in countLimit (max memory consumption per user)
-				requests.removeFirst();
+			long[] arrivalTime = shard.usernameMap.get(username);
 
-				// if the oldest request is newer than the durationLimit, user has exceeded her
-				// limit
-				Duration ageOfOldest = Duration.between(requests.getFirst(), Instant.now());
-				Duration retryAfter = durationLimit.minus(ageOfOldest);
-				if (!retryAfter.isNegative()) {
-					return retryAfter;
+			if (arrivalTime == null) {
+				if (shard.usernameMap.size() >= shard.sweepSize) {
+					sweep(shard, now);
 				}
+				arrivalTime = new long[] { now };
+				shard.usernameMap.put(username, arrivalTime);
+			}
+
+			// a bucket can't be fuller than full
+			long next = Math.max(arrivalTime[0], now) + emissionInterval;
+
+			// the bucket is empty
+			long retryAfter = next - durationLimit - now;
+			if (retryAfter > 0) {
+				return Duration.ofNanos(retryAfter);
 			}
+
 			// request allowed
+			arrivalTime[0] = next;
 			return Duration.ZERO;
 		}
 	}
 
-	public class CleanUpTask extends TimerTask {
-		@Override
-		public void run() {
-			synchronized (usernameMap) {
-				Iterator<String> iter = usernameMap.keySet().iterator();
-
-				while (iter.hasNext()) {
-					String username = iter.next();
+	private Shard getShard(String username) {
+		int hash = username.hashCode();
+		// spread the high bits like HashMap does
+		hash ^= (hash >>> 16);
+		return shards[hash & (SHARD_COUNT - 1)];
+	}
 
-					LinkedList<Instant> requests = usernameMap.get(username);
+	/**
+	 * Remove the users whose bucket is full again
+	 *
+	 * Caller must synchronize with the shard.
+	 *
+	 * @param shard
+	 * @param now
+	 */
+	private static void sweep(Shard shard, long now) {
+		shard.usernameMap.values().removeIf(arrivalTime -> arrivalTime[0] - now <= 0);
 
-					// the user's latest request is older than durationLimit, these
-					// won't affect the new requests and can be removed
-					if (requests.getLast().isBefore(Instant.now().minus(durationLimit))) {
-						iter.remove();
-					}
-				}
-			}
-		}
+		// amortized constant time: sweep again only when the map has doubled
+		shard.sweepSize = Math.max(16, shard.usernameMap.size() * 2);
 	}
 
 	public int getUsernameCount() {
-		synchronized (usernameMap) {
-			return usernameMap.size();
+		int count = 0;
+		long now = System.nanoTime();
+
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				sweep(shard, now);
+				count += shard.usernameMap.size();
+			}
 		}
+		return count;
 	}
 }
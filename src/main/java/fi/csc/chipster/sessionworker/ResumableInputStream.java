@@ -0,0 +1,144 @@
+package fi.csc.chipster.sessionworker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * InputStream that reopens the source if the connection fails
+ *
+ * The stream keeps count of the bytes it has returned. If reading fails, the
+ * source is opened again from the same position (e.g. with a HTTP Range
+ * request), so the reader sees one continuous stream. A connection reset in
+ * the middle of a big file costs only the rest of that file, instead of the
+ * whole session export.
+ */
+public class ResumableInputStream extends InputStream {
+
+	/**
+	 * Opens the stream at the given position
+	 */
+	public interface Source {
+		InputStream open(long position) throws Exception;
+	}
+
+	private static final Logger logger = LogManager.getLogger();
+
+	// ms, multiplied by the number of the retry
+	private static final long RETRY_DELAY = 1000;
+
+	private final Source source;
+	private final String name;
+	private final int maxRetries;
+
+	private InputStream in;
+	private long position = 0;
+	private int retries = 0;
+	private boolean opened = false;
+
+	/**
+	 * @param source     opens the stream at the position where the reading
+	 *                   continues
+	 * @param name       name for the log messages
+	 * @param maxRetries how many times the stream is reopened at most
+	 */
+	public ResumableInputStream(Source source, String name, int maxRetries) {
+		this.source = source;
+		this.name = name;
+		this.maxRetries = maxRetries;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int n = read(b, 0, 1);
+		return n == -1 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		while (true) {
+			try {
+				if (in == null) {
+					open();
+				}
+				int n = in.read(b, off, len);
+				if (n > 0) {
+					position += n;
+				}
+				return n;
+
+			} catch (IOException e) {
+				closeQuietly();
+
+				// errors in the first open are not about the connection (e.g. access denied)
+				if (!opened || retries >= maxRetries) {
+					throw e;
+				}
+				retries++;
+				logger.warn("reading " + name + " failed at byte " + position + ", retry " + retries + "/"
+						+ maxRetries + ": " + e.getMessage());
+
+				try {
+					Thread.sleep(RETRY_DELAY * retries);
+				} catch (InterruptedException ie) {
+					throw new InterruptedIOException("interrupted while waiting for retry");
+				}
+			}
+		}
+	}
+
+	private void open() throws IOException {
+		try {
+			in = source.open(position);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("failed to open " + name, e);
+		}
+		opened = true;
+	}
+
+	/**
+	 * Source for streams that can only be opened from the beginning
+	 *
+	 * The bytes before the position are read again and skipped.
+	 *
+	 * @param callable
+	 * @return
+	 */
+	public static Source fromStart(Callable<InputStream> callable) {
+		return position -> {
+			InputStream in = callable.call();
+			in.skipNBytes(position);
+			return in;
+		};
+	}
+
+	private void closeQuietly() {
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// the connection is broken anyway
+			}
+			in = null;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (in != null) {
+			in.close();
+			in = null;
+		}
+	}
+
+	public int getRetries() {
+		return retries;
+	}
+}
@@ -1,9 +1,7 @@
 package fi.csc.chipster.sessionworker;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
@@ -19,11 +17,8 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
-import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
-import java.util.zip.ZipOutputStream;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -34,6 +29,7 @@ import com.fasterxml.jackson.databind.JsonMappingException;
 import fi.csc.chipster.auth.model.Role;
 import fi.csc.chipster.filebroker.FileBrokerApi;
 import fi.csc.chipster.filebroker.RestFileBrokerClient;
+import fi.csc.chipster.rest.Config;
 import fi.csc.chipster.rest.RestUtils;
 import fi.csc.chipster.rest.ServletUtils;
 import fi.csc.chipster.rest.StaticCredentials;
@@ -95,7 +91,11 @@ public class ZipSessionServlet extends HttpServlet {
 
 	private ExecutorService executor;
 
-	public ZipSessionServlet(ServiceLocatorClient serviceLocator) {
+	private ParallelZipPackager packager;
+
+	private int extractThreads;
+
+	public ZipSessionServlet(ServiceLocatorClient serviceLocator, Config config) {
 		this.serviceLocator = serviceLocator;
 
 		// all files in this directory will be deleted
@@ -109,6 +109,25 @@ public class ZipSessionServlet extends HttpServlet {
 		}
 
 		this.executor = Executors.newCachedThreadPool();
+
+		int zipThreads = config.getInt(Config.KEY_SESSION_WORKER_ZIP_THREADS);
+		if (zipThreads <= 0) {
+			zipThreads = Runtime.getRuntime().availableProcessors();
+		}
+		this.packager = new ParallelZipPackager(zipThreads,
+				config.getInt(Config.KEY_SESSION_WORKER_ZIP_PREFETCH));
+
+		this.extractThreads = config.getInt(Config.KEY_SESSION_WORKER_ZIP_EXTRACT_THREADS);
+		if (extractThreads < 1) {
+			logger.warn(Config.KEY_SESSION_WORKER_ZIP_EXTRACT_THREADS + " is " + extractThreads + ", using 1");
+			extractThreads = 1;
+		}
+	}
+
+	@Override
+	public void destroy() {
+		packager.close();
+		super.destroy();
 	}
 
 	private void packageSession(HttpServletResponse response, StaticCredentials credentials, UUID sessionId)
@@ -166,7 +185,7 @@ public class ZipSessionServlet extends HttpServlet {
 			// data is uploaded)
 			executor.submit(() -> {
 				try {
-					streamZip(entries, output2);
+					packager.streamZip(entries, output2);
 				} catch (IOException e) {
 					logger.error("failed to package zip session", e);
 					errors.add("failed to package zip session: " + e.getMessage());
@@ -215,52 +234,6 @@ public class ZipSessionServlet extends HttpServlet {
 		}
 	}
 
-	/**
-	 * Create a zip stream of the given input streams. Just like packaging multiple
-	 * files to single zip file, but without
-	 * requiring the inputs and outputs to be local files. This allows us to read
-	 * the input files from the file-broker over
-	 * HTTP, create the zip file on the fly and write it directly to the client.
-	 * 
-	 * @param entries Files to store in the zip file.
-	 * 
-	 * @return StreamingOutput of the created zip file.
-	 * @throws IOException
-	 */
-	private void streamZip(ArrayList<InputStreamEntry> entries, OutputStream output) throws IOException {
-
-		try {
-
-			// a decent output buffer seems to improve performance a bit (90MB/s -> 110MB/s)
-			ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(output, 2 * 1024 * 1024));
-
-			for (InputStreamEntry entry : entries) {
-
-				ZipEntry zipEntry = new ZipEntry(entry.getName());
-				zos.putNextEntry(zipEntry);
-				zos.setLevel(entry.getCompressionLevel());
-
-				try (InputStream entryStream = entry.getInputStreamCallable().call()) {
-
-					IOUtils.copy(entryStream, zos);
-				}
-
-				zos.closeEntry();
-			}
-
-			// close zip stream only when there was no errors
-			zos.close();
-
-		} catch (Exception e) {
-
-			// error happened. Close the output stream without closing the zip stream so
-			// that the file isn't a valid zip format
-
-			output.close();
-			throw new IOException("error in copying dataset input stream to zip output stream", e);
-		}
-	}
-
 	@Override
 	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
 
@@ -346,7 +319,8 @@ public class ZipSessionServlet extends HttpServlet {
 
 			keepAliveWithSpaces(output, latch);
 
-			ExtractedSession sessionData = JsonSession.extractSession(fileBroker, sessionDb, sessionId, zipDatasetId);
+			ExtractedSession sessionData = JsonSession.extractSession(fileBroker, sessionDb, sessionId, zipDatasetId, tempDir,
+					extractThreads);
 
 			if (sessionData == null) {
 				sessionData = XmlSession.extractSession(fileBroker, sessionDb, sessionId, zipDatasetId, tempDir);
@@ -0,0 +1,249 @@
+package fi.csc.chipster.sessionworker;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+
+/**
+ * Write a zip file of entries that have been deflated already
+ *
+ * ZipOutputStream compresses the entries itself in the calling thread, so it
+ * can't be used when the entries are compressed in parallel. This class writes
+ * the same format that ZipOutputStream writes for DEFLATED entries of unknown
+ * size: the sizes and the checksum are in the data descriptor after the data,
+ * and the zip64 extensions are used only when the sizes or offsets require it.
+ *
+ * The result can be read with both ZipInputStream and ZipFile.
+ */
+class ZipStreamWriter {
+
+	private static final int LOCSIG = 0x04034b50;
+	private static final int EXTSIG = 0x08074b50;
+	private static final int CENSIG = 0x02014b50;
+	private static final int ENDSIG = 0x06054b50;
+	private static final int ZIP64_ENDSIG = 0x06064b50;
+	private static final int ZIP64_LOCSIG = 0x07064b50;
+
+	private static final long ZIP64_MAGICVAL = 0xFFFFFFFFL;
+	private static final int ZIP64_MAGICCOUNT = 0xFFFF;
+	private static final int ZIP64_EXTID = 0x0001;
+
+	private static final int DEFLATED = 8;
+	// data descriptor and UTF-8 names
+	private static final int FLAGS = 0x0808;
+	private static final int VERSION = 20;
+	private static final int VERSION_ZIP64 = 45;
+
+	private static class Entry {
+		private byte[] name;
+		private int time;
+		private long offset;
+		private long crc;
+		private long size;
+		private long compressedSize;
+	}
+
+	private final OutputStream out;
+	private final ArrayList<Entry> entries = new ArrayList<>();
+	private long written = 0;
+	private Entry current;
+
+	public ZipStreamWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Write the local header of the next entry
+	 *
+	 * @param name
+	 * @throws IOException
+	 */
+	public void putNextEntry(String name) throws IOException {
+		if (current != null) {
+			throw new IllegalStateException("previous entry is not closed");
+		}
+
+		current = new Entry();
+		current.name = name.getBytes(StandardCharsets.UTF_8);
+		current.time = toDosTime(LocalDateTime.now());
+		current.offset = written;
+
+		writeInt(LOCSIG);
+		writeShort(VERSION);
+		writeShort(FLAGS);
+		writeShort(DEFLATED);
+		writeInt(current.time);
+		// crc and sizes are in the data descriptor
+		writeInt(0);
+		writeInt(0);
+		writeInt(0);
+		writeShort(current.name.length);
+		writeShort(0);
+		writeBytes(current.name, 0, current.name.length);
+	}
+
+	/**
+	 * Write raw deflate data of the current entry
+	 *
+	 * @param compressed
+	 * @throws IOException
+	 */
+	public void write(byte[] compressed) throws IOException {
+		writeBytes(compressed, 0, compressed.length);
+		current.compressedSize += compressed.length;
+	}
+
+	/**
+	 * Write the data descriptor of the current entry
+	 *
+	 * @param crc  CRC-32 of the uncompressed data
+	 * @param size size of the uncompressed data
+	 * @throws IOException
+	 */
+	public void closeEntry(long crc, long size) throws IOException {
+		current.crc = crc;
+		current.size = size;
+
+		writeInt(EXTSIG);
+		writeInt(crc);
+		if (current.compressedSize >= ZIP64_MAGICVAL || size >= ZIP64_MAGICVAL) {
+			writeLong(current.compressedSize);
+			writeLong(size);
+		} else {
+			writeInt(current.compressedSize);
+			writeInt(size);
+		}
+
+		entries.add(current);
+		current = null;
+	}
+
+	/**
+	 * Write the central directory and flush
+	 *
+	 * The underlying stream isn't closed.
+	 *
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		long cenOffset = written;
+
+		for (Entry entry : entries) {
+			writeCentralHeader(entry);
+		}
+
+		long cenSize = written - cenOffset;
+		int count = entries.size();
+
+		if (cenOffset >= ZIP64_MAGICVAL || cenSize >= ZIP64_MAGICVAL || count >= ZIP64_MAGICCOUNT) {
+			long zip64EndOffset = written;
+
+			writeInt(ZIP64_ENDSIG);
+			// size of the remaining record
+			writeLong(44);
+			writeShort(VERSION_ZIP64);
+			writeShort(VERSION_ZIP64);
+			writeInt(0);
+			writeInt(0);
+			writeLong(count);
+			writeLong(count);
+			writeLong(cenSize);
+			writeLong(cenOffset);
+
+			writeInt(ZIP64_LOCSIG);
+			writeInt(0);
+			writeLong(zip64EndOffset);
+			writeInt(1);
+		}
+
+		writeInt(ENDSIG);
+		writeShort(0);
+		writeShort(0);
+		writeShort(Math.min(count, ZIP64_MAGICCOUNT));
+		writeShort(Math.min(count, ZIP64_MAGICCOUNT));
+		writeInt(Math.min(cenSize, ZIP64_MAGICVAL));
+		writeInt(Math.min(cenOffset, ZIP64_MAGICVAL));
+		// comment length
+		writeShort(0);
+
+		out.flush();
+	}
+
+	private void writeCentralHeader(Entry entry) throws IOException {
+
+		boolean zip64Size = entry.size >= ZIP64_MAGICVAL;
+		boolean zip64CompressedSize = entry.compressedSize >= ZIP64_MAGICVAL;
+		boolean zip64Offset = entry.offset >= ZIP64_MAGICVAL;
+
+		int extraLength = (zip64Size ? 8 : 0) + (zip64CompressedSize ? 8 : 0) + (zip64Offset ? 8 : 0);
+		boolean hasZip64 = extraLength > 0;
+
+		writeInt(CENSIG);
+		writeShort(hasZip64 ? VERSION_ZIP64 : VERSION);
+		writeShort(hasZip64 ? VERSION_ZIP64 : VERSION);
+		writeShort(FLAGS);
+		writeShort(DEFLATED);
+		writeInt(entry.time);
+		writeInt(entry.crc);
+		writeInt(zip64CompressedSize ? ZIP64_MAGICVAL : entry.compressedSize);
+		writeInt(zip64Size ? ZIP64_MAGICVAL : entry.size);
+		writeShort(entry.name.length);
+		writeShort(hasZip64 ? extraLength + 4 : 0);
+		// comment length, disk number, internal and external attributes
+		writeShort(0);
+		writeShort(0);
+		writeShort(0);
+		writeInt(0);
+		writeInt(zip64Offset ? ZIP64_MAGICVAL : entry.offset);
+		writeBytes(entry.name, 0, entry.name.length);
+
+		if (hasZip64) {
+			// the order is defined in the zip specification
+			writeShort(ZIP64_EXTID);
+			writeShort(extraLength);
+			if (zip64Size) {
+				writeLong(entry.size);
+			}
+			if (zip64CompressedSize) {
+				writeLong(entry.compressedSize);
+			}
+			if (zip64Offset) {
+				writeLong(entry.offset);
+			}
+		}
+	}
+
+	private static int toDosTime(LocalDateTime time) {
+		if (time.getYear() < 1980) {
+			return (1 << 21) | (1 << 16);
+		}
+		return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+				| time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+	}
+
+	private void writeShort(int v) throws IOException {
+		out.write(v & 0xff);
+		out.write((v >>> 8) & 0xff);
+		written += 2;
+	}
+
+	private void writeInt(long v) throws IOException {
+		out.write((int) (v & 0xff));
+		out.write((int) ((v >>> 8) & 0xff));
+		out.write((int) ((v >>> 16) & 0xff));
+		out.write((int) ((v >>> 24) & 0xff));
+		written += 4;
+	}
+
+	private void writeLong(long v) throws IOException {
+		writeInt(v);
+		writeInt(v >>> 32);
+	}
+
+	private void writeBytes(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		written += len;
+	}
+}
@@ -0,0 +1,86 @@
+package fi.csc.chipster.tools.ngs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+
+import fi.csc.chipster.tools.parsers.ByteDataSource;
+import fi.csc.chipster.tools.parsers.DataUrl;
+import fi.csc.chipster.tools.parsers.RegionIndex;
+
+/**
+ * Create a region index for a sorted BED, GTF or VCF file or query a region
+ * with it
+ */
+public class IndexRegions {
+
+	public static void main(String[] args) throws Exception {
+
+		try {
+
+			String command = args[0];
+			File data = new File(args[1]);
+			File indexFile = new File(data.getPath() + RegionIndex.SUFFIX);
+
+			if ("index".equals(command)) {
+
+				RegionIndex.Format format = args.length > 2 ? RegionIndex.Format.valueOf(args[2].toUpperCase())
+						: RegionIndex.detect(data);
+
+				if (format == null) {
+					throw new IllegalArgumentException("unknown format, give it as a parameter");
+				}
+
+				System.out.println("Indexing " + format + " file " + data + "...");
+
+				RegionIndex index;
+				try (InputStream in = new FileInputStream(data)) {
+					index = RegionIndex.build(in, format);
+				}
+				index.write(indexFile);
+
+				System.out.println(index.getBlocks().size() + " blocks written to " + indexFile);
+
+			} else if ("query".equals(command)) {
+
+				// chr:start-end, 1-based and inclusive like in tabix
+				String region = args[2];
+				String chr = region.substring(0, region.lastIndexOf(":"));
+				String[] startEnd = region.substring(region.lastIndexOf(":") + 1).replace(",", "").split("-");
+				long start = Long.parseLong(startEnd[0]) - 1;
+				long end = Long.parseLong(startEnd[1]);
+
+				RegionIndex index = RegionIndex.read(indexFile);
+				if (index.getDataLength() != data.length()) {
+					throw new IllegalStateException("index is outdated, index the file again");
+				}
+
+				ByteDataSource dataSource = new ByteDataSource(new DataUrl(data));
+				try {
+					for (String line : index.query(dataSource, chr, start, end)) {
+						System.out.println(line);
+					}
+				} finally {
+					dataSource.close();
+				}
+
+			} else {
+				throw new IllegalArgumentException("unknown command " + command);
+			}
+
+		} catch (Exception e) {
+			e.printStackTrace();
+
+			System.out.println(
+					"usage: \n" +
+							"  IndexRegions index <sorted-file> [BED|GTF|VCF]\n" +
+							"  IndexRegions query <sorted-file> <chr>:<start>-<end>\n" +
+							"  The index is written to <sorted-file>" + RegionIndex.SUFFIX + "\n" +
+							"  Query coordinates are 1-based and inclusive\n\n" +
+							"example:\n " +
+							"  java -cp chipster-3.0.0.jar fi.csc.chipster.tools.ngs.IndexRegions index Homo_sapiens.GRCh37.70-sort.gtf\n"
+							+
+							"  java -cp chipster-3.0.0.jar fi.csc.chipster.tools.ngs.IndexRegions query Homo_sapiens.GRCh37.70-sort.gtf 1:1000000-1100000");
+		}
+	}
+}
@@ -40,6 +40,10 @@ public class PreprocessNGSSingle extends JavaCompJobBase {
 
 			});
 
+			// sort within the job's limits and keep the temporary files in the job
+			samBamUtil.setSortMemoryLimit(getMemoryLimit());
+			samBamUtil.setTmpDir(jobDataDir);
+
 			samBamUtil.preprocessSamBam(inputFile, outputFile, indexOutputFile);
 
 		} catch (Exception e) {
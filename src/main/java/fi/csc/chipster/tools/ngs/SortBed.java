@@ -28,10 +28,16 @@ public class SortBed extends JavaCompJobBase {
 			File inputFile = new File(jobDataDir, toolDescription.getInputFiles().get(0).getFileName().getID());
 			File outputFile = new File(jobDataDir, toolDescription.getOutputFiles().get(0).getFileName().getID());
 
-			// run sort
+			// run sort within the job's limits
+			TsvSorter sorter = new TsvSorter();
+			sorter.setMemoryLimit(getMemoryLimit());
+			sorter.setThreads(getThreadLimit());
+			sorter.setTmpDir(jobDataDir);
+			sorter.setMaxTmpSize(getStorageLimit());
+
 			// BEDParser increments coordinates by one, but it's not a problem because only
 			// its column order is used
-			new TsvSorter().sort(
+			sorter.sort(
 					inputFile, outputFile,
 					BedLineParser.Column.CHROM.ordinal(), BedLineParser.Column.CHROM_START.ordinal(),
 					new BedLineParser(false));
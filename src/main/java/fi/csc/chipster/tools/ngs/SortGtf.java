@@ -27,8 +27,14 @@ public class SortGtf extends JavaCompJobBase {
 			File inputFile = new File(jobDataDir, toolDescription.getInputFiles().get(0).getFileName().getID());
 			File outputFile = new File(jobDataDir, toolDescription.getOutputFiles().get(0).getFileName().getID());
 
-			// run sort
-			sort(inputFile, outputFile);
+			// run sort within the job's limits
+			TsvSorter sorter = new TsvSorter();
+			sorter.setMemoryLimit(getMemoryLimit());
+			sorter.setThreads(getThreadLimit());
+			sorter.setTmpDir(jobDataDir);
+			sorter.setMaxTmpSize(getStorageLimit());
+
+			sort(sorter, inputFile, outputFile);
 
 		} catch (Exception e) {
 			getResultMessage().setErrorMessage(Exceptions.getStackTrace(e));
@@ -39,8 +45,8 @@ public class SortGtf extends JavaCompJobBase {
 		updateState(JobState.RUNNING, "sorting finished");
 	}
 
-	private static void sort(File inputFile, File outputFile) throws Exception {
-		new TsvSorter().sort(
+	private static void sort(TsvSorter sorter, File inputFile, File outputFile) throws Exception {
+		sorter.sort(
 				inputFile, outputFile,
 				GtfLineParser.Column.SEQNAME.ordinal(),
 				GtfLineParser.Column.START.ordinal(), new GtfLineParser());
@@ -53,7 +59,7 @@ public class SortGtf extends JavaCompJobBase {
 			File in = new File(args[0]);
 			File out = new File(args[1]);
 
-			sort(in, out);
+			sort(new TsvSorter(), in, out);
 
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -48,7 +48,14 @@ public class SortTsv extends JavaCompJobBase {
 				chrColumn = 1;
 			}
 
-			sort(inputFile, outputFile, chrColumn);
+			// run sort within the job's limits
+			TsvSorter sorter = new TsvSorter();
+			sorter.setMemoryLimit(getMemoryLimit());
+			sorter.setThreads(getThreadLimit());
+			sorter.setTmpDir(jobDataDir);
+			sorter.setMaxTmpSize(getStorageLimit());
+
+			sort(sorter, inputFile, outputFile, chrColumn);
 
 		} catch (Exception e) {
 
@@ -60,10 +67,9 @@ public class SortTsv extends JavaCompJobBase {
 		updateState(JobState.RUNNING, "sorting finished");
 	}
 
-	private static void sort(File inputFile, File outputFile, int chrColumn)
+	private static void sort(TsvSorter sorter, File inputFile, File outputFile, int chrColumn)
 			throws MalformedURLException, IOException, URISyntaxException, Exception {
-		// run sort
-		new TsvSorter().sort(
+		sorter.sort(
 				inputFile, outputFile,
 				chrColumn, chrColumn + 1, new TsvLineParser(new DataUrl(inputFile), chrColumn));
 	}
@@ -76,7 +82,7 @@ public class SortTsv extends JavaCompJobBase {
 			File out = new File(args[1]);
 			int chrColumn = Integer.parseInt(args[2]) - 1;
 
-			sort(in, out, chrColumn);
+			sort(new TsvSorter(), in, out, chrColumn);
 
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -28,8 +28,14 @@ public class SortVcf extends JavaCompJobBase {
 			File inputFile = new File(jobDataDir, toolDescription.getInputFiles().get(0).getFileName().getID());
 			File outputFile = new File(jobDataDir, toolDescription.getOutputFiles().get(0).getFileName().getID());
 
-			// run sort
-			new TsvSorter().sort(
+			// run sort within the job's limits
+			TsvSorter sorter = new TsvSorter();
+			sorter.setMemoryLimit(getMemoryLimit());
+			sorter.setThreads(getThreadLimit());
+			sorter.setTmpDir(jobDataDir);
+			sorter.setMaxTmpSize(getStorageLimit());
+
+			sorter.sort(
 					inputFile, outputFile,
 					VcfLineParser.Column.CHROM.ordinal(),
 					VcfLineParser.Column.POS.ordinal(), new VcfLineParser());
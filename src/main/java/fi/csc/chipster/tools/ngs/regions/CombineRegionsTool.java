@@ -3,10 +3,13 @@ package fi.csc.chipster.tools.ngs.regions;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.function.Consumer;
 
 import fi.csc.chipster.sessiondb.model.Parameter;
 import fi.csc.chipster.tools.model.Feature;
 import fi.csc.chipster.tools.parsers.RegionOperations;
+import fi.csc.chipster.tools.parsers.SortedFeatureReader;
+import fi.csc.chipster.tools.parsers.SortedRegionOperations;
 
 public class CombineRegionsTool extends RegionTool {
 
@@ -30,4 +33,13 @@ public class CombineRegionsTool extends RegionTool {
 		Long minOverlap = Long.valueOf(parameters.get("min.overlap.bp").getValue());
 		return tool.merge(inputs.get(0), inputs.get(1), minOverlap, flatten);
 	}
+
+	@Override
+	protected void operateSorted(LinkedList<SortedFeatureReader> inputs, LinkedHashMap<String, Parameter> parameters,
+			Consumer<Feature> output) {
+		SortedRegionOperations tool = new SortedRegionOperations();
+		boolean flatten = "yes".equals(parameters.get("merge.overlapping").getValue());
+		Long minOverlap = Long.valueOf(parameters.get("min.overlap.bp").getValue());
+		tool.merge(inputs.get(0), inputs.get(1), minOverlap, flatten, output);
+	}
 }
@@ -3,10 +3,13 @@ package fi.csc.chipster.tools.ngs.regions;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.function.Consumer;
 
 import fi.csc.chipster.sessiondb.model.Parameter;
 import fi.csc.chipster.tools.model.Feature;
 import fi.csc.chipster.tools.parsers.RegionOperations;
+import fi.csc.chipster.tools.parsers.SortedFeatureReader;
+import fi.csc.chipster.tools.parsers.SortedRegionOperations;
 
 public class FindOverlappingTool extends RegionTool {
 
@@ -26,10 +29,24 @@ public class FindOverlappingTool extends RegionTool {
 	protected LinkedList<Feature> operate(LinkedList<List<Feature>> inputs,
 			LinkedHashMap<String, Parameter> parameters) {
 		RegionOperations tool = new RegionOperations();
+		RegionOperations.PairPolicy pairPolicy = getPairPolicy(parameters);
+		Long minOverlap = Long.valueOf(parameters.get("min.overlap.bp").getValue());
+		return tool.intersect(inputs.get(0), inputs.get(1), minOverlap, pairPolicy, false);
+	}
+
+	@Override
+	protected void operateSorted(LinkedList<SortedFeatureReader> inputs, LinkedHashMap<String, Parameter> parameters,
+			Consumer<Feature> output) {
+		SortedRegionOperations tool = new SortedRegionOperations();
+		RegionOperations.PairPolicy pairPolicy = getPairPolicy(parameters);
+		Long minOverlap = Long.valueOf(parameters.get("min.overlap.bp").getValue());
+		tool.intersect(inputs.get(0), inputs.get(1), minOverlap, pairPolicy, false, output);
+	}
+
+	private RegionOperations.PairPolicy getPairPolicy(LinkedHashMap<String, Parameter> parameters) {
 		RegionOperations.PairPolicy pairPolicy;
 
 		String returnType = parameters.get("return.type").getValue();
-		String minOverlapBp = parameters.get("min.overlap.bp").getValue();
 
 		if ("intersection".equals(returnType)) {
 			pairPolicy = RegionOperations.INTERSECT_PAIR_POLICY;
@@ -42,8 +59,6 @@ public class FindOverlappingTool extends RegionTool {
 		} else {
 			pairPolicy = RegionOperations.LEFT_PAIR_POLICY;
 		}
-		Long minOverlap = Long.valueOf(minOverlapBp);
-		return tool.intersect(inputs.get(0), inputs.get(1), minOverlap, pairPolicy, false);
-
+		return pairPolicy;
 	}
 }
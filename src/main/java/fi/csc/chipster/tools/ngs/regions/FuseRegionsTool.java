@@ -3,10 +3,13 @@ package fi.csc.chipster.tools.ngs.regions;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.function.Consumer;
 
 import fi.csc.chipster.sessiondb.model.Parameter;
 import fi.csc.chipster.tools.model.Feature;
 import fi.csc.chipster.tools.parsers.RegionOperations;
+import fi.csc.chipster.tools.parsers.SortedFeatureReader;
+import fi.csc.chipster.tools.parsers.SortedRegionOperations;
 
 public class FuseRegionsTool extends RegionTool {
 
@@ -24,4 +27,11 @@ public class FuseRegionsTool extends RegionTool {
 		RegionOperations tool = new RegionOperations();
 		return tool.flatten(inputs.get(0));
 	}
+
+	@Override
+	protected void operateSorted(LinkedList<SortedFeatureReader> inputs, LinkedHashMap<String, Parameter> parameters,
+			Consumer<Feature> output) {
+		SortedRegionOperations tool = new SortedRegionOperations();
+		tool.flatten(inputs.get(0), output);
+	}
 }
@@ -1,10 +1,17 @@
 package fi.csc.chipster.tools.ngs.regions;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.PrintWriter;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import fi.csc.chipster.comp.Exceptions;
 import fi.csc.chipster.comp.JobState;
@@ -12,43 +19,58 @@ import fi.csc.chipster.comp.java.JavaCompJobBase;
 import fi.csc.chipster.sessiondb.model.Parameter;
 import fi.csc.chipster.tools.model.Feature;
 import fi.csc.chipster.tools.parsers.RegionOperations;
+import fi.csc.chipster.tools.parsers.SortedFeatureReader;
+import fi.csc.chipster.tools.parsers.SortedFeatureReader.UnsortedException;
 import fi.csc.chipster.util.IOUtils;
 
 public abstract class RegionTool extends JavaCompJobBase {
 
+	private static final Logger logger = LogManager.getLogger();
+
+	// unsorted inputs are processed in memory only up to this total size, bytes
+	private static final long IN_MEMORY_MAX_SIZE = 100 * 1024 * 1024;
+
 	protected abstract LinkedList<Feature> operate(LinkedList<List<Feature>> inputs,
 			LinkedHashMap<String, Parameter> parameters) throws Exception;
 
+	/**
+	 * Same as operate(), but for inputs that are sorted by chromosome and start
+	 * position. The inputs are streamed, so that large files can be processed
+	 * without reading them to memory.
+	 * 
+	 * @param inputs     sorted inputs
+	 * @param parameters
+	 * @param output     receives the results in sorted order
+	 * @throws Exception
+	 */
+	protected abstract void operateSorted(LinkedList<SortedFeatureReader> inputs,
+			LinkedHashMap<String, Parameter> parameters, Consumer<Feature> output) throws Exception;
+
 	@Override
 	protected void execute() {
 		try {
 			updateState(JobState.RUNNING, "preprocessing");
 
-			// Parse inputs
-			RegionOperations tool = new RegionOperations();
-			LinkedList<List<Feature>> inputs = new LinkedList<>();
+			LinkedList<File> inputFiles = new LinkedList<>();
 			for (int i = 0; i < toolDescription.getInputFiles().size(); i++) {
-				File inputFile = new File(jobDataDir, toolDescription.getInputFiles().get(i).getFileName().getID());
-				inputs.add(tool.loadFile(inputFile));
+				inputFiles.add(new File(jobDataDir, toolDescription.getInputFiles().get(i).getFileName().getID()));
 			}
+			File outputFile = new File(jobDataDir, toolDescription.getOutputFiles().get(0).getFileName().getID());
 
-			// Delegate actual processing to subclasses
 			LinkedHashMap<String, Parameter> parameters = inputMessage.getParameters(JAVA_PARAMETER_SECURITY_POLICY,
 					toolDescription);
-			LinkedList<Feature> output = operate(inputs, parameters);
 
-			// Sort result
-			new RegionOperations().sort(output);
-
-			// Write output
-			FileOutputStream outputStream = null;
 			try {
-				outputStream = new FileOutputStream(
-						new File(jobDataDir, toolDescription.getOutputFiles().get(0).getFileName().getID()));
-				tool.print(output, outputStream);
+				executeSorted(inputFiles, parameters, outputFile);
 
-			} finally {
-				IOUtils.closeIfPossible(outputStream);
+			} catch (UnsortedException e) {
+				if (getSize(inputFiles) > IN_MEMORY_MAX_SIZE) {
+					// large inputs would run out of memory, fail with the message to sort them
+					throw e;
+				}
+				logger.warn(toolDescription.getID() + " " + e.getMessage() + " Falling back to in-memory processing");
+				updateState(JobState.RUNNING, "inputs are not sorted, processing in memory");
+				executeInMemory(inputFiles, parameters, outputFile);
 			}
 
 		} catch (Exception e) {
@@ -59,4 +81,62 @@ public abstract class RegionTool extends JavaCompJobBase {
 		updateState(JobState.RUNNING, "preprocessing finished");
 	}
 
+	/**
+	 * Read the inputs to memory and sort the result
+	 */
+	private void executeInMemory(LinkedList<File> inputFiles, LinkedHashMap<String, Parameter> parameters,
+			File outputFile) throws Exception {
+
+		// Parse inputs
+		RegionOperations tool = new RegionOperations();
+		LinkedList<List<Feature>> inputs = new LinkedList<>();
+		for (File inputFile : inputFiles) {
+			inputs.add(tool.loadFile(inputFile));
+		}
+
+		// Delegate actual processing to subclasses
+		LinkedList<Feature> output = operate(inputs, parameters);
+
+		// Sort result
+		new RegionOperations().sort(output);
+
+		// Write output
+		FileOutputStream outputStream = null;
+		try {
+			outputStream = new FileOutputStream(outputFile);
+			tool.print(output, outputStream);
+
+		} finally {
+			IOUtils.closeIfPossible(outputStream);
+		}
+	}
+
+	/**
+	 * Stream the sorted inputs and write the results as they are ready
+	 * 
+	 * The sort order is checked while reading. If an input isn't sorted, an
+	 * UnsortedException is thrown and the output is incomplete.
+	 */
+	private void executeSorted(LinkedList<File> inputFiles, LinkedHashMap<String, Parameter> parameters,
+			File outputFile) throws Exception {
+
+		LinkedList<SortedFeatureReader> inputs = new LinkedList<>();
+		try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(outputFile)))) {
+
+			for (File inputFile : inputFiles) {
+				inputs.add(SortedFeatureReader.bed(inputFile));
+			}
+
+			operateSorted(inputs, parameters, feature -> out.println(feature.toString()));
+
+		} finally {
+			for (SortedFeatureReader input : inputs) {
+				input.close();
+			}
+		}
+	}
+
+	private static long getSize(List<File> files) {
+		return files.stream().mapToLong(File::length).sum();
+	}
 }
@@ -3,10 +3,13 @@ package fi.csc.chipster.tools.ngs.regions;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.function.Consumer;
 
 import fi.csc.chipster.sessiondb.model.Parameter;
 import fi.csc.chipster.tools.model.Feature;
 import fi.csc.chipster.tools.parsers.RegionOperations;
+import fi.csc.chipster.tools.parsers.SortedFeatureReader;
+import fi.csc.chipster.tools.parsers.SortedRegionOperations;
 
 public class RemoveOverlappingTool extends RegionTool {
 
@@ -27,4 +30,12 @@ public class RemoveOverlappingTool extends RegionTool {
 		Long minOverlap = Long.valueOf(parameters.get("min.overlap.bp").getValue());
 		return tool.subtract(inputs.get(0), inputs.get(1), minOverlap);
 	}
+
+	@Override
+	protected void operateSorted(LinkedList<SortedFeatureReader> inputs, LinkedHashMap<String, Parameter> parameters,
+			Consumer<Feature> output) {
+		SortedRegionOperations tool = new SortedRegionOperations();
+		Long minOverlap = Long.valueOf(parameters.get("min.overlap.bp").getValue());
+		tool.subtract(inputs.get(0), inputs.get(1), minOverlap, output);
+	}
 }
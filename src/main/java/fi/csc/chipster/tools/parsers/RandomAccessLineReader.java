@@ -1,9 +1,13 @@
 package fi.csc.chipster.tools.parsers;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Custom implementation of random access line reading, because method
@@ -22,6 +26,12 @@ import java.net.URL;
  * (1 ms ping)
  * to 10 kB/s (~50 ms ping).
  * 
+ * To make sequential reading faster, the size of the read is doubled every
+ * time the next read continues from the end of the previous one, up to
+ * MAX_READ_SIZE. A jump to another position starts again from MIN_READ_SIZE.
+ * A few recently read blocks are kept, so that moving back and forth between
+ * nearby positions doesn't need new requests.
+ * 
  * Buffering is needed in http, but with local files it might not be necessary.
  * Probably RandomAccessFile
  * could be queried directly, because file reading is buffered anyway in
@@ -36,13 +46,33 @@ import java.net.URL;
  */
 public class RandomAccessLineReader {
 
-	// Must be greater than length of longest row
+	// Size of the first read after a jump
 	public static final int HTTP_BUFFER_SIZE = 1024 * 4;
+	public static final int MIN_READ_SIZE = HTTP_BUFFER_SIZE;
+	public static final int MAX_READ_SIZE = 1024 * 1024;
+	// Number of recently read blocks to keep
+	public static final int CACHED_BLOCKS = 8;
 
-	// File position of the buffer's first byte
+	// File position of the next byte to read
 	private long position = -1;
 
-	private String buffer;
+	// Block that contains the position
+	private byte[] block;
+	private long blockStart;
+
+	private int readSize = MIN_READ_SIZE;
+	// File position after the previous read
+	private long readEnd = -1;
+
+	// File position of the block's first byte, in the access order
+	private LinkedHashMap<Long, byte[]> recentBlocks = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+			return size() > CACHED_BLOCKS;
+		}
+	};
 
 	// Reads random access bytes from file or http
 	private ByteDataSource byteDataSource;
@@ -74,16 +104,6 @@ public class RandomAccessLineReader {
 			return false;
 		}
 
-		if (buffer != null && position >= this.position && position < this.position + buffer.length()) {
-
-			// The buffer is still useful
-			buffer = buffer.substring((int) (position - this.position));
-		} else {
-
-			// The old buffer is useless
-			buffer = null;
-		}
-
 		this.position = position;
 		return true;
 	}
@@ -110,57 +130,104 @@ public class RandomAccessLineReader {
 	 * @throws IOException
 	 */
 	public String readLine() throws IOException {
-		if (buffer == null) {
-			fillBuffer();
-		}
 
-		int indexOfNewLine = buffer.indexOf("\n");
+		// Bytes of a line that continues to the next block
+		ByteArrayOutputStream lineStart = null;
 
-		while (indexOfNewLine < 0 && position + buffer.length() < length()) {
+		while (true) {
 
-			// Buffer run out
-			fillBuffer();
-			indexOfNewLine = buffer.indexOf("\n");
+			if (!fillBuffer()) {
+				return null; // End of file
+			}
 
-		}
+			int offset = (int) (position - blockStart);
+			int indexOfNewLine = indexOf(block, (byte) '\n', offset);
 
-		if (indexOfNewLine < 0) {
-			return null; // End of file
-		}
+			if (indexOfNewLine < 0) {
 
-		// Get the requested line from buffer
-		String line = buffer.substring(0, indexOfNewLine);
+				// Buffer run out
+				if (lineStart == null) {
+					lineStart = new ByteArrayOutputStream();
+				}
+				lineStart.write(block, offset, block.length - offset);
+				position = blockStart + block.length;
+				continue;
+			}
 
-		// Remove requested line from buffer and mark its new position
-		buffer = buffer.substring(indexOfNewLine + 1);
-		position += indexOfNewLine + 1;
+			// Get the requested line from buffer and mark its new position
+			String line;
+			if (lineStart == null) {
+				line = new String(block, offset, indexOfNewLine - offset, StandardCharsets.UTF_8);
+			} else {
+				lineStart.write(block, offset, indexOfNewLine - offset);
+				line = new String(lineStart.toByteArray(), StandardCharsets.UTF_8);
+			}
+			position = blockStart + indexOfNewLine + 1;
 
-		return line;
+			return line;
+		}
 	}
 
-	// private int fillBufferCount = 0;
+	private static int indexOf(byte[] bytes, byte b, int from) {
+		for (int i = from; i < bytes.length; i++) {
+			if (bytes[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
 
 	/**
-	 * Fill internal buffer starting from the this.position.
+	 * Make sure that the internal buffer contains the this.position.
 	 * 
+	 * @return false if the position is at the end of the file
 	 * @throws IOException
 	 */
-	private void fillBuffer() throws IOException {
+	private boolean fillBuffer() throws IOException {
 
-		// System.out.println("FillbufferCount: " + fillBufferCount++);
+		if (block != null && position >= blockStart && position < blockStart + block.length) {
+			// The buffer is still useful
+			return true;
+		}
 
-		if (buffer == null) {
-			buffer = "";
+		if (position < 0 || position >= length()) {
+			return false;
 		}
 
-		long refillPosition = position + buffer.length();
+		// Recently read block
+		Long recentStart = null;
+		for (Map.Entry<Long, byte[]> entry : recentBlocks.entrySet()) {
+			if (position >= entry.getKey() && position < entry.getKey() + entry.getValue().length) {
+				recentStart = entry.getKey();
+				break;
+			}
+		}
+		if (recentStart != null) {
+			// get() to update the access order
+			block = recentBlocks.get(recentStart);
+			blockStart = recentStart;
+			return true;
+		}
 
-		byte[] bytes = byteDataSource.read(refillPosition, HTTP_BUFFER_SIZE);
-		buffer = buffer + new String(bytes);
+		// Read more at a time when reading sequentially
+		if (position == readEnd) {
+			readSize = Math.min(readSize * 2, MAX_READ_SIZE);
+		} else {
+			readSize = MIN_READ_SIZE;
+		}
+
+		byte[] bytes = byteDataSource.read(position, Math.min(readSize, length() - position));
 
-		// System.out.println("RandomAccessLineReader.fillBuffer() Position: " +
-		// position/1024/1024 + " MB \t Length: " + buffer.lastIndexOf("\n") + "
-		// bytes");
+		if (bytes == null || bytes.length == 0) {
+			return false;
+		}
+
+		block = bytes;
+		blockStart = position;
+		readEnd = position + bytes.length;
+		recentBlocks.put(blockStart, block);
+
+		return true;
 	}
 
 	/**
@@ -173,6 +240,8 @@ public class RandomAccessLineReader {
 			byteDataSource.close();
 			byteDataSource = null;
 		}
+		block = null;
+		recentBlocks.clear();
 	}
 
 	/**
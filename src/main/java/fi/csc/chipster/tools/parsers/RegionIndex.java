@@ -0,0 +1,400 @@
+package fi.csc.chipster.tools.parsers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import fi.csc.chipster.tools.parsers.SortedFeatureReader.UnsortedException;
+
+/**
+ * Block index for BED, GTF and VCF files that are sorted by chromosome and
+ * start position
+ *
+ * Like the linear index of tabix, but simpler. The file is divided to blocks of
+ * about BLOCK_SIZE bytes, which never span two chromosomes. For each block the
+ * index stores its byte range, the start of its first feature and the largest
+ * end of its features. A region query needs only the blocks that may contain
+ * overlapping features, and those can be read with HTTP range requests.
+ *
+ * All coordinates in the index and in the queries are 0-based and the end is
+ * exclusive, like in BED.
+ */
+public class RegionIndex {
+
+	// file name suffix for the index files
+	public static final String SUFFIX = ".region-index";
+
+	public static final int BLOCK_SIZE = 64 * 1024;
+	// merge consecutive blocks to one read up to this size
+	public static final int MAX_READ_SIZE = 1024 * 1024;
+
+	private static final String HEADER = "#chipster-region-index";
+	private static final String VERSION = "1";
+	private static final String NOT_INDEXABLE = "-";
+
+	public enum Format {
+		BED, GTF, VCF;
+
+		/**
+		 * @param columns
+		 * @return start and end of the feature in 0-based coordinates
+		 */
+		long[] getRegion(String[] columns) {
+			switch (this) {
+			case BED:
+				return new long[] {
+						Long.parseLong(columns[BedLineParser.Column.CHROM_START.ordinal()]),
+						Long.parseLong(columns[BedLineParser.Column.CHROM_END.ordinal()]) };
+			case GTF:
+				return new long[] {
+						Long.parseLong(columns[GtfLineParser.Column.START.ordinal()]) - 1,
+						Long.parseLong(columns[GtfLineParser.Column.END.ordinal()]) };
+			case VCF:
+				long start = Long.parseLong(columns[VcfLineParser.Column.POS.ordinal()]) - 1;
+				int refLength = columns.length > VcfLineParser.Column.REF.ordinal()
+						? columns[VcfLineParser.Column.REF.ordinal()].length()
+						: 1;
+				return new long[] { start, start + Math.max(1, refLength) };
+			default:
+				throw new IllegalStateException("unknown format " + this);
+			}
+		}
+
+		boolean isHeader(String line) {
+			return line.isEmpty() || line.startsWith("#")
+					|| (this == BED && (line.startsWith("track") || line.startsWith("browser")));
+		}
+	}
+
+	public static class Block {
+		private String chr;
+		private long offset;
+		private long length;
+		private long firstStart;
+		private long maxEnd;
+
+		public String getChr() {
+			return chr;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public long getLength() {
+			return length;
+		}
+	}
+
+	private Format format;
+	private long dataLength;
+	private LinkedHashMap<String, List<Block>> blocks = new LinkedHashMap<>();
+
+	private RegionIndex(Format format, long dataLength) {
+		this.format = format;
+		this.dataLength = dataLength;
+	}
+
+	/**
+	 * @return the format or null if the file wasn't indexable
+	 */
+	public Format getFormat() {
+		return format;
+	}
+
+	/**
+	 * @return the size of the indexed file, to notice if the index is outdated
+	 */
+	public long getDataLength() {
+		return dataLength;
+	}
+
+	/**
+	 * Index that only tells that the file couldn't be indexed
+	 *
+	 * Saves the effort of trying again.
+	 *
+	 * @param dataLength
+	 * @return
+	 */
+	public static RegionIndex notIndexable(long dataLength) {
+		return new RegionIndex(null, dataLength);
+	}
+
+	/**
+	 * Read through the data and create the index
+	 *
+	 * @param data
+	 * @param format
+	 * @return
+	 * @throws IOException
+	 * @throws UnsortedException if the data isn't sorted by chromosome and start
+	 */
+	public static RegionIndex build(InputStream data, Format format) throws IOException {
+
+		RegionIndex index = new RegionIndex(format, 0);
+		HashSet<String> finishedChrs = new HashSet<>();
+
+		Block block = null;
+		long lineNumber = 0;
+		long offset = 0;
+		long previousStart = -1;
+
+		ByteArrayOutputStream lineBytes = new ByteArrayOutputStream();
+		InputStream in = new BufferedInputStream(data);
+
+		boolean eof = false;
+		while (!eof) {
+
+			// read a line
+			lineBytes.reset();
+			int b;
+			while ((b = in.read()) != -1 && b != '\n') {
+				lineBytes.write(b);
+			}
+			eof = b == -1;
+			long lineLength = lineBytes.size() + (eof ? 0 : 1);
+
+			if (lineLength == 0) {
+				break;
+			}
+
+			lineNumber++;
+			String line = lineBytes.toString(StandardCharsets.UTF_8);
+			if (line.endsWith("\r")) {
+				line = line.substring(0, line.length() - 1);
+			}
+
+			if (!format.isHeader(line)) {
+
+				String[] columns = line.split("\t");
+				String chr = columns[0];
+				long[] region;
+				try {
+					region = format.getRegion(columns);
+				} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+					throw new IllegalArgumentException("not a " + format + " file, line " + lineNumber + ": "
+							+ e.getMessage());
+				}
+
+				boolean newChr = block == null || !block.chr.equals(chr);
+
+				if (newChr) {
+					if (block != null) {
+						finishedChrs.add(block.chr);
+					}
+					if (finishedChrs.contains(chr)) {
+						throw new UnsortedException("chromosome " + chr + " continues on line " + lineNumber
+								+ " after other chromosomes");
+					}
+				} else if (region[0] < previousStart) {
+					throw new UnsortedException("line " + lineNumber + " starts before the previous line");
+				}
+				previousStart = region[0];
+
+				if (newChr || block.length >= BLOCK_SIZE) {
+					block = new Block();
+					block.chr = chr;
+					block.offset = offset;
+					block.firstStart = region[0];
+					block.maxEnd = region[1];
+					index.blocks.computeIfAbsent(chr, c -> new ArrayList<>()).add(block);
+				}
+
+				block.maxEnd = Math.max(block.maxEnd, region[1]);
+			}
+
+			offset += lineLength;
+			if (block != null) {
+				// header lines in the middle belong to the previous block
+				block.length = offset - block.offset;
+			}
+		}
+
+		index.dataLength = offset;
+		return index;
+	}
+
+	/**
+	 * Guess the format from the beginning of the file
+	 *
+	 * @param file
+	 * @return the format or null if the file doesn't look like BED, GTF or VCF
+	 * @throws IOException
+	 */
+	public static Format detect(File file) throws IOException {
+
+		byte[] bytes;
+		try (InputStream in = new FileInputStream(file)) {
+			bytes = in.readNBytes(BLOCK_SIZE);
+		}
+
+		for (byte b : bytes) {
+			if (b == 0) {
+				// binary
+				return null;
+			}
+		}
+
+		String[] lines = new String(bytes, StandardCharsets.UTF_8).split("\n");
+
+		for (int i = 0; i < lines.length; i++) {
+			String line = lines[i].replace("\r", "");
+
+			if (line.startsWith("##fileformat=VCF")) {
+				return Format.VCF;
+			}
+
+			if (line.isEmpty() || Format.BED.isHeader(line) || (i == lines.length - 1 && bytes.length == BLOCK_SIZE)) {
+				// header or possibly incomplete line
+				continue;
+			}
+
+			String[] columns = line.split("\t");
+			if (columns.length >= 9 && isLong(columns[3]) && isLong(columns[4]) && columns[6].length() == 1) {
+				return Format.GTF;
+			}
+			if (columns.length >= 3 && isLong(columns[1]) && isLong(columns[2])) {
+				return Format.BED;
+			}
+			return null;
+		}
+		return null;
+	}
+
+	private static boolean isLong(String string) {
+		try {
+			Long.parseLong(string);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Byte ranges of the blocks that may contain features overlapping the region
+	 *
+	 * Consecutive blocks are merged.
+	 *
+	 * @param chr
+	 * @param start 0-based
+	 * @param end   exclusive
+	 * @return offset and length of each range
+	 */
+	public List<long[]> getRanges(String chr, long start, long end) {
+		List<long[]> ranges = new ArrayList<>();
+
+		List<Block> chrBlocks = blocks.get(chr);
+		if (chrBlocks == null) {
+			return ranges;
+		}
+
+		for (Block block : chrBlocks) {
+			if (block.firstStart >= end) {
+				// the rest start even later
+				break;
+			}
+			if (block.maxEnd <= start) {
+				continue;
+			}
+
+			long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+			if (last != null && last[0] + last[1] == block.offset && last[1] + block.length <= MAX_READ_SIZE) {
+				last[1] += block.length;
+			} else {
+				ranges.add(new long[] { block.offset, block.length });
+			}
+		}
+		return ranges;
+	}
+
+	/**
+	 * Read the lines that overlap the region
+	 *
+	 * @param data  the indexed file, a local file or an url that supports range
+	 *              requests
+	 * @param chr
+	 * @param start 0-based
+	 * @param end   exclusive
+	 * @return
+	 * @throws IOException
+	 */
+	public List<String> query(ByteDataSource data, String chr, long start, long end) throws IOException {
+		List<String> lines = new ArrayList<>();
+
+		for (long[] range : getRanges(chr, start, end)) {
+			byte[] bytes = data.read(range[0], range[1]);
+			if (bytes == null) {
+				continue;
+			}
+
+			for (String line : new String(bytes, StandardCharsets.UTF_8).split("\n")) {
+				if (line.endsWith("\r")) {
+					line = line.substring(0, line.length() - 1);
+				}
+				if (format.isHeader(line)) {
+					continue;
+				}
+				String[] columns = line.split("\t");
+				long[] region = format.getRegion(columns);
+				if (columns[0].equals(chr) && region[0] < end && region[1] > start) {
+					lines.add(line);
+				}
+			}
+		}
+		return lines;
+	}
+
+	public List<Block> getBlocks() {
+		List<Block> all = new ArrayList<>();
+		blocks.values().forEach(all::addAll);
+		return all;
+	}
+
+	public void write(File file) throws IOException {
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+			writer.write(HEADER + "\t" + VERSION + "\t" + (format != null ? format : NOT_INDEXABLE) + "\t"
+					+ dataLength + "\n");
+			for (Block block : getBlocks()) {
+				writer.write(block.chr + "\t" + block.offset + "\t" + block.length + "\t" + block.firstStart + "\t"
+						+ block.maxEnd + "\n");
+			}
+		}
+	}
+
+	public static RegionIndex read(File file) throws IOException {
+		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			String[] header = reader.readLine().split("\t");
+			if (!HEADER.equals(header[0]) || !VERSION.equals(header[1])) {
+				throw new IOException("unknown index format in " + file);
+			}
+			Format format = NOT_INDEXABLE.equals(header[2]) ? null : Format.valueOf(header[2]);
+			RegionIndex index = new RegionIndex(format, Long.parseLong(header[3]));
+
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] columns = line.split("\t");
+				Block block = new Block();
+				block.chr = columns[0];
+				block.offset = Long.parseLong(columns[1]);
+				block.length = Long.parseLong(columns[2]);
+				block.firstStart = Long.parseLong(columns[3]);
+				block.maxEnd = Long.parseLong(columns[4]);
+				index.blocks.computeIfAbsent(block.chr, c -> new ArrayList<>()).add(block);
+			}
+			return index;
+		}
+	}
+}
@@ -6,13 +6,16 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map.Entry;
 
+import fi.csc.chipster.tools.model.BpCoord;
 import fi.csc.chipster.tools.model.DataType;
 import fi.csc.chipster.tools.model.Feature;
 import fi.csc.chipster.tools.model.Region;
@@ -26,6 +29,7 @@ import fi.csc.chipster.tools.model.Region;
 public class RegionOperations {
 
 	private static final String EMPTY_EXTRA_FIELDS = "";
+	private static final int[] NO_PAIRS = new int[0];
 
 	public static void main(String[] args) throws FileNotFoundException, IOException, GBrowserException {
 		RegionOperations tool = new RegionOperations();
@@ -82,6 +86,10 @@ public class RegionOperations {
 	 * configurable pairing rule and additional handling for
 	 * orphan (non-paired) regions.
 	 * 
+	 * For the IntersectingPairRule, only the intersecting candidates are found
+	 * with a sweep-line over both sets sorted by start position, but the pairs
+	 * are processed in the same order as in the Cartesian product: in the order of
+	 * the first set and then in the order of the second set.
 	 * 
 	 * @param leftRegions       first set (primary set in some cases)
 	 * @param rightRegions      second set
@@ -100,15 +108,32 @@ public class RegionOperations {
 
 		// Initialise collectors
 		LinkedList<Feature> result = new LinkedList<Feature>();
-		HashSet<Feature> leftPaired = new HashSet<Feature>();
-		HashSet<Feature> rightPaired = new HashSet<Feature>();
 
-		// Find pairs from a Cartesian product
-		for (Feature leftRegion : leftRegions) {
-			for (Feature rightRegion : rightRegions) {
+		// random access, the inputs are usually LinkedLists
+		ArrayList<Feature> left = new ArrayList<Feature>(leftRegions);
+		ArrayList<Feature> right = new ArrayList<Feature>(rightRegions);
+
+		boolean[] leftPaired = new boolean[left.size()];
+		boolean[] rightPaired = new boolean[right.size()];
+
+		// Candidates for each left region, null means all
+		int[][] candidates = null;
+		if (pairRule instanceof IntersectingPairRule) {
+			candidates = findIntersecting(left, right);
+		}
+
+		// Find pairs
+		for (int i = 0; i < left.size(); i++) {
+			Feature leftRegion = left.get(i);
+			int candidateCount = candidates != null ? candidates[i].length : right.size();
+
+			for (int c = 0; c < candidateCount; c++) {
+				int j = candidates != null ? candidates[i][c] : c;
+				Feature rightRegion = right.get(j);
+
 				if (pairRule.isPair(leftRegion.region, rightRegion.region)) {
-					leftPaired.add(leftRegion);
-					rightPaired.add(rightRegion);
+					leftPaired[i] = true;
+					rightPaired[j] = true;
 
 					// Output what pair policy dictates
 					pairPolicy.process(leftRegion, rightRegion, result);
@@ -117,16 +142,16 @@ public class RegionOperations {
 		}
 
 		// Process left orphans
-		for (Feature leftRegion : leftRegions) {
-			if (!leftPaired.contains(leftRegion)) {
-				leftOrphanPolicy.process(leftRegion, result);
+		for (int i = 0; i < left.size(); i++) {
+			if (!leftPaired[i]) {
+				leftOrphanPolicy.process(left.get(i), result);
 			}
 		}
 
 		// Process right orphans
-		for (Feature rightRegion : rightRegions) {
-			if (!rightPaired.contains(rightRegion)) {
-				rightOrphanPolicy.process(rightRegion, result);
+		for (int j = 0; j < right.size(); j++) {
+			if (!rightPaired[j]) {
+				rightOrphanPolicy.process(right.get(j), result);
 			}
 		}
 
@@ -138,6 +163,139 @@ public class RegionOperations {
 		}
 	}
 
+	/**
+	 * Find the intersecting pairs with a sweep-line
+	 * 
+	 * Both sets are sorted by the start position. When a region starts, it
+	 * intersects all the regions of the other set that have started before it
+	 * and haven't ended yet. The regions that have ended are removed from the
+	 * active list when it's iterated, so the time is O(n log n) for sorting and
+	 * then linear in the number of regions and pairs.
+	 * 
+	 * Regions whose end is before the start don't intersect anything and are
+	 * left out.
+	 * 
+	 * @param left
+	 * @param right
+	 * @return indexes of the intersecting right regions for each left region, in
+	 *         ascending order
+	 */
+	private static int[][] findIntersecting(List<Feature> left, List<Feature> right) {
+
+		Integer[] leftOrder = sortByStart(left);
+		Integer[] rightOrder = sortByStart(right);
+
+		// the left and right index of each pair
+		IntList pairLeft = new IntList();
+		IntList pairRight = new IntList();
+
+		IntList leftActive = new IntList();
+		IntList rightActive = new IntList();
+
+		int l = 0;
+		int r = 0;
+
+		while (l < leftOrder.length || r < rightOrder.length) {
+
+			// take the next start from either set, left first if equal
+			boolean takeLeft = r >= rightOrder.length || (l < leftOrder.length && left.get(leftOrder[l]).region.start
+					.compareTo(right.get(rightOrder[r]).region.start) <= 0);
+
+			if (takeLeft) {
+				int i = leftOrder[l++];
+				BpCoord start = left.get(i).region.start;
+
+				for (int a = 0; a < rightActive.size;) {
+					int j = rightActive.values[a];
+					if (right.get(j).region.end.compareTo(start) < 0) {
+						rightActive.removeAt(a);
+					} else {
+						pairLeft.add(i);
+						pairRight.add(j);
+						a++;
+					}
+				}
+				leftActive.add(i);
+
+			} else {
+				int j = rightOrder[r++];
+				BpCoord start = right.get(j).region.start;
+
+				for (int a = 0; a < leftActive.size;) {
+					int i = leftActive.values[a];
+					if (left.get(i).region.end.compareTo(start) < 0) {
+						leftActive.removeAt(a);
+					} else {
+						pairLeft.add(i);
+						pairRight.add(j);
+						a++;
+					}
+				}
+				rightActive.add(j);
+			}
+		}
+
+		// group by the left index with a counting sort
+		int[][] pairs = new int[left.size()][];
+		int[] counts = new int[left.size()];
+		for (int p = 0; p < pairLeft.size; p++) {
+			counts[pairLeft.values[p]]++;
+		}
+		for (int i = 0; i < pairs.length; i++) {
+			pairs[i] = counts[i] > 0 ? new int[counts[i]] : NO_PAIRS;
+			counts[i] = 0;
+		}
+		for (int p = 0; p < pairLeft.size; p++) {
+			int i = pairLeft.values[p];
+			pairs[i][counts[i]++] = pairRight.values[p];
+		}
+		for (int[] rightIndexes : pairs) {
+			Arrays.sort(rightIndexes);
+		}
+
+		return pairs;
+	}
+
+	/**
+	 * @param features
+	 * @return indexes of the valid regions sorted by the start position
+	 */
+	private static Integer[] sortByStart(List<Feature> features) {
+		ArrayList<Integer> order = new ArrayList<Integer>(features.size());
+		for (int i = 0; i < features.size(); i++) {
+			Region region = features.get(i).region;
+			if (region.start.compareTo(region.end) <= 0) {
+				order.add(i);
+			}
+		}
+		Integer[] array = order.toArray(new Integer[0]);
+		Arrays.sort(array, Comparator.comparing((Integer i) -> features.get(i).region.start));
+		return array;
+	}
+
+	/**
+	 * Growable list of ints without boxing
+	 */
+	private static class IntList {
+
+		private int[] values = new int[2];
+		private int size = 0;
+
+		private void add(int value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		/**
+		 * Remove by replacing with the last value, doesn't keep the order
+		 */
+		private void removeAt(int index) {
+			values[index] = values[--size];
+		}
+	}
+
 	/**
 	 * Decides if two regions are a pair.
 	 */
@@ -330,9 +488,10 @@ public class RegionOperations {
 		return new Feature(region, values);
 	}
 
-	private LinkedList<Feature> mergeContinuous(LinkedList<Feature> regions) {
+	private LinkedList<Feature> mergeContinuous(LinkedList<Feature> result) {
 
-		// Sort to bring continuous pieces together
+		// Sort to bring continuous pieces together, random access for the loop
+		ArrayList<Feature> regions = new ArrayList<Feature>(result);
 		sort(regions);
 
 		// Write out continuous regions
@@ -18,12 +18,12 @@ import fi.csc.chipster.util.IOUtils;
 import htsjdk.samtools.BAMIndexer;
 import htsjdk.samtools.SAMException;
 import htsjdk.samtools.SAMFileHeader;
-import htsjdk.samtools.SAMFileReader;
 import htsjdk.samtools.SAMFileWriter;
 import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.ValidationStringency;
@@ -35,7 +35,6 @@ import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.tribble.readers.TabixReader;
 
-@SuppressWarnings("deprecation")
 public class SamBamUtils {
 
 	public interface SamBamUtilStateListener {
@@ -77,6 +76,12 @@ public class SamBamUtils {
 		}
 	};
 
+	// rough size of a short read in the sorting memory
+	private static final int ESTIMATED_RECORD_SIZE = 500;
+
+	private Integer maxRecordsInRam;
+	private File tmpDir;
+
 	public SamBamUtils() {
 	}
 
@@ -90,6 +95,48 @@ public class SamBamUtils {
 		}
 	}
 
+	/**
+	 * Memory for sorting the records before they are spilled to temporary files,
+	 * htsjdk default (500 000 records) if not set
+	 *
+	 * @param bytes
+	 */
+	public void setSortMemoryLimit(long bytes) {
+		this.maxRecordsInRam = (int) Math.max(1, Math.min(Integer.MAX_VALUE, bytes / ESTIMATED_RECORD_SIZE));
+	}
+
+	/**
+	 * Directory for the temporary files of the sort, java.io.tmpdir by default
+	 *
+	 * @param tmpDir
+	 */
+	public void setTmpDir(File tmpDir) {
+		this.tmpDir = tmpDir;
+	}
+
+	/**
+	 * Decompress BGZF blocks in a background thread
+	 */
+	private static SamReaderFactory getReaderFactory() {
+		return SamReaderFactory.makeDefault()
+				.validationStringency(ValidationStringency.SILENT)
+				.setUseAsyncIo(true);
+	}
+
+	/**
+	 * Encode and compress the records in a background thread
+	 */
+	private SAMFileWriterFactory getWriterFactory() {
+		SAMFileWriterFactory factory = new SAMFileWriterFactory().setUseAsyncIo(true);
+		if (maxRecordsInRam != null) {
+			factory.setMaxRecordsInRam(maxRecordsInRam);
+		}
+		if (tmpDir != null) {
+			factory.setTempDirectory(tmpDir);
+		}
+		return factory;
+	}
+
 	public static void convertElandToSortedBam(File elandFile, File bamFile) throws IOException {
 
 		BufferedReader in = null;
@@ -99,7 +146,7 @@ public class SamBamUtils {
 			in = new BufferedReader(new InputStreamReader(new FileInputStream(elandFile)));
 			SAMFileHeader header = new SAMFileHeader();
 			header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
-			writer = new SAMFileWriterFactory().makeBAMWriter(header, false, bamFile);
+			writer = new SamBamUtils().getWriterFactory().makeBAMWriter(header, false, bamFile);
 
 			for (String line = in.readLine(); line != null; line = in.readLine()) {
 				String[] fields = line.split("\t");
@@ -120,18 +167,29 @@ public class SamBamUtils {
 
 	}
 
+	/**
+	 * Sort to BAM file
+	 *
+	 * @param samBamFile
+	 * @param sortedBamFile
+	 */
 	public static void sortSamBam(File samBamFile, File sortedBamFile) {
+		new SamBamUtils().sortSamBam(samBamFile, sortedBamFile, false);
+	}
+
+	public void normaliseBam(File bamFile, File normalisedBamFile) {
 
-		SAMFileReader.setDefaultValidationStringency(ValidationStringency.SILENT);
-		SAMFileReader reader = new SAMFileReader(IOUtil.openFileForReading(samBamFile));
+		// Read in a BAM file and its header
+		SamReader reader = getReaderFactory().open(bamFile);
 		SAMFileWriter writer = null;
 		try {
+			SAMFileHeader normalisedHeader = getNormalisedHeader(reader.getFileHeader());
 
-			reader.getFileHeader().setSortOrder(SAMFileHeader.SortOrder.coordinate);
-			writer = new SAMFileWriterFactory().makeBAMWriter(reader.getFileHeader(), false, sortedBamFile);
-			Iterator<SAMRecord> iterator = reader.iterator();
-			while (iterator.hasNext()) {
-				writer.addAlignment(iterator.next());
+			// Write new BAM file with normalised chromosome names
+			writer = getWriterFactory().makeBAMWriter(normalisedHeader, true, normalisedBamFile);
+			for (final SAMRecord rec : reader) {
+				normaliseRecord(rec, normalisedHeader);
+				writer.addAlignment(rec);
 			}
 
 		} finally {
@@ -140,30 +198,30 @@ public class SamBamUtils {
 		}
 	}
 
-	public void normaliseBam(File bamFile, File normalisedBamFile) {
+	/**
+	 * Sort and optionally normalise the chromosome names in one pass
+	 *
+	 * The normalisation keeps the order of the sequences, so the reference indexes
+	 * and the sort order don't change.
+	 */
+	private void sortSamBam(File samBamFile, File sortedBamFile, boolean normalise) {
 
-		// Read in a BAM file and its header
-		SAMFileReader.setDefaultValidationStringency(ValidationStringency.SILENT);
-		SAMFileReader reader = new SAMFileReader(IOUtil.openFileForReading(bamFile));
+		SamReader reader = getReaderFactory().open(samBamFile);
 		SAMFileWriter writer = null;
 		try {
-			SAMFileHeader normalisedHeader = reader.getFileHeader();
-
-			// Alter the chromosome names in header's SAMSequenceDictionary
-			SAMSequenceDictionary normalisedDictionary = new SAMSequenceDictionary();
-			for (SAMSequenceRecord sequenceRecord : normalisedHeader.getSequenceDictionary().getSequences()) {
 
-				// Normalise chromosome
-				String sequenceName = chromosomeNormaliser.normaliseChromosome(sequenceRecord.getSequenceName());
-				normalisedDictionary
-						.addSequence(new SAMSequenceRecord(sequenceName, sequenceRecord.getSequenceLength()));
+			// the reader needs the original names to parse the SAM records
+			SAMFileHeader header = reader.getFileHeader().clone();
+			header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+			if (normalise) {
+				header = getNormalisedHeader(header);
 			}
-			normalisedHeader.setSequenceDictionary(normalisedDictionary);
 
-			// Write new BAM file with normalised chromosome names
-			writer = new SAMFileWriterFactory().makeBAMWriter(normalisedHeader, true, normalisedBamFile);
+			writer = getWriterFactory().makeBAMWriter(header, false, sortedBamFile);
 			for (final SAMRecord rec : reader) {
-				rec.setHeader(normalisedHeader);
+				if (normalise) {
+					normaliseRecord(rec, header);
+				}
 				writer.addAlignment(rec);
 			}
 
@@ -173,27 +231,66 @@ public class SamBamUtils {
 		}
 	}
 
+	/**
+	 * Copy of the header with normalised chromosome names
+	 *
+	 * The original header is not modified, because the reader uses it to resolve
+	 * the chromosome names of the SAM records.
+	 */
+	private SAMFileHeader getNormalisedHeader(SAMFileHeader header) {
+
+		SAMFileHeader normalisedHeader = header.clone();
+
+		// Alter the chromosome names in header's SAMSequenceDictionary
+		SAMSequenceDictionary normalisedDictionary = new SAMSequenceDictionary();
+		for (SAMSequenceRecord sequenceRecord : header.getSequenceDictionary().getSequences()) {
+
+			// Normalise chromosome
+			String sequenceName = chromosomeNormaliser.normaliseChromosome(sequenceRecord.getSequenceName());
+			normalisedDictionary
+					.addSequence(new SAMSequenceRecord(sequenceName, sequenceRecord.getSequenceLength()));
+		}
+		normalisedHeader.setSequenceDictionary(normalisedDictionary);
+
+		return normalisedHeader;
+	}
+
+	/**
+	 * Move the record to the normalised header and map its chromosome names
+	 */
+	private void normaliseRecord(SAMRecord rec, SAMFileHeader normalisedHeader) {
+
+		// get the names while the record still has the original header
+		String referenceName = rec.getReferenceName();
+		String mateReferenceName = rec.getMateReferenceName();
+
+		rec.setHeader(normalisedHeader);
+		rec.setReferenceName(chromosomeNormaliser.normaliseChromosome(referenceName));
+		rec.setMateReferenceName(chromosomeNormaliser.normaliseChromosome(mateReferenceName));
+	}
+
 	public void indexBam(File bamFile, File baiFile) {
-		SAMFileReader.setDefaultValidationStringency(ValidationStringency.SILENT);
-		final SamReader bam;
 
 		// input from a normal file
 		IOUtil.assertFileIsReadable(bamFile);
-		bam = SamReaderFactory.makeDefault().referenceSequence(null)
+		final SamReader bam = getReaderFactory().referenceSequence(null)
 				.enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS)
 				.open(bamFile);
 
-		if (bam.type() != SamReader.Type.BAM_TYPE) {
-			throw new SAMException("Input file must be bam file, not sam file.");
-		}
+		try {
+			if (bam.type() != SamReader.Type.BAM_TYPE) {
+				throw new SAMException("Input file must be bam file, not sam file.");
+			}
 
-		if (!bam.getFileHeader().getSortOrder().equals(SAMFileHeader.SortOrder.coordinate)) {
-			throw new SAMException("Input bam file must be sorted by coordinate");
-		}
+			if (!bam.getFileHeader().getSortOrder().equals(SAMFileHeader.SortOrder.coordinate)) {
+				throw new SAMException("Input bam file must be sorted by coordinate");
+			}
 
-		BAMIndexer.createIndex(bam, baiFile);
+			BAMIndexer.createIndex(bam, baiFile);
 
-		CloserUtil.close(bam);
+		} finally {
+			CloserUtil.close(bam);
+		}
 	}
 
 	public void preprocessEland(File elandFile, File preprocessedBamFile, File baiFile) throws IOException {
@@ -217,15 +314,9 @@ public class SamBamUtils {
 
 	public void preprocessSamBam(File samBamFile, File preprocessedBamFile, File baiFile) throws IOException {
 
-		// Sort
+		// Sort and normalise
 		updateState("sorting", 0);
-		File sortedTempBamFile = File.createTempFile("sorted", "bam");
-		sortSamBam(samBamFile, sortedTempBamFile);
-
-		// Normalise (input must be BAM)
-		updateState("normalising", 33.3);
-		normaliseBam(sortedTempBamFile, preprocessedBamFile);
-		sortedTempBamFile.delete();
+		sortSamBam(samBamFile, preprocessedBamFile, true);
 
 		// Index
 		updateState("indexing", 66);
@@ -236,7 +327,7 @@ public class SamBamUtils {
 	public static List<String> readChromosomeNames(URL bam, URL index)
 			throws FileNotFoundException, URISyntaxException {
 
-		SAMFileReader reader = getSAMReader(bam, index);
+		SamReader reader = getSAMReader(bam, index);
 
 		LinkedList<String> chromosomes = new LinkedList<String>();
 		for (SAMSequenceRecord record : reader.getFileHeader().getSequenceDictionary().getSequences()) {
@@ -248,9 +339,9 @@ public class SamBamUtils {
 		return chromosomes;
 	}
 
-	public static SAMFileReader getSAMReader(URL bam, URL index) throws FileNotFoundException, URISyntaxException {
+	public static SamReader getSAMReader(URL bam, URL index) throws FileNotFoundException, URISyntaxException {
 
-		SAMFileReader reader = null;
+		SamReader reader = null;
 		SeekableStream bamStream = null;
 		SeekableStream indexStream = null;
 
@@ -281,7 +372,7 @@ public class SamBamUtils {
 
 			SeekableBufferedStream indexBufferedStream = new SeekableBufferedStream(indexStream);
 
-			return new SAMFileReader(bamBufferedStream, indexBufferedStream, false);
+			return getReaderFactory().open(SamInputResource.of(bamBufferedStream).index(indexBufferedStream));
 
 		} finally {
 			closeIfPossible(reader);
@@ -298,7 +389,7 @@ public class SamBamUtils {
 		}
 	}
 
-	public static void closeIfPossible(SAMFileReader reader) {
+	public static void closeIfPossible(SamReader reader) {
 		if (reader != null) {
 			try {
 				reader.close();
@@ -327,8 +418,7 @@ public class SamBamUtils {
 	}
 
 	public String printSamBam(InputStream samBamStream, int maxRecords) throws IOException {
-		SAMFileReader.setDefaultValidationStringency(ValidationStringency.SILENT);
-		SAMFileReader in = new SAMFileReader(samBamStream);
+		SamReader in = getReaderFactory().open(SamInputResource.of(samBamStream));
 		SAMFileHeader header = in.getFileHeader();
 		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
 		SAMFileWriter out = new SAMFileWriterFactory().makeSAMWriter(header, true, buffer);
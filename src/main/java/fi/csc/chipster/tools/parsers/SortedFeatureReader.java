@@ -0,0 +1,143 @@
+package fi.csc.chipster.tools.parsers;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import fi.csc.chipster.tools.model.BpCoord;
+import fi.csc.chipster.tools.model.Feature;
+
+/**
+ * Reads features one by one from a file that is sorted by chromosome and start
+ * position, for example with the SortBed tool.
+ *
+ * The sort order is checked while reading. An UnsortedException is thrown
+ * immediately when a feature starts before the previous one.
+ *
+ */
+public class SortedFeatureReader implements Iterator<Feature>, Closeable {
+
+	/**
+	 * Thrown when the input isn't sorted
+	 */
+	public static class UnsortedException extends IllegalArgumentException {
+
+		private static final long serialVersionUID = 1L;
+
+		public UnsortedException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Converts a line to a Feature
+	 */
+	public interface FeatureParser {
+		/**
+		 * @param line
+		 * @return the feature or null if the line is a header
+		 * @throws IOException
+		 */
+		public Feature parse(String line) throws IOException;
+	}
+
+	private BufferedReader reader;
+	private FeatureParser parser;
+	private String name;
+
+	private Feature next;
+	private BpCoord previousStart;
+	private long lineNumber = 0;
+
+	public SortedFeatureReader(BufferedReader reader, FeatureParser parser, String name) {
+		this.reader = reader;
+		this.parser = parser;
+		this.name = name;
+	}
+
+	/**
+	 * Read a BED file like RegionOperations.loadFile()
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static SortedFeatureReader bed(File file) throws IOException {
+		RegionOperations regionOperations = new RegionOperations();
+		return new SortedFeatureReader(new BufferedReader(new FileReader(file)), regionOperations::parseString,
+				file.getName());
+	}
+
+	/**
+	 * Read through the file to check the sort order
+	 *
+	 * @param reader
+	 * @return true if the features are sorted
+	 * @throws IOException
+	 */
+	public static boolean isSorted(SortedFeatureReader reader) throws IOException {
+		try (reader) {
+			while (reader.hasNext()) {
+				reader.next();
+			}
+			return true;
+		} catch (UnsortedException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next == null) {
+			next = readNext();
+		}
+		return next != null;
+	}
+
+	@Override
+	public Feature next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Feature feature = next;
+		next = null;
+		return feature;
+	}
+
+	private Feature readNext() {
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+
+				Feature feature = parser.parse(line);
+
+				if (feature != null) {
+
+					if (previousStart != null && feature.region.start.compareTo(previousStart) < 0) {
+						throw new UnsortedException(name + " is not sorted by chromosome and start position: line "
+								+ lineNumber + " starts before the previous line. Sort the file first, "
+								+ "for example with the Sort BED tool.");
+					}
+					previousStart = feature.region.start;
+
+					return feature;
+				}
+			}
+			return null;
+
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+}
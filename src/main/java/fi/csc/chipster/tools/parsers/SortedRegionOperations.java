@@ -0,0 +1,364 @@
+package fi.csc.chipster.tools.parsers;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+import fi.csc.chipster.tools.model.BpCoord;
+import fi.csc.chipster.tools.model.Feature;
+import fi.csc.chipster.tools.model.Region;
+import fi.csc.chipster.tools.parsers.RegionOperations.IntersectingPairRule;
+import fi.csc.chipster.tools.parsers.RegionOperations.OrphanPolicy;
+import fi.csc.chipster.tools.parsers.RegionOperations.PairPolicy;
+
+/**
+ * Region operations for inputs that are sorted by chromosome and start
+ * position.
+ *
+ * The inputs are read in parallel with a sweep-line, and only the regions that
+ * haven't ended yet are kept in memory. The output is the same as
+ * RegionOperations produces after the result has been sorted, so it's written
+ * in the sorted order too. Any result that can't be preceded by the results of
+ * the regions still in memory is written out immediately.
+ *
+ * Memory usage depends on the overlaps, not on the file size. In the worst
+ * case, a long region (e.g. a whole chromosome) that intersects many regions
+ * keeps all of them and their results in memory until it ends, because the
+ * results must be written in the sorted order. Then the memory usage is
+ * similar to RegionOperations.
+ *
+ */
+public class SortedRegionOperations {
+
+	/**
+	 * Same as RegionOperations.intersect()
+	 */
+	public void intersect(Iterator<Feature> leftRegions, Iterator<Feature> rightRegions,
+			Long minIntersectionLength, PairPolicy pairPolicy, boolean flatten, Consumer<Feature> output) {
+		operate(leftRegions, rightRegions, new IntersectingPairRule(minIntersectionLength),
+				RegionOperations.EXCLUDE_ORPHAN_POLICY, RegionOperations.EXCLUDE_ORPHAN_POLICY, pairPolicy, flatten,
+				output);
+	}
+
+	/**
+	 * Same as RegionOperations.subtract()
+	 */
+	public void subtract(Iterator<Feature> leftRegions, Iterator<Feature> rightRegions,
+			Long minIntersectionLength, Consumer<Feature> output) {
+		operate(leftRegions, rightRegions, new IntersectingPairRule(minIntersectionLength),
+				RegionOperations.INCLUDE_ORPHAN_POLICY, RegionOperations.EXCLUDE_ORPHAN_POLICY,
+				RegionOperations.EXCLUDE_PAIR_POLICY, true, output);
+	}
+
+	/**
+	 * Same as RegionOperations.merge()
+	 */
+	public void merge(Iterator<Feature> leftRegions, Iterator<Feature> rightRegions, Long minIntersectionLength,
+			boolean flatten, Consumer<Feature> output) {
+		operate(leftRegions, rightRegions, new IntersectingPairRule(minIntersectionLength),
+				RegionOperations.INCLUDE_ORPHAN_POLICY, RegionOperations.INCLUDE_ORPHAN_POLICY,
+				RegionOperations.MERGE_PAIR_POLICY, flatten, output);
+	}
+
+	/**
+	 * Same as RegionOperations.flatten()
+	 */
+	public void flatten(Iterator<Feature> leftRegions, Consumer<Feature> output) {
+		operate(leftRegions, new LinkedList<Feature>().iterator(), new IntersectingPairRule(0L),
+				RegionOperations.INCLUDE_ORPHAN_POLICY, RegionOperations.EXCLUDE_ORPHAN_POLICY,
+				RegionOperations.MERGE_PAIR_POLICY, true, output);
+	}
+
+	/**
+	 * A region that has been read, but may still get more pairs
+	 */
+	private static class Active {
+
+		private Feature feature;
+		private boolean isLeft;
+		private boolean finished = false;
+		private boolean paired = false;
+		// right regions paired with this left region in the input order
+		private ArrayList<Active> pairs;
+		// number of unfinished left regions paired with this right region
+		private int unfinishedPairs = 0;
+
+		Active(Feature feature, boolean isLeft) {
+			this.feature = feature;
+			this.isLeft = isLeft;
+		}
+
+		/**
+		 * @return true if this region may still be part of some result
+		 */
+		boolean isPending() {
+			return !finished || unfinishedPairs > 0;
+		}
+	}
+
+	/**
+	 * Streaming version of RegionOperations.operate() for the
+	 * IntersectingPairRule
+	 *
+	 * @param leftRegions       first set, sorted
+	 * @param rightRegions      second set, sorted
+	 * @param pairRule          rule for deciding of two regions are a pair
+	 * @param leftOrphanPolicy  what to do with non-paired regions in first set?
+	 * @param rightOrphanPolicy what to do with non-paired regions in second set?
+	 * @param pairPolicy        how to output a pair of regions
+	 * @param mergeContinous    if true, continuous pieces of the result are merged
+	 * @param output            receives the results in sorted order
+	 */
+	public void operate(Iterator<Feature> leftRegions, Iterator<Feature> rightRegions,
+			IntersectingPairRule pairRule, OrphanPolicy leftOrphanPolicy, OrphanPolicy rightOrphanPolicy,
+			PairPolicy pairPolicy, boolean mergeContinous, Consumer<Feature> output) {
+
+		SortingBuffer sorted;
+		ContinuousMerger merger = null;
+
+		if (mergeContinous) {
+			SortingBuffer mergedSorted = new SortingBuffer(output);
+			merger = new ContinuousMerger(mergedSorted);
+			sorted = new SortingBuffer(merger);
+		} else {
+			sorted = new SortingBuffer(output);
+		}
+
+		// regions that may still get pairs, ordered by the end
+		PriorityQueue<Active> byEnd = new PriorityQueue<>((a, b) -> a.feature.region.end
+				.compareTo(b.feature.region.end));
+		// regions for finding pairs, finished ones are removed lazily
+		ActiveList leftActive = new ActiveList();
+		ActiveList rightActive = new ActiveList();
+		// pending regions in the start order for finding the smallest start
+		ArrayDeque<Active> byStart = new ArrayDeque<>();
+
+		Feature nextLeft = leftRegions.hasNext() ? leftRegions.next() : null;
+		Feature nextRight = rightRegions.hasNext() ? rightRegions.next() : null;
+
+		LinkedList<Feature> collector = new LinkedList<>();
+
+		while (nextLeft != null || nextRight != null) {
+
+			// take the next start from either set, left first if equal
+			boolean isLeft = nextRight == null || (nextLeft != null
+					&& nextLeft.region.start.compareTo(nextRight.region.start) <= 0);
+
+			Active current;
+			if (isLeft) {
+				current = new Active(nextLeft, true);
+				nextLeft = leftRegions.hasNext() ? leftRegions.next() : null;
+			} else {
+				current = new Active(nextRight, false);
+				nextRight = rightRegions.hasNext() ? rightRegions.next() : null;
+			}
+
+			BpCoord start = current.feature.region.start;
+
+			// regions that have ended can't get more pairs
+			while (!byEnd.isEmpty() && byEnd.peek().feature.region.end.compareTo(start) < 0) {
+				finish(byEnd.poll(), pairPolicy, leftOrphanPolicy, rightOrphanPolicy, collector, sorted);
+			}
+
+			// the region intersects all the active regions of the other set
+			Region region = current.feature.region;
+			if (region.start.compareTo(region.end) <= 0) {
+
+				ActiveList others = isLeft ? rightActive : leftActive;
+				ActiveList own = isLeft ? leftActive : rightActive;
+
+				for (int i = 0; i < others.list.size();) {
+					Active other = others.list.get(i);
+					if (other.finished) {
+						others.removeAt(i);
+						continue;
+					}
+
+					Active left = isLeft ? current : other;
+					Active right = isLeft ? other : current;
+					if (pairRule.isPair(left.feature.region, right.feature.region)) {
+						addPair(left, right);
+					}
+					i++;
+				}
+
+				own.add(current);
+				byEnd.add(current);
+				byStart.add(current);
+
+			} else {
+				// the end is before the start, so it can't have pairs
+				finish(current, pairPolicy, leftOrphanPolicy, rightOrphanPolicy, collector, sorted);
+			}
+
+			// results before the first pending region are final
+			while (!byStart.isEmpty() && !byStart.peek().isPending()) {
+				byStart.poll();
+			}
+			BpCoord bound = byStart.isEmpty() ? start : byStart.peek().feature.region.start;
+			sorted.flush(bound);
+		}
+
+		while (!byEnd.isEmpty()) {
+			finish(byEnd.poll(), pairPolicy, leftOrphanPolicy, rightOrphanPolicy, collector, sorted);
+		}
+
+		sorted.flush(null);
+		if (merger != null) {
+			merger.close();
+		}
+	}
+
+	/**
+	 * Active regions of one set
+	 */
+	private static class ActiveList {
+
+		private static final int MIN_COMPACT_SIZE = 64;
+
+		private ArrayList<Active> list = new ArrayList<>();
+		private int compactAt = MIN_COMPACT_SIZE;
+
+		void add(Active active) {
+			// the other set may not iterate this list, so remove the finished regions
+			// when the size has doubled
+			if (list.size() >= compactAt) {
+				list.removeIf(a -> a.finished);
+				compactAt = Math.max(MIN_COMPACT_SIZE, list.size() * 2);
+			}
+			list.add(active);
+		}
+
+		/**
+		 * Remove without keeping the order
+		 */
+		void removeAt(int index) {
+			int last = list.size() - 1;
+			list.set(index, list.get(last));
+			list.remove(last);
+		}
+	}
+
+	private static void addPair(Active left, Active right) {
+		left.paired = true;
+		right.paired = true;
+		if (left.pairs == null) {
+			left.pairs = new ArrayList<>();
+		}
+		// the right regions are read in the input order
+		left.pairs.add(right);
+		// the merged pair may start from the right region
+		right.unfinishedPairs++;
+	}
+
+	/**
+	 * Process the region that can't get more pairs
+	 */
+	private static void finish(Active active, PairPolicy pairPolicy, OrphanPolicy leftOrphanPolicy,
+			OrphanPolicy rightOrphanPolicy, LinkedList<Feature> collector, SortingBuffer sorted) {
+
+		active.finished = true;
+
+		if (active.isLeft && active.pairs != null) {
+			for (Active right : active.pairs) {
+				pairPolicy.process(active.feature, right.feature, collector);
+				right.unfinishedPairs--;
+			}
+			active.pairs = null;
+		}
+
+		if (!active.paired) {
+			if (active.isLeft) {
+				leftOrphanPolicy.process(active.feature, collector);
+			} else {
+				rightOrphanPolicy.process(active.feature, collector);
+			}
+		}
+
+		for (Feature feature : collector) {
+			sorted.accept(feature);
+		}
+		collector.clear();
+	}
+
+	/**
+	 * Collects features and passes them on in the sorted order
+	 *
+	 * The buffer is not limited. It holds all results that start after the first
+	 * pending region, so one long pending region keeps all the results until it
+	 * ends.
+	 */
+	private static class SortingBuffer implements Consumer<Feature> {
+
+		private PriorityQueue<Feature> queue = new PriorityQueue<>();
+		private Consumer<Feature> output;
+
+		SortingBuffer(Consumer<Feature> output) {
+			this.output = output;
+		}
+
+		@Override
+		public void accept(Feature feature) {
+			queue.add(feature);
+		}
+
+		/**
+		 * Pass on the features that start before the bound
+		 *
+		 * @param bound no more features will be added before this position, null to
+		 *              pass on all
+		 */
+		void flush(BpCoord bound) {
+			while (!queue.isEmpty() && (bound == null || queue.peek().region.start.compareTo(bound) < 0)) {
+				output.accept(queue.poll());
+			}
+		}
+	}
+
+	/**
+	 * Streaming version of RegionOperations.mergeContinuous() for sorted input
+	 *
+	 * Like the original, continues the piece as long as the next region
+	 * intersects the first region of the piece.
+	 */
+	private static class ContinuousMerger implements Consumer<Feature> {
+
+		private SortingBuffer output;
+		private Feature first;
+		private Feature last;
+
+		ContinuousMerger(SortingBuffer output) {
+			this.output = output;
+		}
+
+		@Override
+		public void accept(Feature feature) {
+			if (first != null && first.region.intersects(feature.region)) {
+				last = feature;
+				return;
+			}
+
+			writePiece();
+			first = feature;
+			last = feature;
+
+			// merged pieces start from the first region of the piece
+			output.flush(first.region.start);
+		}
+
+		private void writePiece() {
+			if (first != null) {
+				output.accept(new Feature(new Region(first.region.start, last.region.end),
+						RegionOperations.getEmptyExtraFieldMap()));
+			}
+		}
+
+		void close() {
+			writePiece();
+			output.flush(null);
+		}
+	}
+}
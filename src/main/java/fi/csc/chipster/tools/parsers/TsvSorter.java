@@ -1,44 +1,65 @@
 package fi.csc.chipster.tools.parsers;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
-import org.apache.commons.lang3.StringUtils;
-
-import fi.csc.chipster.tools.model.BpCoord;
 import fi.csc.chipster.tools.model.Chromosome;
-import fi.csc.chipster.util.IOUtils;
 
+/**
+ * External sort for tab separated files by chromosome and start position
+ *
+ * The lines are kept as raw bytes and only the chromosome and start columns are
+ * parsed when the line is read. The input is read to runs that fit in the
+ * memory limit. The runs are sorted and written to temporary files in parallel,
+ * while the next run is read. Finally the runs are merged with a k-way heap.
+ *
+ * The sort is stable: lines with the same chromosome and start position are
+ * kept in the input order. The header lines before the first content line (as
+ * decided by the parser) are copied to the beginning of the output as they are.
+ */
 public class TsvSorter {
 
-	private int chrCol;
-	private int bpCol;
-	private ChromosomeNormaliser chromosomeNormaliser = new ChromosomeNormaliser() {
-
-		public String normaliseChromosome(String chromosomeName) {
-
-			// Leave prefix as it is
+	private static final Logger logger = LogManager.getLogger();
 
-			// Remove postfix, if present
-			// String SEPARATOR = ".";
-			// if (chromosomeName.contains(SEPARATOR)) {
-			// chromosomeName = chromosomeName.substring(0,
-			// chromosomeName.indexOf(SEPARATOR));
-			// }
+	// estimated memory of a row in the run in addition to the line bytes
+	private static final int ROW_OVERHEAD = 4 + 4 + 8 + 8 + 4 + 4;
+	private static final int MIN_RUN_SIZE = 64 * 1024;
+	private static final int MAX_MERGE_FILES = 128;
+	private static final int MIN_READ_BUFFER = 64 * 1024;
+	private static final int MAX_READ_BUFFER = 1024 * 1024;
+	private static final int WRITE_BUFFER = 1024 * 1024;
 
-			return chromosomeName;
-		}
-	};
+	private int chrCol;
+	private int bpCol;
 
 	private AbstractTsvLineParser parser;
 
+	private long memoryLimit = Math.min(256l * 1024 * 1024, Runtime.getRuntime().maxMemory() / 4);
+	private int threads = 1;
+	private File tmpDir;
+	private long maxTmpSize = Long.MAX_VALUE;
+
 	public void sort(File in, File out, int chrColumn, int startColumn) throws Exception {
 		this.chrCol = chrColumn;
 		this.bpCol = startColumn;
@@ -50,267 +71,586 @@ public class TsvSorter {
 		sort(in, out, chrColumn, startColumn);
 	}
 
-	private class Row extends BpCoord {
+	/**
+	 * Memory for the runs that are read or sorted at the same time
+	 *
+	 * @param bytes
+	 */
+	public void setMemoryLimit(long bytes) {
+		this.memoryLimit = bytes;
+	}
 
-		public String line;
+	/**
+	 * Number of runs that are sorted in parallel, 1 by default
+	 *
+	 * @param threads
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
 
-		public Row(String line) {
-			super(null, null);
+	/**
+	 * Directory for the temporary files, the directory of the input file by
+	 * default
+	 *
+	 * @param tmpDir
+	 */
+	public void setTmpDir(File tmpDir) {
+		this.tmpDir = tmpDir;
+	}
 
-			this.line = line;
-			String[] splitted = line.split("\t");
-			String chrStr = splitted.length > chrCol ? splitted[chrCol] : "";
+	/**
+	 * Fail if the temporary files would need more space
+	 *
+	 * @param bytes
+	 */
+	public void setMaxTmpSize(long bytes) {
+		this.maxTmpSize = bytes;
+	}
+
+	private void externalSort(File infile, File outfile) throws IOException, GBrowserException, InterruptedException {
+
+		File runDir = tmpDir != null ? tmpDir : infile.getAbsoluteFile().getParentFile();
+		int parallelRuns = Math.max(1, threads);
+		long runLimit = Math.max(MIN_RUN_SIZE, memoryLimit / parallelRuns);
+
+		KeyParser keyParser = new KeyParser(chrCol, bpCol);
+		ByteArrayBuilder header = new ByteArrayBuilder();
+		List<File> runFiles = new ArrayList<>();
+		List<Future<?>> runFutures = new ArrayList<>();
+		long tmpSize = 0;
+
+		// limit the number of runs in memory
+		Semaphore runPermits = new Semaphore(parallelRuns);
+		ExecutorService executor = Executors.newFixedThreadPool(parallelRuns);
 
-			// If chromosome name exists, normalise it
-			if (!chrStr.isEmpty()) {
-				chrStr = chromosomeNormaliser.normaliseChromosome(chrStr);
-				splitted[chrCol] = chrStr;
-				this.line = TsvSorter.delimit(Arrays.asList(splitted), "\t"); // replace back to raw line
+		try (LineReader reader = new LineReader(infile, MAX_READ_BUFFER)) {
+
+			boolean headerDone = parser == null;
+
+			runPermits.acquire();
+			Run run = new Run(runLimit);
+
+			while (reader.next()) {
+
+				if (!headerDone) {
+					parser.setLine(new String(reader.buf, reader.lineStart, reader.lineLength(),
+							StandardCharsets.UTF_8));
+					if (parser.isContentLine()) {
+						headerDone = true;
+					} else {
+						header.append(reader.buf, reader.lineStart, reader.lineLength());
+						header.append((byte) '\n');
+						continue;
+					}
+				}
+
+				keyParser.parse(reader.buf, reader.lineStart, reader.lineEnd);
+				run.add(reader.buf, reader.lineStart, reader.lineLength(), keyParser.chr, keyParser.bp);
+
+				if (run.isFull()) {
+					tmpSize += run.getSize();
+					if (tmpSize > maxTmpSize) {
+						throw new IOException("sorting needs more than " + maxTmpSize + " bytes of temporary files");
+					}
+
+					File runFile = File.createTempFile(infile.getName() + "-", ".run", runDir);
+					runFiles.add(runFile);
+					runFutures.add(submit(executor, run, runFile, runPermits));
+
+					runPermits.acquire();
+					run = new Run(runLimit);
+				}
 			}
-			String bpStr = splitted.length > bpCol ? splitted[bpCol] : "";
 
-			chr = new Chromosome(chrStr);
+			if (runFiles.isEmpty()) {
+				// fits in memory, no need for temporary files
+				try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outfile), WRITE_BUFFER)) {
+					out.write(header.buf, 0, header.size);
+					run.sortAndWrite(out);
+				}
+				return;
+			}
 
-			if (bpStr.isEmpty()) {
-				bp = -1l;
-			} else {
-				bp = Long.parseLong(bpStr);
+			File runFile = File.createTempFile(infile.getName() + "-", ".run", runDir);
+			runFiles.add(runFile);
+			runFutures.add(submit(executor, run, runFile, runPermits));
+
+			for (Future<?> future : runFutures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException) {
+						throw (IOException) e.getCause();
+					}
+					if (e.getCause() instanceof RuntimeException) {
+						throw (RuntimeException) e.getCause();
+					}
+					throw new GBrowserException("sorting failed", e);
+				}
+			}
+
+			logger.debug("merge " + runFiles.size() + " sorted runs");
+
+			mergeFiles(runFiles, runDir, infile.getName(), keyParser, header, outfile);
+
+		} finally {
+			executor.shutdownNow();
+
+			for (File runFile : runFiles) {
+				runFile.delete();
 			}
 		}
 	}
 
+	private static Future<?> submit(ExecutorService executor, Run run, File runFile, Semaphore runPermits) {
+		return executor.submit(() -> {
+			try (OutputStream out = new BufferedOutputStream(new FileOutputStream(runFile), WRITE_BUFFER)) {
+				run.sortAndWrite(out);
+			} finally {
+				runPermits.release();
+			}
+			return null;
+		});
+	}
+
 	/**
-	 * Combines strings into one string by placing a delimeter between them.
-	 * Works with objects by calling toString() for them.
-	 * If there are no strings to combine, empty string is returned.
+	 * Merge the sorted runs to the output file
+	 *
+	 * If there are too many runs to open at the same time, consecutive runs are
+	 * merged first to keep the sort stable.
 	 */
-	public static String delimit(Iterable<? extends Object> objects, String delimeter) {
-		String result = "";
-		boolean first = true;
-		for (Object object : objects) {
-			if (first) {
-				result = object.toString();
-				first = false;
-			} else {
-				result += (delimeter + object);
+	private void mergeFiles(List<File> runFiles, File runDir, String prefix, KeyParser keyParser,
+			ByteArrayBuilder header, File outfile) throws IOException {
+
+		List<File> runs = new ArrayList<>(runFiles);
+
+		while (runs.size() > MAX_MERGE_FILES) {
+			List<File> merged = new ArrayList<>();
+			for (int i = 0; i < runs.size(); i += MAX_MERGE_FILES) {
+				List<File> group = new ArrayList<>(runs.subList(i, Math.min(i + MAX_MERGE_FILES, runs.size())));
+				File mergedFile = File.createTempFile(prefix + "-", ".run", runDir);
+				// delete in the end
+				runFiles.add(mergedFile);
+				try (OutputStream out = new BufferedOutputStream(new FileOutputStream(mergedFile), WRITE_BUFFER)) {
+					merge(group, keyParser, out);
+				}
+				for (File file : group) {
+					file.delete();
+				}
+				merged.add(mergedFile);
+			}
+			runs = merged;
+		}
+
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outfile), WRITE_BUFFER)) {
+			out.write(header.buf, 0, header.size);
+			merge(runs, keyParser, out);
+		}
+	}
+
+	private void merge(List<File> runs, KeyParser keyParser, OutputStream out) throws IOException {
+
+		int bufferSize = (int) Math.max(MIN_READ_BUFFER, Math.min(MAX_READ_BUFFER, memoryLimit / runs.size()));
+
+		// the smallest key first, the earlier run if equal
+		PriorityQueue<RunCursor> heap = new PriorityQueue<>((a, b) -> {
+			int chrComparison = a.chr.compareTo(b.chr);
+			if (chrComparison != 0) {
+				return chrComparison;
+			}
+			int bpComparison = Long.compare(a.bp, b.bp);
+			if (bpComparison != 0) {
+				return bpComparison;
+			}
+			return Integer.compare(a.index, b.index);
+		});
+
+		List<RunCursor> cursors = new ArrayList<>();
+		try {
+			for (int i = 0; i < runs.size(); i++) {
+				RunCursor cursor = new RunCursor(runs.get(i), bufferSize, i);
+				cursors.add(cursor);
+				if (cursor.next(keyParser)) {
+					heap.add(cursor);
+				}
+			}
+
+			while (!heap.isEmpty()) {
+				RunCursor cursor = heap.poll();
+				out.write(cursor.buf, cursor.lineStart, cursor.lineLength());
+				out.write('\n');
+
+				if (cursor.next(keyParser)) {
+					heap.add(cursor);
+				}
+			}
+		} finally {
+			for (RunCursor cursor : cursors) {
+				cursor.close();
 			}
 		}
-		return result;
 	}
 
 	/**
-	 * Based on
-	 * http://www.codeodor.com/index.cfm/2007/5/14/Re-Sorting-really-BIG-files---the-Java-source-code/1208
-	 * 
-	 * @param infile
-	 * @param outfile
-	 * @throws IOException
-	 * @throws GBrowserException
+	 * Parses the chromosome and start position from the raw line
+	 *
+	 * The Chromosome objects are cached, because there are only few different
+	 * chromosomes and usually the same one repeats on consecutive lines.
 	 */
-	private void externalSort(File infile, File outfile) throws IOException, GBrowserException {
+	private static class KeyParser {
 
-		// Start reading
-		BufferedReader initReader = new BufferedReader(new FileReader(infile));
+		private static final byte TAB = '\t';
 
-		// Read header, if exists
-		String header = "";
+		private int chrCol;
+		private int bpCol;
 
-		if (parser != null) {
+		private HashMap<String, Chromosome> chromosomes = new HashMap<>();
+		private byte[] previousChrBytes;
+		private Chromosome previousChr;
 
-			String line;
-			while ((line = initReader.readLine()) != null) {
+		// results of the last parse()
+		private Chromosome chr;
+		private long bp;
 
-				parser.setLine(line);
-				if (parser.isContentLine()) {
-					break;
+		KeyParser(int chrCol, int bpCol) {
+			this.chrCol = chrCol;
+			this.bpCol = bpCol;
+		}
 
-				} else {
-					header += line + "\n";
+		void parse(byte[] buf, int start, int end) {
+			int chrStart = -1;
+			int chrEnd = -1;
+			int bpStart = -1;
+			int bpEnd = -1;
+
+			int column = 0;
+			int fieldStart = start;
+			int lastColumn = Math.max(chrCol, bpCol);
+
+			for (int i = start; i <= end && column <= lastColumn; i++) {
+				if (i == end || buf[i] == TAB) {
+					if (column == chrCol) {
+						chrStart = fieldStart;
+						chrEnd = i;
+					}
+					if (column == bpCol) {
+						bpStart = fieldStart;
+						bpEnd = i;
+					}
+					column++;
+					fieldStart = i + 1;
 				}
 			}
 
-			// First content line is already consumed. Open file again, but do not read
-			// content yet.
-			initReader.close();
-			initReader = new BufferedReader(new FileReader(infile));
+			chr = getChromosome(buf, chrStart, chrEnd);
+			bp = parseLong(buf, bpStart, bpEnd);
+		}
 
-			for (int i = 0; i < StringUtils.countMatches(header, "\n"); i++) {
-				initReader.readLine();
+		private Chromosome getChromosome(byte[] buf, int start, int end) {
+			if (start == -1) {
+				// missing column
+				start = 0;
+				end = 0;
 			}
-		}
 
-		// Create and sort chunks
-		ArrayList<Row> rowBatch = new ArrayList<Row>(500000);
-		boolean quit = false;
-		int numFiles = 0;
+			if (previousChrBytes != null && Arrays.equals(buf, start, end, previousChrBytes, 0,
+					previousChrBytes.length)) {
+				return previousChr;
+			}
 
-		while (!quit) {
+			String name = new String(buf, start, end - start, StandardCharsets.UTF_8);
+			previousChr = chromosomes.computeIfAbsent(name, Chromosome::new);
+			previousChrBytes = Arrays.copyOfRange(buf, start, end);
 
-			// showProgress("Reading...");
+			return previousChr;
+		}
 
-			// limit chunks to 100MB
-			int size = 0;
-			while (size < 100000000) {
-				// while (size < 10000000) {
-				String line = initReader.readLine();
+		private static long parseLong(byte[] buf, int start, int end) {
+			if (start == -1 || start == end) {
+				// missing or empty column
+				return -1l;
+			}
 
-				if (line == null) {
-					quit = true;
-					break;
+			if (end - start < 18) {
+				long value = 0;
+				boolean digits = true;
+				for (int i = start; i < end && digits; i++) {
+					int digit = buf[i] - '0';
+					if (digit < 0 || digit > 9) {
+						digits = false;
+					}
+					value = value * 10 + digit;
+				}
+				if (digits) {
+					return value;
 				}
-
-				rowBatch.add(new Row(line));
-				size += line.length();
 			}
 
-			// showProgress("Sorting...");
+			// signs, too long or not a number
+			return Long.parseLong(new String(buf, start, end - start, StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Lines and their keys in memory
+	 */
+	private static class Run {
 
-			// Use Java's sort.
-			Collections.sort(rowBatch);
+		private long limit;
 
-			// showProgress("Writing...");
+		private byte[] data = new byte[64 * 1024];
+		private int dataSize = 0;
 
-			// write to disk
-			FileWriter fw = new FileWriter(infile + "_chunk" + numFiles);
-			BufferedWriter bw = new BufferedWriter(fw);
-			for (int i = 0; i < rowBatch.size(); i++) {
-				bw.append(rowBatch.get(i).line + "\n");
+		private int[] offsets = new int[1024];
+		private int[] lengths = new int[1024];
+		private Chromosome[] chrs = new Chromosome[1024];
+		private long[] bps = new long[1024];
+		private int rows = 0;
+
+		Run(long limit) {
+			// arrays can't be larger
+			this.limit = Math.min(limit, Integer.MAX_VALUE - 8);
+		}
+
+		void add(byte[] buf, int start, int length, Chromosome chr, long bp) {
+			if (dataSize + length > data.length) {
+				data = Arrays.copyOf(data, (int) Math.min(Integer.MAX_VALUE - 8,
+						Math.max(dataSize + (long) length, data.length * 2l)));
+			}
+			if (rows == offsets.length) {
+				int newSize = rows * 2;
+				offsets = Arrays.copyOf(offsets, newSize);
+				lengths = Arrays.copyOf(lengths, newSize);
+				chrs = Arrays.copyOf(chrs, newSize);
+				bps = Arrays.copyOf(bps, newSize);
 			}
-			bw.close();
-			numFiles++;
-			rowBatch.clear();
+
+			System.arraycopy(buf, start, data, dataSize, length);
+			offsets[rows] = dataSize;
+			lengths[rows] = length;
+			chrs[rows] = chr;
+			bps[rows] = bp;
+			dataSize += length;
+			rows++;
 		}
 
-		// showProgress("Merging...");
+		boolean isFull() {
+			return dataSize + (long) rows * ROW_OVERHEAD >= limit;
+		}
 
-		mergeFiles(infile.getAbsolutePath(), outfile, numFiles, header);
+		/**
+		 * @return size of the lines in the output
+		 */
+		long getSize() {
+			return dataSize + (long) rows;
+		}
 
-		// showProgress("DONE");
+		void sortAndWrite(OutputStream out) throws IOException {
 
-		initReader.close();
-	}
+			// compare chromosomes only once per run
+			int[] ranks = getChromosomeRanks();
 
-	private void mergeFiles(String inputFilePath, File outputFilePath, int numChunkFiles, String header)
-			throws IOException, GBrowserException {
+			int[] order = new int[rows];
+			for (int i = 0; i < rows; i++) {
+				order[i] = i;
+			}
 
-		// Initialise
-		ArrayList<BufferedReader> mergefbr = new ArrayList<BufferedReader>();
-		ArrayList<Row> filerows = new ArrayList<Row>();
-		FileWriter fw = new FileWriter(outputFilePath);
-		BufferedWriter bw = new BufferedWriter(fw);
+			mergeSort(order, new int[rows], ranks, bps);
 
-		try {
-			// Write header, if needed
-			if (!header.isEmpty()) {
-				bw.append(header);
+			for (int i : order) {
+				out.write(data, offsets[i], lengths[i]);
+				out.write('\n');
 			}
+		}
 
-			// Merge chunks
-			boolean someFileStillHasRows = false;
-			for (int i = 0; i < numChunkFiles; i++) {
-				mergefbr.add(new BufferedReader(new FileReader(inputFilePath + "_chunk" + i)));
-
-				// get the first row
-				String line = mergefbr.get(i).readLine();
-				if (line != null) {
-					filerows.add(new Row(line));
-					someFileStillHasRows = true;
-				} else {
-					filerows.add(null);
-				}
+		private int[] getChromosomeRanks() {
+			IdentityHashMap<Chromosome, Integer> distinct = new IdentityHashMap<>();
+			for (int i = 0; i < rows; i++) {
+				distinct.put(chrs[i], 0);
 			}
 
-			Row row;
-			while (someFileStillHasRows) {
-				Row min;
-				int minIndex = 0;
-
-				row = filerows.get(0);
-				if (row != null) {
-					min = row;
-					minIndex = 0;
-				} else {
-					min = null;
-					minIndex = -1;
+			List<Chromosome> sorted = new ArrayList<>(distinct.keySet());
+			sorted.sort(null);
+
+			int rank = 0;
+			for (int i = 0; i < sorted.size(); i++) {
+				if (i > 0 && sorted.get(i).compareTo(sorted.get(i - 1)) != 0) {
+					rank++;
 				}
+				distinct.put(sorted.get(i), rank);
+			}
 
-				// check which one is min
-				for (int i = 1; i < filerows.size(); i++) {
-					row = filerows.get(i);
-					if (min != null) {
+			int[] ranks = new int[rows];
+			for (int i = 0; i < rows; i++) {
+				ranks[i] = distinct.get(chrs[i]);
+			}
+			return ranks;
+		}
 
-						if (row != null && (row.compareTo(min) < 0)) {
-							minIndex = i;
-							min = filerows.get(i);
-						}
-					} else {
-						if (row != null) {
-							min = row;
-							minIndex = i;
+		/**
+		 * Stable bottom-up merge sort of row indexes by the rank and bp
+		 */
+		private static void mergeSort(int[] order, int[] tmp, int[] ranks, long[] bps) {
+			int n = order.length;
+			int[] src = order;
+			int[] dst = tmp;
+
+			for (int width = 1; width < n; width *= 2) {
+				for (int lo = 0; lo < n; lo += 2 * width) {
+					int mid = Math.min(lo + width, n);
+					int hi = Math.min(lo + 2 * width, n);
+					int i = lo;
+					int j = mid;
+					for (int k = lo; k < hi; k++) {
+						if (i < mid && (j >= hi || compare(src[i], src[j], ranks, bps) <= 0)) {
+							dst[k] = src[i++];
+						} else {
+							dst[k] = src[j++];
 						}
 					}
 				}
+				int[] swap = src;
+				src = dst;
+				dst = swap;
+			}
 
-				if (minIndex < 0) {
-					someFileStillHasRows = false;
-				} else {
-					// write to the sorted file
-					bw.append(filerows.get(minIndex).line + "\n");
+			if (src != order) {
+				System.arraycopy(src, 0, order, 0, n);
+			}
+		}
 
-					// get another row from the file that had the min
-					String line = mergefbr.get(minIndex).readLine();
-					if (line != null) {
-						filerows.set(minIndex, new Row(line));
-					} else {
-						filerows.set(minIndex, null);
-					}
-				}
-				// check if one still has rows
-				for (int i = 0; i < filerows.size(); i++) {
+		private static int compare(int a, int b, int[] ranks, long[] bps) {
+			int rankComparison = Integer.compare(ranks[a], ranks[b]);
+			if (rankComparison != 0) {
+				return rankComparison;
+			}
+			return Long.compare(bps[a], bps[b]);
+		}
+	}
+
+	/**
+	 * Reads lines from a file channel to a reusable buffer
+	 *
+	 * The current line is in buf between lineStart and lineEnd without the line
+	 * terminator.
+	 */
+	private static class LineReader implements AutoCloseable {
 
-					someFileStillHasRows = false;
-					if (filerows.get(i) != null) {
-						if (minIndex < 0) {
+		private FileChannel channel;
+		protected byte[] buf;
+		private int pos = 0;
+		private int limit = 0;
+		private boolean eof = false;
 
-							bw.close();
+		protected int lineStart;
+		protected int lineEnd;
 
-							throw new GBrowserException(
-									"Error in sorting: " + "mindex lt 0 and found row not null" + filerows.get(i));
-						}
-						someFileStillHasRows = true;
-						break;
+		LineReader(File file, int bufferSize) throws IOException {
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			this.buf = new byte[bufferSize];
+		}
+
+		boolean next() throws IOException {
+			while (true) {
+				for (int i = pos; i < limit; i++) {
+					if (buf[i] == '\n') {
+						setLine(pos, i);
+						pos = i + 1;
+						return true;
 					}
 				}
 
-				// check the actual files one more time
-				if (!someFileStillHasRows) {
-					// write the last one not covered above
-					for (int i = 0; i < filerows.size(); i++) {
-						if (filerows.get(i) == null) {
-							String line = mergefbr.get(i).readLine();
-							if (line != null) {
-
-								someFileStillHasRows = true;
-								filerows.set(i, new Row(line));
-							}
-						}
+				if (eof) {
+					if (pos < limit) {
+						// the last line without a line terminator
+						setLine(pos, limit);
+						pos = limit;
+						return true;
 					}
+					return false;
 				}
+
+				fill();
 			}
-		} finally {
+		}
+
+		private void setLine(int start, int end) {
+			lineStart = start;
+			// like BufferedReader.readLine()
+			lineEnd = end > start && buf[end - 1] == '\r' ? end - 1 : end;
+		}
+
+		int lineLength() {
+			return lineEnd - lineStart;
+		}
+
+		private void fill() throws IOException {
+			// move the incomplete line to the beginning
+			int remaining = limit - pos;
+			if (pos > 0) {
+				System.arraycopy(buf, pos, buf, 0, remaining);
+			} else if (remaining == buf.length) {
+				// the line is longer than the buffer
+				buf = Arrays.copyOf(buf, buf.length * 2);
+			}
+			pos = 0;
+			limit = remaining;
+
+			ByteBuffer byteBuffer = ByteBuffer.wrap(buf, limit, buf.length - limit);
+			int read = channel.read(byteBuffer);
+			if (read == -1) {
+				eof = true;
+			} else {
+				limit += read;
+			}
+		}
 
-			// close all the files
-			IOUtils.closeIfPossible(bw);
-			IOUtils.closeIfPossible(fw);
+		@Override
+		public void close() throws IOException {
+			channel.close();
 		}
+	}
+
+	/**
+	 * Current line and key of a sorted run
+	 */
+	private static class RunCursor extends LineReader {
+
+		private int index;
+		private Chromosome chr;
+		private long bp;
 
-		for (int i = 0; i < mergefbr.size(); i++)
-			mergefbr.get(i).close();
+		RunCursor(File file, int bufferSize, int index) throws IOException {
+			super(file, bufferSize);
+			this.index = index;
+		}
+
+		boolean next(KeyParser keyParser) throws IOException {
+			if (!next()) {
+				return false;
+			}
+			keyParser.parse(buf, lineStart, lineEnd);
+			chr = keyParser.chr;
+			bp = keyParser.bp;
+			return true;
+		}
+	}
+
+	private static class ByteArrayBuilder {
+		private byte[] buf = new byte[1024];
+		private int size = 0;
+
+		void append(byte[] bytes, int start, int length) {
+			if (size + length > buf.length) {
+				buf = Arrays.copyOf(buf, Math.max(size + length, buf.length * 2));
+			}
+			System.arraycopy(bytes, start, buf, size, length);
+			size += length;
+		}
 
-		// Delete all of the chunk files.
-		for (int i = 0; i < numChunkFiles; i++) {
-			File f = new File(inputFilePath + "_chunk" + i);
-			f.delete();
+		void append(byte b) {
+			append(new byte[] { b }, 0, 1);
 		}
 	}
 
@@ -336,4 +676,4 @@ public class TsvSorter {
 							"  java -cp chipster-2.7.1.jar fi.csc.microarray.client.visualisation.methods.gbrowser.util.TsvSorter Homo_sapiens.GRCh37.70.gtf Homo_sapiens.GRCh37.70-sort.gtf 0 3");
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,3 @@
+alter table JobHistory add column cpuTime int8;
+alter table JobHistory add column ioReadBytes int8;
+alter table JobHistory add column ioWriteBytes int8;
@@ -0,0 +1,3 @@
+alter table Job add column cpuTime int8;
+alter table Job add column ioReadBytes int8;
+alter table Job add column ioWriteBytes int8;
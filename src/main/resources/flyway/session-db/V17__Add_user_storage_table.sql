@@ -0,0 +1,13 @@
+create table UserStorage (
+    username varchar(255) not null,
+    size bigint not null,
+    primary key (username)
+);
+
+-- initialize with the same sum that was calculated for each request before
+insert into UserStorage (username, size)
+select rule_fileid.username, sum(file.size) from file inner join (
+    select distinct rule.username, dataset.fileid from rule
+        inner join dataset on rule.sessionid=dataset.sessionid
+    where rule.readWrite=true and rule.username is not null) as rule_fileid on rule_fileid.fileid=file.fileid
+group by rule_fileid.username;
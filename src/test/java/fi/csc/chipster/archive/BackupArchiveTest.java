@@ -0,0 +1,212 @@
+package fi.csc.chipster.archive;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import fi.csc.chipster.rest.Config;
+import fi.csc.chipster.rest.ProcessUtils;
+
+public class BackupArchiveTest {
+
+	private static final String BUCKET = "backups";
+	private static final String PREFIX = "file-storage_";
+
+	@TempDir
+	Path tempDir;
+
+	private Path archiveRoot;
+	private Path packageDir;
+	private FileSystemS3Client s3Client;
+	private BackupArchive backupArchive;
+
+	@BeforeEach
+	public void setUp() throws IOException {
+		archiveRoot = tempDir.resolve("backup-archive");
+		packageDir = tempDir.resolve("packages");
+		Files.createDirectories(archiveRoot);
+		Files.createDirectories(packageDir);
+
+		s3Client = new FileSystemS3Client(tempDir.resolve("s3"), 200);
+		backupArchive = new BackupArchive(new Config());
+	}
+
+	@Test
+	public void parallelDownload() throws Exception {
+		String backupName = getBackupName(1);
+		List<InfoLine> infos = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			infos.addAll(uploadTar(backupName, "tar" + i, 3, 100_000));
+		}
+		uploadBackupInfo(backupName, infos);
+
+		archive(backupName);
+
+		Assertions.assertTrue(s3Client.getMaxParallelDownloads() > 1);
+		assertArchive(backupName, infos);
+	}
+
+	@Test
+	public void corruptedPackage() throws Exception {
+		String backupName = getBackupName(1);
+		List<InfoLine> infos = uploadTar(backupName, "tar", 3, 10_000);
+
+		// wrong checksum for the first file
+		InfoLine corrupted = infos.get(0);
+		infos.set(0, new InfoLine(corrupted.getPath(), corrupted.getSize(), corrupted.getSha512(),
+				corrupted.getGpgPath(), corrupted.getGpgSize(), "0".repeat(128), backupName));
+		uploadBackupInfo(backupName, infos);
+
+		archive(backupName);
+
+		Path archive = archiveRoot.resolve(backupName);
+		Assertions.assertFalse(Files.exists(archive.resolve(corrupted.getGpgPath())));
+		Assertions.assertEquals(2, Files.readAllLines(archive.resolve(BackupArchive.ARCHIVE_INFO)).size());
+	}
+
+	@Test
+	public void incremental() throws Exception {
+		String backupName1 = getBackupName(2);
+		List<InfoLine> infos1 = uploadTar(backupName1, "tar", 3, 10_000);
+		uploadBackupInfo(backupName1, infos1);
+		archive(backupName1);
+
+		// the second backup has one new file and uses the old ones from the first
+		// archive
+		String backupName2 = getBackupName(1);
+		List<InfoLine> infos2 = new ArrayList<>(infos1);
+		infos2.addAll(uploadTar(backupName2, "tar", 1, 10_000));
+		uploadBackupInfo(backupName2, infos2);
+		archive(backupName2);
+
+		assertArchive(backupName2, infos2);
+		// moved from the old archive
+		Assertions.assertFalse(Files.exists(archiveRoot.resolve(backupName1).resolve(infos1.get(0).getGpgPath())));
+	}
+
+	@Test
+	public void interrupted() throws Exception {
+		String backupName1 = getBackupName(2);
+		List<InfoLine> infos1 = uploadTar(backupName1, "tar", 3, 10_000);
+		uploadBackupInfo(backupName1, infos1);
+		archive(backupName1);
+
+		String backupName2 = getBackupName(1);
+		List<InfoLine> infos2 = new ArrayList<>(infos1);
+		infos2.addAll(uploadTar(backupName2, "tar", 1, 10_000));
+		uploadBackupInfo(backupName2, infos2);
+
+		// the previous run moved one file from the old archive and then crashed
+		Path partial = archiveRoot.resolve(".partial").resolve(backupName2);
+		Path moved = infos1.get(0).getGpgPath();
+		Files.createDirectories(partial.resolve(moved).getParent());
+		Files.move(archiveRoot.resolve(backupName1).resolve(moved), partial.resolve(moved));
+		Files.createDirectories(partial.resolve("download"));
+		Files.write(partial.resolve("download").resolve("incomplete.tar"), new byte[] { 1, 2, 3 });
+
+		Assertions.assertFalse(Files.exists(archiveRoot.resolve(backupName2)));
+
+		archive(backupName2);
+
+		assertArchive(backupName2, infos2);
+		Assertions.assertFalse(Files.exists(partial));
+	}
+
+	@Test
+	public void archiveInfoNotUploaded() throws Exception {
+		String backupName = getBackupName(1);
+		List<InfoLine> infos = uploadTar(backupName, "tar", 2, 10_000);
+		uploadBackupInfo(backupName, infos);
+		archive(backupName);
+
+		// crashed after the archive was moved in place
+		s3Client.deleteObject(BUCKET, backupName + "/" + BackupArchive.ARCHIVE_INFO);
+
+		archive(backupName);
+
+		assertArchive(backupName, infos);
+	}
+
+	private void archive(String backupName) throws Exception {
+		backupArchive.archive(s3Client, PREFIX, archiveRoot, "file-storage", backupName, BUCKET,
+				s3Client.getObjects(BUCKET));
+	}
+
+	private void assertArchive(String backupName, List<InfoLine> infos) throws Exception {
+		Path archive = archiveRoot.resolve(backupName);
+
+		for (InfoLine info : infos) {
+			Path file = archive.resolve(info.getGpgPath());
+			Assertions.assertEquals(info.getGpgSha512(), ChecksumPipe.sha512(file), file.toString());
+		}
+
+		Map<Path, InfoLine> archiveInfo = GpgBackupUtils.infoFileToMap(s3Client, BUCKET,
+				backupName + "/" + BackupArchive.ARCHIVE_INFO, tempDir.resolve("info"));
+		Assertions.assertEquals(infos.size(), archiveInfo.size());
+		archiveInfo.values().forEach(info -> Assertions.assertEquals(backupName, info.getBackupName()));
+
+		Assertions.assertFalse(Files.exists(archive.resolve("download")));
+	}
+
+	private static String getBackupName(int daysAgo) {
+		return PREFIX + Instant.now().minus(daysAgo, ChronoUnit.DAYS).truncatedTo(ChronoUnit.SECONDS);
+	}
+
+	/**
+	 * Create packages with random content and upload them in a tar file like
+	 * GpgBackupUtils
+	 */
+	private List<InfoLine> uploadTar(String backupName, String tarName, int fileCount, int fileSize)
+			throws IOException, InterruptedException {
+
+		Path tarPath = tempDir.resolve(tarName + ".tar");
+		Files.deleteIfExists(tarPath);
+		List<InfoLine> infos = new ArrayList<>();
+		Random random = new Random(backupName.hashCode() + tarName.hashCode());
+
+		for (int i = 0; i < fileCount; i++) {
+			Path path = Paths.get(tarName + "-" + random.nextInt(1000), "file" + i + "-" + random.nextInt(1000));
+			Path gpgPath = GpgBackupUtils.getPackageGpgPath(path);
+			Path localPackage = packageDir.resolve(gpgPath);
+
+			byte[] bytes = new byte[fileSize];
+			random.nextBytes(bytes);
+			Files.createDirectories(localPackage.getParent());
+			Files.write(localPackage, bytes);
+
+			ProcessUtils.run(null, null, "tar", "-f", tarPath.toString(), "--directory", packageDir.toString(),
+					"--append", gpgPath.toString());
+
+			infos.add(new InfoLine(path, fileSize, "-", gpgPath, fileSize, ChecksumPipe.sha512(localPackage),
+					backupName));
+		}
+
+		s3Client.uploadFile(BUCKET, backupName + "/" + tarPath.getFileName(), tarPath);
+		return infos;
+	}
+
+	private void uploadBackupInfo(String backupName, List<InfoLine> infos) throws IOException {
+		Path infoPath = tempDir.resolve(BackupArchive.BACKUP_INFO);
+		Files.deleteIfExists(infoPath);
+		for (InfoLine info : infos) {
+			Files.write(infoPath, Collections.singleton(info.toLine()), Charset.defaultCharset(),
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		}
+		s3Client.uploadFile(BUCKET, backupName + "/" + BackupArchive.BACKUP_INFO, infoPath);
+	}
+}
@@ -0,0 +1,117 @@
+package fi.csc.chipster.archive;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import fi.csc.chipster.rest.ProcessUtils;
+
+public class ChecksumPipeTest {
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	public void copy() throws IOException, InterruptedException {
+		Path input = createFile("input", 3 * 1024 * 1024 + 17);
+		Path output = tempDir.resolve("output");
+
+		ChecksumPipe checksums = ChecksumPipe.run(input, output, null, "cat");
+
+		Assertions.assertEquals(Files.size(input), checksums.getInputSize());
+		Assertions.assertEquals(Files.size(output), checksums.getOutputSize());
+		Assertions.assertEquals(shasum(input), checksums.getInputSha512());
+		Assertions.assertEquals(shasum(input), checksums.getOutputSha512());
+	}
+
+	@Test
+	public void compress() throws IOException, InterruptedException {
+		Path input = createFile("input", 1024 * 1024);
+		Path output = tempDir.resolve("output.gz");
+
+		ChecksumPipe checksums = ChecksumPipe.run(input, output, null, "bash", "-c", "gzip -c | cat");
+
+		Assertions.assertEquals(Files.size(output), checksums.getOutputSize());
+		Assertions.assertEquals(shasum(input), checksums.getInputSha512());
+		Assertions.assertEquals(shasum(output), checksums.getOutputSha512());
+	}
+
+	@Test
+	public void empty() throws IOException, InterruptedException {
+		Path input = createFile("input", 0);
+		Path output = tempDir.resolve("output");
+
+		ChecksumPipe checksums = ChecksumPipe.run(input, output, null, "cat");
+
+		Assertions.assertEquals(0, checksums.getInputSize());
+		Assertions.assertEquals(shasum(input), checksums.getInputSha512());
+		Assertions.assertEquals(shasum(output), checksums.getOutputSha512());
+	}
+
+	/**
+	 * The same checksums that the backup info file had when those were calculated
+	 * with shasum
+	 */
+	@Test
+	public void parallelManifest() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		List<Path> inputs = new ArrayList<>();
+		List<Future<ChecksumPipe>> futures = new ArrayList<>();
+
+		try {
+			for (int i = 0; i < 12; i++) {
+				Path input = createFile("input" + i, i * 100_000);
+				Path output = tempDir.resolve("output" + i + ".gz");
+				inputs.add(input);
+				futures.add(executor.submit(() -> ChecksumPipe.run(input, output, null, "gzip", "-c")));
+			}
+
+			for (int i = 0; i < inputs.size(); i++) {
+				ChecksumPipe checksums = futures.get(i).get();
+				Assertions.assertEquals(shasum(inputs.get(i)), checksums.getInputSha512());
+				Assertions.assertEquals(shasum(tempDir.resolve("output" + i + ".gz")), checksums.getOutputSha512());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void missingFile() {
+		Assertions.assertThrows(NoSuchFileException.class,
+				() -> ChecksumPipe.run(tempDir.resolve("missing"), tempDir.resolve("output"), null, "cat"));
+	}
+
+	@Test
+	public void failingCommand() throws IOException {
+		Path input = createFile("input", 10 * 1024 * 1024);
+
+		Assertions.assertThrows(RuntimeException.class,
+				() -> ChecksumPipe.run(input, tempDir.resolve("output"), null, "bash", "-c", "exit 3"));
+	}
+
+	private Path createFile(String name, int size) throws IOException {
+		byte[] bytes = new byte[size];
+		// half random to make it compressible
+		new Random(size).nextBytes(bytes);
+		for (int i = 0; i < size; i += 2) {
+			bytes[i] = 'a';
+		}
+		return Files.write(tempDir.resolve(name), bytes);
+	}
+
+	private static String shasum(Path file) throws IOException, InterruptedException {
+		return ProcessUtils.runStdoutToString(null, "shasum", "-a", "512", file.toString()).split(" ")[0];
+	}
+}
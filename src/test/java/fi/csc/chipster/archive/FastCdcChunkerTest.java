@@ -0,0 +1,84 @@
+package fi.csc.chipster.archive;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class FastCdcChunkerTest {
+
+	private FastCdcChunker chunker = new FastCdcChunker(2 * 1024, 8 * 1024, 32 * 1024);
+
+	@Test
+	public void reassemble() throws IOException {
+		byte[] data = getData(1, 1_000_000);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		List<byte[]> chunks = chunk(data);
+		for (byte[] chunk : chunks) {
+			out.write(chunk);
+		}
+
+		Assertions.assertArrayEquals(data, out.toByteArray());
+
+		for (int i = 0; i < chunks.size() - 1; i++) {
+			Assertions.assertTrue(chunks.get(i).length >= 2 * 1024);
+			Assertions.assertTrue(chunks.get(i).length <= 32 * 1024);
+		}
+
+		// normalized chunking keeps the sizes close to the average
+		int average = data.length / chunks.size();
+		Assertions.assertTrue(average > 6 * 1024 && average < 12 * 1024, "average " + average);
+	}
+
+	@Test
+	public void empty() throws IOException {
+		Assertions.assertEquals(0, chunk(new byte[0]).size());
+		Assertions.assertEquals(1, chunk(new byte[100]).size());
+	}
+
+	@Test
+	public void insertion() throws IOException {
+		byte[] data = getData(2, 1_000_000);
+
+		// insert 100 bytes in the middle
+		byte[] changed = new byte[data.length + 100];
+		System.arraycopy(data, 0, changed, 0, 500_000);
+		System.arraycopy(getData(3, 100), 0, changed, 500_000, 100);
+		System.arraycopy(data, 500_000, changed, 500_100, 500_000);
+
+		List<byte[]> original = chunk(data);
+		List<byte[]> modified = chunk(changed);
+
+		HashSet<String> originalChunks = new HashSet<>();
+		original.forEach(chunk -> originalChunks.add(Arrays.toString(chunk)));
+
+		long newBytes = modified.stream()
+				.filter(chunk -> !originalChunks.contains(Arrays.toString(chunk)))
+				.mapToLong(chunk -> chunk.length)
+				.sum();
+
+		// only the chunks around the insertion are new
+		Assertions.assertTrue(newBytes < 3 * 32 * 1024, "new bytes " + newBytes);
+	}
+
+	private List<byte[]> chunk(byte[] data) throws IOException {
+		List<byte[]> chunks = new ArrayList<>();
+		chunker.chunk(new ByteArrayInputStream(data),
+				(bytes, offset, length) -> chunks.add(Arrays.copyOfRange(bytes, offset, offset + length)));
+		return chunks;
+	}
+
+	private static byte[] getData(long seed, int size) {
+		byte[] data = new byte[size];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+}
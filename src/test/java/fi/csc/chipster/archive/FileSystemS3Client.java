@@ -0,0 +1,95 @@
+package fi.csc.chipster.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import fi.csc.chipster.rest.ChipsterS3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/**
+ * S3 stand-in for tests, which keeps the objects in a local directory
+ * 
+ * Each bucket is a subdirectory and object keys are relative paths in it.
+ */
+public class FileSystemS3Client extends ChipsterS3Client {
+
+	private Path root;
+	private long downloadDelay;
+
+	private AtomicInteger downloads = new AtomicInteger();
+	private AtomicInteger maxParallelDownloads = new AtomicInteger();
+
+	public FileSystemS3Client(Path root, long downloadDelay) {
+		// the client is never connected
+		super("http://127.0.0.1:1", "regionOne", "access", "secret", true);
+		this.root = root;
+		this.downloadDelay = downloadDelay;
+	}
+
+	@Override
+	public List<S3Object> getObjects(String bucket) {
+		Path bucketPath = root.resolve(bucket);
+		if (!Files.exists(bucketPath)) {
+			return List.of();
+		}
+		try (Stream<Path> files = Files.walk(bucketPath)) {
+			return files
+					.filter(Files::isRegularFile)
+					.map(file -> S3Object.builder()
+							.key(bucketPath.relativize(file).toString())
+							.size(file.toFile().length())
+							.lastModified(Instant.ofEpochMilli(file.toFile().lastModified()))
+							.build())
+					.collect(Collectors.toList());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public GetObjectResponse downloadFile(String bucket, String key, File destination) throws IOException {
+		int parallel = downloads.incrementAndGet();
+		maxParallelDownloads.accumulateAndGet(parallel, Math::max);
+		try {
+			// like a slow network
+			Thread.sleep(downloadDelay);
+			Files.createDirectories(destination.toPath().getParent());
+			Files.copy(root.resolve(bucket).resolve(key), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return GetObjectResponse.builder().contentLength(destination.length()).build();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} finally {
+			downloads.decrementAndGet();
+		}
+	}
+
+	@Override
+	public void uploadFile(String bucket, String key, Path source) throws IOException {
+		Path target = root.resolve(bucket).resolve(key);
+		Files.createDirectories(target.getParent());
+		Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	@Override
+	public void deleteObject(String bucket, String key) {
+		try {
+			Files.deleteIfExists(root.resolve(bucket).resolve(key));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public int getMaxParallelDownloads() {
+		return maxParallelDownloads.get();
+	}
+}
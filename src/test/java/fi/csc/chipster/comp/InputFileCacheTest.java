@@ -0,0 +1,200 @@
+package fi.csc.chipster.comp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class InputFileCacheTest {
+
+	private static final int FILE_SIZE = 60;
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	public void hitAndMiss() throws Exception {
+
+		InputFileCache cache = new InputFileCache(tempDir.resolve("cache").toFile(), 1000);
+
+		UUID fileId = UUID.randomUUID();
+		AtomicInteger loadCount = new AtomicInteger();
+
+		InputFileCache.Loader loader = file -> {
+			loadCount.incrementAndGet();
+			write(file, 'a');
+		};
+
+		File job1 = tempDir.resolve("job1").toFile();
+		File job2 = tempDir.resolve("job2").toFile();
+
+		cache.get(fileId, "abc", job1, loader);
+		cache.get(fileId, "abc", job2, loader);
+
+		Assertions.assertEquals(1, loadCount.get());
+		Assertions.assertEquals(FILE_SIZE, job2.length());
+		Assertions.assertEquals(1L, cache.getStatus().get("inputCacheHitCount"));
+		Assertions.assertEquals(1L, cache.getStatus().get("inputCacheMissCount"));
+
+		// different checksum is a different file
+		cache.get(fileId, "def", tempDir.resolve("job3").toFile(), loader);
+		Assertions.assertEquals(2, loadCount.get());
+	}
+
+	@Test
+	public void parallelRequestsDownloadOnce() throws Exception {
+
+		InputFileCache cache = new InputFileCache(tempDir.resolve("cache").toFile(), 1000);
+
+		UUID fileId = UUID.randomUUID();
+		AtomicInteger loadCount = new AtomicInteger();
+		CountDownLatch downloadStarted = new CountDownLatch(1);
+		CountDownLatch allowDownload = new CountDownLatch(1);
+
+		InputFileCache.Loader loader = file -> {
+			loadCount.incrementAndGet();
+			downloadStarted.countDown();
+			allowDownload.await();
+			write(file, 'a');
+		};
+
+		ExecutorService executor = Executors.newCachedThreadPool();
+		Future<?> job1 = executor.submit(() -> {
+			cache.get(fileId, null, tempDir.resolve("job1").toFile(), loader);
+			return null;
+		});
+
+		downloadStarted.await();
+
+		Future<?> job2 = executor.submit(() -> {
+			cache.get(fileId, null, tempDir.resolve("job2").toFile(), loader);
+			return null;
+		});
+
+		allowDownload.countDown();
+		job1.get(10, TimeUnit.SECONDS);
+		job2.get(10, TimeUnit.SECONDS);
+		executor.shutdown();
+
+		Assertions.assertEquals(1, loadCount.get());
+		Assertions.assertEquals(FILE_SIZE, tempDir.resolve("job2").toFile().length());
+	}
+
+	@Test
+	public void evictionWhileInUse() throws Exception {
+
+		// room for only one file
+		InputFileCache cache = new InputFileCache(tempDir.resolve("cache").toFile(), 100);
+
+		UUID fileA = UUID.randomUUID();
+		UUID fileB = UUID.randomUUID();
+		UUID fileC = UUID.randomUUID();
+
+		CountDownLatch downloadStarted = new CountDownLatch(1);
+		CountDownLatch allowDownload = new CountDownLatch(1);
+
+		// file A is still being downloaded when the others are added
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		Future<?> jobA = executor.submit(() -> {
+			cache.get(fileA, null, tempDir.resolve("jobA").toFile(), file -> {
+				write(file, 'a');
+				downloadStarted.countDown();
+				allowDownload.await();
+			});
+			return null;
+		});
+
+		downloadStarted.await();
+
+		File jobB = tempDir.resolve("jobB").toFile();
+		cache.get(fileB, null, jobB, file -> write(file, 'b'));
+		cache.get(fileC, null, tempDir.resolve("jobC").toFile(), file -> write(file, 'c'));
+
+		// B is evicted to make room for C, but the job's own link still works
+		Assertions.assertFalse(cache.contains(fileB, null));
+		Assertions.assertTrue(cache.contains(fileC, null));
+		Assertions.assertEquals("b".repeat(FILE_SIZE), Files.readString(jobB.toPath()));
+
+		allowDownload.countDown();
+		jobA.get(10, TimeUnit.SECONDS);
+		executor.shutdown();
+
+		// A was the least recently used, but it was in use when it was added
+		Assertions.assertTrue(cache.contains(fileA, null));
+		Assertions.assertFalse(cache.contains(fileC, null));
+		Assertions.assertEquals("a".repeat(FILE_SIZE), Files.readString(tempDir.resolve("jobA")));
+		Assertions.assertEquals(FILE_SIZE, cache.getSize());
+		Assertions.assertEquals(2L, cache.getStatus().get("inputCacheEvictionCount"));
+	}
+
+	@Test
+	public void failedDownloadIsNotCached() throws Exception {
+
+		InputFileCache cache = new InputFileCache(tempDir.resolve("cache").toFile(), 1000);
+		UUID fileId = UUID.randomUUID();
+
+		Assertions.assertThrows(IOException.class,
+				() -> cache.get(fileId, null, tempDir.resolve("job1").toFile(), file -> {
+					throw new IOException("download failed");
+				}));
+
+		Assertions.assertFalse(cache.contains(fileId, null));
+
+		File job2 = tempDir.resolve("job2").toFile();
+		cache.get(fileId, null, job2, file -> write(file, 'a'));
+		Assertions.assertEquals(FILE_SIZE, job2.length());
+	}
+
+	@Test
+	public void onlyOwnFilesAreDeleted() throws Exception {
+
+		Path cacheDir = tempDir.resolve("cache");
+		Files.createDirectories(cacheDir.resolve("subdir"));
+		Files.writeString(cacheDir.resolve("other-file"), "keep");
+		Files.writeString(cacheDir.resolve("subdir/file" + InputFileCache.CACHE_FILE_SUFFIX), "keep");
+		Files.writeString(cacheDir.resolve("old" + InputFileCache.CACHE_FILE_SUFFIX), "delete");
+		Files.writeString(cacheDir.resolve("old" + InputFileCache.CACHE_FILE_SUFFIX + ".tmp"), "delete");
+
+		new InputFileCache(cacheDir.toFile(), 1000);
+
+		Assertions.assertTrue(Files.exists(cacheDir.resolve("other-file")));
+		Assertions.assertTrue(Files.exists(cacheDir.resolve("subdir/file" + InputFileCache.CACHE_FILE_SUFFIX)));
+		Assertions.assertFalse(Files.exists(cacheDir.resolve("old" + InputFileCache.CACHE_FILE_SUFFIX)));
+		Assertions.assertFalse(Files.exists(cacheDir.resolve("old" + InputFileCache.CACHE_FILE_SUFFIX + ".tmp")));
+	}
+
+	@Test
+	public void copiesAreWritable() throws Exception {
+
+		InputFileCache cache = new InputFileCache(tempDir.resolve("cache").toFile(), 1000, false);
+		UUID fileId = UUID.randomUUID();
+
+		File job1 = tempDir.resolve("job1").toFile();
+		File job2 = tempDir.resolve("job2").toFile();
+		cache.get(fileId, null, job1, file -> write(file, 'a'));
+		cache.get(fileId, null, job2, file -> write(file, 'a'));
+
+		// a tool appends to its input
+		Files.writeString(job1.toPath(), "b", StandardOpenOption.APPEND);
+
+		Assertions.assertEquals(FILE_SIZE + 1, job1.length());
+		Assertions.assertEquals(FILE_SIZE, job2.length());
+		Assertions.assertEquals(1L, cache.getStatus().get("inputCacheHitCount"));
+	}
+
+	private static void write(File file, char c) throws IOException {
+		Files.writeString(file.toPath(), String.valueOf(c).repeat(FILE_SIZE));
+	}
+}
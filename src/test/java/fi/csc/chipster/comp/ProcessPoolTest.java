@@ -0,0 +1,129 @@
+package fi.csc.chipster.comp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ProcessPoolTest {
+
+	// how long to wait for the background starts, ms
+	private static final int START_TIMEOUT = 10_000;
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	public void warmProcess() throws Exception {
+
+		ProcessPool pool = new ProcessPool(tempDir.toFile(), getFakeInterpreter(), 2);
+
+		try {
+			waitForIdle(pool, 2);
+
+			// the job gets the process that was started in advance
+			Process idle = pool.peekIdleProcess();
+			Process process = pool.getProcess();
+			Assertions.assertSame(idle, process);
+			Assertions.assertEquals(process.pid() + "\nhello", runScript(pool, process, "hello"));
+
+			// a replacement is started in the background
+			waitForIdle(pool, 2);
+			Assertions.assertNotSame(process, pool.peekIdleProcess());
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void coldProcess() throws Exception {
+
+		ProcessPool pool = new ProcessPool(tempDir.toFile(), getFakeInterpreter(), 0);
+
+		try {
+			Assertions.assertNull(pool.peekIdleProcess());
+
+			Process process = pool.getProcess();
+			Assertions.assertEquals(process.pid() + "\nhello", runScript(pool, process, "hello"));
+
+			// nothing is started in the background
+			Assertions.assertEquals(0, pool.getIdleCount());
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void deadIdleProcessIsSkipped() throws Exception {
+
+		ProcessPool pool = new ProcessPool(tempDir.toFile(), getFakeInterpreter(), 1);
+
+		try {
+			waitForIdle(pool, 1);
+
+			// kill the idle process
+			Process idle = pool.peekIdleProcess();
+			idle.destroy();
+			idle.onExit().join();
+
+			Process process = pool.getProcess();
+			Assertions.assertNotSame(idle, process);
+			Assertions.assertEquals(process.pid() + "\nhello", runScript(pool, process, "hello"));
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void releasedProcessIsDestroyed() throws Exception {
+
+		ProcessPool pool = new ProcessPool(tempDir.toFile(), getFakeInterpreter(), 1);
+
+		try {
+			waitForIdle(pool, 1);
+			Process process = pool.getProcess();
+			pool.releaseProcess(process);
+
+			Assertions.assertFalse(process.isAlive());
+			waitForIdle(pool, 1);
+			Assertions.assertNotSame(process, pool.getProcess());
+		} finally {
+			pool.close();
+		}
+	}
+
+	/**
+	 * Script that prints its pid like an interpreter that has started and then
+	 * echoes its input
+	 */
+	private String getFakeInterpreter() throws IOException {
+		File script = tempDir.resolve("fake-interpreter.sh").toFile();
+		Files.writeString(script.toPath(), "#!/bin/bash\necho $$\ncat\n");
+		script.setExecutable(true);
+		return script.getAbsolutePath();
+	}
+
+	private String runScript(ProcessPool pool, Process process, String script) throws Exception {
+		try (OutputStream stdin = process.getOutputStream()) {
+			stdin.write(script.getBytes(StandardCharsets.UTF_8));
+		}
+		String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+		pool.releaseProcess(process);
+		return output;
+	}
+
+	private void waitForIdle(ProcessPool pool, int count) throws InterruptedException {
+		// wait until the processes have been started in the background
+		long deadline = System.currentTimeMillis() + START_TIMEOUT;
+		while (pool.getIdleCount() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assertions.assertEquals(count, pool.getIdleCount());
+	}
+}
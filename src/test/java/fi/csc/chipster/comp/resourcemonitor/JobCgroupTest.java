@@ -0,0 +1,75 @@
+package fi.csc.chipster.comp.resourcemonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test the parsing of the cgroup files in a fake cgroup file system
+ */
+public class JobCgroupTest {
+
+	@TempDir
+	Path tempDir;
+
+	private File parentDir;
+
+	@BeforeEach
+	public void setUp() throws IOException {
+		parentDir = tempDir.toFile();
+		Files.writeString(new File(parentDir, "cgroup.subtree_control").toPath(), "");
+	}
+
+	@Test
+	public void usage() throws IOException {
+		JobCgroup cgroup = new JobCgroup(parentDir, "job1");
+
+		Assertions.assertEquals(new File(parentDir, "job-job1"), cgroup.getDir());
+		Assertions.assertEquals("+memory +cpu +io", read(parentDir, "cgroup.subtree_control"));
+
+		write(cgroup, "memory.peak", "1048576\n");
+		write(cgroup, "cpu.stat", "usage_usec 2500000\nuser_usec 2000000\nsystem_usec 500000\n");
+		write(cgroup, "io.stat", "8:0 rbytes=1000 wbytes=2000 rios=1 wios=2 dbytes=0 dios=0\n"
+				+ "8:16 rbytes=10 wbytes=20 rios=1 wios=2 dbytes=0 dios=0\n");
+
+		Assertions.assertEquals(1048576L, cgroup.getMemoryPeak());
+		Assertions.assertEquals(2500L, cgroup.getCpuTime());
+		Assertions.assertEquals(1010L, cgroup.getReadBytes());
+		Assertions.assertEquals(2020L, cgroup.getWriteBytes());
+
+		cgroup.addProcess(1234);
+		Assertions.assertEquals("1234", read(cgroup.getDir(), "cgroup.procs"));
+	}
+
+	@Test
+	public void controllersNotEnabled() throws IOException {
+		JobCgroup cgroup = new JobCgroup(parentDir, "job1");
+
+		write(cgroup, "cpu.stat", "usage_usec 1000\n");
+
+		Assertions.assertNull(cgroup.getMemoryPeak());
+		Assertions.assertEquals(1L, cgroup.getCpuTime());
+		Assertions.assertNull(cgroup.getReadBytes());
+		Assertions.assertNull(cgroup.getWriteBytes());
+	}
+
+	@Test
+	public void notCgroupDirectory() {
+		Assertions.assertThrows(IOException.class,
+				() -> new JobCgroup(tempDir.resolve("not-cgroup").toFile(), "job1"));
+	}
+
+	private static void write(JobCgroup cgroup, String fileName, String content) throws IOException {
+		Files.writeString(new File(cgroup.getDir(), fileName).toPath(), content);
+	}
+
+	private static String read(File dir, String fileName) throws IOException {
+		return Files.readString(new File(dir, fileName).toPath());
+	}
+}
@@ -0,0 +1,154 @@
+package fi.csc.chipster.comp.resourcemonitor;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import fi.csc.chipster.comp.resourcemonitor.ProcFsSampler.ProcessSample;
+
+public class ProcFsSamplerTest {
+
+	private ProcFsSampler sampler = new ProcFsSampler();
+	private Process process;
+
+	@BeforeEach
+	public void setUp() throws IOException, InterruptedException {
+		Assumptions.assumeTrue(sampler.isAvailable(), "/proc is not available");
+
+		// a process tree with an idle child and a grandchild that uses cpu for a second
+		String busyLoop = "end=$((SECONDS+2)); while [ $SECONDS -lt $end ]; do :; done; sleep 20";
+		process = new ProcessBuilder("bash", "-c", "sleep 20 & bash -c '" + busyLoop + "' & wait").start();
+
+		// let the children start
+		Thread.sleep(500);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		if (process != null) {
+			process.descendants().forEach(ProcessHandle::destroy);
+			process.destroy();
+		}
+	}
+
+	@Test
+	public void descendants() {
+		Set<Long> expected = process.descendants().map(ProcessHandle::pid).collect(Collectors.toSet());
+
+		Set<Long> descendants = new HashSet<>(sampler.getDescendants(process.pid()));
+
+		Assertions.assertEquals(expected, descendants);
+		// sleep, bash and its sleep
+		Assertions.assertTrue(descendants.size() >= 2);
+	}
+
+	@Test
+	public void memory() throws IOException {
+		List<Long> pids = sampler.getDescendants(process.pid());
+		pids.add(process.pid());
+
+		for (long pid : pids) {
+			ProcessSample sample = sampler.sample(pid);
+			Assertions.assertNotNull(sample);
+
+			// compare to ps
+			String output = ProcessMonitoring.execCmd("ps", "-o", "rss=", "-p", "" + pid).trim();
+			long psRss = Long.parseLong(output) * 1024;
+
+			Assertions.assertTrue(Math.abs(sample.getRss() - psRss) <= psRss / 10,
+					"pid " + pid + " rss " + sample.getRss() + " ps rss " + psRss);
+		}
+	}
+
+	@Test
+	public void cpuTime() throws IOException, InterruptedException {
+		ProcessResourceMonitor monitor = new ProcessResourceMonitor(process);
+		monitor.update();
+
+		// wait for the busy loop to finish
+		Thread.sleep(2000);
+		monitor.update();
+
+		// the busy loop should use most of its two seconds
+		Assertions.assertTrue(monitor.getCpuTime() >= 1000, "cpu time " + monitor.getCpuTime());
+		Assertions.assertTrue(monitor.getMaxMem() > 0);
+	}
+
+	/**
+	 * A child that uses cpu and ends between the samples is counted in the
+	 * children cpu time of its parent
+	 */
+	@Test
+	public void endedChildCpuTime() throws IOException, InterruptedException {
+		Process parent = startBusyChild();
+		try {
+			ProcessResourceMonitor monitor = new ProcessResourceMonitor(parent);
+			monitor.update();
+
+			Thread.sleep(3000);
+			monitor.update();
+
+			Assertions.assertTrue(monitor.getCpuTime() >= 1000, "cpu time " + monitor.getCpuTime());
+		} finally {
+			parent.descendants().forEach(ProcessHandle::destroy);
+			parent.destroy();
+		}
+	}
+
+	/**
+	 * A child that was sampled while it was running must not be counted again in
+	 * the children cpu time of its parent
+	 */
+	@Test
+	public void sampledChildCpuTime() throws IOException, InterruptedException {
+		Process parent = startBusyChild();
+		try {
+			ProcessResourceMonitor monitor = new ProcessResourceMonitor(parent);
+			monitor.update();
+
+			// in the middle of the busy loop
+			Thread.sleep(1500);
+			monitor.update();
+
+			Thread.sleep(1500);
+			monitor.update();
+
+			// about two seconds
+			Assertions.assertTrue(monitor.getCpuTime() >= 1000, "cpu time " + monitor.getCpuTime());
+			Assertions.assertTrue(monitor.getCpuTime() <= 2500, "cpu time " + monitor.getCpuTime());
+		} finally {
+			parent.descendants().forEach(ProcessHandle::destroy);
+			parent.destroy();
+		}
+	}
+
+	/**
+	 * Start a process, whose grandchild uses cpu for two seconds
+	 * 
+	 * The timeout process waits for the busy loop and bash waits for the timeout
+	 * process.
+	 */
+	private Process startBusyChild() throws IOException {
+		return new ProcessBuilder("bash", "-c",
+				"sleep 0.5; timeout 2 bash -c 'while :; do :; done'; sleep 20").start();
+	}
+
+	@Test
+	public void endedProcess() throws InterruptedException {
+		long pid = process.pid();
+		process.descendants().forEach(ProcessHandle::destroy);
+		process.destroy();
+		process.waitFor();
+
+		Assertions.assertNull(sampler.sample(pid));
+		Assertions.assertTrue(sampler.getDescendants(pid).isEmpty());
+	}
+}
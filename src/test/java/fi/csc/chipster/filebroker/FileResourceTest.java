@@ -210,6 +210,38 @@ public class FileResourceTest {
 		}
 	}
 
+	@Test
+	public void getRangeStatus() throws RestException, IOException {
+
+		long fileLength = 40l;
+
+		UUID datasetId = sessionDbClient1.createDataset(sessionId1, RestUtils.getRandomDataset());
+		assertEquals(204, uploadInputStream(fileBrokerTarget1, sessionId1, datasetId,
+				new DummyInputStream(fileLength), fileLength).getStatus());
+
+		WebTarget target = fileBrokerTarget1.path(getDatasetPath(sessionId1, datasetId));
+
+		// range from the beginning
+		Response response = target.request().header("range", "bytes=0-9").get(Response.class);
+		assertEquals(206, response.getStatus());
+		assertEquals("bytes 0-9/40", response.getHeaderString("Content-Range"));
+		assertEquals(10, response.readEntity(byte[].class).length);
+
+		// continue to the end
+		response = target.request().header("range", "bytes=30-").get(Response.class);
+		assertEquals(206, response.getStatus());
+		assertEquals("bytes 30-39/40", response.getHeaderString("Content-Range"));
+		assertEquals(10, response.readEntity(byte[].class).length);
+
+		// ranges that can't be applied are ignored
+		for (String range : new String[] { "bytes=40-", "bytes=0-1,5-6", "items=0-1" }) {
+			response = target.request().header("range", range).get(Response.class);
+			assertEquals(200, response.getStatus(), range);
+			assertEquals(null, response.getHeaderString("Content-Range"), range);
+			assertEquals(fileLength, response.readEntity(byte[].class).length, range);
+		}
+	}
+
 	@Test
 	public void putError() throws RestException, IOException {
 
@@ -0,0 +1,170 @@
+package fi.csc.chipster.filestorage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import fi.csc.chipster.archive.FastCdcChunker;
+import fi.csc.chipster.archive.FileSystemS3Client;
+import fi.csc.chipster.rest.Config;
+
+public class ChunkBackupTest {
+
+	private static final String BUCKET = "backups";
+	private static final String PREFIX = "file-storage_";
+
+	@TempDir
+	Path tempDir;
+
+	private Path storage;
+	private FileSystemS3Client s3Client;
+	private Config config;
+
+	@BeforeEach
+	public void setUp() throws IOException {
+		storage = tempDir.resolve("storage");
+		s3Client = new FileSystemS3Client(tempDir.resolve("s3"), 0);
+		config = new Config();
+
+		Random random = new Random(1);
+		for (int i = 0; i < 30; i++) {
+			String dir = i < 10 ? "a" : i < 20 ? "b" : "c";
+			writeRandom(storage.resolve(dir).resolve("file" + i), random, 50_000 + random.nextInt(300_000));
+		}
+		// same content in two files
+		Files.copy(storage.resolve("a/file0"), storage.resolve("c/copy"));
+		Files.createFile(storage.resolve("c/empty"));
+	}
+
+	@Test
+	public void dedupAndRestore() throws Exception {
+		String backupName1 = PREFIX + Instant.now().minus(1, ChronoUnit.DAYS);
+		ChunkBackup backup1 = backup(backupName1);
+
+		Assertions.assertEquals(32, backup1.getFileCount());
+		// the copy is stored only once
+		Assertions.assertEquals(backup1.getFileSizeTotal() - Files.size(storage.resolve("c/copy")),
+				backup1.getNewChunkSizeTotal());
+
+		Path copy1 = tempDir.resolve("copy1");
+		FileUtils.copyDirectory(storage.toFile(), copy1.toFile());
+
+		// rename a directory, insert bytes in the middle of a file, append to a file,
+		// delete a file and add a new one
+		Files.move(storage.resolve("a"), storage.resolve("renamed"));
+
+		Path changed = storage.resolve("b/file10");
+		byte[] bytes = Files.readAllBytes(changed);
+		byte[] inserted = new byte[bytes.length + 10];
+		System.arraycopy(bytes, 0, inserted, 0, bytes.length / 2);
+		System.arraycopy(bytes, bytes.length / 2, inserted, bytes.length / 2 + 10, bytes.length - bytes.length / 2);
+		Files.write(changed, inserted);
+
+		Path appended = storage.resolve("b/file11");
+		Files.write(appended, Files.readAllBytes(appended), StandardOpenOption.APPEND);
+
+		Files.delete(storage.resolve("c/file20"));
+		writeRandom(storage.resolve("c/new"), new Random(2), 100_000);
+
+		String backupName2 = PREFIX + Instant.now();
+		ChunkBackup backup2 = backup(backupName2);
+
+		double dedupRatio = (double) backup2.getFileSizeTotal() / backup2.getNewChunkSizeTotal();
+
+		// the new file and the changed chunks. File-level backup would copy the whole
+		// renamed directory and the changed files again
+		Assertions.assertTrue(backup2.getNewChunkSizeTotal() < 100_000 + 4 * 64 * 1024,
+				"new chunks " + backup2.getNewChunkSizeTotal());
+		Assertions.assertTrue(dedupRatio > 20, "dedup ratio " + dedupRatio);
+
+		assertRestore(backupName2, storage);
+		// the old backup can be still restored
+		assertRestore(backupName1, copy1);
+	}
+
+	@Test
+	public void unchanged() throws Exception {
+		backup(PREFIX + Instant.now().minus(1, ChronoUnit.DAYS));
+		ChunkBackup backup2 = backup(PREFIX + Instant.now());
+
+		// files with the same path and size are not read again
+		Assertions.assertEquals(0, backup2.getChunkedSizeTotal());
+		Assertions.assertEquals(0, backup2.getNewChunkCount());
+		Assertions.assertEquals(0, backup2.getUploadSizeTotal());
+	}
+
+	@Test
+	public void corrupted() throws Exception {
+		String backupName = PREFIX + Instant.now();
+		backup(backupName);
+
+		// break the manifest checksum of one file
+		Path manifestPath = tempDir.resolve("s3").resolve(BUCKET).resolve(backupName)
+				.resolve(ChunkBackup.CHUNK_MANIFEST);
+		List<String> lines = Files.readAllLines(manifestPath);
+		String[] split = lines.get(0).split("\t", -1);
+		split[2] = "0".repeat(128);
+		lines.set(0, String.join("\t", split));
+		Files.write(manifestPath, lines);
+
+		Assertions.assertThrows(IOException.class, () -> new ChunkRestore(s3Client, BUCKET, null, config)
+				.restore(backupName, tempDir.resolve("restored"), tempDir.resolve("work")));
+	}
+
+	private ChunkBackup backup(String backupName) throws IOException, InterruptedException {
+		ChunkBackup backup = new ChunkBackup(s3Client, BUCKET, PREFIX, null, null, config);
+		backup.setChunker(new FastCdcChunker(4 * 1024, 16 * 1024, 64 * 1024));
+		backup.setPackSize(1024 * 1024);
+
+		Path backupDir = tempDir.resolve("backup");
+		Files.createDirectories(backupDir);
+		backup.backup(storage, listFiles(storage), backupDir, backupName, s3Client.getObjects(BUCKET));
+		FileUtils.deleteDirectory(backupDir.toFile());
+
+		return backup;
+	}
+
+	private void assertRestore(String backupName, Path expected) throws IOException, InterruptedException {
+		Path restored = tempDir.resolve("restored");
+		FileUtils.deleteDirectory(restored.toFile());
+
+		new ChunkRestore(s3Client, BUCKET, null, config).restore(backupName, restored, tempDir.resolve("work"));
+
+		List<Path> expectedFiles = listFiles(expected);
+		Assertions.assertEquals(expectedFiles, listFiles(restored));
+		for (Path file : expectedFiles) {
+			Assertions.assertArrayEquals(Files.readAllBytes(expected.resolve(file)),
+					Files.readAllBytes(restored.resolve(file)), file.toString());
+		}
+	}
+
+	private static List<Path> listFiles(Path dir) throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			return files
+					.filter(Files::isRegularFile)
+					.map(dir::relativize)
+					.sorted()
+					.collect(Collectors.toList());
+		}
+	}
+
+	private static void writeRandom(Path file, Random random, int size) throws IOException {
+		byte[] bytes = new byte[size];
+		random.nextBytes(bytes);
+		Files.createDirectories(file.getParent());
+		Files.write(file, bytes);
+	}
+}
@@ -0,0 +1,49 @@
+package fi.csc.chipster.rest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+
+/**
+ * Run the main() of a test class in a child JVM with a small heap
+ *
+ * Tests use this to check that the code streams its data instead of collecting
+ * it to memory. The main() should throw an exception if the result is wrong.
+ */
+public class SmallHeapJvm {
+
+	public static final String MAX_HEAP = "32m";
+
+	/**
+	 * Run the main() of the class and fail the test if it doesn't exit
+	 * successfully
+	 *
+	 * @param mainClass
+	 * @param args
+	 * @return the output of the child JVM
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static String runMain(Class<?> mainClass, String... args) throws IOException, InterruptedException {
+
+		String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+
+		List<String> cmd = new ArrayList<>(List.of(java, "-Xmx" + MAX_HEAP, "-cp",
+				System.getProperty("java.class.path"), mainClass.getName()));
+		cmd.addAll(List.of(args));
+
+		Process process = new ProcessBuilder(cmd)
+				.redirectErrorStream(true)
+				.start();
+
+		String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+
+		Assertions.assertEquals(0, process.waitFor(), output);
+
+		return output;
+	}
+}
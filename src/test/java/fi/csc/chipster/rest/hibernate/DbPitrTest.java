@@ -0,0 +1,457 @@
+package fi.csc.chipster.rest.hibernate;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import fi.csc.chipster.archive.ArchiveException;
+import fi.csc.chipster.archive.BackupArchive;
+import fi.csc.chipster.archive.FileSystemS3Client;
+import fi.csc.chipster.archive.GpgBackupUtils;
+import fi.csc.chipster.rest.Config;
+import fi.csc.chipster.rest.ProcessUtils;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/**
+ * Point-in-time recovery
+ *
+ * The WAL upload, download and pruning are tested with fake WAL segments. The
+ * recovery tests need the PostgreSQL server binaries in the PATH and are
+ * skipped without them. initdb and postgres refuse to run as root, so when the
+ * tests run as root, the server is started as the user given in the system
+ * property "pitr-test-user" (default "nobody").
+ */
+public class DbPitrTest {
+
+	private static final String BUCKET = "backups";
+	private static final String ROLE = "session-db";
+	private static final String USER = "chipster";
+	private static final String PASSPHRASE = "test-passphrase";
+
+	// size of the fake segments
+	private static final int SEGMENT_SIZE = 64 * 1024;
+
+	@TempDir
+	Path tempDir;
+
+	private FileSystemS3Client s3Client;
+	private Config config;
+
+	private Path dataDir;
+	private Path restoredDir;
+	private Path runDir;
+	private String serverUser;
+	private int port;
+	private String url;
+
+	@BeforeEach
+	public void setUp() {
+		s3Client = new FileSystemS3Client(tempDir.resolve("s3"), 0);
+
+		// Debian has only "gpg"
+		boolean hasGpg2 = hasCommand("gpg2");
+		config = new Config() {
+			@Override
+			public String getString(String key) {
+				if (GpgBackupUtils.CONF_BACKUP_GPG_PROGRAM.equals(key) && !hasGpg2) {
+					return "gpg";
+				}
+				return super.getString(key);
+			}
+		};
+	}
+
+	@AfterEach
+	public void tearDown() throws InterruptedException {
+		for (Path dir : new Path[] { dataDir, restoredDir }) {
+			if (dir != null && Files.exists(dir.resolve("postmaster.pid"))) {
+				try {
+					runAsServerUser("pg_ctl", "--pgdata=" + dir, "--mode=immediate", "stop");
+				} catch (IOException | RuntimeException e) {
+					// already stopped
+				}
+			}
+		}
+	}
+
+	@Test
+	public void walUploadAndDownload() throws Exception {
+		walUploadAndDownload(null);
+	}
+
+	@Test
+	public void walUploadAndDownloadEncrypted() throws Exception {
+		walUploadAndDownload(PASSPHRASE);
+	}
+
+	private void walUploadAndDownload(String passphrase) throws Exception {
+
+		Map<String, byte[]> segments = uploadFakeBackup(passphrase, 4);
+
+		Path restoredWal = tempDir.resolve("restored-wal");
+		new DbPitrRestore(s3Client, BUCKET, passphrase, config).restore(ROLE, null, tempDir.resolve("restored"),
+				restoredWal, tempDir.resolve("work"));
+
+		for (String segment : segments.keySet()) {
+			Assertions.assertArrayEquals(segments.get(segment), Files.readAllBytes(restoredWal.resolve(segment)));
+		}
+		Assertions.assertTrue(Files.exists(tempDir.resolve("restored").resolve("recovery.signal")));
+	}
+
+	@Test
+	public void missingWalSegment() throws Exception {
+
+		List<String> segments = new ArrayList<>(uploadFakeBackup(null, 4).keySet());
+		deleteFromS3(DbPitrBackup.getWalPrefix(ROLE) + segments.get(2));
+
+		Assertions.assertThrows(ArchiveException.class,
+				() -> new DbPitrRestore(s3Client, BUCKET, null, config).restore(ROLE, null,
+						tempDir.resolve("restored"), tempDir.resolve("restored-wal"), tempDir.resolve("work")));
+	}
+
+	@Test
+	public void corruptedWalSegment() throws Exception {
+
+		List<String> segments = new ArrayList<>(uploadFakeBackup(null, 4).keySet());
+		Path packagePath = tempDir.resolve("s3").resolve(BUCKET)
+				.resolve(DbPitrBackup.getWalPrefix(ROLE) + segments.get(1) + ".lz4");
+		byte[] bytes = Files.readAllBytes(packagePath);
+		bytes[bytes.length / 2]++;
+		Files.write(packagePath, bytes);
+
+		IOException e = Assertions.assertThrows(IOException.class,
+				() -> new DbPitrRestore(s3Client, BUCKET, null, config).restore(ROLE, null,
+						tempDir.resolve("restored"), tempDir.resolve("restored-wal"), tempDir.resolve("work")));
+		Assertions.assertTrue(e.getMessage().contains(segments.get(1)), e.getMessage());
+	}
+
+	@Test
+	public void stopAfterTarget() throws ArchiveException {
+
+		String walPrefix = DbPitrBackup.getWalPrefix(ROLE);
+		Instant target = Instant.parse("2024-05-01T12:00:00Z");
+
+		// segments uploaded every hour, from 1.5 hours before the target
+		List<S3Object> objects = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			Instant uploaded = target.minus(90, ChronoUnit.MINUTES).plus(i, ChronoUnit.HOURS);
+			objects.add(S3Object.builder().key(walPrefix + getSegmentName(2 + i) + ".lz4").lastModified(uploaded)
+					.build());
+			objects.add(S3Object.builder().key(walPrefix + getSegmentName(2 + i) + DbPitrBackup.WAL_INFO_POSTFIX)
+					.lastModified(uploaded).build());
+		}
+
+		// the margin is one hour, so the first segment after it is uploaded at 13:30
+		List<String> keys = DbPitrRestore.selectWal(objects, walPrefix, getSegmentName(2), 256, target).stream()
+				.map(o -> o.key())
+				.collect(Collectors.toList());
+		Assertions.assertEquals(List.of(walPrefix + getSegmentName(2) + ".lz4",
+				walPrefix + getSegmentName(3) + ".lz4", walPrefix + getSegmentName(4) + ".lz4",
+				walPrefix + getSegmentName(5) + ".lz4"), keys);
+
+		Assertions.assertEquals(5, DbPitrRestore.selectWal(objects, walPrefix, getSegmentName(2), 256, null).size());
+
+		// the base backup needs the segments from its start
+		Assertions.assertThrows(ArchiveException.class,
+				() -> DbPitrRestore.selectWal(objects, walPrefix, getSegmentName(1), 256, target));
+	}
+
+	@Test
+	public void pruneWal() throws IOException {
+
+		DbPitrBackup pitrBackup = new DbPitrBackup(config, ROLE, null, USER, "", tempDir.resolve("wal"), s3Client,
+				BUCKET, null, null);
+
+		String backupPrefix = ROLE + DbBackup.BACKUP_OBJECT_NAME_PART;
+		String walPrefix = DbPitrBackup.getWalPrefix(ROLE);
+		Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+		Instant oldestBackup = now.minus(2, ChronoUnit.DAYS);
+
+		String oldestBackupKey = backupPrefix + oldestBackup + "/" + BackupArchive.BACKUP_INFO;
+		String newBackupKey = backupPrefix + now.minus(1, ChronoUnit.DAYS) + "/" + BackupArchive.BACKUP_INFO;
+		// backups of other dbs don't matter
+		String otherBackupKey = "auth" + DbBackup.BACKUP_OBJECT_NAME_PART + now.minus(10, ChronoUnit.DAYS) + "/"
+				+ BackupArchive.BACKUP_INFO;
+
+		String oldSegmentKey = walPrefix + getSegmentName(2) + ".lz4";
+		String oldInfoKey = walPrefix + getSegmentName(2) + DbPitrBackup.WAL_INFO_POSTFIX;
+		// within the margin of one hour
+		String marginSegmentKey = walPrefix + getSegmentName(3) + ".lz4";
+		String newSegmentKey = walPrefix + getSegmentName(4) + ".lz4";
+
+		// the upload times in S3 don't have to match the times in the backup names
+		uploadToS3(oldestBackupKey, now);
+		uploadToS3(newBackupKey, now);
+		uploadToS3(otherBackupKey, now);
+		uploadToS3(oldSegmentKey, oldestBackup.minus(2, ChronoUnit.HOURS));
+		uploadToS3(oldInfoKey, oldestBackup.minus(2, ChronoUnit.HOURS));
+		uploadToS3(marginSegmentKey, oldestBackup.minus(30, ChronoUnit.MINUTES));
+		uploadToS3(newSegmentKey, now);
+
+		pitrBackup.pruneWal(backupPrefix);
+
+		Set<String> keys = s3Client.getObjects(BUCKET).stream()
+				.map(o -> o.key())
+				.collect(Collectors.toSet());
+
+		Assertions.assertEquals(Set.of(oldestBackupKey, newBackupKey, otherBackupKey, marginSegmentKey,
+				newSegmentKey), keys);
+	}
+
+	@Test
+	public void restoreToPointInTime() throws Exception {
+		restoreToPointInTime(null);
+	}
+
+	@Test
+	public void restoreToPointInTimeEncrypted() throws Exception {
+		restoreToPointInTime(PASSPHRASE);
+	}
+
+	private void restoreToPointInTime(String passphrase) throws Exception {
+
+		startCluster();
+
+		DbPitrBackup pitrBackup = new DbPitrBackup(config, ROLE, url, USER, "", tempDir.resolve("wal"), s3Client,
+				BUCKET, null, passphrase);
+		// the segments are uploaded explicitly below
+		pitrBackup.start(3600);
+
+		execute("CREATE TABLE item (name text)", "INSERT INTO item VALUES ('a')");
+
+		Path backupDir = tempDir.resolve("backup");
+		Files.createDirectories(backupDir);
+		pitrBackup.baseBackup(backupDir, ROLE + DbBackup.BACKUP_OBJECT_NAME_PART + Instant.now());
+
+		execute("INSERT INTO item VALUES ('b')");
+		Thread.sleep(500);
+		Instant target = Instant.now();
+		Thread.sleep(500);
+		execute("INSERT INTO item VALUES ('c')");
+
+		String lastSegment = query("SELECT pg_walfile_name(pg_switch_wal())").get(0);
+		waitFor(() -> Files.exists(tempDir.resolve("wal").resolve(lastSegment)), "wal segment " + lastSegment);
+
+		pitrBackup.uploadCompletedSegments();
+		pitrBackup.close();
+
+		runAsServerUser("pg_ctl", "--pgdata=" + dataDir, "--mode=fast", "--wait", "stop");
+
+		Path restoredWal = tempDir.resolve("restored-wal");
+		new DbPitrRestore(s3Client, BUCKET, passphrase, config).restore(ROLE, target, restoredDir, restoredWal,
+				tempDir.resolve("work"));
+
+		if (serverUser != null) {
+			ProcessUtils.run(null, null, "chown", "-R", serverUser, restoredDir.toString(), restoredWal.toString());
+		}
+
+		startPostgres(restoredDir);
+		waitFor(() -> {
+			try {
+				return "false".equals(query("SELECT pg_is_in_recovery()::text").get(0));
+			} catch (SQLException e) {
+				// not accepting connections yet
+				return false;
+			}
+		}, "recovery");
+
+		Assertions.assertEquals(List.of("a", "b"), query("SELECT name FROM item ORDER BY name"));
+	}
+
+	/**
+	 * Upload a fake base backup and WAL segments after it
+	 *
+	 * @return the segments by name
+	 */
+	private Map<String, byte[]> uploadFakeBackup(String passphrase, int segmentCount) throws Exception {
+
+		for (String command : new String[] { "lz4", "tar" }) {
+			Assumptions.assumeTrue(hasCommand(command), command + " not found");
+		}
+		if (passphrase != null) {
+			Assumptions.assumeTrue(hasCommand(config.getString(GpgBackupUtils.CONF_BACKUP_GPG_PROGRAM)),
+					"gpg not found");
+		}
+
+		Path walDir = tempDir.resolve("wal");
+		DbPitrBackup pitrBackup = new DbPitrBackup(config, ROLE, null, USER, "", walDir, s3Client, BUCKET, null,
+				passphrase);
+
+		Random random = new Random(1);
+		Map<String, byte[]> segments = new LinkedHashMap<>();
+		for (int i = 0; i < segmentCount; i++) {
+			byte[] content = new byte[SEGMENT_SIZE];
+			random.nextBytes(content);
+			segments.put(getSegmentName(2 + i), content);
+		}
+		String startWal = getSegmentName(2);
+
+		// the base backup has the first segment
+		Path baseDir = tempDir.resolve("base");
+		Files.createDirectories(baseDir.resolve("pg_wal"));
+		Files.write(baseDir.resolve("backup_label"), List.of("START WAL LOCATION: 0/2000028 (file " + startWal + ")"));
+		Files.write(baseDir.resolve("pg_wal").resolve(startWal), segments.get(startWal));
+
+		String backupName = ROLE + DbBackup.BACKUP_OBJECT_NAME_PART + Instant.now();
+		Path backupDir = tempDir.resolve("backup");
+		Files.createDirectories(backupDir);
+		ProcessUtils.run(null, null, "tar", "-cf",
+				backupDir.resolve(backupName + DbPitrBackup.BASE_BACKUP_POSTFIX).toString(), "--directory",
+				baseDir.toString(), ".");
+		pitrBackup.uploadBaseBackup(backupDir, backupName);
+
+		Files.createDirectories(walDir);
+		for (String segment : segments.keySet()) {
+			Files.write(walDir.resolve(segment), segments.get(segment));
+		}
+		pitrBackup.uploadCompletedSegments();
+
+		Assertions.assertEquals(0, pitrBackup.getPendingSegmentCount());
+
+		return segments;
+	}
+
+	private static String getSegmentName(int segment) {
+		return String.format("%08X%08X%08X", 1, 0, segment);
+	}
+
+	private void uploadToS3(String key, Instant lastModified) throws IOException {
+		Path file = Files.createTempFile(tempDir, "object", "");
+		s3Client.uploadFile(BUCKET, key, file);
+		Files.setLastModifiedTime(tempDir.resolve("s3").resolve(BUCKET).resolve(key), FileTime.from(lastModified));
+	}
+
+	/**
+	 * Delete the objects that start with the prefix
+	 */
+	private void deleteFromS3(String prefix) {
+		for (S3Object object : s3Client.getObjects(BUCKET)) {
+			if (object.key().startsWith(prefix)) {
+				s3Client.deleteObject(BUCKET, object.key());
+			}
+		}
+	}
+
+	private void startCluster() throws IOException, InterruptedException {
+
+		for (String command : new String[] { "initdb", "pg_ctl", "pg_basebackup", "pg_receivewal", "lz4" }) {
+			Assumptions.assumeTrue(hasCommand(command), command + " not found");
+		}
+
+		dataDir = tempDir.resolve("db");
+		restoredDir = tempDir.resolve("restored");
+		// for the socket and logs, writable for the server
+		runDir = tempDir.resolve("run");
+		Files.createDirectories(runDir);
+
+		if ("root".equals(System.getProperty("user.name"))) {
+			serverUser = System.getProperty("pitr-test-user", "nobody");
+			Files.setPosixFilePermissions(tempDir, PosixFilePermissions.fromString("rwxr-xr-x"));
+			Files.createDirectories(dataDir);
+			ProcessUtils.run(null, null, "chown", serverUser, dataDir.toString(), runDir.toString());
+		}
+
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		url = "jdbc:postgresql://127.0.0.1:" + port + "/postgres";
+
+		runAsServerUser("initdb", "--pgdata=" + dataDir, "--username=" + USER, "--auth=trust");
+
+		// the default pg_hba.conf of initdb allows also the local replication
+		// connections
+		Files.write(dataDir.resolve("postgresql.conf"), List.of(
+				"port = " + port,
+				"listen_addresses = '127.0.0.1'",
+				"unix_socket_directories = '" + runDir + "'",
+				"wal_level = replica",
+				"max_wal_senders = 4",
+				"max_replication_slots = 4"),
+				Charset.defaultCharset(), StandardOpenOption.APPEND);
+
+		startPostgres(dataDir);
+	}
+
+	private void startPostgres(Path dir) throws IOException, InterruptedException {
+		runAsServerUser("pg_ctl", "--pgdata=" + dir, "--log=" + runDir.resolve(dir.getFileName() + ".log"),
+				"--wait", "start");
+	}
+
+	/**
+	 * Run the command as the serverUser, if the tests run as root
+	 */
+	private void runAsServerUser(String... command) throws IOException, InterruptedException {
+		List<String> cmd = new ArrayList<>(List.of(command));
+		if (serverUser != null) {
+			// runuser may reset the PATH
+			cmd.set(0, ProcessUtils.getPath(command[0]));
+			cmd.addAll(0, List.of("runuser", "-u", serverUser, "--"));
+		}
+		ProcessUtils.run(null, null, cmd.toArray(new String[0]));
+	}
+
+	private void execute(String... sqls) throws SQLException {
+		try (Connection connection = DriverManager.getConnection(url, USER, "");
+				Statement statement = connection.createStatement()) {
+			for (String sql : sqls) {
+				statement.execute(sql);
+			}
+		}
+	}
+
+	private List<String> query(String sql) throws SQLException {
+		List<String> rows = new ArrayList<>();
+		try (Connection connection = DriverManager.getConnection(url, USER, "");
+				Statement statement = connection.createStatement();
+				ResultSet resultSet = statement.executeQuery(sql)) {
+			while (resultSet.next()) {
+				rows.add(resultSet.getString(1));
+			}
+		}
+		return rows;
+	}
+
+	private interface Condition {
+		boolean check() throws Exception;
+	}
+
+	private static void waitFor(Condition condition, String description) throws Exception {
+		for (int i = 0; i < 300; i++) {
+			if (condition.check()) {
+				return;
+			}
+			Thread.sleep(100);
+		}
+		Assertions.fail("timeout while waiting for " + description);
+	}
+
+	private static boolean hasCommand(String command) {
+		return ProcessUtils.getPaths().stream().anyMatch(path -> Files.isExecutable(Path.of(path, command)));
+	}
+}
@@ -0,0 +1,143 @@
+package fi.csc.chipster.rest.hibernate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+
+import fi.csc.chipster.rest.RestUtils;
+import fi.csc.chipster.rest.SmallHeapJvm;
+import fi.csc.chipster.sessiondb.model.File;
+import fi.csc.chipster.sessiondb.model.FileState;
+
+public class StreamingJsonResponseTest {
+
+	private static final int MILLION = 1_000_000;
+
+	@Test
+	public void writeJsonArray() throws IOException {
+
+		AtomicInteger releases = new AtomicInteger();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		long count = StreamingJsonResponse.writeJsonArray(getFiles(2500), out,
+				(row, jsonGenerator) -> jsonGenerator.writeObject(row), releases::incrementAndGet);
+
+		List<File> files = RestUtils.getObjectMapper(false).readValue(out.toByteArray(),
+				new TypeReference<List<File>>() {
+				});
+
+		Assertions.assertEquals(2500, count);
+		Assertions.assertEquals(2500, files.size());
+		Assertions.assertEquals(2499, files.get(2499).getSize());
+		// after each 1000 rows
+		Assertions.assertEquals(2, releases.get());
+	}
+
+	@Test
+	public void emptyArray() throws IOException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		StreamingJsonResponse.writeJsonArray(getFiles(0), out, (row, jsonGenerator) -> jsonGenerator.writeObject(row),
+				() -> {
+				});
+
+		Assertions.assertEquals("[]", out.toString(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Stream a million rows in a JVM that has much less heap than the json or the
+	 * rows would need
+	 */
+	@Test
+	public void millionRowsSmallHeap() throws IOException, InterruptedException {
+
+		String output = SmallHeapJvm.runMain(StreamingJsonResponseTest.class);
+
+		Assertions.assertTrue(output.contains("rows: " + MILLION), output);
+	}
+
+	/**
+	 * Run by millionRowsSmallHeap()
+	 *
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+
+		// discard the output, but check that it's a json array
+		CountingOutputStream out = new CountingOutputStream();
+
+		long count = StreamingJsonResponse.writeJsonArray(getFiles(MILLION), out,
+				(row, jsonGenerator) -> jsonGenerator.writeObject(row), () -> {
+				});
+
+		if (out.first != '[' || out.last != ']') {
+			throw new IllegalStateException("not a json array");
+		}
+
+		System.out.println("rows: " + count + ", bytes: " + out.count);
+	}
+
+	private static Iterator<File> getFiles(int count) {
+		return new Iterator<File>() {
+
+			private int i = 0;
+
+			@Override
+			public boolean hasNext() {
+				return i < count;
+			}
+
+			@Override
+			public File next() {
+				File file = new File();
+				file.setFileId(UUID.randomUUID());
+				file.setSize(i++);
+				file.setChecksum("xyz");
+				file.setFileCreated(Instant.now());
+				file.setStorage("test-storage");
+				file.setState(FileState.COMPLETE);
+				return file;
+			}
+		};
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+
+		private long count;
+		private int first = -1;
+		private int last = -1;
+
+		@Override
+		public void write(int b) {
+			if (first == -1) {
+				first = b;
+			}
+			last = b;
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			if (len > 0) {
+				if (first == -1) {
+					first = b[off];
+				}
+				last = b[off + len - 1];
+				count += len;
+			}
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package fi.csc.chipster.sessiondb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.hibernate.stat.Statistics;
+
+import fi.csc.chipster.auth.model.Role;
+import fi.csc.chipster.rest.Config;
+import fi.csc.chipster.rest.RestUtils;
+import fi.csc.chipster.rest.TestServerLauncher;
+import fi.csc.chipster.sessiondb.model.Dataset;
+import fi.csc.chipster.sessiondb.model.File;
+
+/**
+ * Measure creating datasets through the session-db API
+ *
+ * The datasets are created in the same way as when a session is imported: many
+ * datasets with files in each request. The request updates the storage usage
+ * counters too, so this shows whether the statements are still sent in JDBC
+ * batches.
+ *
+ * Uses the session-db database of the local configuration. Compare the batch
+ * sizes by running this again with the environment variable
+ * db_jdbc_batch_size=1. Run with the main method, because the results depend on
+ * the database and the network latency.
+ */
+public class JdbcBatchBenchmark {
+
+	private static final int COUNT = 10_000;
+	private static final int DATASETS_PER_REQUEST = 1000;
+
+	public static void main(String[] args) throws Exception {
+
+		Config config = new Config();
+		TestServerLauncher launcher = new TestServerLauncher(config);
+
+		try {
+			SessionDbClient client = new SessionDbClient(launcher.getServiceLocator(), launcher.getUser1Token(),
+					Role.CLIENT);
+
+			Statistics statistics = SessionDb.getHibernate().getSessionFactory().getStatistics();
+			statistics.setStatisticsEnabled(true);
+
+			// warm up
+			run(client, statistics, DATASETS_PER_REQUEST);
+
+			run(client, statistics, COUNT);
+
+		} finally {
+			launcher.stop();
+		}
+	}
+
+	private static void run(SessionDbClient client, Statistics statistics, int count) throws Exception {
+
+		UUID sessionId = client.createSession(RestUtils.getRandomSession());
+
+		statistics.clear();
+		long t = System.currentTimeMillis();
+
+		for (int i = 0; i < count; i += DATASETS_PER_REQUEST) {
+			List<Dataset> datasets = new ArrayList<>();
+			for (int j = 0; j < DATASETS_PER_REQUEST; j++) {
+				File file = new File();
+				file.setFileId(RestUtils.createUUID());
+				file.setSize(1000);
+
+				Dataset dataset = RestUtils.getRandomDataset();
+				dataset.setDatasetIdPair(null);
+				dataset.setFile(file);
+				datasets.add(dataset);
+			}
+			client.createDatasets(sessionId, datasets);
+		}
+
+		long time = System.currentTimeMillis() - t;
+
+		System.out.println(String.format(
+				"%,6d datasets, %,6d statements prepared, %,6d entities inserted, %,6d ms, storage usage %,d",
+				count, statistics.getPrepareStatementCount(), statistics.getEntityInsertCount(), time,
+				client.getStats().getSize()));
+
+		client.deleteSession(sessionId);
+	}
+}
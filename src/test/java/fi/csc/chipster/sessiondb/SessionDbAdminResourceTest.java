@@ -5,8 +5,11 @@ import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
@@ -26,11 +29,16 @@ import fi.csc.chipster.filebroker.FileResourceTest;
 import fi.csc.chipster.rest.Config;
 import fi.csc.chipster.rest.RestUtils;
 import fi.csc.chipster.rest.TestServerLauncher;
+import fi.csc.chipster.rest.hibernate.HibernateUtil;
+import fi.csc.chipster.rest.hibernate.StreamingJsonResponse;
 import fi.csc.chipster.sessiondb.model.Dataset;
 import fi.csc.chipster.sessiondb.model.File;
 import fi.csc.chipster.sessiondb.model.FileState;
 import fi.csc.chipster.sessiondb.model.Session;
+import fi.csc.chipster.sessiondb.resource.SessionDbApi;
 import jakarta.ws.rs.client.WebTarget;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
 
 public class SessionDbAdminResourceTest {
 
@@ -382,4 +390,69 @@ public class SessionDbAdminResourceTest {
 
         user1Client.deleteSession(sessionId);
     }
+
+    /**
+     * Stream more files than the fetch size from the db
+     * 
+     * Check that the Hibernate session is cleared while the rows are written, so
+     * that it never has more than one fetch of rows.
+     */
+    @Test
+    public void streamFiles() throws IOException, RestException {
+
+        int count = 2 * StreamingJsonResponse.FETCH_SIZE + 500;
+        String storageId = "stream-test-" + RestUtils.createUUID();
+
+        UUID sessionId = user1Client.createSession(RestUtils.getRandomSession());
+
+        Set<UUID> fileIds = new HashSet<>();
+        List<Dataset> datasets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            File file = new File();
+            file.setFileId(RestUtils.createUUID());
+            file.setSize(i);
+            file.setStorage(storageId);
+            file.setState(FileState.COMPLETE);
+
+            Dataset dataset = RestUtils.getRandomDataset();
+            dataset.setFile(file);
+            datasets.add(dataset);
+            fileIds.add(file.getFileId());
+
+            if (datasets.size() == 500) {
+                user1Client.createDatasets(sessionId, datasets);
+                datasets.clear();
+            }
+        }
+
+        // through the endpoint
+        List<File> files = sessionDbClientForFileBroker.getFiles(storageId, FileState.COMPLETE);
+
+        assertEquals(count, files.size());
+        assertEquals(fileIds, files.stream().map(f -> f.getFileId()).collect(Collectors.toSet()));
+
+        // the same query directly in the session-db of this JVM to see its Hibernate
+        // session
+        HibernateUtil hibernate = SessionDb.getHibernate();
+        int[] maxEntities = new int[1];
+
+        Response response = StreamingJsonResponse.ok(hibernate,
+                hibernateSession -> SessionDbApi.getFilesQuery(storageId, FileState.COMPLETE, hibernateSession),
+                (row, jsonGenerator) -> {
+                    maxEntities[0] = Math.max(maxEntities[0], hibernate.session().getStatistics().getEntityCount());
+                    jsonGenerator.writeObject(row);
+                });
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(out);
+
+        List<File> streamedFiles = RestUtils.getObjectMapper(false).readValue(out.toByteArray(),
+                new TypeReference<List<File>>() {
+                });
+
+        assertEquals(count, streamedFiles.size());
+        assertTrue(maxEntities[0] <= StreamingJsonResponse.FETCH_SIZE, "entities in session: " + maxEntities[0]);
+
+        user1Client.deleteSession(sessionId);
+    }
 }
\ No newline at end of file
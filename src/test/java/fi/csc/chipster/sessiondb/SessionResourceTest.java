@@ -1,9 +1,18 @@
 package fi.csc.chipster.sessiondb;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
@@ -17,6 +26,7 @@ import fi.csc.chipster.sessiondb.model.Dataset;
 import fi.csc.chipster.sessiondb.model.File;
 import fi.csc.chipster.sessiondb.model.Session;
 import fi.csc.chipster.sessiondb.model.SessionState;
+import fi.csc.chipster.sessiondb.resource.SessionAccessedTable;
 
 public class SessionResourceTest {
 
@@ -123,6 +133,123 @@ public class SessionResourceTest {
         testGetSession(401, sessionId1, noAuthClient);
     }
 
+    @Test
+    public void getDoesNotUpdateAccessed() throws IOException, RestException {
+
+        UUID sessionId1 = user1Client.createSession(RestUtils.getRandomSession());
+
+        Instant accessed = user1Client.getSession(sessionId1).getAccessed();
+
+        // the session was created just now, so reads shouldn't update it within the
+        // configured granularity
+        for (int i = 0; i < 5; i++) {
+            assertEquals(accessed, user1Client.getSession(sessionId1).getAccessed());
+        }
+    }
+
+    /**
+     * Check that an access after the granularity is written in the flush
+     */
+    @Test
+    public void flushAccessed() throws IOException, RestException {
+
+        UUID sessionId = user1Client.createSession(RestUtils.getRandomSession());
+
+        // older than the granularity
+        Instant old = Instant.now().minus(2, ChronoUnit.HOURS).truncatedTo(ChronoUnit.SECONDS);
+        setAccessed(sessionId, old);
+
+        SessionAccessedTable accessedTable = new SessionAccessedTable(SessionDb.getHibernate(), new Config());
+        try {
+            Instant before = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+            accessedTable.accessed(getDbSession(sessionId));
+
+            // not written yet
+            assertEquals(old, getAccessed(sessionId));
+
+            accessedTable.flush();
+
+            assertTrue(!getAccessed(sessionId).isBefore(before), "accessed " + getAccessed(sessionId));
+        } finally {
+            accessedTable.close();
+        }
+
+        user1Client.deleteSession(sessionId);
+    }
+
+    /**
+     * The flush mustn't overwrite a newer timestamp that was written in the
+     * meantime
+     */
+    @Test
+    public void flushDoesNotMoveAccessedBackwards() throws IOException, RestException {
+
+        UUID sessionId = user1Client.createSession(RestUtils.getRandomSession());
+
+        setAccessed(sessionId, Instant.now().minus(2, ChronoUnit.HOURS));
+
+        SessionAccessedTable accessedTable = new SessionAccessedTable(SessionDb.getHibernate(), new Config());
+        try {
+            accessedTable.accessed(getDbSession(sessionId));
+
+            // e.g. a PUT request
+            Instant newer = Instant.now().plus(1, ChronoUnit.HOURS).truncatedTo(ChronoUnit.SECONDS);
+            setAccessed(sessionId, newer);
+
+            accessedTable.flush();
+
+            assertEquals(newer, getAccessed(sessionId));
+        } finally {
+            accessedTable.close();
+        }
+
+        user1Client.deleteSession(sessionId);
+    }
+
+    /**
+     * The pending timestamps are written when the server is stopped
+     */
+    @Test
+    public void closeFlushesAccessed() throws IOException, RestException {
+
+        UUID sessionId = user1Client.createSession(RestUtils.getRandomSession());
+
+        Instant old = Instant.now().minus(2, ChronoUnit.HOURS).truncatedTo(ChronoUnit.SECONDS);
+        setAccessed(sessionId, old);
+
+        SessionAccessedTable accessedTable = new SessionAccessedTable(SessionDb.getHibernate(), new Config());
+        accessedTable.accessed(getDbSession(sessionId));
+        accessedTable.close();
+
+        assertTrue(getAccessed(sessionId).isAfter(old), "accessed " + getAccessed(sessionId));
+
+        user1Client.deleteSession(sessionId);
+    }
+
+    /**
+     * Set the accessed timestamp directly in the session-db of this JVM
+     */
+    private static void setAccessed(UUID sessionId, Instant accessed) {
+        SessionDb.getHibernate().runInTransaction(hibernateSession -> hibernateSession
+                .createMutationQuery("update Session set accessed=:accessed where sessionId=:sessionId")
+                .setParameter("accessed", accessed)
+                .setParameter("sessionId", sessionId)
+                .executeUpdate());
+    }
+
+    /**
+     * Get the session directly from the db, because the GET request would record
+     * the access in the server's own SessionAccessedTable
+     */
+    private static Session getDbSession(UUID sessionId) {
+        return SessionDb.getHibernate().runInTransaction(
+                hibernateSession -> hibernateSession.get(Session.class, sessionId));
+    }
+
+    private static Instant getAccessed(UUID sessionId) {
+        return getDbSession(sessionId).getAccessed();
+    }
+
     @Test
     public void getStats() throws IOException, RestException {
 
@@ -347,6 +474,368 @@ public class SessionResourceTest {
         testGetSession(404, sessionId1, user1Client);
     }
 
+    @Test
+    public void deleteWithContent() throws RestException {
+
+        UUID sessionId1 = user1Client.createSession(RestUtils.getRandomSession());
+        UUID sessionId2 = user1Client.createSession(RestUtils.getRandomSession());
+
+        // file used only in session1
+        File file1 = new File();
+        file1.setFileId(RestUtils.createUUID());
+        file1.setSize(1);
+
+        Dataset dataset1 = RestUtils.getRandomDataset();
+        dataset1.setDatasetIdPair(null);
+        dataset1.setFile(file1);
+        user1Client.createDataset(sessionId1, dataset1);
+
+        // file used in both sessions
+        File sharedFile = new File();
+        sharedFile.setFileId(RestUtils.createUUID());
+        sharedFile.setSize(1);
+
+        Dataset dataset2 = RestUtils.getRandomDataset();
+        dataset2.setDatasetIdPair(null);
+        dataset2.setFile(sharedFile);
+        user1Client.createDataset(sessionId1, dataset2);
+
+        Dataset dataset3 = RestUtils.getRandomDataset();
+        dataset3.setDatasetIdPair(null);
+        dataset3.setFile(sharedFile);
+        UUID datasetId3 = user1Client.createDataset(sessionId2, dataset3);
+
+        user1Client.createJob(sessionId1, RestUtils.getRandomJob());
+        user1Client.createRule(sessionId1, TestServerLauncher.UNIT_TEST_USER2, false);
+
+        user1Client.deleteSession(sessionId1);
+
+        testGetSession(404, sessionId1, user1Client);
+        testGetSession(404, sessionId1, user2Client);
+
+        // the shared file must be kept
+        assertEquals(sharedFile.getFileId(), user1Client.getDataset(sessionId2, datasetId3).getFile().getFileId());
+
+        user1Client.deleteSession(sessionId2);
+    }
+
+    /**
+     * Check that the storage usage counter follows the datasets, also when they
+     * are created concurrently and when a request fails
+     */
+    @Test
+    public void storageUsage() throws RestException, InterruptedException, ExecutionException {
+
+        long size1 = user1Client.getStats().getSize();
+
+        UUID sessionId1 = user1Client.createSession(RestUtils.getRandomSession());
+        UUID sessionId2 = user1Client.createSession(RestUtils.getRandomSession());
+
+        // create datasets concurrently in both sessions
+        int threads = 8;
+        long fileSize = 10;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<UUID>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                UUID sessionId = i % 2 == 0 ? sessionId1 : sessionId2;
+                futures.add(executor.submit(() -> {
+                    Dataset dataset = RestUtils.getRandomDataset();
+                    dataset.setDatasetIdPair(null);
+                    File file = new File();
+                    file.setFileId(RestUtils.createUUID());
+                    file.setSize(fileSize);
+                    dataset.setFile(file);
+                    return user1Client.createDataset(sessionId, dataset);
+                }));
+            }
+            for (Future<UUID> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(size1 + threads * fileSize, user1Client.getStats().getSize());
+
+        // a file in both sessions is counted only once
+        long sharedSize = 100;
+        File sharedFile = new File();
+        sharedFile.setFileId(RestUtils.createUUID());
+        sharedFile.setSize(sharedSize);
+
+        Dataset dataset1 = RestUtils.getRandomDataset();
+        dataset1.setDatasetIdPair(null);
+        dataset1.setFile(sharedFile);
+        user1Client.createDataset(sessionId1, dataset1);
+
+        Dataset dataset2 = RestUtils.getRandomDataset();
+        dataset2.setDatasetIdPair(null);
+        dataset2.setFile(sharedFile);
+        UUID datasetId2 = user1Client.createDataset(sessionId2, dataset2);
+
+        long size2 = size1 + threads * fileSize + sharedSize;
+        assertEquals(size2, user1Client.getStats().getSize());
+
+        // the failed request is rolled back together with the counter
+        Dataset modified = RestUtils.getRandomDataset();
+        modified.setDatasetIdPair(null);
+        File modifiedFile = new File();
+        modifiedFile.setFileId(sharedFile.getFileId());
+        modifiedFile.setSize(sharedSize * 2);
+        modified.setFile(modifiedFile);
+        try {
+            user1Client.createDataset(sessionId1, modified);
+            assertEquals(true, false);
+        } catch (RestException e) {
+            assertEquals(403, e.getResponse().getStatus());
+        }
+
+        assertEquals(size2, user1Client.getStats().getSize());
+
+        // the shared file is still used in session1
+        user1Client.deleteDataset(sessionId2, datasetId2);
+        assertEquals(size2, user1Client.getStats().getSize());
+
+        user1Client.deleteSession(sessionId1);
+        assertEquals(size1 + threads / 2 * fileSize, user1Client.getStats().getSize());
+
+        user1Client.deleteSession(sessionId2);
+        assertEquals(size1, user1Client.getStats().getSize());
+    }
+
+    /**
+     * Create many datasets in one request, like when a session is imported
+     */
+    @Test
+    public void storageUsageManyDatasets() throws RestException, IOException {
+
+        long size1 = user1Client.getStats().getSize();
+
+        UUID sessionId1 = user1Client.createSession(RestUtils.getRandomSession());
+        UUID sessionId2 = user1Client.createSession(RestUtils.getRandomSession());
+
+        File sharedFile = new File();
+        sharedFile.setFileId(RestUtils.createUUID());
+        sharedFile.setSize(100);
+
+        // the shared file twice in the same request
+        List<Dataset> datasets = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Dataset dataset = RestUtils.getRandomDataset();
+            dataset.setDatasetIdPair(null);
+            if (i < 2) {
+                dataset.setFile(sharedFile);
+            } else {
+                File file = new File();
+                file.setFileId(RestUtils.createUUID());
+                file.setSize(10);
+                dataset.setFile(file);
+            }
+            datasets.add(dataset);
+        }
+        user1Client.createDatasets(sessionId1, datasets);
+
+        long size2 = size1 + 100 + 8 * 10;
+        assertEquals(size2, user1Client.getStats().getSize());
+
+        // the same file in another session
+        Dataset dataset = RestUtils.getRandomDataset();
+        dataset.setDatasetIdPair(null);
+        dataset.setFile(sharedFile);
+        user1Client.createDatasets(sessionId2, List.of(dataset));
+
+        assertEquals(size2, user1Client.getStats().getSize());
+
+        user1Client.deleteSession(sessionId1);
+        assertEquals(size1 + 100, user1Client.getStats().getSize());
+
+        user1Client.deleteSession(sessionId2);
+        assertEquals(size1, user1Client.getStats().getSize());
+    }
+
+    /**
+     * Check that the counter is rolled back, when the request fails after the
+     * counter has been updated
+     */
+    @Test
+    public void storageUsageRollback() throws RestException, IOException {
+
+        long size1 = user1Client.getStats().getSize();
+
+        UUID sessionId = user1Client.createSession(RestUtils.getRandomSession());
+
+        long fileSize = 100;
+        Dataset existing = RestUtils.getRandomDataset();
+        existing.setDatasetIdPair(null);
+        File existingFile = new File();
+        existingFile.setFileId(RestUtils.createUUID());
+        existingFile.setSize(fileSize);
+        existing.setFile(existingFile);
+        user1Client.createDataset(sessionId, existing);
+
+        long size2 = size1 + fileSize;
+        assertEquals(size2, user1Client.getStats().getSize());
+
+        // the first dataset is added to the counter changes and then the second one
+        // fails in the same transaction
+        Dataset added = RestUtils.getRandomDataset();
+        added.setDatasetIdPair(null);
+        File addedFile = new File();
+        addedFile.setFileId(RestUtils.createUUID());
+        addedFile.setSize(10);
+        added.setFile(addedFile);
+
+        Dataset modified = RestUtils.getRandomDataset();
+        modified.setDatasetIdPair(null);
+        File modifiedFile = new File();
+        modifiedFile.setFileId(existingFile.getFileId());
+        modifiedFile.setSize(fileSize * 2);
+        modified.setFile(modifiedFile);
+
+        try {
+            user1Client.createDatasets(sessionId, List.of(added, modified));
+            assertEquals(true, false);
+        } catch (RestException e) {
+            assertEquals(403, e.getResponse().getStatus());
+        }
+
+        assertEquals(1, user1Client.getDatasets(sessionId).size());
+        assertEquals(size2, user1Client.getStats().getSize());
+
+        user1Client.deleteSession(sessionId);
+        assertEquals(size1, user1Client.getStats().getSize());
+    }
+
+    /**
+     * Add the same file concurrently to several sessions
+     * 
+     * Concurrent transactions don't see each other's datasets, so the counter may
+     * count the file several times, but never less than once. The reconciliation
+     * must fix it.
+     */
+    @Test
+    public void storageUsageConcurrentSameFile()
+            throws RestException, InterruptedException, ExecutionException, IOException {
+
+        SessionDbAdminClient adminClient = new SessionDbAdminClient(launcher.getServiceLocatorForAdmin(),
+                launcher.getAdminToken());
+
+        // fix the earlier tests first, if necessary
+        adminClient.reconcileUserStorage();
+
+        long size1 = user1Client.getStats().getSize();
+
+        int threads = 8;
+        long fileSize = 100;
+
+        List<UUID> sessionIds = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            sessionIds.add(user1Client.createSession(RestUtils.getRandomSession()));
+        }
+
+        // first a new file in all sessions, then an existing file
+        for (boolean exists : new boolean[] { false, true }) {
+
+            File file = new File();
+            file.setFileId(RestUtils.createUUID());
+            file.setSize(fileSize);
+
+            if (exists) {
+                Dataset dataset = RestUtils.getRandomDataset();
+                dataset.setDatasetIdPair(null);
+                dataset.setFile(file);
+                user1Client.createDataset(sessionIds.get(0), dataset);
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            int created = 0;
+            try {
+                List<Future<UUID>> futures = new ArrayList<>();
+                for (UUID sessionId : sessionIds) {
+                    futures.add(executor.submit(() -> {
+                        Dataset dataset = RestUtils.getRandomDataset();
+                        dataset.setDatasetIdPair(null);
+                        dataset.setFile(file);
+                        return user1Client.createDataset(sessionId, dataset);
+                    }));
+                }
+                for (Future<UUID> future : futures) {
+                    try {
+                        future.get();
+                        created++;
+                    } catch (ExecutionException e) {
+                        // only one transaction can insert the new file
+                        if (exists || !(e.getCause() instanceof RestException)) {
+                            throw e;
+                        }
+                    }
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            assertEquals(true, created > 0);
+
+            long counted = user1Client.getStats().getSize() - size1;
+            assertEquals(true, counted >= fileSize, "counted " + counted);
+            assertEquals(true, counted <= (created + (exists ? 1 : 0)) * fileSize, "counted " + counted);
+
+            adminClient.reconcileUserStorage();
+            assertEquals(size1 + fileSize, user1Client.getStats().getSize());
+
+            for (UUID sessionId : sessionIds) {
+                for (Dataset dataset : user1Client.getDatasets(sessionId).values()) {
+                    user1Client.deleteDataset(sessionId, dataset.getDatasetId());
+                }
+            }
+            assertEquals(size1, user1Client.getStats().getSize());
+        }
+
+        for (UUID sessionId : sessionIds) {
+            user1Client.deleteSession(sessionId);
+        }
+    }
+
+    /**
+     * Break the counter in the db and check that the reconciliation fixes it
+     */
+    @Test
+    public void storageUsageReconcile() throws RestException, IOException {
+
+        SessionDbAdminClient adminClient = new SessionDbAdminClient(launcher.getServiceLocatorForAdmin(),
+                launcher.getAdminToken());
+
+        UUID sessionId = user1Client.createSession(RestUtils.getRandomSession());
+        Dataset dataset = RestUtils.getRandomDataset();
+        dataset.setDatasetIdPair(null);
+        File file = new File();
+        file.setFileId(RestUtils.createUUID());
+        file.setSize(100);
+        dataset.setFile(file);
+        user1Client.createDataset(sessionId, dataset);
+
+        adminClient.reconcileUserStorage();
+        long size = user1Client.getStats().getSize();
+
+        // nothing to fix
+        assertEquals(0, adminClient.reconcileUserStorage());
+
+        String username = launcher.getUser1Credentials().getUsername();
+        SessionDb.getHibernate().runInTransaction(hibernateSession -> hibernateSession
+                .createNativeMutationQuery("update UserStorage set size=size+12345 where username=:username")
+                .setParameter("username", username)
+                .executeUpdate());
+
+        assertEquals(size + 12345, user1Client.getStats().getSize());
+
+        assertEquals(1, adminClient.reconcileUserStorage());
+        assertEquals(size, user1Client.getStats().getSize());
+
+        user1Client.deleteSession(sessionId);
+    }
+
     public static void testDeleteSession(int expected, UUID sessionId, SessionDbClient client) {
         try {
             client.deleteSession(sessionId);
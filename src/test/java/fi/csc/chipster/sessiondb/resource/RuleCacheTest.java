@@ -0,0 +1,60 @@
+package fi.csc.chipster.sessiondb.resource;
+
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.csc.chipster.rest.RestUtils;
+import fi.csc.chipster.sessiondb.model.Rule;
+
+public class RuleCacheTest {
+
+	@Test
+	public void getAndPut() {
+		RuleCache cache = new RuleCache(10);
+		UUID sessionId = RestUtils.createUUID();
+		List<Rule> rules = List.of(new Rule("user", true));
+
+		Assertions.assertNull(cache.get(sessionId));
+
+		cache.put(sessionId, rules, cache.getGeneration());
+		Assertions.assertSame(rules, cache.get(sessionId));
+
+		cache.invalidate(sessionId);
+		Assertions.assertNull(cache.get(sessionId));
+	}
+
+	@Test
+	public void staleQuery() {
+		RuleCache cache = new RuleCache(10);
+		UUID sessionId = RestUtils.createUUID();
+
+		// query started before the rules were changed
+		long generation = cache.getGeneration();
+		cache.invalidate(sessionId);
+
+		cache.put(sessionId, List.of(new Rule("user", true)), generation);
+		Assertions.assertNull(cache.get(sessionId));
+	}
+
+	@Test
+	public void maxSize() {
+		RuleCache cache = new RuleCache(2);
+		UUID sessionId1 = RestUtils.createUUID();
+		UUID sessionId2 = RestUtils.createUUID();
+		UUID sessionId3 = RestUtils.createUUID();
+
+		cache.put(sessionId1, List.of(), cache.getGeneration());
+		cache.put(sessionId2, List.of(), cache.getGeneration());
+		// use the first one to make the second one the least recently used
+		cache.get(sessionId1);
+		cache.put(sessionId3, List.of(), cache.getGeneration());
+
+		Assertions.assertEquals(2, cache.size());
+		Assertions.assertNotNull(cache.get(sessionId1));
+		Assertions.assertNull(cache.get(sessionId2));
+		Assertions.assertNotNull(cache.get(sessionId3));
+	}
+}
@@ -0,0 +1,284 @@
+package fi.csc.chipster.sessionworker;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import fi.csc.chipster.auth.model.Role;
+import fi.csc.chipster.filebroker.RestFileBrokerClient;
+import fi.csc.chipster.rest.Config;
+import fi.csc.chipster.rest.RestUtils;
+import fi.csc.chipster.rest.TestServerLauncher;
+import fi.csc.chipster.sessiondb.RestException;
+import fi.csc.chipster.sessiondb.SessionDbClient;
+import fi.csc.chipster.sessiondb.model.Dataset;
+
+/**
+ * Extract a multi-dataset session zip with the random access and streaming
+ * paths of JsonSession and compare the results
+ */
+public class JsonSessionTest {
+
+	private static final int DATASET_COUNT = 6;
+
+	private static TestServerLauncher launcher;
+
+	private static SessionDbClient sessionDbClient;
+	private static RestFileBrokerClient fileBrokerClient;
+	private static SessionWorkerClient sessionWorkerClient;
+
+	private static UUID sourceSessionId;
+	private static byte[] zipBytes;
+
+	@TempDir
+	File tempDir;
+
+	@BeforeAll
+	public static void setUp() throws Exception {
+		Config config = new Config();
+		launcher = new TestServerLauncher(config);
+
+		sessionDbClient = new SessionDbClient(launcher.getServiceLocator(), launcher.getUser1Token(), Role.CLIENT);
+		fileBrokerClient = new RestFileBrokerClient(launcher.getServiceLocator(), launcher.getUser1Token(),
+				Role.CLIENT);
+		sessionWorkerClient = new SessionWorkerClient(launcher.getUser1Target(Role.SESSION_WORKER), sessionDbClient,
+				fileBrokerClient);
+
+		// a session with files of different sizes
+		sourceSessionId = sessionDbClient.createSession(RestUtils.getRandomSession());
+		Random random = new Random(1);
+
+		for (int i = 0; i < DATASET_COUNT; i++) {
+			byte[] content = new byte[random.nextInt(200_000)];
+			random.nextBytes(content);
+
+			UUID datasetId = sessionDbClient.createDataset(sourceSessionId, RestUtils.getRandomDataset());
+			fileBrokerClient.upload(sourceSessionId, datasetId, new ByteArrayInputStream(content),
+					(long) content.length);
+		}
+
+		UUID zipDatasetId = sessionWorkerClient.packageSessionToZip(sourceSessionId);
+		zipBytes = IOUtils.toByteArray(fileBrokerClient.download(sourceSessionId, zipDatasetId));
+		sessionDbClient.deleteDataset(sourceSessionId, zipDatasetId);
+	}
+
+	@AfterAll
+	public static void tearDown() throws Exception {
+		sessionDbClient.deleteSession(sourceSessionId);
+		launcher.stop();
+	}
+
+	@Test
+	public void randomAccessMatchesStreaming() throws RestException, IOException {
+
+		ExtractedSession randomAccess = extract(Long.MAX_VALUE, 4, true);
+		ExtractedSession streaming = extract(0, 4, false);
+
+		assertEquals(getDatasets(randomAccess), getDatasets(streaming));
+		assertEquals(randomAccess.getJobMap().keySet(), streaming.getJobMap().keySet());
+		assertEquals(randomAccess.getSession().getName(), streaming.getSession().getName());
+		assertEquals(streaming.getWarnings(), randomAccess.getWarnings());
+		assertEquals(streaming.getErrors(), randomAccess.getErrors());
+	}
+
+	/**
+	 * Fall back to the streaming extraction when the zip doesn't fit to the temp
+	 * dir
+	 */
+	@Test
+	public void notEnoughTempSpace() throws RestException, IOException {
+		extract(zipBytes.length - 1, 4, false);
+		extract(zipBytes.length, 4, true);
+	}
+
+	@Test
+	public void randomAccessOneThread() throws RestException, IOException {
+		extract(Long.MAX_VALUE, 1, true);
+	}
+
+	/**
+	 * Extract the zip to a new session and check the files
+	 * 
+	 * @param tempSpace
+	 * @param threads
+	 * @param randomAccess true if the zip must be extracted with random access
+	 * @return
+	 * @throws RestException
+	 * @throws IOException
+	 */
+	private ExtractedSession extract(long tempSpace, int threads, boolean randomAccess)
+			throws RestException, IOException {
+
+		UUID sessionId = sessionDbClient.createSession(RestUtils.getRandomSession());
+		UUID zipDatasetId = uploadZip(sessionId);
+
+		CountingFileBrokerClient client = new CountingFileBrokerClient(-1);
+		ExtractedSession extracted = JsonSession.extractSession(client, sessionDbClient, sessionId, zipDatasetId,
+				tempDir, tempSpace, threads);
+
+		assertEquals(randomAccess, client.zipDownloadedToFile);
+		assertEquals(DATASET_COUNT, client.uploads.get());
+		assertEquals(DATASET_COUNT, extracted.getDatasetMap().size());
+		assertEquals(getContents(sourceSessionId, null), getContents(sessionId, zipDatasetId));
+
+		// the temp zip is removed
+		assertTrue(tempDir.list().length == 0);
+
+		sessionDbClient.deleteSession(sessionId);
+
+		return extracted;
+	}
+
+	/**
+	 * Interrupt the extraction after two files and extract the zip again through
+	 * the session-worker
+	 */
+	@Test
+	public void resumeRandomAccess() throws RestException, IOException {
+		resume(Long.MAX_VALUE);
+	}
+
+	@Test
+	public void resumeStreaming() throws RestException, IOException {
+		resume(0);
+	}
+
+	private void resume(long tempSpace) throws RestException, IOException {
+
+		UUID sessionId = sessionDbClient.createSession(RestUtils.getRandomSession());
+		UUID zipDatasetId = uploadZip(sessionId);
+
+		// like a restart of the session-worker in the middle of the uploads
+		CountingFileBrokerClient killedClient = new CountingFileBrokerClient(2);
+		// the random access path wraps the exception from the upload thread
+		assertThrows(Exception.class, () -> JsonSession.extractSession(killedClient, sessionDbClient,
+				sessionId, zipDatasetId, tempDir, tempSpace, 1));
+
+		assertEquals(2, getContents(sessionId, zipDatasetId).size());
+
+		// extract again and count the uploads
+		CountingFileBrokerClient resumedClient = new CountingFileBrokerClient(-1);
+		JsonSession.extractSession(resumedClient, sessionDbClient, sessionId, zipDatasetId, tempDir, tempSpace, 1);
+
+		assertEquals(DATASET_COUNT - 2, resumedClient.uploads.get());
+		assertEquals(getContents(sourceSessionId, null), getContents(sessionId, zipDatasetId));
+
+		// the session-worker updates the datasets from the zip after the extraction
+		sessionWorkerClient.extractZipSession(sessionId, zipDatasetId);
+
+		// compare with a clean import
+		UUID cleanSessionId = sessionDbClient.createSession(RestUtils.getRandomSession());
+		sessionWorkerClient.extractZipSession(cleanSessionId, uploadZip(cleanSessionId));
+
+		assertEquals(getDatasets(cleanSessionId), getDatasets(sessionId));
+		assertEquals(getContents(cleanSessionId, null), getContents(sessionId, null));
+
+		sessionDbClient.deleteSession(sessionId);
+		sessionDbClient.deleteSession(cleanSessionId);
+	}
+
+	private UUID uploadZip(UUID sessionId) throws RestException {
+		UUID zipDatasetId = sessionDbClient.createDataset(sessionId, new Dataset());
+		fileBrokerClient.upload(sessionId, zipDatasetId, new ByteArrayInputStream(zipBytes), (long) zipBytes.length);
+		return zipDatasetId;
+	}
+
+	/**
+	 * @return the checksums of the files in the session by datasetId
+	 */
+	private static Map<UUID, String> getContents(UUID sessionId, UUID zipDatasetId)
+			throws RestException, IOException {
+
+		Map<UUID, String> contents = new HashMap<>();
+
+		for (Dataset dataset : sessionDbClient.getDatasets(sessionId).values()) {
+			if (dataset.getFile() == null || dataset.getDatasetId().equals(zipDatasetId)) {
+				continue;
+			}
+			try (InputStream stream = fileBrokerClient.download(sessionId, dataset.getDatasetId())) {
+				contents.put(dataset.getDatasetId(), DigestUtils.sha256Hex(stream));
+			}
+		}
+		return contents;
+	}
+
+	/**
+	 * @return the names and file sizes of the extracted datasets by datasetId
+	 */
+	private static Map<UUID, String> getDatasets(ExtractedSession extracted) {
+
+		Map<UUID, String> datasets = new HashMap<>();
+
+		for (Dataset dataset : extracted.getDatasetMap().values()) {
+			datasets.put(dataset.getDatasetId(),
+					dataset.getName() + " " + (dataset.getFile() != null ? dataset.getFile().getSize() : null));
+		}
+		return datasets;
+	}
+
+	/**
+	 * @return the names and file sizes of the datasets by datasetId
+	 */
+	private static Map<UUID, String> getDatasets(UUID sessionId) throws RestException {
+
+		Map<UUID, String> datasets = new HashMap<>();
+
+		for (Dataset dataset : sessionDbClient.getDatasets(sessionId).values()) {
+			datasets.put(dataset.getDatasetId(),
+					dataset.getName() + " " + (dataset.getFile() != null ? dataset.getFile().getSize() : null));
+		}
+		return datasets;
+	}
+
+	/**
+	 * Count the uploads and fail after the given number of uploads
+	 */
+	private static class CountingFileBrokerClient extends RestFileBrokerClient {
+
+		private AtomicInteger uploads = new AtomicInteger();
+		private int maxUploads;
+		private boolean zipDownloadedToFile;
+
+		/**
+		 * @param maxUploads -1 for no limit
+		 */
+		public CountingFileBrokerClient(int maxUploads) {
+			super(launcher.getServiceLocator(), launcher.getUser1Token(), Role.CLIENT);
+			this.maxUploads = maxUploads;
+		}
+
+		@Override
+		public void upload(UUID sessionId, UUID datasetId, InputStream inputStream, Long size)
+				throws RestException {
+
+			if (maxUploads >= 0 && uploads.get() >= maxUploads) {
+				throw new IllegalStateException("killed");
+			}
+			super.upload(sessionId, datasetId, inputStream, size);
+			uploads.incrementAndGet();
+		}
+
+		@Override
+		public void download(UUID sessionId, UUID datasetId, File destFile) throws RestException, IOException {
+			zipDownloadedToFile = true;
+			super.download(sessionId, datasetId, destFile);
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package fi.csc.chipster.sessionworker;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ParallelZipPackagerTest {
+
+	@TempDir
+	Path tempDir;
+
+	private ParallelZipPackager packager;
+
+	@BeforeEach
+	public void setUp() {
+		packager = new ParallelZipPackager(4, 2);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		packager.close();
+	}
+
+	@Test
+	public void streamZip() throws IOException {
+
+		LinkedHashMap<String, byte[]> files = new LinkedHashMap<>();
+		files.put("session/session.json", "{ \"name\": \"test\" }".getBytes(StandardCharsets.UTF_8));
+		files.put("session/empty", new byte[0]);
+		// several chunks of compressible data
+		files.put("session/text", getText(3 * 1024 * 1024 + 123));
+		files.put("session/random.gz", getRandom(2 * 1024 * 1024));
+
+		byte[] zip = createZip(files);
+
+		// read like the session extraction
+		LinkedHashMap<String, byte[]> streamed = new LinkedHashMap<>();
+		try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip))) {
+			ZipEntry entry;
+			while ((entry = in.getNextEntry()) != null) {
+				streamed.put(entry.getName(), in.readAllBytes());
+			}
+		}
+		assertFiles(files, streamed);
+
+		// read from the central directory
+		File zipFile = tempDir.resolve("test.zip").toFile();
+		Files.write(zipFile.toPath(), zip);
+
+		LinkedHashMap<String, byte[]> random = new LinkedHashMap<>();
+		try (ZipFile in = new ZipFile(zipFile)) {
+			for (ZipEntry entry : in.stream().toList()) {
+				Assertions.assertEquals(files.get(entry.getName()).length, entry.getSize());
+				try (InputStream entryStream = in.getInputStream(entry)) {
+					random.put(entry.getName(), entryStream.readAllBytes());
+				}
+			}
+		}
+		assertFiles(files, random);
+
+		// compressible data was compressed
+		Assertions.assertTrue(zip.length < files.get("session/text").length / 2 + files.get("session/random.gz").length
+				+ 10 * 1024);
+	}
+
+	@Test
+	public void failedEntry() {
+		List<InputStreamEntry> entries = new ArrayList<>();
+		entries.add(new InputStreamEntry("a", () -> new ByteArrayInputStream(getText(1000))));
+		entries.add(new InputStreamEntry("b", () -> {
+			throw new IOException("download failed");
+		}));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Assertions.assertThrows(IOException.class, () -> packager.streamZip(entries, out));
+
+		// central directory must not be written
+		Assertions.assertThrows(IOException.class, () -> {
+			File zipFile = tempDir.resolve("failed.zip").toFile();
+			Files.write(zipFile.toPath(), out.toByteArray());
+			new ZipFile(zipFile).close();
+		});
+	}
+
+	@Test
+	public void connectionResetDuringDownload() throws IOException {
+
+		byte[] text = getText(3 * 1024 * 1024);
+		AtomicInteger openCount = new AtomicInteger();
+
+		List<InputStreamEntry> entries = new ArrayList<>();
+		entries.add(new InputStreamEntry("text", () -> {
+			if (openCount.incrementAndGet() == 1) {
+				return new ResumableInputStreamTest.FailingInputStream(new ByteArrayInputStream(text), 2000000);
+			}
+			return new ByteArrayInputStream(text);
+		}));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		packager.streamZip(entries, out);
+
+		try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+			Assertions.assertEquals("text", in.getNextEntry().getName());
+			Assertions.assertArrayEquals(text, in.readAllBytes());
+		}
+		Assertions.assertEquals(2, openCount.get());
+	}
+
+	private byte[] createZip(Map<String, byte[]> files) throws IOException {
+		List<InputStreamEntry> entries = new ArrayList<>();
+		for (String name : files.keySet()) {
+			int level = name.endsWith(".gz") ? Deflater.NO_COMPRESSION : Deflater.BEST_SPEED;
+			entries.add(new InputStreamEntry(name, () -> new ByteArrayInputStream(files.get(name)), level));
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		packager.streamZip(entries, out);
+		return out.toByteArray();
+	}
+
+	private static void assertFiles(Map<String, byte[]> expected, Map<String, byte[]> actual) {
+		Assertions.assertEquals(List.copyOf(expected.keySet()), List.copyOf(actual.keySet()));
+		for (String name : expected.keySet()) {
+			Assertions.assertArrayEquals(expected.get(name), actual.get(name), name);
+		}
+	}
+
+	private static byte[] getText(int size) {
+		StringBuilder sb = new StringBuilder();
+		Random random = new Random(1);
+		while (sb.length() < size) {
+			sb.append("chr1\t" + random.nextInt(1000000) + "\tgene" + random.nextInt(100) + "\n");
+		}
+		return sb.substring(0, size).getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] getRandom(int size) {
+		byte[] bytes = new byte[size];
+		new Random(2).nextBytes(bytes);
+		return bytes;
+	}
+}
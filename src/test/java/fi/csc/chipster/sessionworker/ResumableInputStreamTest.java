@@ -0,0 +1,112 @@
+package fi.csc.chipster.sessionworker;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ResumableInputStreamTest {
+
+	private static final int SIZE = 1024 * 1024;
+
+	@Test
+	public void resumeAfterConnectionReset() throws IOException {
+
+		byte[] content = getContent();
+		AtomicInteger openCount = new AtomicInteger();
+
+		// the first connection breaks in the middle of the file
+		Callable<InputStream> callable = () -> {
+			if (openCount.incrementAndGet() == 1) {
+				return new FailingInputStream(new ByteArrayInputStream(content), SIZE / 2 + 123);
+			}
+			return new ByteArrayInputStream(content);
+		};
+		// source without range support
+		ResumableInputStream.Source source = ResumableInputStream.fromStart(callable);
+
+		try (ResumableInputStream in = new ResumableInputStream(source, "test", 3)) {
+			Assertions.assertArrayEquals(content, in.readAllBytes());
+			Assertions.assertEquals(1, in.getRetries());
+		}
+		Assertions.assertEquals(2, openCount.get());
+	}
+
+	@Test
+	public void resumeFromPositionAfterMultipleFailures() throws IOException {
+
+		byte[] content = getContent();
+		long[] failAfter = new long[] { 1000, SIZE / 3, 1 };
+		List<Long> positions = new ArrayList<>();
+
+		// like a Range request, each connection starts from the requested position
+		ResumableInputStream.Source source = position -> {
+			InputStream in = new ByteArrayInputStream(content, (int) position, SIZE - (int) position);
+			positions.add(position);
+			if (positions.size() <= failAfter.length) {
+				return new FailingInputStream(in, failAfter[positions.size() - 1]);
+			}
+			return in;
+		};
+
+		try (ResumableInputStream in = new ResumableInputStream(source, "test", 3)) {
+			Assertions.assertArrayEquals(content, in.readAllBytes());
+			Assertions.assertEquals(3, in.getRetries());
+		}
+		Assertions.assertEquals(List.of(0l, 1000l, 1000l + SIZE / 3, 1001l + SIZE / 3), positions);
+	}
+
+	@Test
+	public void tooManyFailures() {
+
+		byte[] content = getContent();
+
+		ResumableInputStream.Source source = position -> new FailingInputStream(
+				new ByteArrayInputStream(content, (int) position, SIZE - (int) position), 1000);
+
+		Assertions.assertThrows(IOException.class, () -> {
+			try (ResumableInputStream in = new ResumableInputStream(source, "test", 0)) {
+				in.readAllBytes();
+			}
+		});
+	}
+
+	private static byte[] getContent() {
+		byte[] content = new byte[SIZE];
+		new Random(1).nextBytes(content);
+		return content;
+	}
+
+	/**
+	 * Simulate a connection reset after the given number of bytes
+	 */
+	static class FailingInputStream extends FilterInputStream {
+
+		private long remaining;
+
+		public FailingInputStream(InputStream in, long failAfter) {
+			super(in);
+			this.remaining = failAfter;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				throw new IOException("connection reset");
+			}
+			int n = super.read(b, off, (int) Math.min(len, remaining));
+			if (n > 0) {
+				remaining -= n;
+			}
+			return n;
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package fi.csc.chipster.tools.parsers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class RandomAccessLineReaderTest {
+
+	@TempDir
+	Path tempDir;
+
+	private HttpServer server;
+	private AtomicInteger rangeRequests = new AtomicInteger();
+	private byte[] content;
+	private List<String> lines;
+
+	@BeforeEach
+	public void setUp() throws IOException {
+
+		// about 2 MB, with some multi-byte characters
+		lines = new ArrayList<>();
+		Random random = new Random(1);
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 40_000; i++) {
+			String line = "chr" + (random.nextInt(22) + 1) + "\t" + random.nextInt(1_000_000) + "\tgene" + i
+					+ (i % 7 == 0 ? "\t\u00e4" : "") + "\t" + "x".repeat(random.nextInt(40));
+			lines.add(line);
+			builder.append(line).append("\n");
+		}
+		content = builder.toString().getBytes(StandardCharsets.UTF_8);
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/file", exchange -> {
+			String range = exchange.getRequestHeaders().getFirst("Range");
+			int start = 0;
+			int end = content.length - 1;
+			if (range != null) {
+				rangeRequests.incrementAndGet();
+				String[] parts = range.replace("bytes=", "").split("-");
+				start = Integer.parseInt(parts[0]);
+				end = Math.min(end, Integer.parseInt(parts[1]));
+			}
+			exchange.sendResponseHeaders(range != null ? 206 : 200, end - start + 1);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(content, start, end - start + 1);
+			}
+		});
+		server.start();
+	}
+
+	@AfterEach
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	@Test
+	public void sequentialScan() throws Exception {
+		RandomAccessLineReader reader = new RandomAccessLineReader(getUrl());
+		reader.setPosition(0);
+
+		for (String expected : lines) {
+			Assertions.assertEquals(expected, reader.readLine());
+		}
+		Assertions.assertEquals(null, reader.readLine());
+		reader.close();
+
+		// 4 kB, 8 kB, ... 1 MB and then 1 MB blocks, instead of 500 requests of 4 kB
+		Assertions.assertTrue(rangeRequests.get() <= 10, "requests: " + rangeRequests.get());
+	}
+
+	@Test
+	public void randomSeeks() throws Exception {
+		RandomAccessLineReader reader = new RandomAccessLineReader(getUrl());
+		Random random = new Random(2);
+
+		for (int i = 0; i < 100; i++) {
+			long position = random.nextInt(content.length);
+			Assertions.assertTrue(reader.setPosition(position));
+			Assertions.assertEquals(getLine(position), reader.readLine());
+		}
+
+		// the read size starts from the minimum after every jump
+		Assertions.assertTrue(rangeRequests.get() <= 110, "requests: " + rangeRequests.get());
+		reader.close();
+	}
+
+	@Test
+	public void backAndForth() throws Exception {
+		RandomAccessLineReader reader = new RandomAccessLineReader(getUrl());
+
+		long[] positions = new long[] { 100_000, 1_500_000, 700_000 };
+
+		for (int i = 0; i < 30; i++) {
+			long position = positions[i % positions.length];
+			reader.setPosition(position);
+			Assertions.assertEquals(getLine(position), reader.readLine());
+			Assertions.assertEquals(getLine(position + getLine(position).getBytes(StandardCharsets.UTF_8).length
+					+ 1), reader.readLine());
+		}
+
+		// the blocks are read only once
+		Assertions.assertTrue(rangeRequests.get() <= 6, "requests: " + rangeRequests.get());
+		reader.close();
+	}
+
+	@Test
+	public void localFile() throws Exception {
+		Path file = tempDir.resolve("file.tsv");
+		Files.write(file, content);
+
+		RandomAccessLineReader reader = new RandomAccessLineReader(new DataUrl(file.toFile()));
+		reader.setPosition(0);
+		for (String expected : lines) {
+			Assertions.assertEquals(expected, reader.readLine());
+		}
+		Assertions.assertEquals(null, reader.readLine());
+		reader.close();
+	}
+
+	private DataUrl getUrl() throws IOException {
+		return new DataUrl(new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/file"), "file");
+	}
+
+	/**
+	 * @return the rest of the line from the position
+	 */
+	private String getLine(long position) {
+		int end = (int) position;
+		while (content[end] != '\n') {
+			end++;
+		}
+		return new String(content, (int) position, end - (int) position, StandardCharsets.UTF_8);
+	}
+}
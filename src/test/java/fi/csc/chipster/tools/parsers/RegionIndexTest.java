@@ -0,0 +1,182 @@
+package fi.csc.chipster.tools.parsers;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import fi.csc.chipster.tools.parsers.RegionIndex.Format;
+import fi.csc.chipster.tools.parsers.SortedFeatureReader.UnsortedException;
+
+public class RegionIndexTest {
+
+	private static final String[] CHRS = new String[] { "1", "2", "10", "X" };
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	public void bed() throws IOException, URISyntaxException {
+		assertQueries(Format.BED, getSortedLines(Format.BED, new Random(1), 30_000));
+	}
+
+	@Test
+	public void gtf() throws IOException, URISyntaxException {
+		assertQueries(Format.GTF, getSortedLines(Format.GTF, new Random(2), 20_000));
+	}
+
+	@Test
+	public void vcf() throws IOException, URISyntaxException {
+		assertQueries(Format.VCF, getSortedLines(Format.VCF, new Random(3), 30_000));
+	}
+
+	@Test
+	public void unsorted() {
+		String bed = "track name=test\n"
+				+ "chr1\t100\t200\n"
+				+ "chr1\t50\t300\n";
+
+		Assertions.assertThrows(UnsortedException.class, () -> RegionIndex.build(
+				new ByteArrayInputStream(bed.getBytes(StandardCharsets.UTF_8)), Format.BED));
+
+		String chrs = "chr1\t100\t200\n"
+				+ "chr2\t50\t300\n"
+				+ "chr1\t300\t400\n";
+
+		Assertions.assertThrows(UnsortedException.class, () -> RegionIndex.build(
+				new ByteArrayInputStream(chrs.getBytes(StandardCharsets.UTF_8)), Format.BED));
+	}
+
+	@Test
+	public void detect() throws IOException {
+		for (Format format : Format.values()) {
+			File file = write(format, getSortedLines(format, new Random(4), 100));
+			Assertions.assertEquals(format, RegionIndex.detect(file));
+		}
+
+		File binary = tempDir.resolve("binary").toFile();
+		Files.write(binary.toPath(), new byte[] { 31, -117, 8, 0, 0, 0 });
+		Assertions.assertNull(RegionIndex.detect(binary));
+
+		File text = tempDir.resolve("text").toFile();
+		Files.writeString(text.toPath(), "gene\tvalue\nabc\t1.5\n");
+		Assertions.assertNull(RegionIndex.detect(text));
+	}
+
+	private void assertQueries(Format format, List<String> lines) throws IOException, URISyntaxException {
+		File data = write(format, lines);
+
+		RegionIndex built;
+		try (InputStream in = new FileInputStream(data)) {
+			built = RegionIndex.build(in, format);
+		}
+		Assertions.assertEquals(data.length(), built.getDataLength());
+		Assertions.assertTrue(built.getBlocks().size() > 10);
+
+		File indexFile = new File(data.getPath() + RegionIndex.SUFFIX);
+		built.write(indexFile);
+		RegionIndex index = RegionIndex.read(indexFile);
+
+		ByteDataSource dataSource = new ByteDataSource(new DataUrl(data));
+		Random random = new Random(5);
+		long bytesRead = 0;
+
+		try {
+			for (int i = 0; i < 200; i++) {
+				String chr = "chr" + CHRS[random.nextInt(CHRS.length)];
+				long start = random.nextInt(1_000_000);
+				long end = start + random.nextInt(20_000) + 1;
+
+				Assertions.assertEquals(queryAll(format, lines, chr, start, end),
+						index.query(dataSource, chr, start, end), chr + ":" + start + "-" + end);
+
+				for (long[] range : index.getRanges(chr, start, end)) {
+					bytesRead += range[1];
+				}
+			}
+
+			Assertions.assertTrue(index.query(dataSource, "chrUn", 0, 1_000_000).isEmpty());
+		} finally {
+			dataSource.close();
+		}
+
+		// much less than reading the whole file for every query
+		Assertions.assertTrue(bytesRead < data.length() * 200 / 10, "read " + bytesRead);
+	}
+
+	private File write(Format format, List<String> lines) throws IOException {
+		File file = tempDir.resolve("data." + format.toString().toLowerCase()).toFile();
+		Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+		return file;
+	}
+
+	private static List<String> queryAll(Format format, List<String> lines, String chr, long start, long end) {
+		List<String> result = new ArrayList<>();
+		for (String line : lines) {
+			if (format.isHeader(line)) {
+				continue;
+			}
+			String[] columns = line.split("\t");
+			long[] region = format.getRegion(columns);
+			if (columns[0].equals(chr) && region[0] < end && region[1] > start) {
+				result.add(line);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Annotations with mostly short and some very long features
+	 */
+	static List<String> getSortedLines(Format format, Random random, int count) {
+		List<String> lines = new ArrayList<>();
+
+		switch (format) {
+		case BED:
+			lines.add("track name=test");
+			break;
+		case GTF:
+			lines.add("#!genome-build test");
+			break;
+		case VCF:
+			lines.add("##fileformat=VCFv4.2");
+			lines.add("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO");
+			break;
+		}
+
+		for (String chr : CHRS) {
+			long start = 0;
+			for (int i = 0; i < count / CHRS.length; i++) {
+				start += random.nextInt(60);
+				long length = random.nextInt(100) == 0 ? random.nextInt(200_000) : random.nextInt(500) + 1;
+
+				switch (format) {
+				case BED:
+					lines.add("chr" + chr + "\t" + start + "\t" + (start + length) + "\tfeature" + i + "\t0\t+");
+					break;
+				case GTF:
+					lines.add("chr" + chr + "\ttest\texon\t" + (start + 1) + "\t" + (start + length) + "\t.\t-\t.\t"
+							+ "gene_id \"gene" + i + "\"; transcript_id \"transcript" + i + "\";");
+					break;
+				case VCF:
+					lines.add("chr" + chr + "\t" + (start + 1) + "\trs" + i + "\t" + "ACGT".substring(0,
+							random.nextInt(4) + 1) + "\tA\t50\tPASS\tDP=" + random.nextInt(100));
+					break;
+				}
+			}
+		}
+		return lines;
+	}
+}
@@ -0,0 +1,211 @@
+package fi.csc.chipster.tools.parsers;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.csc.chipster.tools.model.Chromosome;
+import fi.csc.chipster.tools.model.DataType;
+import fi.csc.chipster.tools.model.Feature;
+import fi.csc.chipster.tools.model.Region;
+import fi.csc.chipster.tools.parsers.RegionOperations.IntersectingPairRule;
+import fi.csc.chipster.tools.parsers.RegionOperations.OrphanPolicy;
+import fi.csc.chipster.tools.parsers.RegionOperations.PairPolicy;
+import fi.csc.chipster.tools.parsers.RegionOperations.PairRule;
+
+public class RegionOperationsTest {
+
+	private static final PairPolicy[] PAIR_POLICIES = new PairPolicy[] {
+			RegionOperations.ORIGINALS_PAIR_POLICY,
+			RegionOperations.MERGE_PAIR_POLICY,
+			RegionOperations.LEFT_PAIR_POLICY,
+			RegionOperations.LEFT_PAIR_POLICY_WITH_AUGMENTATION,
+			RegionOperations.RIGHT_PAIR_POLICY,
+			RegionOperations.RIGHT_PAIR_POLICY_WITH_AUGMENTATION,
+			RegionOperations.INTERSECT_PAIR_POLICY,
+			RegionOperations.EXCLUDE_PAIR_POLICY };
+
+	private RegionOperations tool = new RegionOperations();
+
+	/**
+	 * Compare the results of the tools with the Cartesian product
+	 */
+	@Test
+	public void sameAsCartesianProduct() {
+
+		Random random = new Random(1);
+
+		for (int round = 0; round < 5; round++) {
+			List<Feature> left = getRandomFeatures(random, 300);
+			List<Feature> right = getRandomFeatures(random, 300);
+
+			for (long minOverlap : new long[] { 0, 1, 10 }) {
+
+				// FindOverlapping
+				for (PairPolicy pairPolicy : PAIR_POLICIES) {
+					for (boolean flatten : new boolean[] { false, true }) {
+						assertSame(
+								operateCartesian(left, right, new IntersectingPairRule(minOverlap),
+										RegionOperations.EXCLUDE_ORPHAN_POLICY, RegionOperations.EXCLUDE_ORPHAN_POLICY,
+										pairPolicy, flatten),
+								tool.intersect(left, right, minOverlap, pairPolicy, flatten));
+					}
+				}
+
+				// RemoveOverlapping
+				assertSame(operateCartesian(left, right, new IntersectingPairRule(minOverlap),
+						RegionOperations.INCLUDE_ORPHAN_POLICY, RegionOperations.EXCLUDE_ORPHAN_POLICY,
+						RegionOperations.EXCLUDE_PAIR_POLICY, true), tool.subtract(left, right, minOverlap));
+
+				// Combine
+				for (boolean flatten : new boolean[] { false, true }) {
+					assertSame(
+							operateCartesian(left, right, new IntersectingPairRule(minOverlap),
+									RegionOperations.INCLUDE_ORPHAN_POLICY, RegionOperations.INCLUDE_ORPHAN_POLICY,
+									RegionOperations.MERGE_PAIR_POLICY, flatten),
+							tool.merge(left, right, minOverlap, flatten));
+				}
+			}
+
+			// Fuse
+			assertSame(operateCartesian(left, new LinkedList<Feature>(), new IntersectingPairRule(0L),
+					RegionOperations.INCLUDE_ORPHAN_POLICY, RegionOperations.EXCLUDE_ORPHAN_POLICY,
+					RegionOperations.MERGE_PAIR_POLICY, true), tool.flatten(left));
+		}
+	}
+
+	/**
+	 * Other pair rules still get the Cartesian product
+	 */
+	@Test
+	public void customPairRule() {
+
+		Random random = new Random(2);
+		List<Feature> left = getRandomFeatures(random, 100);
+		List<Feature> right = getRandomFeatures(random, 100);
+
+		// pairs regions that don't intersect
+		PairRule pairRule = (l, r) -> !l.intersects(r) && l.start.chr.equals(r.start.chr);
+
+		assertSame(
+				operateCartesian(left, right, pairRule, RegionOperations.INCLUDE_ORPHAN_POLICY,
+						RegionOperations.INCLUDE_ORPHAN_POLICY, RegionOperations.ORIGINALS_PAIR_POLICY, false),
+				tool.operate(left, right, pairRule, RegionOperations.INCLUDE_ORPHAN_POLICY,
+						RegionOperations.INCLUDE_ORPHAN_POLICY, RegionOperations.ORIGINALS_PAIR_POLICY, false));
+	}
+
+	/**
+	 * Intersect and subtract half a million regions with another half a million
+	 * regions
+	 *
+	 * This would take hours with the Cartesian product.
+	 */
+	@Test
+	public void halfMillionRegions() {
+
+		int count = 500_000;
+		Chromosome chr = new Chromosome("chr1");
+
+		LinkedList<Feature> left = new LinkedList<>();
+		LinkedList<Feature> right = new LinkedList<>();
+
+		// in reverse order to check that the inputs don't need to be sorted
+		for (long i = count - 1; i >= 0; i--) {
+			left.add(new Feature(new Region(i * 10, i * 10 + 5, chr)));
+			// each right region overlaps one left region by two bases
+			right.add(new Feature(new Region(i * 10 + 3, i * 10 + 8, chr)));
+		}
+
+		LinkedList<Feature> intersection = tool.intersect(left, right, 1L, RegionOperations.INTERSECT_PAIR_POLICY,
+				false);
+
+		Assertions.assertEquals(count, intersection.size());
+		for (Feature feature : intersection) {
+			Assertions.assertEquals(3, feature.region.start.bp % 10);
+			Assertions.assertEquals(5, feature.region.end.bp % 10);
+		}
+
+		LinkedList<Feature> subtraction = tool.subtract(left, right, 3L);
+
+		// the overlaps are too short, so all left regions remain
+		Assertions.assertEquals(count, subtraction.size());
+		Assertions.assertEquals(left.stream().mapToLong(f -> f.region.start.bp).sum(),
+				subtraction.stream().mapToLong(f -> f.region.start.bp).sum());
+	}
+
+	private static void assertSame(List<Feature> expected, List<Feature> actual) {
+		Assertions.assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			Assertions.assertEquals(expected.get(i).toString(), actual.get(i).toString());
+		}
+	}
+
+	static List<Feature> getRandomFeatures(Random random, int count) {
+		String[] chrs = new String[] { "1", "2", "X" };
+		LinkedList<Feature> features = new LinkedList<>();
+
+		for (int i = 0; i < count; i++) {
+			Chromosome chr = new Chromosome(chrs[random.nextInt(chrs.length)]);
+			long start = random.nextInt(10_000);
+			// mostly short, some long regions, and a few where the end is before the start
+			long length = random.nextInt(10) == 0 ? random.nextInt(2000) : random.nextInt(50) - 2;
+
+			LinkedHashMap<DataType, Object> values = new LinkedHashMap<>();
+			values.put(DataType.ID, random.nextInt(3) == 0 ? "" : "region" + i);
+			values.put(DataType.VALUE, "" + random.nextInt(5));
+			features.add(new Feature(new Region(start, start + length, chr), values));
+
+			// duplicates
+			if (random.nextInt(20) == 0) {
+				features.add(new Feature(features.getLast()));
+			}
+		}
+		return features;
+	}
+
+	/**
+	 * The original implementation of RegionOperations.operate()
+	 */
+	private LinkedList<Feature> operateCartesian(List<Feature> leftRegions, List<Feature> rightRegions,
+			PairRule pairRule, OrphanPolicy leftOrphanPolicy, OrphanPolicy rightOrphanPolicy, PairPolicy pairPolicy,
+			boolean mergeContinous) {
+
+		LinkedList<Feature> result = new LinkedList<Feature>();
+		HashSet<Feature> leftPaired = new HashSet<Feature>();
+		HashSet<Feature> rightPaired = new HashSet<Feature>();
+
+		for (Feature leftRegion : leftRegions) {
+			for (Feature rightRegion : rightRegions) {
+				if (pairRule.isPair(leftRegion.region, rightRegion.region)) {
+					leftPaired.add(leftRegion);
+					rightPaired.add(rightRegion);
+					pairPolicy.process(leftRegion, rightRegion, result);
+				}
+			}
+		}
+
+		for (Feature leftRegion : leftRegions) {
+			if (!leftPaired.contains(leftRegion)) {
+				leftOrphanPolicy.process(leftRegion, result);
+			}
+		}
+
+		for (Feature rightRegion : rightRegions) {
+			if (!rightPaired.contains(rightRegion)) {
+				rightOrphanPolicy.process(rightRegion, result);
+			}
+		}
+
+		if (mergeContinous) {
+			// flatten() of an empty set has no pairs and only merges
+			return tool.flatten(result);
+		} else {
+			return result;
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package fi.csc.chipster.tools.parsers;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Preprocess a generated BAM file and print the time
+ *
+ * usage: SamBamUtilsBenchmark [records] [sort memory in MB]
+ */
+public class SamBamUtilsBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		int records = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+
+		File dir = Files.createTempDirectory("sam-bam-utils-benchmark").toFile();
+
+		try {
+			File input = new File(dir, "input.bam");
+			SamBamUtilsTest.writeRandomBam(input, records, new Random(1));
+
+			SamBamUtils samBamUtils = new SamBamUtils();
+			if (args.length > 1) {
+				samBamUtils.setSortMemoryLimit(Long.parseLong(args[1]) * 1024 * 1024);
+			}
+			samBamUtils.setTmpDir(dir);
+
+			long t = System.currentTimeMillis();
+			samBamUtils.preprocessSamBam(input, new File(dir, "preprocessed.bam"), new File(dir, "preprocessed.bai"));
+
+			System.out.println("preprocessed " + records + " records (" + input.length() / 1024 / 1024 + " MB) in "
+					+ (System.currentTimeMillis() - t) + " ms");
+
+		} finally {
+			FileUtils.deleteDirectory(dir);
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package fi.csc.chipster.tools.parsers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import htsjdk.samtools.BAMIndexer;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+
+public class SamBamUtilsTest {
+
+	@TempDir
+	Path tempDir;
+
+	/**
+	 * The output must be identical to the old sort, normalise and index steps
+	 */
+	@Test
+	public void sameAsSeparateSteps() throws IOException {
+		File input = tempDir.resolve("input.bam").toFile();
+		writeRandomBam(input, 20_000, new Random(1));
+
+		assertSameAsSeparateSteps(input);
+	}
+
+	/**
+	 * SAM records are parsed using the header of the reader, so it must keep the
+	 * original chromosome names
+	 */
+	@Test
+	public void samInput() throws IOException {
+		File input = tempDir.resolve("input.sam").toFile();
+		writeRandomAlignments(input, 20_000, new Random(2), true);
+
+		assertSameAsSeparateSteps(input);
+
+		try (SamReader reader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT)
+				.open(tempDir.resolve("preprocessed.bam").toFile())) {
+			Assertions.assertEquals("chr10", reader.getFileHeader().getSequence(2).getSequenceName());
+			for (SAMRecord record : reader) {
+				Assertions.assertFalse(record.getReferenceName().contains("."), record.getReferenceName());
+				Assertions.assertFalse(record.getMateReferenceName().contains("."), record.getMateReferenceName());
+			}
+		}
+	}
+
+	private void assertSameAsSeparateSteps(File input) throws IOException {
+
+		File bam = tempDir.resolve("preprocessed.bam").toFile();
+		File bai = tempDir.resolve("preprocessed.bam.bai").toFile();
+
+		SamBamUtils samBamUtils = new SamBamUtils();
+		// spill to temporary files
+		samBamUtils.setSortMemoryLimit(1024 * 1024);
+		samBamUtils.setTmpDir(tempDir.toFile());
+		samBamUtils.preprocessSamBam(input, bam, bai);
+
+		File expectedBam = tempDir.resolve("expected.bam").toFile();
+		File expectedBai = tempDir.resolve("expected.bam.bai").toFile();
+		preprocessInSteps(input, expectedBam, expectedBai);
+
+		Assertions.assertArrayEquals(Files.readAllBytes(expectedBam.toPath()), Files.readAllBytes(bam.toPath()));
+		Assertions.assertArrayEquals(Files.readAllBytes(expectedBai.toPath()), Files.readAllBytes(bai.toPath()));
+	}
+
+	/**
+	 * Unsorted BAM with versioned chromosome names, like "chr1.1"
+	 */
+	static void writeRandomBam(File file, int count, Random random) {
+		writeRandomAlignments(file, count, random, false);
+	}
+
+	private static void writeRandomAlignments(File file, int count, Random random, boolean sam) {
+		SAMFileHeader header = new SAMFileHeader();
+		SAMSequenceDictionary dictionary = new SAMSequenceDictionary();
+		for (String chr : new String[] { "chr1.1", "chr2.1", "chr10.2", "chrX.1" }) {
+			dictionary.addSequence(new SAMSequenceRecord(chr, 10_000_000));
+		}
+		header.setSequenceDictionary(dictionary);
+
+		String bases = "ACGT";
+
+		SAMFileWriterFactory writerFactory = new SAMFileWriterFactory();
+		try (SAMFileWriter writer = sam ? writerFactory.makeSAMWriter(header, true, file)
+				: writerFactory.makeBAMWriter(header, true, file)) {
+			for (int i = 0; i < count; i++) {
+				SAMRecord record = new SAMRecord(header);
+				record.setReadName("read" + i);
+
+				byte[] readBases = new byte[100];
+				byte[] qualities = new byte[100];
+				for (int j = 0; j < readBases.length; j++) {
+					readBases[j] = (byte) bases.charAt(random.nextInt(4));
+					qualities[j] = (byte) random.nextInt(40);
+				}
+				record.setReadBases(readBases);
+				record.setBaseQualities(qualities);
+
+				if (random.nextInt(50) == 0) {
+					record.setReadUnmappedFlag(true);
+				} else {
+					record.setReferenceIndex(random.nextInt(dictionary.size()));
+					// few positions to get equal coordinates
+					record.setAlignmentStart(random.nextInt(100_000) + 1);
+					record.setCigarString("100M");
+					record.setMappingQuality(random.nextInt(60));
+					record.setReadNegativeStrandFlag(random.nextBoolean());
+
+					if (random.nextBoolean()) {
+						record.setReadPairedFlag(true);
+						record.setMateReferenceIndex(random.nextInt(dictionary.size()));
+						record.setMateAlignmentStart(random.nextInt(100_000) + 1);
+					}
+				}
+				writer.addAlignment(record);
+			}
+		}
+	}
+
+	/**
+	 * Sort, normalise and index like SamBamUtils did before the steps were
+	 * combined
+	 */
+	private static void preprocessInSteps(File input, File bam, File bai) throws IOException {
+		SamReaderFactory readerFactory = SamReaderFactory.makeDefault()
+				.validationStringency(ValidationStringency.SILENT);
+		File sorted = new File(bam.getParentFile(), "sorted.bam");
+
+		try (SamReader reader = readerFactory.open(input)) {
+			reader.getFileHeader().setSortOrder(SAMFileHeader.SortOrder.coordinate);
+			try (SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(reader.getFileHeader(), false,
+					sorted)) {
+				for (SAMRecord record : reader) {
+					writer.addAlignment(record);
+				}
+			}
+		}
+
+		new SamBamUtils().normaliseBam(sorted, bam);
+
+		try (SamReader reader = readerFactory.enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS)
+				.open(bam)) {
+			BAMIndexer.createIndex(reader, bai);
+		}
+	}
+}
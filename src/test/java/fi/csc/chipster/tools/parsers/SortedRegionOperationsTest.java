@@ -0,0 +1,167 @@
+package fi.csc.chipster.tools.parsers;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import fi.csc.chipster.rest.SmallHeapJvm;
+import fi.csc.chipster.tools.model.Chromosome;
+import fi.csc.chipster.tools.model.Feature;
+import fi.csc.chipster.tools.model.Region;
+import fi.csc.chipster.tools.parsers.RegionOperations.PairPolicy;
+import fi.csc.chipster.tools.parsers.SortedFeatureReader.UnsortedException;
+
+public class SortedRegionOperationsTest {
+
+	private static final int MILLION = 1_000_000;
+
+	private static final PairPolicy[] PAIR_POLICIES = new PairPolicy[] {
+			RegionOperations.ORIGINALS_PAIR_POLICY,
+			RegionOperations.MERGE_PAIR_POLICY,
+			RegionOperations.LEFT_PAIR_POLICY,
+			RegionOperations.LEFT_PAIR_POLICY_WITH_AUGMENTATION,
+			RegionOperations.RIGHT_PAIR_POLICY,
+			RegionOperations.RIGHT_PAIR_POLICY_WITH_AUGMENTATION,
+			RegionOperations.INTERSECT_PAIR_POLICY,
+			RegionOperations.EXCLUDE_PAIR_POLICY };
+
+	private RegionOperations tool = new RegionOperations();
+	private SortedRegionOperations sortedTool = new SortedRegionOperations();
+
+	/**
+	 * Compare with the sorted results of RegionOperations
+	 */
+	@Test
+	public void sameAsInMemory() {
+
+		Random random = new Random(3);
+
+		for (int round = 0; round < 5; round++) {
+			List<Feature> left = getSortedRandomFeatures(random, 300);
+			List<Feature> right = getSortedRandomFeatures(random, 300);
+
+			for (long minOverlap : new long[] { 0, 1, 10 }) {
+
+				for (PairPolicy pairPolicy : PAIR_POLICIES) {
+					for (boolean flatten : new boolean[] { false, true }) {
+						assertSame(tool.intersect(left, right, minOverlap, pairPolicy, flatten),
+								output -> sortedTool.intersect(left.iterator(), right.iterator(), minOverlap,
+										pairPolicy, flatten, output));
+					}
+				}
+
+				assertSame(tool.subtract(left, right, minOverlap),
+						output -> sortedTool.subtract(left.iterator(), right.iterator(), minOverlap, output));
+
+				for (boolean flatten : new boolean[] { false, true }) {
+					assertSame(tool.merge(left, right, minOverlap, flatten),
+							output -> sortedTool.merge(left.iterator(), right.iterator(), minOverlap, flatten,
+									output));
+				}
+			}
+
+			assertSame(tool.flatten(left), output -> sortedTool.flatten(left.iterator(), output));
+		}
+	}
+
+	@Test
+	public void unsorted() throws IOException {
+
+		String bed = "track name=test\n"
+				+ "chr1\t100\t200\n"
+				+ "chr2\t10\t20\n"
+				+ "chr1\t150\t300\n";
+
+		SortedFeatureReader reader = new SortedFeatureReader(new BufferedReader(new StringReader(bed)),
+				tool::parseString, "test.bed");
+
+		Assertions.assertEquals(100, reader.next().region.start.bp);
+		Assertions.assertEquals(10, reader.next().region.start.bp);
+		UnsortedException e = Assertions.assertThrows(UnsortedException.class, () -> reader.next());
+		Assertions.assertTrue(e.getMessage().contains("line 4"), e.getMessage());
+
+		Assertions.assertFalse(SortedFeatureReader.isSorted(new SortedFeatureReader(
+				new BufferedReader(new StringReader(bed)), tool::parseString, "test.bed")));
+	}
+
+	/**
+	 * Intersect two million regions with two million regions in a JVM that has much
+	 * less heap than the regions would need
+	 */
+	@Test
+	public void millionsOfRegionsSmallHeap() throws IOException, InterruptedException {
+
+		// main() fails if the result is wrong
+		SmallHeapJvm.runMain(SortedRegionOperationsTest.class);
+	}
+
+	/**
+	 * Run by millionsOfRegionsSmallHeap()
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+
+		int count = 2 * MILLION;
+		long[] outputCount = new long[1];
+
+		// each right region overlaps one left region by two bases
+		new SortedRegionOperations().intersect(getRegions(count, 0, 5), getRegions(count, 3, 8), 1L,
+				RegionOperations.INTERSECT_PAIR_POLICY, false, feature -> outputCount[0]++);
+
+		if (outputCount[0] != count) {
+			throw new IllegalStateException("expected " + count + " regions, but got " + outputCount[0]);
+		}
+	}
+
+	private static Iterator<Feature> getRegions(int count, long start, long end) {
+		Chromosome chr = new Chromosome("chr1");
+
+		return new Iterator<Feature>() {
+
+			private long i = 0;
+
+			@Override
+			public boolean hasNext() {
+				return i < count;
+			}
+
+			@Override
+			public Feature next() {
+				Feature feature = new Feature(new Region(i * 10 + start, i * 10 + end, chr));
+				i++;
+				return feature;
+			}
+		};
+	}
+
+	private static void assertSame(List<Feature> inMemory, Consumer<Consumer<Feature>> streaming) {
+		// RegionTool sorts the results
+		Collections.sort(inMemory);
+
+		ArrayList<Feature> streamed = new ArrayList<>();
+		streaming.accept(streamed::add);
+
+		Assertions.assertEquals(inMemory.size(), streamed.size());
+		for (int i = 0; i < inMemory.size(); i++) {
+			Assertions.assertEquals(inMemory.get(i).toString(), streamed.get(i).toString());
+		}
+	}
+
+	private static List<Feature> getSortedRandomFeatures(Random random, int count) {
+		LinkedList<Feature> features = new LinkedList<>(RegionOperationsTest.getRandomFeatures(random, count));
+		// only the start position matters for the streaming
+		features.sort((a, b) -> a.region.start.compareTo(b.region.start));
+		return features;
+	}
+}
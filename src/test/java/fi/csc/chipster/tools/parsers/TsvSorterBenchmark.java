@@ -0,0 +1,65 @@
+package fi.csc.chipster.tools.parsers;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Sort a synthetic VCF file and print the throughput
+ *
+ * usage: TsvSorterBenchmark [lines] [threads] [memory limit in MB]
+ */
+public class TsvSorterBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		int lines = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		long memoryLimit = args.length > 2 ? Long.parseLong(args[2]) * 1024 * 1024 : 256l * 1024 * 1024;
+
+		File dir = Files.createTempDirectory("tsv-sorter-benchmark").toFile();
+		File in = new File(dir, "in.vcf");
+		File out = new File(dir, "out.vcf");
+
+		try {
+			writeVcf(in, lines, new Random(1));
+
+			TsvSorter sorter = new TsvSorter();
+			sorter.setThreads(threads);
+			sorter.setMemoryLimit(memoryLimit);
+
+			long t = System.currentTimeMillis();
+			sorter.sort(in, out, VcfLineParser.Column.CHROM.ordinal(), VcfLineParser.Column.POS.ordinal(),
+					new VcfLineParser());
+			long ms = Math.max(1, System.currentTimeMillis() - t);
+
+			long mb = in.length() / 1024 / 1024;
+			System.out.println("sorted " + lines + " lines (" + mb + " MB) in " + ms + " ms, " + (mb * 1000 / ms)
+					+ " MB/s, threads: " + threads + ", memory limit: " + memoryLimit / 1024 / 1024 + " MB");
+
+		} finally {
+			in.delete();
+			out.delete();
+			dir.delete();
+		}
+	}
+
+	private static void writeVcf(File file, int lines, Random random) throws IOException {
+		String[] bases = new String[] { "A", "C", "G", "T" };
+
+		try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+			writer.write("##fileformat=VCFv4.2\n");
+			writer.write("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\n");
+
+			for (int i = 0; i < lines; i++) {
+				writer.write("chr" + (random.nextInt(22) + 1) + "\t" + random.nextInt(250_000_000) + "\trs" + i
+						+ "\t" + bases[random.nextInt(4)] + "\t" + bases[random.nextInt(4)] + "\t"
+						+ random.nextInt(100) + "\tPASS\tDP=" + random.nextInt(200) + ";AF=0." + random.nextInt(100)
+						+ "\n");
+			}
+		}
+	}
+}
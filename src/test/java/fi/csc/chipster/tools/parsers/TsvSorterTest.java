@@ -0,0 +1,176 @@
+package fi.csc.chipster.tools.parsers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import fi.csc.chipster.tools.model.Chromosome;
+
+public class TsvSorterTest {
+
+	@TempDir
+	Path tempDir;
+
+	private File dir;
+
+	@BeforeEach
+	public void setUp() {
+		dir = tempDir.toFile();
+	}
+
+	@Test
+	public void inMemory() throws Exception {
+		List<String> lines = getRandomVcf(new Random(1), 1000);
+		assertSorted(lines, new TsvSorter());
+	}
+
+	/**
+	 * Small memory limit to sort and merge many runs in parallel
+	 */
+	@Test
+	public void manyRuns() throws Exception {
+		List<String> lines = getRandomVcf(new Random(2), 50_000);
+
+		TsvSorter sorter = new TsvSorter();
+		sorter.setMemoryLimit(256 * 1024);
+		sorter.setThreads(4);
+
+		assertSorted(lines, sorter);
+		// temporary files are removed
+		Assertions.assertEquals(2, dir.list().length);
+	}
+
+	/**
+	 * More runs than can be merged at once
+	 */
+	@Test
+	public void cascadedMerge() throws Exception {
+		List<String> lines = getRandomVcf(new Random(3), 200_000);
+
+		TsvSorter sorter = new TsvSorter();
+		sorter.setMemoryLimit(64 * 1024);
+		sorter.setThreads(1);
+
+		assertSorted(lines, sorter);
+		Assertions.assertEquals(2, dir.list().length);
+	}
+
+	@Test
+	public void tmpDirLimits() throws Exception {
+		List<String> lines = getRandomVcf(new Random(4), 20_000);
+		File tmpDir = new File(dir, "tmp");
+		tmpDir.mkdir();
+
+		TsvSorter sorter = new TsvSorter();
+		sorter.setMemoryLimit(64 * 1024);
+		sorter.setTmpDir(tmpDir);
+		assertSorted(lines, sorter);
+		Assertions.assertEquals(0, tmpDir.list().length);
+
+		TsvSorter limited = new TsvSorter();
+		limited.setMemoryLimit(64 * 1024);
+		limited.setMaxTmpSize(100 * 1024);
+		Assertions.assertThrows(IOException.class, () -> assertSorted(lines, limited));
+	}
+
+	/**
+	 * Windows line endings, missing and empty columns and no line terminator in
+	 * the end
+	 */
+	@Test
+	public void unusualLines() throws Exception {
+		String input = "chr2\t5\tb\r\n"
+				+ "chr1\t\ta\r\n"
+				+ "chr1\n"
+				+ "\t7\n"
+				+ "chr10\t3\t\t\n"
+				+ "chr1\t10\tc";
+
+		// Chromosome sorts the empty name last
+		String expected = "chr1\t\ta\n"
+				+ "chr1\n"
+				+ "chr1\t10\tc\n"
+				+ "chr2\t5\tb\n"
+				+ "chr10\t3\t\t\n"
+				+ "\t7\n";
+
+		File in = new File(dir, "in.tsv");
+		File out = new File(dir, "out.tsv");
+		Files.writeString(in.toPath(), input);
+
+		new TsvSorter().sort(in, out, 0, 1);
+
+		Assertions.assertEquals(expected, Files.readString(out.toPath()));
+	}
+
+	@Test
+	public void notNumber() throws Exception {
+		File in = new File(dir, "in.tsv");
+		Files.writeString(in.toPath(), "chr1\t1\nchr1\tabc\n");
+
+		Assertions.assertThrows(NumberFormatException.class,
+				() -> new TsvSorter().sort(in, new File(dir, "out.tsv"), 0, 1));
+	}
+
+	private void assertSorted(List<String> lines, TsvSorter sorter) throws Exception {
+		File in = new File(dir, "in.vcf");
+		File out = new File(dir, "out.vcf");
+		Files.write(in.toPath(), lines, StandardCharsets.UTF_8);
+
+		sorter.sort(in, out, VcfLineParser.Column.CHROM.ordinal(), VcfLineParser.Column.POS.ordinal(),
+				new VcfLineParser());
+
+		Assertions.assertEquals(sortReference(lines), Files.readAllLines(out.toPath(), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Header lines first and then a stable sort by chromosome and position
+	 */
+	private static List<String> sortReference(List<String> lines) {
+		List<String> header = new ArrayList<>();
+		List<String> content = new ArrayList<>();
+		for (String line : lines) {
+			if (content.isEmpty() && line.startsWith("#")) {
+				header.add(line);
+			} else {
+				content.add(line);
+			}
+		}
+
+		content.sort(Comparator.comparing((String line) -> new Chromosome(line.split("\t")[0]))
+				.thenComparing(line -> Long.parseLong(line.split("\t")[1])));
+
+		header.addAll(content);
+		return header;
+	}
+
+	static List<String> getRandomVcf(Random random, int count) {
+		String[] chrs = new String[] { "chr1", "chr2", "chr10", "chrX", "2", "MT" };
+		String[] bases = new String[] { "A", "C", "G", "T" };
+
+		List<String> lines = new ArrayList<>();
+		lines.add("##fileformat=VCFv4.2");
+		lines.add("##source=TsvSorterTest");
+		lines.add("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO");
+
+		for (int i = 0; i < count; i++) {
+			String chr = chrs[random.nextInt(chrs.length)];
+			// few positions to get equal keys
+			long pos = random.nextInt(count / 10 + 1) + 1;
+			lines.add(chr + "\t" + pos + "\trs" + i + "\t" + bases[random.nextInt(4)] + "\t"
+					+ bases[random.nextInt(4)] + "\t" + random.nextInt(100) + "\tPASS\tDP=" + random.nextInt(200));
+		}
+		return lines;
+	}
+}
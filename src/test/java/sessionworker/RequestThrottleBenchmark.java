@@ -0,0 +1,116 @@
+package sessionworker;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import fi.csc.chipster.sessionworker.RequestThrottle;
+
+/**
+ * Compare the throughput of the RequestThrottle with the previous
+ * implementation, which had a list of timestamps for each user behind one
+ * global lock
+ *
+ * Run with the main method, the results depend too much on the machine to be
+ * asserted in a unit test.
+ */
+public class RequestThrottleBenchmark {
+
+	private static final int KEY_COUNT = 10_000;
+	private static final long RUN_TIME = 2000; // ms
+
+	/**
+	 * The previous implementation, without the cleanup timer
+	 */
+	private static class GlobalLockThrottle {
+
+		private HashMap<String, LinkedList<Instant>> usernameMap = new HashMap<>();
+		private Duration durationLimit;
+		private long requestLimit;
+
+		public GlobalLockThrottle(Duration durationLimit, long countLimit) {
+			this.durationLimit = durationLimit;
+			this.requestLimit = countLimit;
+		}
+
+		public Duration throttle(String username) {
+			synchronized (usernameMap) {
+				if (usernameMap.get(username) == null) {
+					usernameMap.put(username, new LinkedList<Instant>());
+				}
+				LinkedList<Instant> requests = usernameMap.get(username);
+				requests.add(Instant.now());
+
+				if (requests.size() > this.requestLimit) {
+					requests.removeFirst();
+					Duration ageOfOldest = Duration.between(requests.getFirst(), Instant.now());
+					Duration retryAfter = durationLimit.minus(ageOfOldest);
+					if (!retryAfter.isNegative()) {
+						return retryAfter;
+					}
+				}
+				return Duration.ZERO;
+			}
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+
+		String[] keys = new String[KEY_COUNT];
+		for (int i = 0; i < KEY_COUNT; i++) {
+			keys[i] = "user" + i;
+		}
+
+		int[] threadCounts = new int[] { 1, 4, 16, 64 };
+
+		for (int threads : threadCounts) {
+			GlobalLockThrottle old = new GlobalLockThrottle(Duration.ofSeconds(60), 20);
+			RequestThrottle sharded = new RequestThrottle(Duration.ofSeconds(60), 20);
+
+			long oldOps = run(threads, keys, old::throttle);
+			long newOps = run(threads, keys, sharded::throttle);
+
+			System.out.println(String.format("%3d threads: global lock %,12d ops/s, sharded %,12d ops/s, %.1fx",
+					threads, oldOps, newOps, (double) newOps / oldOps));
+		}
+	}
+
+	private static long run(int threadCount, String[] keys, Function<String, Duration> throttle)
+			throws InterruptedException {
+
+		AtomicLong ops = new AtomicLong();
+		CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[threadCount];
+		long end = System.currentTimeMillis() + RUN_TIME;
+
+		for (int t = 0; t < threadCount; t++) {
+			int seed = t;
+			threads[t] = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				long count = 0;
+				int i = seed * 7919;
+				while ((count & 0xff) != 0 || System.currentTimeMillis() < end) {
+					throttle.apply(keys[(i++ & Integer.MAX_VALUE) % keys.length]);
+					count++;
+				}
+				ops.addAndGet(count);
+			});
+			threads[t].start();
+		}
+
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		return ops.get() * 1000 / RUN_TIME;
+	}
+}
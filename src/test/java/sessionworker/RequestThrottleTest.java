@@ -38,4 +38,13 @@ public class RequestThrottleTest {
 		Assertions.assertEquals(0, counter.getUsernameCount());
 	}
 
+	@Test
+	public void invalidLimits() {
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> new RequestThrottle(Duration.ofSeconds(60), 0));
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> new RequestThrottle(Duration.ofSeconds(60), -1));
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> new RequestThrottle(Duration.ZERO, 3));
+	}
 }